@@ -36,12 +36,32 @@ public class GuiceProperties
 	@Doc("The instance id assigned to this execution of the service (internal property, should not be set by user)")
 	public static final String INSTANCE_ID = "service.instance-id";
 
+	//
+	// Tracing Properties
+	//
+	@Doc("The proportion of traces (between 0 and 1) whose spans are recorded in memory for the slowest traces view. Verbose traces are always recorded unless this is 0 (default 0)")
+	public static final String TRACING_SAMPLE_RATE = "tracing.sample-rate";
+	@Doc("The number of spans each thread keeps in its trace recording buffer; changes only affect threads that have not yet recorded a span (default 1024)")
+	public static final String TRACING_BUFFER_SIZE = "tracing.buffer-size";
+
+	//
+	// Cache Properties
+	//
+	@Doc("The maximum number of threads used to refresh @Cache results ahead of their expiry; refreshes beyond this are skipped and the cached result expires normally (default 4)")
+	public static final String CACHE_REFRESH_AHEAD_MAX_THREADS = "framework.cache.refresh-ahead.max-threads";
+
 	//
 	// Breakers Properties
 	//
 	@Doc("Optional absolute path to a breaker folder; if specified then breaker trips will be persisted across servlet restarts. Presence of files named (context-name).(breaker-name) means this breaker will be treated as tripped. Only re-read at startup (default not specified)")
 	public static final String BREAKERS_PERSIST_STORE = "framework.breakers.persist.folder";
 
+	//
+	// Daemon Properties
+	//
+	@Doc("If true then daemons run on virtual threads rather than each owning a dedicated platform thread; may be overridden per daemon with daemon.(name).virtual-thread. Daemons that do not use daemon threads always use platform threads (default false)")
+	public static final String DAEMON_VIRTUAL_THREADS = "framework.daemons.virtual-threads";
+
 	//
 	// Configuration Service Properties
 	//
@@ -213,6 +233,21 @@ public class GuiceProperties
 	@Doc("If true then all Retryable Transactional errors will include stack traces (default false)")
 	public static final String HIBERNATE_LOG_RETRYABLE_TX_ERROR_STACK_TRACES = "hibernate.log-retryable-error-stack-traces";
 
+	@Doc("If set, read-only transactions will be run against this read replica rather than the primary database. Any other hibernate.read-replica.X property overrides hibernate.X for the replica connection (e.g. hibernate.read-replica.connection.username, hibernate.read-replica.hikari.maximumPoolSize)")
+	public static final String HIBERNATE_READ_REPLICA_URL = "hibernate.read-replica.connection.url";
+
+	@Doc("The maximum permitted replication lag for the read replica; while lag exceeds this, read-only transactions use the primary (default 30s)")
+	public static final String HIBERNATE_READ_REPLICA_MAX_LAG = "hibernate.read-replica.max-lag";
+
+	@Doc("SQL query run against the read replica that returns its current replication lag in seconds (default none, lag is not checked)")
+	public static final String HIBERNATE_READ_REPLICA_LAG_QUERY = "hibernate.read-replica.lag-query";
+
+	@Doc("How often to re-check the read replica's lag, and how long to avoid the replica after failing to connect to it (default 10s)")
+	public static final String HIBERNATE_READ_REPLICA_CHECK_INTERVAL = "hibernate.read-replica.check-interval";
+
+	@Doc("If true then read-only transactions will use the primary database while the read replica is unavailable or lagging; if false the replica is always used (default true)")
+	public static final String HIBERNATE_READ_REPLICA_FALLBACK = "hibernate.read-replica.fallback-to-primary";
+
 	@Doc("If true then when the guice hibernate jar is loaded it'll search for all @Entity annotated classes in the scan.packages packages and register them (default true)")
 	public static final String ROLE_HIBERNATE_AUTO = "role.hibernate.auto";
 
@@ -222,6 +257,12 @@ public class GuiceProperties
 	@Doc("If true then when the guice thymeleaf jar is loaded it'll auto-register thymeleaf as the default Templater (default true)")
 	public static final String ROLE_THYMELEAF_AUTO = "role.thymeleaf.auto";
 
+	@Doc("If true, templates rendered as the entity of a JAX-RS Response are streamed to the client as they render rather than being rendered to a String first. N.B. the remainder of the template renders after the resource method returns (and so outside any transaction it started) (default false)")
+	public static final String THYMELEAF_STREAMING = "thymeleaf.streaming";
+
+	@Doc("When streaming templates, the number of characters rendered between each flush to the client; the first chunk is rendered before the resource method returns, so failures within it produce the normal error response; must be positive (default 16384)")
+	public static final String THYMELEAF_STREAMING_CHUNK_SIZE = "thymeleaf.streaming.chunk-size";
+
 
 	//
 	// Guice Metrics properties
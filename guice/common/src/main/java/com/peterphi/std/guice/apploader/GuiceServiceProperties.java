@@ -5,7 +5,7 @@ import org.apache.commons.lang.StringUtils;
 
 public class GuiceServiceProperties
 {
-	@Doc("Service endpoint")
+	@Doc("Service endpoint; may be a comma-separated list of the endpoints of several instances of the service, in which case calls will be load balanced across them")
 	public static final String ENDPOINT = "service.*.endpoint";
 
 	@Doc("Username for auth (default empty, which causes it to be extracted from endpoint)")
@@ -38,6 +38,33 @@ public class GuiceServiceProperties
 	@Doc("If true then cookies set by the remote service will be stored (default is global value jaxrs.cookie-store, which defaults to false)")
 	public static final String STORE_COOKIES = "service.*.cookie-store";
 
+	@Doc("If true then calls to this service will be guarded by a circuit breaker that fails calls fast while the service has a high failure or slow-call rate (default is global value jaxrs.circuit-breaker, which defaults to false)")
+	public static final String CIRCUIT_BREAKER = "service.*.circuit-breaker";
+
+	@Doc("The percentage of recent calls that must fail for the circuit breaker to open (default is global value jaxrs.circuit-breaker.failure-rate)")
+	public static final String CIRCUIT_BREAKER_FAILURE_RATE = "service.*.circuit-breaker.failure-rate";
+
+	@Doc("The duration after which calls are considered slow by the circuit breaker (default is global value jaxrs.circuit-breaker.slow-call-threshold)")
+	public static final String CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD = "service.*.circuit-breaker.slow-call-threshold";
+
+	@Doc("The percentage of recent calls that must be slow for the circuit breaker to open (default is global value jaxrs.circuit-breaker.slow-call-rate)")
+	public static final String CIRCUIT_BREAKER_SLOW_CALL_RATE = "service.*.circuit-breaker.slow-call-rate";
+
+	@Doc("How long the circuit breaker stays open before permitting probe calls (default is global value jaxrs.circuit-breaker.open-duration)")
+	public static final String CIRCUIT_BREAKER_OPEN_DURATION = "service.*.circuit-breaker.open-duration";
+
+	@Doc("If true then GET responses from this service will be held in an in-memory cache, honouring their Cache-Control, Expires and ETag/Last-Modified headers (default false)")
+	public static final String RESPONSE_CACHE = "service.*.cache";
+
+	@Doc("The maximum number of responses from this service to hold in the response cache (default 1000)")
+	public static final String RESPONSE_CACHE_MAX_ENTRIES = "service.*.cache.max-entries";
+
+	@Doc("The maximum size (in bytes) of a response body from this service that may be held in the response cache (default 1048576)")
+	public static final String RESPONSE_CACHE_MAX_ENTRY_SIZE = "service.*.cache.max-entry-size";
+
+	@Doc("If true and this service has several endpoints, GET calls taking longer than the service's recent 95th percentile latency will also be sent to another instance, using whichever response arrives first (default false). Ignored if a bearer-generator is used, or if the HTTP client engine cannot abandon in-flight calls (only the OkHttp engine can)")
+	public static final String HEDGE = "service.*.hedge";
+
 
 	public static String prop(final String prop, final String serviceName)
 	{
@@ -12,6 +12,7 @@ import com.peterphi.std.guice.common.JAXBModule;
 import com.peterphi.std.guice.common.cached.module.CacheModule;
 import com.peterphi.std.guice.common.lifecycle.GuiceLifecycleModule;
 import com.peterphi.std.guice.common.logging.LoggingModule;
+import com.peterphi.std.guice.common.logging.TraceRecorderModule;
 import com.peterphi.std.guice.common.metrics.CoreMetricsModule;
 import com.peterphi.std.guice.common.retry.module.RetryModule;
 import com.peterphi.std.guice.common.serviceprops.ConfigurationPropertyRegistryModule;
@@ -53,10 +54,11 @@ class CoreGuiceRole implements GuiceRole
 
 		modules.add(new GuiceLifecycleModule());
 		modules.add(new CoreMetricsModule(metrics));
-		modules.add(new CacheModule(metrics));
+		modules.add(new CacheModule(metrics, config.getInt(GuiceProperties.CACHE_REFRESH_AHEAD_MAX_THREADS, 4)));
 		modules.add(new RetryModule(metrics));
 		modules.add(new JAXBModule(config));
 		modules.add(new LoggingModule(config));
+		modules.add(new TraceRecorderModule(config));
 	}
 
 
@@ -37,6 +37,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -406,11 +407,14 @@ class GuiceFactory
 
 				final ConfigPropertyData data = client.read(path, config.get(GuiceProperties.INSTANCE_ID), null);
 
+				final Map<String, String> properties = new HashMap<>();
 				for (ConfigPropertyValue property : data.properties)
 				{
-					config.set(property.name, property.value);
+					properties.put(property.name, property.value);
 				}
 
+				config.setAll(properties);
+
 				// Let others know that the configuration data is coming from a network source
 				config.set(GuiceProperties.CONFIG_SOURCE, GuiceConstants.CONFIG_SOURCE_NETWORK);
 
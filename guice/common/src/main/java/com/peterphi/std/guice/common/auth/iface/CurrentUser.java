@@ -98,6 +98,24 @@ public interface CurrentUser
 	 */
 	boolean hasRole(String role);
 
+	/**
+	 * Return whether the user has any of the named roles. The default implementation calls {@link #hasRole(String)} for each
+	 * role; implementations that hold the user's roles as a set should override this to perform a single set-based test
+	 *
+	 * @param roles
+	 * 		the role names to test
+	 *
+	 * @return true if the user has at least one of the roles, otherwise false
+	 */
+	default boolean hasAnyRole(Collection<String> roles)
+	{
+		for (String role : roles)
+			if (hasRole(role))
+				return true;
+
+		return false;
+	}
+
 	/**
 	 * Get the instant when the login must expire (or null if it will never expire or has not come through an authentication
 	 * system that uses expiration)
@@ -15,12 +15,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.TreeSet;
 import java.util.function.Consumer;
 
 /**
- * Service that returns Breakers that depend on one or more of a group of underlying named breakers.<br /> Current implementation
- * is designed for manual (and therefore low volume) tripping
+ * Service that returns Breakers that depend on one or more of a group of underlying named breakers.<br /> Named breakers are
+ * designed for manual (and therefore low volume) tripping; {@link CircuitBreaker}s obtained from {@link
+ * #getCircuitBreaker(String, CircuitBreakerSettings)} trip and reset themselves based on the outcome of the calls they guard, but
+ * may also be tripped/reset manually by name
  */
 @Singleton
 public class BreakerService
@@ -47,6 +50,11 @@ public class BreakerService
 	 */
 	private final List<BreakerGroupImpl> groups = new ArrayList<>();
 
+	/**
+	 * The self-tripping circuit breakers that have been created, by name
+	 */
+	private final Map<String, CircuitBreaker> circuits = new ConcurrentHashMap<>();
+
 	private final BreakerPersistStore persist;
 
 
@@ -55,6 +63,8 @@ public class BreakerService
 	{
 		metrics.register("breakers_tripped_total", (Gauge) tripped :: size);
 		metrics.register("breaker_listeners", (Gauge) groups :: size);
+		metrics.register("breaker_circuits_open_total",
+		                 (Gauge) () -> circuits.values().stream().filter(CircuitBreaker :: isTripped).count());
 
 		this.tripped.addAll(persist.getDefaultTripped());
 		this.names.addAll(persist.getDefaultTripped());
@@ -84,6 +94,42 @@ public class BreakerService
 	}
 
 
+	/**
+	 * Get or create a self-tripping circuit breaker. The circuit breaker's name is listed alongside the manual breakers, its state
+	 * changes are recorded as trip records and it may be tripped/reset with {@link #set(String, boolean, String)}; N.B. its state
+	 * is not persisted and it does not participate in the groups created by {@link #register(Consumer, List)}
+	 *
+	 * @param name     the name of the circuit breaker (e.g. "restcall.SomeService.circuit")
+	 * @param settings the settings to use if the circuit breaker does not yet exist
+	 * @return
+	 */
+	public CircuitBreaker getCircuitBreaker(final String name, final CircuitBreakerSettings settings)
+	{
+		return circuits.computeIfAbsent(name, k -> {
+			synchronized (this)
+			{
+				if (this.names.contains(name))
+					throw new IllegalArgumentException("Cannot create circuit breaker " + name + ": name already used by a breaker");
+
+				this.names.add(name);
+			}
+
+			return new CircuitBreaker(name, settings, (open, note) -> circuitChanged(name, open, note));
+		});
+	}
+
+
+	private synchronized void circuitChanged(final String name, final boolean open, final String note)
+	{
+		lastChanged.put(name, new TripRecord(note, open));
+
+		if (open)
+			log.warn("Circuit breaker '{}' opened: {}", name, note);
+		else
+			log.info("Circuit breaker '{}' closed: {}", name, note);
+	}
+
+
 	public synchronized List<String> getAllBreakerNames()
 	{
 		return new ArrayList<>(names);
@@ -97,7 +143,11 @@ public class BreakerService
 		// If never tripped, return a placeholder record
 		if (record == null)
 		{
-			if (names.contains(name))
+			if (circuits.containsKey(name))
+			{
+				return new TripRecord(new Date(0), "Initial value", false);
+			}
+			else if (names.contains(name))
 			{
 				return new TripRecord(new Date(0), "Initial value", persist.isBreakerDefaultTripped(name));
 			}
@@ -120,7 +170,26 @@ public class BreakerService
 	 * @param value the new state
 	 * @param note  the optional description of why the state has changed
 	 */
-	public synchronized void set(final String name, final boolean value, final String note)
+	public void set(final String name, final boolean value, final String note)
+	{
+		// N.B. circuit breakers are changed outside our lock, since they call back into us while holding their own lock
+		final CircuitBreaker circuit = circuits.get(name);
+
+		if (circuit != null)
+		{
+			if (value)
+				circuit.trip(note);
+			else
+				circuit.reset(note);
+		}
+		else
+		{
+			setNamed(name, value, note);
+		}
+	}
+
+
+	private synchronized void setNamed(final String name, final boolean value, final String note)
 	{
 		final boolean currentState = tripped.contains(name);
 
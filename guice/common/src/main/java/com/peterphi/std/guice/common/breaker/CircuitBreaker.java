@@ -0,0 +1,327 @@
+package com.peterphi.std.guice.common.breaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A Breaker that trips itself based on the outcome of the calls it guards.<br />
+ * While <strong>closed</strong> the outcome of the most recent calls are kept in a sliding window; once the window holds enough
+ * calls and either the failure rate or the slow-call rate reaches its threshold the circuit <strong>opens</strong> and
+ * {@link #tryAcquire()} refuses all calls. After a cool-down the circuit becomes <strong>half-open</strong> and a limited number
+ * of probe calls are permitted: if they all succeed promptly the circuit closes, otherwise it opens again.<br />
+ * Callers should call {@link #tryAcquire()} before each call and then exactly one of {@link #onSuccess(long)}, {@link
+ * #onFailure(long)} or {@link #onIgnored()} once it completes.
+ *
+ * @see BreakerService#getCircuitBreaker(String, CircuitBreakerSettings)
+ */
+public class CircuitBreaker implements Breaker
+{
+	public enum State
+	{
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private static final byte OUTCOME_FAILED = 1;
+	private static final byte OUTCOME_SLOW = 2;
+
+	private final String name;
+	private final CircuitBreakerSettings settings;
+	private final BiConsumer<Boolean, String> onChange;
+	private final LongSupplier nanoClock;
+
+	private final long slowCallNanos;
+	private final long openNanos;
+
+	/**
+	 * Ring buffer holding the outcome flags of the most recent calls
+	 */
+	private final byte[] window;
+	private int windowPos = 0;
+	private int windowCalls = 0;
+	private int windowFailures = 0;
+	private int windowSlow = 0;
+
+	private volatile State state = State.CLOSED;
+	private long openedAt;
+	private int probesIssued;
+	private int probesSucceeded;
+
+
+	public CircuitBreaker(final String name, final CircuitBreakerSettings settings, final BiConsumer<Boolean, String> onChange)
+	{
+		this(name, settings, onChange, System :: nanoTime);
+	}
+
+
+	CircuitBreaker(final String name,
+	               final CircuitBreakerSettings settings,
+	               final BiConsumer<Boolean, String> onChange,
+	               final LongSupplier nanoClock)
+	{
+		this.name = name;
+		this.settings = settings;
+		this.onChange = onChange;
+		this.nanoClock = nanoClock;
+
+		this.slowCallNanos = settings.slowCallThreshold().get(TimeUnit.NANOSECONDS);
+		this.openNanos = settings.openDuration().get(TimeUnit.NANOSECONDS);
+		this.window = new byte[settings.windowSize()];
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public CircuitBreakerSettings getSettings()
+	{
+		return settings;
+	}
+
+
+	public State getState()
+	{
+		return state;
+	}
+
+
+	/**
+	 * Request permission to make a call
+	 *
+	 * @return true if the call may proceed, otherwise false if the circuit is open (or half-open with all probe calls already
+	 * issued)
+	 */
+	public boolean tryAcquire()
+	{
+		// Fast path, permits calls without locking while the circuit is healthy
+		if (state == State.CLOSED)
+			return true;
+
+		synchronized (this)
+		{
+			if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openNanos)
+			{
+				state = State.HALF_OPEN;
+				probesIssued = 0;
+				probesSucceeded = 0;
+			}
+
+			switch (state)
+			{
+				case CLOSED:
+					return true;
+				case HALF_OPEN:
+					if (probesIssued < settings.halfOpenProbeCalls())
+					{
+						probesIssued++;
+						return true;
+					}
+					else
+					{
+						return false;
+					}
+				default:
+					return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Record that a permitted call completed successfully
+	 *
+	 * @param durationNanos the time taken by the call
+	 */
+	public void onSuccess(final long durationNanos)
+	{
+		record(durationNanos, false);
+	}
+
+
+	/**
+	 * Record that a permitted call failed in a way that indicates the remote party is unhealthy
+	 *
+	 * @param durationNanos the time taken by the call
+	 */
+	public void onFailure(final long durationNanos)
+	{
+		record(durationNanos, true);
+	}
+
+
+	/**
+	 * Record that a permitted call completed with an outcome that says nothing about the health of the remote party (e.g. it was
+	 * rejected locally before being sent)
+	 */
+	public synchronized void onIgnored()
+	{
+		if (state == State.HALF_OPEN && probesIssued > 0)
+			probesIssued--;
+	}
+
+
+	private synchronized void record(final long durationNanos, final boolean failed)
+	{
+		final boolean slow = durationNanos >= slowCallNanos;
+
+		switch (state)
+		{
+			case CLOSED:
+				addToWindow((byte) ((failed ? OUTCOME_FAILED : 0) | (slow ? OUTCOME_SLOW : 0)));
+
+				if (windowCalls >= settings.minimumCalls())
+				{
+					if (windowFailures * 100 >= settings.failureRate() * windowCalls)
+						open("Failure rate " + percent(windowFailures) + "% reached threshold of " + settings.failureRate() + "%");
+					else if (windowSlow * 100 >= settings.slowCallRate() * windowCalls)
+						open("Slow call rate " + percent(windowSlow) + "% reached threshold of " + settings.slowCallRate() + "%");
+				}
+				break;
+			case HALF_OPEN:
+				if (failed || slow)
+				{
+					open("Probe call " + (failed ? "failed" : "was slow") + " while half-open");
+				}
+				else if (++probesSucceeded >= settings.halfOpenProbeCalls())
+				{
+					close("All " + probesSucceeded + " probe calls succeeded");
+				}
+				break;
+			default:
+				// A call permitted before the circuit opened has completed; it has no bearing on the current state
+				break;
+		}
+	}
+
+
+	/**
+	 * Forcibly open the circuit (it will become half-open once the cool-down has elapsed)
+	 *
+	 * @param note
+	 */
+	public synchronized void trip(final String note)
+	{
+		if (state == State.OPEN)
+			openedAt = nanoClock.getAsLong(); // restart the cool-down
+		else
+			open(note);
+	}
+
+
+	/**
+	 * Forcibly close the circuit, discarding all previously recorded calls
+	 *
+	 * @param note
+	 */
+	public synchronized void reset(final String note)
+	{
+		if (state != State.CLOSED)
+			close(note);
+		else
+			clearWindow();
+	}
+
+
+	private void open(final String note)
+	{
+		final boolean wasClosed = (state == State.CLOSED);
+
+		state = State.OPEN;
+		openedAt = nanoClock.getAsLong();
+		clearWindow();
+
+		// N.B. only notify on the transition from closed; re-opening from half-open is not a new trip
+		if (wasClosed)
+			notifyChange(true, note);
+	}
+
+
+	private void close(final String note)
+	{
+		state = State.CLOSED;
+		clearWindow();
+
+		notifyChange(false, note);
+	}
+
+
+	private void addToWindow(final byte outcome)
+	{
+		if (windowCalls == window.length)
+		{
+			// Evict the oldest outcome
+			final byte evicted = window[windowPos];
+
+			if ((evicted & OUTCOME_FAILED) != 0)
+				windowFailures--;
+			if ((evicted & OUTCOME_SLOW) != 0)
+				windowSlow--;
+		}
+		else
+		{
+			windowCalls++;
+		}
+
+		window[windowPos] = outcome;
+		windowPos = (windowPos + 1) % window.length;
+
+		if ((outcome & OUTCOME_FAILED) != 0)
+			windowFailures++;
+		if ((outcome & OUTCOME_SLOW) != 0)
+			windowSlow++;
+	}
+
+
+	private void clearWindow()
+	{
+		windowPos = 0;
+		windowCalls = 0;
+		windowFailures = 0;
+		windowSlow = 0;
+	}
+
+
+	private int percent(final int count)
+	{
+		return (count * 100) / windowCalls;
+	}
+
+
+	private void notifyChange(final boolean open, final String note)
+	{
+		if (onChange != null)
+			onChange.accept(open, note);
+	}
+
+
+	/**
+	 * Returns true while the circuit is open; N.B. a half-open circuit is not considered tripped, although it may still refuse
+	 * calls in {@link #tryAcquire()}
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean isTripped()
+	{
+		return state == State.OPEN;
+	}
+
+
+	@Override
+	public boolean isNormal()
+	{
+		return !isTripped();
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "CircuitBreaker{" + name + ", state=" + state + "}";
+	}
+}
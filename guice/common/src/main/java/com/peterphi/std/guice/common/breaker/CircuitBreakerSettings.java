@@ -0,0 +1,44 @@
+package com.peterphi.std.guice.common.breaker;
+
+import com.peterphi.std.threading.Timeout;
+
+/**
+ * Tuning for a {@link CircuitBreaker}
+ *
+ * @param windowSize         the number of most recent calls considered when computing failure and slow-call rates
+ * @param minimumCalls       the minimum number of calls that must be in the window before the circuit may open
+ * @param failureRate        the percentage (1-100) of failed calls in the window at which the circuit opens
+ * @param slowCallThreshold  calls taking at least this long are considered slow
+ * @param slowCallRate       the percentage (1-100) of slow calls in the window at which the circuit opens
+ * @param openDuration       how long the circuit remains open before permitting probe calls
+ * @param halfOpenProbeCalls the number of probe calls permitted while half-open; all must succeed (and not be slow) for the
+ *                           circuit to close
+ */
+public record CircuitBreakerSettings(int windowSize, int minimumCalls, int failureRate, Timeout slowCallThreshold,
+                                     int slowCallRate, Timeout openDuration, int halfOpenProbeCalls)
+{
+	public static final CircuitBreakerSettings DEFAULTS = new CircuitBreakerSettings(100,
+	                                                                                 20,
+	                                                                                 50,
+	                                                                                 Timeout.TEN_SECONDS,
+	                                                                                 80,
+	                                                                                 Timeout.THIRTY_SECONDS,
+	                                                                                 3);
+
+
+	public CircuitBreakerSettings
+	{
+		if (windowSize < 1)
+			throw new IllegalArgumentException("Circuit breaker window size must be at least 1");
+		if (minimumCalls < 1 || minimumCalls > windowSize)
+			throw new IllegalArgumentException("Circuit breaker minimum calls must be between 1 and the window size");
+		if (failureRate < 1 || failureRate > 100)
+			throw new IllegalArgumentException("Circuit breaker failure rate must be between 1 and 100");
+		if (slowCallRate < 1 || slowCallRate > 100)
+			throw new IllegalArgumentException("Circuit breaker slow call rate must be between 1 and 100");
+		if (halfOpenProbeCalls < 1)
+			throw new IllegalArgumentException("Circuit breaker must permit at least 1 half-open probe call");
+		if (slowCallThreshold == null || openDuration == null)
+			throw new IllegalArgumentException("Circuit breaker slow call threshold and open duration must be provided");
+	}
+}
@@ -0,0 +1,19 @@
+package com.peterphi.std.guice.common.cached;
+
+import java.lang.reflect.Method;
+
+/**
+ * Derives the key used to cache the result of a call to a {@link com.peterphi.std.guice.common.cached.annotation.Cache}
+ * annotated method. Implementations must have a public no-argument constructor and be thread-safe.
+ */
+public interface CacheKeyGenerator
+{
+	/**
+	 * Generate a cache key for a method call
+	 *
+	 * @param method the method being called
+	 * @param args   the arguments to the method call (must not be modified, and should be copied if held by the key)
+	 * @return a non-null key, which must implement equals and hashCode
+	 */
+	Object getKey(Method method, Object[] args);
+}
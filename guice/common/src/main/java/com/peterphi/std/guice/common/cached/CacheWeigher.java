@@ -0,0 +1,17 @@
+package com.peterphi.std.guice.common.cached;
+
+/**
+ * Computes the weight of a result cached for a {@link com.peterphi.std.guice.common.cached.annotation.Cache} annotated method
+ * with a {@link com.peterphi.std.guice.common.cached.annotation.Cache#maxWeight()}. Implementations must have a public
+ * no-argument constructor and be thread-safe.
+ */
+public interface CacheWeigher
+{
+	/**
+	 * Compute the weight of a cached result
+	 *
+	 * @param result the result of the method call (may be null)
+	 * @return the weight of the result (must not be negative); the weight of a result does not change while it is cached
+	 */
+	int getWeight(Object result);
+}
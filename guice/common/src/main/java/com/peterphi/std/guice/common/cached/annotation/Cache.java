@@ -1,14 +1,20 @@
 package com.peterphi.std.guice.common.cached.annotation;
 
+import com.peterphi.std.guice.common.cached.CacheKeyGenerator;
+import com.peterphi.std.guice.common.cached.CacheWeigher;
+import com.peterphi.std.guice.common.cached.util.DefaultCacheKeyGenerator;
+import com.peterphi.std.guice.common.cached.util.DefaultCacheWeigher;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * When annotated on a zero argument public/protected/package-private method in a Guice-constructed object this annotation will
- * automatically
- * cache the result of the method
+ * When annotated on a public/protected/package-private method in a Guice-constructed object this annotation will automatically
+ * cache the result of the method. Where the method takes arguments, results are cached separately for each distinct set of
+ * arguments (as determined by {@link #keyGenerator()}).<br />
+ * Concurrent calls that miss the cache for the same key will share a single invocation of the method.
  */
 @Target({ElementType.METHOD})
 @Retention(RetentionPolicy.RUNTIME)
@@ -22,10 +28,51 @@ public @interface Cache
 	long timeout() default 60 * 1000;
 
 	/**
-	 * The name of the (global) cache that will be used (if not specified a global cache name based on the fully qualified class/method
-	 * name will be used)
+	 * The name of the (global) cache that will be used (if not specified a cache for each method and object instance will be used).
+	 * Where a name is shared by several methods, results are still cached separately for each method, but the first method to be
+	 * called determines the cache bounds
 	 *
 	 * @return
 	 */
 	String name() default "";
+
+	/**
+	 * The maximum number of results to hold in the cache (0 for no limit other than the cache values being reclaimable by the
+	 * garbage collector if memory is required)
+	 *
+	 * @return
+	 */
+	long maxSize() default 0;
+
+	/**
+	 * The maximum total weight (as determined by {@link #weigher()}) of the results to hold in the cache (0 for no limit other than
+	 * the cache values being reclaimable by the garbage collector if memory is required). Cannot be combined with {@link
+	 * #maxSize()}
+	 *
+	 * @return
+	 */
+	long maxWeight() default 0;
+
+	/**
+	 * The weigher used to compute the weight of each result if {@link #maxWeight()} is set
+	 *
+	 * @return
+	 */
+	Class<? extends CacheWeigher> weigher() default DefaultCacheWeigher.class;
+
+	/**
+	 * If non-zero, a call that returns a cached result less than this many milliseconds before the result is due to expire will
+	 * trigger an asynchronous refresh of the result, so that frequently-used results are reloaded without callers having to wait.
+	 * Must be less than {@link #timeout()}
+	 *
+	 * @return
+	 */
+	long refreshAhead() default 0;
+
+	/**
+	 * The generator used to derive a cache key from the method arguments
+	 *
+	 * @return
+	 */
+	Class<? extends CacheKeyGenerator> keyGenerator() default DefaultCacheKeyGenerator.class;
 }
@@ -3,103 +3,407 @@ package com.peterphi.std.guice.common.cached.module;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.peterphi.std.guice.common.cached.CacheKeyGenerator;
 import com.peterphi.std.guice.common.cached.CacheManager;
+import com.peterphi.std.guice.common.cached.CacheWeigher;
 import com.peterphi.std.guice.common.cached.annotation.Cache;
 import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
+import com.peterphi.std.util.tracing.Tracing;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 final class CacheMethodInterceptor implements MethodInterceptor
 {
 	private static final Logger log = LoggerFactory.getLogger(CacheMethodInterceptor.class);
 
+	private static final String CACHE_NAME = "Cache-annotated methods";
+
+	/**
+	 * Set while a refresh-ahead call is being made, holding the method being refreshed
+	 */
+	private static final ThreadLocal<Method> REFRESHING = new ThreadLocal<>();
+
+	/**
+	 * Caches shared by all methods with the same {@link Cache#name()}
+	 */
+	private final ConcurrentHashMap<String, ResultCache> namedCaches = new ConcurrentHashMap<>();
+
 	/**
-	 * Use a guava cache with soft values (so the GC can reclaim the space if necessary)
+	 * The resolved cache configuration for each annotated method
 	 */
-	private final com.google.common.cache.Cache<String, CacheResult> cache = CacheManager.build("Cache-annotated methods",
-	                                                                                            CacheBuilder
-			                                                                                            .newBuilder()
-			                                                                                            .softValues());
+	private final ConcurrentHashMap<Method, CachedMethod> methods = new ConcurrentHashMap<>();
 
 	private final Meter hits;
 	private final Meter misses;
+	private final Meter refreshes;
+
+	/**
+	 * The time source for result expiry and refresh-ahead
+	 */
+	private final Ticker ticker;
+
+	/**
+	 * Runs refresh-ahead calls
+	 */
+	private final Executor refreshExecutor;
+
 
+	public CacheMethodInterceptor(MetricRegistry registry, final int refreshAheadMaxThreads)
+	{
+		this(registry, Ticker.systemTicker(), createRefreshExecutor(refreshAheadMaxThreads));
+	}
 
-	public CacheMethodInterceptor(MetricRegistry registry)
+
+	CacheMethodInterceptor(MetricRegistry registry, final Ticker ticker, final Executor refreshExecutor)
 	{
 		this.hits = registry.meter(GuiceMetricNames.CACHE_HITS);
 		this.misses = registry.meter(GuiceMetricNames.CACHE_MISSES);
+		this.refreshes = registry.meter(GuiceMetricNames.CACHE_REFRESHES);
+		this.ticker = ticker;
+		this.refreshExecutor = refreshExecutor;
+	}
 
-		CacheManager.register("Cache-annotated methods", cache);
+
+	private static Executor createRefreshExecutor(final int maxThreads)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		final ThreadFactory threads = r -> {
+			final Thread thread = new Thread(r, "cache-refresh-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+
+		// N.B. idle threads exit after a minute, so there is nothing to shut down. When every thread is busy the refresh is
+		// rejected (and the cached result expires normally) rather than queued
+		return new ThreadPoolExecutor(0,
+		                              maxThreads,
+		                              1,
+		                              TimeUnit.MINUTES,
+		                              new SynchronousQueue<>(),
+		                              threads,
+		                              new ThreadPoolExecutor.AbortPolicy());
 	}
 
 
 	@Override
 	public Object invoke(final MethodInvocation invocation) throws Throwable
 	{
-		if (invocation.getArguments().length > 0)
+		final Method method = invocation.getMethod();
+		final CachedMethod cachedMethod = methods.computeIfAbsent(method, CachedMethod :: new);
+
+		final ResultCache cache = cachedMethod.getCache(invocation.getThis());
+		final Object key = cachedMethod.getKey(method, invocation.getArguments());
+
+		// If this is a refresh-ahead call then always recompute the result
+		if (method.equals(REFRESHING.get()))
 		{
-			throw new IllegalArgumentException(
-					"This caching interceptor does not support caching results of method calls with arguments");
+			// N.B. clear the flag so any other @Cache methods called by this method behave normally
+			REFRESHING.remove();
+
+			final Object result = invocation.proceed();
+
+			cache.results.put(key, new CacheResult(result, cachedMethod.getRefreshAt()));
+
+			return result;
 		}
 
+		final CacheResult cacheResult = cache.results.getIfPresent(key);
+		if (cacheResult != null)
+		{
+			if (log.isDebugEnabled())
+				log.debug("Returning cached result for {} with key {}", method, key);
+
+			if (cachedMethod.refreshAhead && cacheResult.shouldRefresh(ticker.read()))
+				refresh(invocation, cacheResult);
 
-		final Cache options = invocation.getMethod().getAnnotation(Cache.class);
+			hits.mark();
 
-		final long timeout = options.timeout();
+			return cacheResult.result;
+		}
 
-		final String key;
-		if (StringUtils.isEmpty(options.name()))
+		// first time calling this method or previous result has timed out
+		// N.B. concurrent misses for the same key will wait for a single computation
+		final boolean[] computed = {false};
+		try
 		{
-			key = invocation.getMethod().toGenericString() + "|" + invocation.getThis().hashCode();
+			final CacheResult result = cache.results.get(key, () -> {
+				computed[0] = true;
+				misses.mark();
+
+				return new CacheResult(proceed(invocation), cachedMethod.getRefreshAt());
+			});
+
+			if (!computed[0])
+				hits.mark();
+
+			return result.result;
 		}
-		else
+		catch (ExecutionException | UncheckedExecutionException | ExecutionError e)
 		{
-			key = options.name();
+			throw e.getCause();
 		}
+	}
 
-		final CacheResult cacheResult = cache.getIfPresent(key);
-		if (cacheResult != null)
+
+	/**
+	 * Asynchronously re-invoke the method (via the intercepted object, so any other interceptors still apply) to replace a cached
+	 * result that is nearing expiry. The refresh runs within the caller's trace
+	 *
+	 * @param invocation
+	 * @param cacheResult
+	 */
+	private void refresh(final MethodInvocation invocation, final CacheResult cacheResult)
+	{
+		if (!cacheResult.refreshing.compareAndSet(false, true))
+			return; // Already being refreshed
+
+		final Method method = invocation.getMethod();
+		final Object instance = invocation.getThis();
+		final Object[] args = invocation.getArguments().clone();
+
+		final Function<Void, Void> task = Tracing.wrap(ignored -> {
+			REFRESHING.set(method);
+			try
+			{
+				method.invoke(instance, args);
+			}
+			catch (Throwable t)
+			{
+				final Throwable cause = (t instanceof InvocationTargetException) ? t.getCause() : t;
+
+				log.warn("Refresh-ahead of @Cache method {} failed; cached result will expire normally", method, cause);
+
+				// Allow a later call to retry the refresh
+				cacheResult.refreshing.set(false);
+			}
+			finally
+			{
+				REFRESHING.remove();
+			}
+
+			return null;
+		});
+
+		try
+		{
+			refreshExecutor.execute(() -> task.apply(null));
+
+			refreshes.mark();
+		}
+		catch (RejectedExecutionException e)
 		{
-			//if we haven't hit the result's invalidation timeout
-			if (cacheResult.expires >= System.currentTimeMillis())
+			log.debug("Refresh-ahead of @Cache method {} skipped, all refresh threads busy", method);
+
+			// Allow a later call to retry the refresh
+			cacheResult.refreshing.set(false);
+		}
+	}
+
+
+	private static Object proceed(final MethodInvocation invocation) throws Exception
+	{
+		try
+		{
+			return invocation.proceed();
+		}
+		catch (Exception | Error e)
+		{
+			throw e;
+		}
+		catch (Throwable t)
+		{
+			throw new RuntimeException(t);
+		}
+	}
+
+
+	/**
+	 * The resolved configuration for a {@link Cache} annotated method
+	 */
+	private final class CachedMethod
+	{
+		private final Cache options;
+		private final CacheKeyGenerator keys;
+		private final boolean refreshAhead;
+
+		/**
+		 * The cache used if this method uses a named cache
+		 */
+		private final ResultCache named;
+
+		/**
+		 * The caches for each object instance if this method doesn't use a named cache (weakly referencing the instance)
+		 */
+		private final LoadingCache<Object, ResultCache> instances;
+
+
+		public CachedMethod(final Method method)
+		{
+			this.options = method.getAnnotation(Cache.class);
+			this.refreshAhead = options.refreshAhead() > 0;
+
+			if (refreshAhead && options.refreshAhead() >= options.timeout())
+				throw new IllegalArgumentException("@Cache refreshAhead must be less than timeout on " + method);
+			else if (options.maxSize() > 0 && options.maxWeight() > 0)
+				throw new IllegalArgumentException("@Cache cannot have both maxSize and maxWeight on " + method);
+
+			final CacheWeigher weigher;
+			try
 			{
-				if (log.isDebugEnabled())
-					log.debug("Returning cached result for {}", key);
+				this.keys = options.keyGenerator().getDeclaredConstructor().newInstance();
+				weigher = (options.maxWeight() > 0) ? options.weigher().getDeclaredConstructor().newInstance() : null;
+			}
+			catch (ReflectiveOperationException e)
+			{
+				throw new IllegalArgumentException("Unable to construct @Cache key generator/weigher for " + method, e);
+			}
 
-				//return the previous result
-				hits.mark();
+			if (refreshAhead)
+				method.setAccessible(true); // Permit calls to non-public methods
 
-				return cacheResult.result;
+			if (StringUtils.isEmpty(options.name()))
+			{
+				this.named = null;
+				this.instances = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<>()
+				{
+					@Override
+					public ResultCache load(final Object instance)
+					{
+						return new ResultCache(options, weigher, ticker);
+					}
+				});
+			}
+			else
+			{
+				this.named = namedCaches.computeIfAbsent(options.name(), name -> new ResultCache(options, weigher, ticker));
+				this.instances = null;
 			}
 		}
 
-		//first time calling this method or previous result has timed out
+
+		/**
+		 * Get the key to cache the result of a call under
+		 *
+		 * @param method
+		 * @param args
+		 *
+		 * @return
+		 */
+		public Object getKey(final Method method, final Object[] args)
 		{
-			Object result = invocation.proceed();
+			final Object key = keys.getKey(method, args);
 
-			CacheResult cr = new CacheResult(result, System.currentTimeMillis() + timeout);
-			cache.put(key, cr);
+			// A named cache may be shared by several methods, whose results must not be confused
+			if (named != null)
+				return new MethodKey(method, key);
+			else
+				return key;
+		}
 
-			misses.mark();
-			return result;
+
+		public ResultCache getCache(final Object instance)
+		{
+			if (named != null)
+				return named;
+			else
+				return instances.getUnchecked(instance);
+		}
+
+
+		public long getRefreshAt()
+		{
+			if (refreshAhead)
+				return ticker.read() + TimeUnit.MILLISECONDS.toNanos(options.timeout() - options.refreshAhead());
+			else
+				return Long.MAX_VALUE;
 		}
 	}
 
 
+	private static final class ResultCache
+	{
+		/**
+		 * Use a guava cache with soft values (so the GC can reclaim the space if necessary)
+		 */
+		private final com.google.common.cache.Cache<Object, CacheResult> results;
+
+
+		/**
+		 * @param options
+		 * @param weigher
+		 * 		the weigher for results (only used if {@link Cache#maxWeight()} is set)
+		 * @param ticker
+		 */
+		public ResultCache(final Cache options, final CacheWeigher weigher, final Ticker ticker)
+		{
+			CacheBuilder<Object, Object> builder = CacheBuilder
+					                                       .newBuilder()
+					                                       .softValues()
+					                                       .ticker(ticker)
+					                                       .expireAfterWrite(options.timeout(), TimeUnit.MILLISECONDS);
+
+			if (options.maxSize() > 0)
+				builder = builder.maximumSize(options.maxSize());
+			else if (options.maxWeight() > 0)
+				builder = builder.maximumWeight(options.maxWeight())
+				                 .weigher((Object key, Object value) -> weigher.getWeight(((CacheResult) value).result));
+
+			this.results = CacheManager.build(CACHE_NAME, builder);
+		}
+	}
+
+
+	/**
+	 * Identifies a result within a named cache
+	 */
+	private record MethodKey(Method method, Object key)
+	{
+	}
+
+
 	private static final class CacheResult
 	{
 		private final Object result;
-		private final long expires;
 
+		/**
+		 * The {@link Ticker#read()} time after which the result should be refreshed
+		 */
+		private final long refreshAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
 
-		public CacheResult(final Object result, final long expires)
+
+		public CacheResult(final Object result, final long refreshAt)
 		{
 			this.result = result;
-			this.expires = expires;
+			this.refreshAt = refreshAt;
+		}
+
+
+		public boolean shouldRefresh(final long now)
+		{
+			return !refreshing.get() && now >= refreshAt;
 		}
 	}
 }
@@ -8,18 +8,26 @@ import com.peterphi.std.guice.common.cached.annotation.Cache;
 public class CacheModule extends AbstractModule
 {
 	private final MetricRegistry metrics;
+	private final int refreshAheadMaxThreads;
 
 
 	public CacheModule(final MetricRegistry metrics)
+	{
+		this(metrics, 4);
+	}
+
+
+	public CacheModule(final MetricRegistry metrics, final int refreshAheadMaxThreads)
 	{
 		this.metrics = metrics;
+		this.refreshAheadMaxThreads = refreshAheadMaxThreads;
 	}
 
 
 	@Override
 	protected void configure()
 	{
-		CacheMethodInterceptor interceptor = new CacheMethodInterceptor(metrics);
+		CacheMethodInterceptor interceptor = new CacheMethodInterceptor(metrics, refreshAheadMaxThreads);
 
 		bindInterceptor(Matchers.any(), Matchers.annotatedWith(Cache.class), interceptor);
 	}
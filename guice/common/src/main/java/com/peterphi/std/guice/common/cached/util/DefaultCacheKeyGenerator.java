@@ -0,0 +1,95 @@
+package com.peterphi.std.guice.common.cached.util;
+
+import com.peterphi.std.guice.common.cached.CacheKeyGenerator;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The default key generator for {@link com.peterphi.std.guice.common.cached.annotation.Cache}; a call with no arguments or a
+ * single primitive/String/enum argument does not allocate a new key. Other arguments are compared using {@link
+ * Arrays#deepEquals(Object[], Object[])}
+ */
+public class DefaultCacheKeyGenerator implements CacheKeyGenerator
+{
+	private static final Object NO_ARGS = new Object();
+	private static final Object NULL_ARG = new Object();
+
+
+	@Override
+	public Object getKey(final Method method, final Object[] args)
+	{
+		if (args.length == 0)
+		{
+			return NO_ARGS;
+		}
+		else if (args.length == 1)
+		{
+			final Object arg = args[0];
+
+			if (arg == null)
+				return NULL_ARG;
+			else if (isSimple(arg))
+				return arg;
+		}
+
+		return new ArgumentsKey(args.clone());
+	}
+
+
+	private static boolean isSimple(final Object arg)
+	{
+		return arg instanceof String ||
+		       arg instanceof Integer ||
+		       arg instanceof Long ||
+		       arg instanceof Boolean ||
+		       arg instanceof Enum ||
+		       arg instanceof Character ||
+		       arg instanceof Short ||
+		       arg instanceof Byte ||
+		       arg instanceof Double ||
+		       arg instanceof Float ||
+		       arg instanceof UUID;
+	}
+
+
+	private static final class ArgumentsKey
+	{
+		private final Object[] args;
+		private final int hashCode;
+
+
+		public ArgumentsKey(final Object[] args)
+		{
+			this.args = args;
+			this.hashCode = Arrays.deepHashCode(args);
+		}
+
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (this == o)
+				return true;
+			else if (!(o instanceof ArgumentsKey that))
+				return false;
+			else
+				return this.hashCode == that.hashCode && Arrays.deepEquals(this.args, that.args);
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return Arrays.deepToString(args);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.peterphi.std.guice.common.cached.util;
+
+import com.peterphi.std.guice.common.cached.CacheWeigher;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The default weigher for {@link com.peterphi.std.guice.common.cached.annotation.Cache}; collections, maps and arrays weigh their
+ * number of elements and strings their length. Any other result (or an empty one) weighs 1
+ */
+public class DefaultCacheWeigher implements CacheWeigher
+{
+	@Override
+	public int getWeight(final Object result)
+	{
+		final int weight;
+
+		if (result instanceof Collection<?> collection)
+			weight = collection.size();
+		else if (result instanceof Map<?, ?> map)
+			weight = map.size();
+		else if (result instanceof CharSequence str)
+			weight = str.length();
+		else if (result != null && result.getClass().isArray())
+			weight = Array.getLength(result);
+		else
+			weight = 1;
+
+		return Math.max(1, weight);
+	}
+}
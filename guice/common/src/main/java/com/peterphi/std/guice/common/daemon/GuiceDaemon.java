@@ -2,24 +2,50 @@ package com.peterphi.std.guice.common.daemon;
 
 import com.google.inject.Inject;
 import com.peterphi.std.annotation.ServiceName;
+import com.peterphi.std.guice.apploader.GuiceProperties;
 import com.peterphi.std.guice.common.breaker.Breaker;
 import com.peterphi.std.guice.common.breaker.BreakerService;
 import com.peterphi.std.guice.common.breaker.DaemonBreaker;
 import com.peterphi.std.guice.common.lifecycle.GuiceLifecycleListener;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
 import com.peterphi.std.guice.common.shutdown.iface.ShutdownManager;
 import com.peterphi.std.guice.common.shutdown.iface.StoppableService;
 import com.peterphi.std.threading.Daemon;
 import com.peterphi.std.threading.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 public abstract class GuiceDaemon extends Daemon implements StoppableService, GuiceLifecycleListener
 {
+	private static final Logger log = LoggerFactory.getLogger(GuiceDaemon.class);
+
 	private boolean daemonThread;
 
+	/**
+	 * If true, this daemon will run on a virtual thread rather than a dedicated platform thread
+	 */
+	private boolean virtualThread = false;
+
+	/**
+	 * Used to sleep between runs; N.B. we don't use {@link Object#wait(long)} because that would pin the carrier thread while a
+	 * virtual thread sleeps
+	 */
+	private final ReentrantLock sleepLock = new ReentrantLock();
+	private final Condition wakeup = sleepLock.newCondition();
+
+	/**
+	 * Set by {@link #wake()} so a wake request made just before we start sleeping is not lost (guarded by sleepLock)
+	 */
+	private boolean wakeRequested = false;
+
 	@Inject
 	ShutdownManager shutdownManager;
 
@@ -93,6 +119,72 @@ public abstract class GuiceDaemon extends Daemon implements StoppableService, Gu
 	}
 
 
+	/**
+	 * Decide whether this daemon should run on a virtual thread, based on <code>daemon.(name).virtual-thread</code> (or the
+	 * global default {@link GuiceProperties#DAEMON_VIRTUAL_THREADS})
+	 *
+	 * @param config
+	 */
+	@Inject
+	public void setVirtualThreadFromConfig(GuiceConfig config)
+	{
+		final boolean defaultValue = config.getBoolean(GuiceProperties.DAEMON_VIRTUAL_THREADS, false);
+
+		this.virtualThread = config.getBoolean("daemon." + getName() + ".virtual-thread", defaultValue);
+	}
+
+
+	public boolean isVirtualThread()
+	{
+		return virtualThread;
+	}
+
+
+	@Override
+	protected Thread createThread(final String name)
+	{
+		if (virtualThread && daemonThread)
+		{
+			return Thread.ofVirtual().name(name).unstarted(this);
+		}
+		else
+		{
+			// N.B. virtual threads are always daemon threads, so cannot be used for a daemon that must keep the JVM alive
+			if (virtualThread)
+				log.warn("Daemon {} is not a daemon thread so cannot run on a virtual thread", getName());
+
+			return super.createThread(name);
+		}
+	}
+
+
+	@Override
+	public void stopThread()
+	{
+		super.stopThread();
+
+		wake();
+	}
+
+
+	/**
+	 * Wake this daemon if it is currently in {@link #sleep(long)} (or cause its next sleep to return immediately)
+	 */
+	protected void wake()
+	{
+		sleepLock.lock();
+		try
+		{
+			wakeRequested = true;
+			wakeup.signalAll();
+		}
+		finally
+		{
+			sleepLock.unlock();
+		}
+	}
+
+
 	@Override
 	public void postConstruct()
 	{
@@ -127,18 +219,22 @@ public abstract class GuiceDaemon extends Daemon implements StoppableService, Gu
 		if (!isRunning() || millis <= 0)
 			return;
 
+		sleepLock.lock();
 		try
 		{
 			// Sleep until the timeout (or until someone wakes us)
-			synchronized (this)
-			{
-				this.wait(millis);
-			}
+			if (!wakeRequested && isRunning())
+				wakeup.await(millis, TimeUnit.MILLISECONDS);
 		}
 		catch (InterruptedException e)
 		{
 			// ignore & return early
 		}
+		finally
+		{
+			wakeRequested = false;
+			sleepLock.unlock();
+		}
 	}
 
 
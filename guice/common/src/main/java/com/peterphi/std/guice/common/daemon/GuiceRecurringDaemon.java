@@ -294,10 +294,7 @@ public abstract class GuiceRecurringDaemon extends GuiceDaemon
 		}
 		else
 		{
-			synchronized (this)
-			{
-				this.notifyAll();
-			}
+			wake();
 		}
 	}
 }
@@ -0,0 +1,59 @@
+package com.peterphi.std.guice.common.logging;
+
+import com.google.inject.AbstractModule;
+import com.peterphi.std.guice.apploader.GuiceProperties;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfigChangeObserver;
+import com.peterphi.std.util.tracing.TraceRecorder;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the <code>tracing.sample-rate</code> and <code>tracing.buffer-size</code> values from the service config to the {@link
+ * TraceRecorder}, and re-applies them when they change
+ */
+public class TraceRecorderModule extends AbstractModule implements GuiceConfigChangeObserver
+{
+	private static final Logger log = LoggerFactory.getLogger(TraceRecorderModule.class);
+
+	private final GuiceConfig config;
+
+
+	public TraceRecorderModule(final GuiceConfig config)
+	{
+		this.config = config;
+
+		config.registerChangeObserver(this);
+	}
+
+
+	@Override
+	protected void configure()
+	{
+		reconfigure();
+	}
+
+
+	private void reconfigure()
+	{
+		try
+		{
+			TraceRecorder.setBufferSize(config.getInt(GuiceProperties.TRACING_BUFFER_SIZE, 1024));
+			TraceRecorder.setSampleRate(config.get(GuiceProperties.TRACING_SAMPLE_RATE, Double.class, 0d));
+		}
+		catch (Exception e)
+		{
+			log.warn("Invalid trace recorder configuration, leaving recorder unchanged: {}", e.getMessage(), e);
+		}
+	}
+
+
+	@Override
+	public void propertyChanged(final String name)
+	{
+		if (StringUtils.equals(name, GuiceProperties.TRACING_SAMPLE_RATE) ||
+		    StringUtils.equals(name, GuiceProperties.TRACING_BUFFER_SIZE))
+			reconfigure();
+	}
+}
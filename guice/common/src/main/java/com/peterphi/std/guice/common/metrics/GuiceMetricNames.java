@@ -34,6 +34,12 @@ public final class GuiceMetricNames
 	// Thymeleaf templating
 	public static final String THYMELEAF_CALL_TIMER = "feature.thymeleaf.calls";
 	public static final String THYMELEAF_RENDER_EXCEPTION_METER = "feature.thymeleaf.exception";
+	@Doc("The number of Thymeleaf template/expression cache lookups that found a valid entry (suffixed with the cache name)")
+	public static final String THYMELEAF_CACHE_HITS = "feature.thymeleaf.cache.hits";
+	@Doc("The number of Thymeleaf template/expression cache lookups that found no valid entry (suffixed with the cache name)")
+	public static final String THYMELEAF_CACHE_MISSES = "feature.thymeleaf.cache.misses";
+	@Doc("The number of Thymeleaf template/expression cache entries evicted to make room for others (suffixed with the cache name)")
+	public static final String THYMELEAF_CACHE_EVICTIONS = "feature.thymeleaf.cache.evictions";
 
 	// @AuthConstraint interception
 	@Doc("Keeps track of the number of requests that have been made")
@@ -50,6 +56,26 @@ public final class GuiceMetricNames
 	public static final String CACHE_HITS = "cache.hits";
 	@Doc("The number of @Cache annotated methods that have had to calculate a result")
 	public static final String CACHE_MISSES = "cache.misses";
+	@Doc("The number of @Cache annotated methods that have triggered an asynchronous refresh-ahead of a cached result")
+	public static final String CACHE_REFRESHES = "cache.refreshes";
+
+	// WebQuery
+	@Doc("The number of WebQuery selects that reused JPQL compiled for a previous query of the same shape")
+	public static final String WEBQUERY_PLAN_CACHE_HITS = "feature.webquery.plan-cache.hits";
+	@Doc("The number of WebQuery selects that had to build and compile criteria")
+	public static final String WEBQUERY_PLAN_CACHE_MISSES = "feature.webquery.plan-cache.misses";
+
+	// JAX-RS client response caching
+	@Doc("The number of REST client calls served from the response cache without contacting the service (suffixed with the service name)")
+	public static final String REST_CLIENT_CACHE_HITS = "feature.restclient.cache.hits";
+	@Doc("The number of cacheable REST client calls that had no usable cached response (suffixed with the service name)")
+	public static final String REST_CLIENT_CACHE_MISSES = "feature.restclient.cache.misses";
+	@Doc("The number of REST client calls where the service confirmed a stale cached response was still valid (suffixed with the service name)")
+	public static final String REST_CLIENT_CACHE_REVALIDATIONS = "feature.restclient.cache.revalidations";
+
+	// JAX-RS client load balancing
+	@Doc("The number of REST client calls that were also sent to a second instance of the service because the first was slow to respond (suffixed with the service name)")
+	public static final String REST_CLIENT_HEDGED_CALLS = "feature.restclient.hedged-calls";
 
 
 	private GuiceMetricNames()
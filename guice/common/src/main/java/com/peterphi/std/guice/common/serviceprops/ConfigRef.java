@@ -44,9 +44,17 @@ public class ConfigRef implements Provider<String>
 	}
 
 
+	/**
+	 * Get the value converted to the desired type. The converted value is cached by the configuration until it next changes
+	 *
+	 * @param clazz
+	 * @param <T>
+	 *
+	 * @return the converted value, or null if the property is not set
+	 */
 	public <T> T get(Class<T> clazz)
 	{
-		return as(clazz).get();
+		return configuration.get(name, clazz, null);
 	}
 
 
@@ -1,32 +1,62 @@
 package com.peterphi.std.guice.common.serviceprops.composite;
 
+import com.peterphi.std.guice.common.stringparsing.StringToTypeConverter;
 import com.peterphi.std.io.PropertyFile;
+import com.peterphi.std.threading.Timeout;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.text.StrSubstitutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.function.Predicate;
 
+/**
+ * The configuration of a guice environment.<br />
+ * The properties and overrides are held in an immutable snapshot which is replaced (copy-on-write) whenever they change, so
+ * readers never lock; variables are resolved (and typed values converted) at most once per snapshot
+ */
 public class GuiceConfig
 {
 	private static final Logger log = LoggerFactory.getLogger(GuiceConfig.class);
 
-	private final Map<String, String> properties = new HashMap<>();
+	/**
+	 * Identifies cached {@link #getBoolean(String, Boolean)} conversions (which accept more values than {@link
+	 * StringToTypeConverter})
+	 */
+	private static final Object BOOLEAN_CONVERSION = new Object();
 
-	private final Map<String, String> overrides = new HashMap<>(0);
+	/**
+	 * Identifies cached {@link #getList(String, List)} conversions
+	 */
+	private static final Object LIST_CONVERSION = new Object();
+
+	/**
+	 * The immutable types whose conversions may be cached (and so shared between callers) by {@link #get(String, Class, Object)}
+	 */
+	private static final Set<Class<?>> CACHEABLE_TYPES = Set.of(String.class,
+	                                                            Timeout.class,
+	                                                            Integer.class,
+	                                                            int.class,
+	                                                            Long.class,
+	                                                            long.class,
+	                                                            Boolean.class,
+	                                                            boolean.class,
+	                                                            URI.class,
+	                                                            File.class);
 
-	private final StrSubstitutor substitutor = new StrSubstitutor(new GuiceConfigVariableResolver(this));
+	private volatile GuiceConfigSnapshot snapshot = new GuiceConfigSnapshot(Collections.emptyMap(), Collections.emptyMap());
 
-	private Set<GuiceConfigChangeObserver> propertyChangeObservers = new HashSet<>();
+	private final Set<GuiceConfigChangeObserver> propertyChangeObservers = new CopyOnWriteArraySet<>();
 
 
 	public GuiceConfig()
@@ -36,30 +66,27 @@ public class GuiceConfig
 
 	public GuiceConfig(final List<Map<String, String>> properties, final Map<String, String> overrides)
 	{
+		final Map<String, String> merged = new HashMap<>();
+
 		for (Map<String, String> map : properties)
-			setAll(map);
+			if (map != null)
+				merged.putAll(map);
+
+		validate(merged);
 
-		// Set the overrides
-		setOverrides(overrides);
+		this.snapshot = new GuiceConfigSnapshot(merged, (overrides != null) ? new HashMap<>(overrides) : new HashMap<>(0));
 	}
 
 
 	public Set<String> names()
 	{
-		Set<String> keys = new HashSet<>(properties.keySet());
-
-		keys.addAll(overrides.keySet());
-
-		return keys;
+		return snapshot.names();
 	}
 
 
 	public void registerChangeObserver(GuiceConfigChangeObserver observer)
 	{
-		synchronized (this.propertyChangeObservers)
-		{
-			this.propertyChangeObservers.add(observer);
-		}
+		this.propertyChangeObservers.add(observer);
 	}
 
 
@@ -68,18 +95,15 @@ public class GuiceConfig
 		if (name == null)
 			return; // Ignore changes fired for a null property name
 
-		synchronized (this.propertyChangeObservers)
+		for (GuiceConfigChangeObserver observer : propertyChangeObservers)
 		{
-			for (GuiceConfigChangeObserver observer : propertyChangeObservers)
+			try
 			{
-				try
-				{
-					observer.propertyChanged(name);
-				}
-				catch (Throwable t)
-				{
-					log.warn("Property Change Observer {} threw exception when notifying for {} (ignoring)", observer, name, t);
-				}
+				observer.propertyChanged(name);
+			}
+			catch (Throwable t)
+			{
+				log.warn("Property Change Observer {} threw exception when notifying for {} (ignoring)", observer, name, t);
 			}
 		}
 	}
@@ -97,70 +121,127 @@ public class GuiceConfig
 	}
 
 
+	/**
+	 * Set a number of properties at once; observers are notified of each changed property once all the values have been
+	 * applied
+	 *
+	 * @param properties
+	 */
 	public void setAll(Map<String, String> properties)
 	{
-		if (properties != null)
+		if (properties == null || properties.isEmpty())
+			return;
+
+		validate(properties);
+
+		final List<String> changed = new ArrayList<>();
+
+		synchronized (this)
+		{
+			final GuiceConfigSnapshot current = this.snapshot;
+
+			Map<String, String> updated = null;
+
 			for (Map.Entry<String, String> entry : properties.entrySet())
-				set(entry.getKey(), entry.getValue());
+			{
+				final String name = entry.getKey();
+
+				// Only replace the old value if it's different (so we don't create a new snapshot unless needed)
+				if (!StringUtils.equals(current.properties.get(name), entry.getValue()))
+				{
+					if (updated == null)
+						updated = new HashMap<>(current.properties);
+
+					updated.put(name, entry.getValue());
+
+					if (!current.overrides.containsKey(name))
+						changed.add(name); // value updated
+				}
+			}
+
+			if (updated != null)
+				this.snapshot = new GuiceConfigSnapshot(updated, current.overrides);
+		}
+
+		for (String name : changed)
+			propertyChanged(name);
 	}
 
 
 	public void setAll(GuiceConfig other)
 	{
-		for (String name : other.names())
+		final GuiceConfigSnapshot snapshot = other.snapshot;
+		final Map<String, String> values = new HashMap<>();
+
+		for (String name : snapshot.names())
 		{
-			String value = other.getRaw(name, null);
+			String value = snapshot.getRaw(name, null);
 
 			if (value != null)
-				set(name, value);
+				values.put(name, value);
 		}
+
+		setAll(values);
 	}
 
 
 	public void set(String name, final String value)
 	{
-		if (name == null)
-			throw new IllegalArgumentException("Property name cannot be null!");
-		else if (value == null)
-			throw new IllegalArgumentException("Property '" + name + "' cannot be null!");
-
-		final String oldValue = properties.get(name);
-		final boolean hasOverride = overrides.containsKey(name);
-
-		// Only replace the old value if it's different (so we don't change pointers unless needed)
-		if (!StringUtils.equals(oldValue, value))
-		{
-			properties.put(name, value);
-
-			if (!hasOverride)
-				propertyChanged(name); // value updated
-		}
+		setAll(Collections.singletonMap(name, value));
 	}
 
 
 	public Map<String, String> getOverrides()
 	{
-		return Collections.unmodifiableMap(new HashMap<>(overrides));
+		return snapshot.overrides;
 	}
 
 
 	public void setOverride(final String name, final String value)
 	{
-		final String oldValue = overrides.get(name);
-
-		if (!StringUtils.equals(oldValue, value))
+		synchronized (this)
 		{
+			final GuiceConfigSnapshot current = this.snapshot;
+
+			if (StringUtils.equals(current.overrides.get(name), value))
+				return;
+
+			final Map<String, String> overrides = new HashMap<>(current.overrides);
 			overrides.put(name, value);
 
-			propertyChanged(name);
+			this.snapshot = new GuiceConfigSnapshot(current.properties, overrides);
 		}
+
+		propertyChanged(name);
 	}
 
 
 	public void setOverrides(final Map<String, String> properties)
 	{
-		if (properties != null)
+		if (properties == null || properties.isEmpty())
+			return;
+
+		synchronized (this)
+		{
+			final GuiceConfigSnapshot current = this.snapshot;
+
+			final Map<String, String> overrides = new HashMap<>(current.overrides);
 			overrides.putAll(properties);
+
+			this.snapshot = new GuiceConfigSnapshot(current.properties, overrides);
+		}
+	}
+
+
+	private static void validate(final Map<String, String> properties)
+	{
+		for (Map.Entry<String, String> entry : properties.entrySet())
+		{
+			if (entry.getKey() == null)
+				throw new IllegalArgumentException("Property name cannot be null!");
+			else if (entry.getValue() == null)
+				throw new IllegalArgumentException("Property '" + entry.getKey() + "' cannot be null!");
+		}
 	}
 
 
@@ -174,7 +255,7 @@ public class GuiceConfig
 	 */
 	public String getRaw(final String name, String defaultValue)
 	{
-		return overrides.getOrDefault(name, properties.getOrDefault(name, defaultValue));
+		return snapshot.getRaw(name, defaultValue);
 	}
 
 
@@ -186,23 +267,91 @@ public class GuiceConfig
 
 	public String get(final String name, final String defaultValue)
 	{
-		final String raw = getRaw(name, null);
+		final String value = snapshot.get(name);
+
+		if (value == null)
+			return defaultValue;
+		else
+			return value;
+	}
+
+
+	/**
+	 * Get a property, converted to the desired type by {@link StringToTypeConverter}. If the type is immutable (e.g. {@link
+	 * Timeout}, {@link Integer}) the converted value is cached until the config next changes; other types are converted on each
+	 * call, so callers may safely modify the value they are given
+	 *
+	 * @param name
+	 * 		the property name
+	 * @param type
+	 * 		the type to convert the value to
+	 * @param defaultValue
+	 * 		the value to return if the property is not set
+	 * @param <T>
+	 *
+	 * @return
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the value cannot be converted to the desired type
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(final String name, final Class<T> type, final T defaultValue)
+	{
+		final T value;
+		if (CACHEABLE_TYPES.contains(type))
+		{
+			value = snapshot.get(name, type, str -> (T) StringToTypeConverter.convert(type, str));
+		}
+		else
+		{
+			final String str = snapshot.get(name);
+
+			value = (str == null) ? null : (T) StringToTypeConverter.convert(type, str);
+		}
 
-		if (raw == null)
+		if (value == null)
 			return defaultValue;
 		else
-			return substitutor.replace(raw);
+			return value;
+	}
+
+
+	public int getInt(final String name, final int defaultValue)
+	{
+		return get(name, Integer.class, defaultValue);
+	}
+
+
+	public long getLong(final String name, final long defaultValue)
+	{
+		return get(name, Long.class, defaultValue);
+	}
+
+
+	public Timeout getTimeout(final String name, final Timeout defaultValue)
+	{
+		return get(name, Timeout.class, defaultValue);
 	}
 
 
+	/**
+	 * Get a comma-separated list property. The returned list is cached until the config next changes, and cannot be modified
+	 *
+	 * @param name
+	 * @param defaultValue
+	 *
+	 * @return
+	 */
 	public List<String> getList(final String name, final List<String> defaultValue)
 	{
-		final String value = get(name, null);
+		final List<String> value = snapshot.get(name,
+		                                        LIST_CONVERSION,
+		                                        str -> Collections.unmodifiableList(Arrays.asList(StringUtils.split(str, ','))));
 
 		if (value == null)
 			return defaultValue;
 		else
-			return Arrays.asList(StringUtils.split(value, ','));
+			return value;
 	}
 
 
@@ -214,16 +363,23 @@ public class GuiceConfig
 
 	public Boolean getBoolean(final String name, final Boolean defaultValue)
 	{
-		final String value = get(name, null);
+		final Boolean value = snapshot.get(name, BOOLEAN_CONVERSION, str -> parseBoolean(name, str));
 
 		if (value == null)
 			return defaultValue;
-		else if (StringUtils.equalsIgnoreCase(value, "true") || StringUtils.equalsIgnoreCase(value, "yes"))
+		else
+			return value;
+	}
+
+
+	private static Boolean parseBoolean(final String name, final String value)
+	{
+		if (StringUtils.equalsIgnoreCase(value, "true") || StringUtils.equalsIgnoreCase(value, "yes"))
 			return true;
 		else if (StringUtils.equalsIgnoreCase(value, "false") || StringUtils.equalsIgnoreCase(value, "no"))
 			return false;
 		else if (StringUtils.equals(value, "null"))
-			return defaultValue;
+			return null; // use the default value
 		else
 			throw new IllegalArgumentException("Error parsing property " +
 			                                   name +
@@ -235,12 +391,13 @@ public class GuiceConfig
 
 	public Map<String, String> toMap(Predicate<String> keySelector)
 	{
+		final GuiceConfigSnapshot snapshot = this.snapshot;
 		final Map<String, String> map = new HashMap<>();
 
-		for (String key : names())
+		for (String key : snapshot.names())
 		{
 			if (keySelector == null || keySelector.test(key))
-				map.put(key, get(key));
+				map.put(key, snapshot.get(key));
 		}
 
 		return map;
@@ -285,9 +442,6 @@ public class GuiceConfig
 
 	public String resolveVariables(final String str)
 	{
-		if (str.contains("${"))
-			return substitutor.replace(str);
-		else
-			return str;
+		return snapshot.resolveVariables(str);
 	}
 }
@@ -0,0 +1,133 @@
+package com.peterphi.std.guice.common.serviceprops.composite;
+
+import org.apache.commons.lang.text.StrSubstitutor;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An immutable view of the properties and overrides of a {@link GuiceConfig} at a point in time.<br />
+ * Values are resolved (and converted to types) at most once per snapshot; when the config changes a new snapshot replaces this
+ * one, taking the cached values with it
+ */
+final class GuiceConfigSnapshot
+{
+	/**
+	 * Marks a property that is not set (or a conversion that yielded null), since a ConcurrentHashMap cannot hold nulls
+	 */
+	private static final Object NULL = new Object();
+
+	final Map<String, String> properties;
+	final Map<String, String> overrides;
+
+	private final StrSubstitutor substitutor = new StrSubstitutor(new GuiceConfigVariableResolver(this));
+
+	/**
+	 * Property values with all variables resolved
+	 */
+	private final Map<String, Object> resolved = new ConcurrentHashMap<>();
+
+	/**
+	 * Property values converted to some type, keyed by name and then by conversion
+	 */
+	private final Map<String, Map<Object, Object>> converted = new ConcurrentHashMap<>();
+
+
+	GuiceConfigSnapshot(final Map<String, String> properties, final Map<String, String> overrides)
+	{
+		this.properties = Collections.unmodifiableMap(properties);
+		this.overrides = Collections.unmodifiableMap(overrides);
+	}
+
+
+	Set<String> names()
+	{
+		Set<String> keys = new HashSet<>(properties.keySet());
+
+		keys.addAll(overrides.keySet());
+
+		return keys;
+	}
+
+
+	String getRaw(final String name, final String defaultValue)
+	{
+		return overrides.getOrDefault(name, properties.getOrDefault(name, defaultValue));
+	}
+
+
+	/**
+	 * Get a property value with all variables resolved
+	 *
+	 * @param name
+	 * 		the property name
+	 *
+	 * @return the resolved value, or null if the property is not set
+	 */
+	String get(final String name)
+	{
+		Object value = resolved.get(name);
+
+		if (value == null)
+		{
+			// N.B. don't use computeIfAbsent: resolving variables will recursively read other properties
+			final String raw = getRaw(name, null);
+
+			value = (raw == null) ? NULL : resolveVariables(raw);
+
+			resolved.put(name, value);
+		}
+
+		return (value == NULL) ? null : (String) value;
+	}
+
+
+	/**
+	 * Get a property value converted to some type; the conversion is only run the first time a given name and conversion is
+	 * requested from this snapshot
+	 *
+	 * @param name
+	 * 		the property name
+	 * @param conversion
+	 * 		an identifier for the conversion being performed (e.g. the target type)
+	 * @param converter
+	 * 		the conversion to apply to the resolved value
+	 * @param <T>
+	 *
+	 * @return the converted value, or null if the property is not set (or the conversion returned null)
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(final String name, final Object conversion, final Function<String, T> converter)
+	{
+		final Map<Object, Object> conversions = converted.computeIfAbsent(name, k -> new ConcurrentHashMap<>(4));
+
+		Object value = conversions.get(conversion);
+
+		if (value == null)
+		{
+			final String str = get(name);
+
+			value = (str == null) ? NULL : converter.apply(str);
+
+			if (value == null)
+				value = NULL;
+
+			conversions.put(conversion, value);
+		}
+
+		return (value == NULL) ? null : (T) value;
+	}
+
+
+	String resolveVariables(final String str)
+	{
+		if (str.contains("${"))
+			return substitutor.replace(str);
+		else
+			return str;
+	}
+}
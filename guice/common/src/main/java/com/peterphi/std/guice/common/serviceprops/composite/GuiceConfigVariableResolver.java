@@ -1,9 +1,5 @@
 package com.peterphi.std.guice.common.serviceprops.composite;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.peterphi.std.guice.common.cached.CacheManager;
-import ognl.Node;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.text.StrLookup;
@@ -14,16 +10,10 @@ import java.io.InputStream;
 
 class GuiceConfigVariableResolver extends StrLookup
 {
-	/**
-	 * OGNL cache
-	 */
-	private final Cache<String, Node> ognlCache = CacheManager.build("GuiceOgnlConfig",
-	                                                                 CacheBuilder.newBuilder().maximumSize(1024).softValues());
+	private final GuiceConfigSnapshot properties;
 
-	private final GuiceConfig properties;
 
-
-	GuiceConfigVariableResolver(final GuiceConfig properties)
+	GuiceConfigVariableResolver(final GuiceConfigSnapshot properties)
 	{
 		this.properties = properties;
 	}
@@ -77,6 +67,11 @@ class GuiceConfigVariableResolver extends StrLookup
 		}
 
 		// Fall back to resolving the property
-		return properties.get(key, "");
+		final String value = properties.get(key);
+
+		if (value == null)
+			return "";
+		else
+			return value;
 	}
 }
@@ -7,16 +7,25 @@ import com.peterphi.std.annotation.ServiceName;
 import com.peterphi.std.guice.apploader.GuiceProperties;
 import com.peterphi.std.guice.common.daemon.GuiceRecurringDaemon;
 import com.peterphi.std.guice.config.rest.iface.ConfigRestService;
+import com.peterphi.std.guice.config.rest.types.ConfigPropertyChanges;
 import com.peterphi.std.guice.config.rest.types.ConfigPropertyData;
 import com.peterphi.std.guice.config.rest.types.ConfigPropertyValue;
+import com.peterphi.std.guice.restclient.exception.RestException;
+import com.peterphi.std.threading.Deadline;
 import com.peterphi.std.threading.Timeout;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ResponseProcessingException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-@Doc("Periodically requeries the network configuration service for updated config properties (these updates will only be visible for certain use-cases, such as JAXB files in properties)")
+@Doc("Watches (or, if the network configuration service does not support watching, periodically requeries) the network configuration service for updated config properties (these updates will only be visible for certain use-cases, such as JAXB files in properties)")
 @ServiceName("network-config-reload")
 public class NetworkConfigReloadDaemon extends GuiceRecurringDaemon
 {
@@ -38,10 +47,36 @@ public class NetworkConfigReloadDaemon extends GuiceRecurringDaemon
 	@Inject
 	NetworkConfig serviceConfig;
 
+	@Inject(optional = true)
+	@Named("network-config.watch")
+	@Doc("If true, the network configuration service will be asked to notify this service of config changes as they happen (falling back on periodic requerying if the service does not support this) (default true)")
+	boolean watchEnabled = true;
+
+	@Inject(optional = true)
+	@Named("network-config.watch.timeout")
+	@Doc("The maximum time each watch request to the network configuration service waits for a config change; must be shorter than jaxrs.socket.timeout (default 1m)")
+	Timeout watchTimeout = Timeout.ONE_MINUTE;
+
+	@Inject(optional = true)
+	@Named("network-config.watch.retry-interval")
+	@Doc("If the network configuration service does not support watching, how long to periodically requery before asking it to watch again (e.g. after the service has been upgraded) (default 30m)")
+	Timeout watchRetryInterval = Timeout.THIRTY_MINUTES;
+
 	/**
 	 * Custom service-specific paths
 	 */
-	private List<NetworkConfig> additionalConfigs = new ArrayList<>();
+	private final List<NetworkConfig> additionalConfigs = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Set once the configuration service is found not to support watching; until this deadline passes we requery periodically
+	 * instead. Null if watching is believed to be supported
+	 */
+	private volatile Deadline watchUnsupportedUntil = null;
+
+	/**
+	 * Set when the last watch request failed, so that we back off for the regular sleep time before the next attempt
+	 */
+	private volatile boolean watchFailed = false;
 
 
 	@Inject
@@ -54,7 +89,117 @@ public class NetworkConfigReloadDaemon extends GuiceRecurringDaemon
 	@Override
 	protected void execute() throws Exception
 	{
-		reload();
+		if (isWatching())
+			watch();
+		else
+			reload();
+	}
+
+
+	@Override
+	public Timeout getSleepTime()
+	{
+		// While watching, each watch call waits for changes itself so we should call again almost immediately
+		if (isWatching() && !watchFailed)
+			return Timeout.ONE_SECOND;
+		else
+			return super.getSleepTime();
+	}
+
+
+	private boolean isWatching()
+	{
+		final Deadline unsupportedUntil = watchUnsupportedUntil;
+
+		// Once the back-off has passed, try watching again in case the service now supports it
+		return watchEnabled && (unsupportedUntil == null || unsupportedUntil.isExpired());
+	}
+
+
+	/**
+	 * Wait for changes to any of the registered network configs (or until the watch timeout expires), applying any changes
+	 */
+	void watch()
+	{
+		final List<NetworkConfig> configs = new ArrayList<>(additionalConfigs.size() + 1);
+		configs.add(serviceConfig);
+		configs.addAll(additionalConfigs);
+
+		final List<String> paths = new ArrayList<>(configs.size());
+		final List<String> revisions = new ArrayList<>(configs.size());
+
+		for (NetworkConfig config : configs)
+		{
+			paths.add(config.path);
+			revisions.add(StringUtils.defaultString(config.getLastRevision()));
+		}
+
+		try
+		{
+			log.trace("Watch config paths {} at revisions {}", paths, revisions);
+
+			final ConfigPropertyChanges changes = configService.watch(configInstanceId,
+			                                                          paths,
+			                                                          revisions,
+			                                                          watchTimeout.getMilliseconds());
+
+			watchFailed = false;
+			watchUnsupportedUntil = null;
+
+			if (changes != null && changes.changes != null)
+				for (ConfigPropertyData change : changes.changes)
+					for (NetworkConfig config : configs)
+						if (StringUtils.equals(config.path, change.path))
+							apply(config, change);
+		}
+		catch (Throwable t)
+		{
+			if (isUnsupported(t))
+			{
+				log.info("Network configuration service does not support watching for changes, will periodically requery instead (retrying watch in {})",
+				         watchRetryInterval);
+
+				watchUnsupportedUntil = watchRetryInterval.start();
+
+				reload();
+			}
+			else
+			{
+				log.warn("Error watching config paths {}", paths, t);
+
+				watchFailed = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Determines whether an exception means the remote service does not implement the watch call
+	 *
+	 * @param t
+	 *
+	 * @return
+	 */
+	private static boolean isUnsupported(Throwable t)
+	{
+		// Only look 10 exceptions deep
+		for (int depth = 0; t != null && depth < 10; depth++, t = t.getCause())
+		{
+			final int status;
+
+			if (t instanceof RestException re)
+				status = re.getHttpCode();
+			else if (t instanceof WebApplicationException wae && wae.getResponse() != null)
+				status = wae.getResponse().getStatus();
+			else if (t instanceof ResponseProcessingException rpe && rpe.getResponse() != null)
+				status = rpe.getResponse().getStatus();
+			else
+				continue;
+
+			return status == 404 || status == 405 || status == 501;
+		}
+
+		return false;
 	}
 
 
@@ -103,16 +248,30 @@ public class NetworkConfigReloadDaemon extends GuiceRecurringDaemon
 			if (read == null || read.properties == null || read.properties.isEmpty())
 				return;
 
-			for (ConfigPropertyValue property : read.properties)
-			{
-				config.properties.set(property.getName(), property.getValue());
-			}
-
-			config.setLastRevision(read.revision);
+			apply(config, read);
 		}
 		catch (Throwable t)
 		{
 			log.warn("Error loading config from path {}", config.path, t);
 		}
 	}
+
+
+	private void apply(final NetworkConfig config, final ConfigPropertyData data)
+	{
+		if (data.properties != null)
+		{
+			// Apply all the changes at once, rather than creating a new config snapshot for each property
+			final Map<String, String> properties = new HashMap<>();
+
+			for (ConfigPropertyValue property : data.properties)
+			{
+				properties.put(property.getName(), property.getValue());
+			}
+
+			config.properties.setAll(properties);
+		}
+
+		config.setLastRevision(data.revision);
+	}
 }
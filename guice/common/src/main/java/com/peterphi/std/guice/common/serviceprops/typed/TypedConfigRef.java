@@ -17,11 +17,15 @@ public class TypedConfigRef<T> implements Provider<T>
 	}
 
 
+	/**
+	 * Get the current value; the conversion is cached by {@link com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig}
+	 * until the config next changes, rather than being repeated on every call
+	 *
+	 * @return
+	 */
 	public T get()
 	{
-		final String str = config.get();
-
-		return clazz.cast(StringToTypeConverter.convert(clazz, str));
+		return config.get(clazz);
 	}
 
 
@@ -1,13 +1,16 @@
 package com.peterphi.std.guice.config.rest.iface;
 
 import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.guice.config.rest.types.ConfigPropertyChanges;
 import com.peterphi.std.guice.config.rest.types.ConfigPropertyData;
+import com.peterphi.std.guice.restclient.annotations.LongPoll;
 
 import javax.ws.rs.FormParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import java.util.List;
 
 @Path("/")
 public interface ConfigRestService
@@ -20,4 +23,18 @@ public interface ConfigRestService
 	                        @FormParam("instance-id") String instanceId,
 	                        @Doc("The last config revision this service holds (if no new revision is available then no content will be returned by the service")
 	                        @FormParam("last-revision") final String lastRevision);
+
+	@POST
+	@Path("/watch.action")
+	@Produces(MediaType.APPLICATION_XML)
+	@LongPoll
+	@Doc("Waits until a newer revision is available for any of the supplied config paths (or until the timeout expires), returning only the properties which have changed")
+	ConfigPropertyChanges watch(@Doc("A unique id for the calling service (that will change on each reconfiguration)")
+	                            @FormParam("instance-id") String instanceId,
+	                            @Doc("The config paths to watch")
+	                            @FormParam("path") final List<String> paths,
+	                            @Doc("The last config revision this service holds for each path, in the same order as the paths (empty if no revision is held)")
+	                            @FormParam("last-revision") final List<String> lastRevisions,
+	                            @Doc("The maximum time to wait for a change (in milliseconds); if no path changes in this time, no changes will be returned")
+	                            @FormParam("timeout") final long timeout);
 }
@@ -0,0 +1,26 @@
+package com.peterphi.std.guice.config.rest.types;
+
+import com.google.common.base.MoreObjects;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes to a number of config paths; each entry holds the new revision of a path and only those properties whose values
+ * changed since the revision held by the caller
+ */
+@XmlRootElement(name = "ConfigChanges")
+public class ConfigPropertyChanges
+{
+	@XmlElement(name = "ConfigData")
+	public List<ConfigPropertyData> changes = new ArrayList<>();
+
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this).add("changes", changes).toString();
+	}
+}
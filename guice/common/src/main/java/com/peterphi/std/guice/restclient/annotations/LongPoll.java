@@ -0,0 +1,17 @@
+package com.peterphi.std.guice.restclient.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * If specified on a method of a JAX-RS Interface type, indicates that the remote service deliberately holds calls open (e.g.
+ * until some state changes or a timeout expires) before responding.<br />
+ * The duration of these calls is not counted towards the slow-call rate of the client's circuit breaker (failures still are)
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LongPoll
+{
+}
@@ -6,7 +6,8 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * If specified on a JAX-RS Interface type, clients will not be registered with the Breaker REST Client Pausing system<br />
+ * If specified on a JAX-RS Interface type, clients will not be registered with the Breaker REST Client Pausing system (nor will
+ * they be guarded by an automatic circuit breaker)<br />
  * This is intended for services that cannot safely or sensibly be paused -- a prime example is services that are directly involved in the authentication pipeline to reset breakers
  */
 @Target(ElementType.TYPE)
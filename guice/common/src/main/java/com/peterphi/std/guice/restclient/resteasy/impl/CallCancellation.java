@@ -0,0 +1,124 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.peterphi.std.guice.restclient.resteasy.impl.okhttp.OkHttpClientEngine;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+
+/**
+ * Allows a synchronous call made on one thread to be abandoned from another thread.<br />
+ * The thread making the call opens a scope around it; client engines that are able to abandon an in-flight request {@link
+ * #register(Runnable)} a way to do so with the current thread's scope (if any) for the duration of the request.
+ *
+ * @see LoadBalancingProxy
+ */
+public final class CallCancellation
+{
+	private static final ThreadLocal<CallCancellation> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * The scope this scope was opened within (restored when this scope is closed)
+	 */
+	private final CallCancellation outer;
+
+	private Runnable action;
+	private boolean cancelled = false;
+
+
+	private CallCancellation(final CallCancellation outer)
+	{
+		this.outer = outer;
+	}
+
+
+	/**
+	 * Open a scope for calls made on the current thread; the caller must {@link #close()} it when the call completes
+	 *
+	 * @return
+	 */
+	static CallCancellation open()
+	{
+		final CallCancellation scope = new CallCancellation(CURRENT.get());
+
+		CURRENT.set(scope);
+
+		return scope;
+	}
+
+
+	/**
+	 * Determine whether an engine {@link #register(Runnable)}s its requests, and so whether calls made with it can be abandoned
+	 *
+	 * @param engine
+	 *
+	 * @return
+	 */
+	static boolean isSupportedBy(final ClientHttpEngine engine)
+	{
+		return engine instanceof OkHttpClientEngine;
+	}
+
+
+	/**
+	 * Called by client engines before making a request on the current thread
+	 *
+	 * @param action
+	 * 		abandons the request (called on another thread)
+	 */
+	public static void register(final Runnable action)
+	{
+		final CallCancellation scope = CURRENT.get();
+
+		if (scope != null)
+			scope.setAction(action);
+	}
+
+
+	/**
+	 * Called by client engines once a request registered with {@link #register(Runnable)} has completed
+	 */
+	public static void unregister()
+	{
+		final CallCancellation scope = CURRENT.get();
+
+		if (scope != null)
+			scope.setAction(null);
+	}
+
+
+	private synchronized void setAction(final Runnable action)
+	{
+		if (cancelled && action != null)
+			action.run();
+		else
+			this.action = action;
+	}
+
+
+	/**
+	 * Abandon the call in progress (and any call subsequently started) within this scope
+	 */
+	synchronized void cancel()
+	{
+		cancelled = true;
+
+		if (action != null)
+			action.run();
+	}
+
+
+	synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+
+	/**
+	 * Close this scope, which must be the current thread's scope
+	 */
+	void close()
+	{
+		if (outer != null)
+			CURRENT.set(outer);
+		else
+			CURRENT.remove();
+	}
+}
@@ -0,0 +1,249 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingWindowReservoir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the health and load of the instances of a service, shared by all clients of that service.<br />
+ * Calls go to the less busy (by outstanding calls) of two randomly-chosen instances; instances that fail several calls in a row
+ * (with I/O errors or 5xx responses) are ejected from selection for a while.
+ *
+ * @see LoadBalancingProxy
+ */
+class LoadBalancer
+{
+	private static final Logger log = LoggerFactory.getLogger(LoadBalancer.class);
+
+	/**
+	 * The number of recent calls the hedge delay is computed from
+	 */
+	private static final int LATENCY_WINDOW = 128;
+
+	/**
+	 * The number of calls that must have completed before hedging begins (so the delay reflects the service's real latency)
+	 */
+	private static final int MIN_CALLS_BEFORE_HEDGING = 20;
+
+
+	/**
+	 * An instance of the service
+	 */
+	static final class Instance
+	{
+		final int index;
+		final URI uri;
+
+		final AtomicInteger outstanding = new AtomicInteger();
+		final AtomicInteger consecutiveFailures = new AtomicInteger();
+		volatile long ejectedUntil;
+		volatile boolean ejected = false;
+
+
+		Instance(final int index, final URI uri)
+		{
+			this.index = index;
+			this.uri = uri;
+		}
+
+
+		boolean isEjected(final long now)
+		{
+			return ejected && now - ejectedUntil < 0;
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return uri.toString();
+		}
+	}
+
+
+	private final String name;
+	private final List<URI> endpoints;
+	private final List<Instance> instances;
+	private final int ejectAfterFailures;
+	private final long ejectNanos;
+	private final long minHedgeDelayNanos;
+
+	private final Histogram latency = new Histogram(new SlidingWindowReservoir(LATENCY_WINDOW));
+
+
+	/**
+	 * @param name
+	 * 		the name of the service
+	 * @param endpoints
+	 * 		the endpoints of the instances of the service
+	 * @param ejectAfterFailures
+	 * 		the number of consecutive failed calls after which an instance is ejected
+	 * @param ejectNanos
+	 * 		how long an ejected instance is excluded from selection
+	 * @param minHedgeDelayNanos
+	 * 		the minimum time to wait for a response before hedging a call
+	 */
+	LoadBalancer(final String name,
+	             final List<URI> endpoints,
+	             final int ejectAfterFailures,
+	             final long ejectNanos,
+	             final long minHedgeDelayNanos)
+	{
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException("Must provide at least one endpoint for service " + name);
+
+		final List<Instance> instances = new ArrayList<>(endpoints.size());
+		for (URI endpoint : endpoints)
+			instances.add(new Instance(instances.size(), endpoint));
+
+		this.name = name;
+		this.endpoints = List.copyOf(endpoints);
+		this.instances = List.copyOf(instances);
+		this.ejectAfterFailures = ejectAfterFailures;
+		this.ejectNanos = ejectNanos;
+		this.minHedgeDelayNanos = minHedgeDelayNanos;
+	}
+
+
+	List<URI> getEndpoints()
+	{
+		return endpoints;
+	}
+
+
+	List<Instance> getInstances()
+	{
+		return instances;
+	}
+
+
+	/**
+	 * Pick an instance to send a call to, using the power of two choices: of two random healthy instances, the one with fewer
+	 * outstanding calls is chosen
+	 *
+	 * @param exclude
+	 * 		an instance that must not be chosen (or null)
+	 *
+	 * @return the chosen instance; if exclude is non-null this will be null if there is no other healthy instance
+	 */
+	Instance choose(final Instance exclude)
+	{
+		final long now = System.nanoTime();
+
+		final List<Instance> candidates = new ArrayList<>(instances.size());
+		for (Instance instance : instances)
+			if (instance != exclude && !instance.isEjected(now))
+				candidates.add(instance);
+
+		if (candidates.isEmpty())
+		{
+			if (exclude != null)
+				return null;
+
+			// Every instance has been ejected: it's better to try one than to fail the call outright
+			candidates.addAll(instances);
+		}
+
+		if (candidates.size() == 1)
+			return candidates.get(0);
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int a = random.nextInt(candidates.size());
+		final int b = (a + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+
+		final Instance first = candidates.get(a);
+		final Instance second = candidates.get(b);
+
+		return (second.outstanding.get() < first.outstanding.get()) ? second : first;
+	}
+
+
+	/**
+	 * @return the time to wait before hedging a call (in nanoseconds), or -1 if calls should not yet be hedged
+	 */
+	long getHedgeDelay()
+	{
+		if (latency.getCount() < MIN_CALLS_BEFORE_HEDGING)
+			return -1;
+
+		return Math.max(minHedgeDelayNanos, (long) latency.getSnapshot().get95thPercentile());
+	}
+
+
+	/**
+	 * Record that a call to an instance has started
+	 *
+	 * @param instance
+	 *
+	 * @return the value of {@link System#nanoTime()} when the call started
+	 */
+	long onStart(final Instance instance)
+	{
+		instance.outstanding.incrementAndGet();
+
+		return System.nanoTime();
+	}
+
+
+	/**
+	 * Record that a call to an instance has completed
+	 *
+	 * @param instance
+	 * @param started
+	 * 		the value returned by {@link #onStart(Instance)}
+	 * @param t
+	 * 		the exception the call failed with, or null if it succeeded
+	 */
+	void onComplete(final Instance instance, final long started, final Throwable t)
+	{
+		instance.outstanding.decrementAndGet();
+
+		// N.B. failures count towards latency too, otherwise an instance that is slow to fail would not trigger hedging
+		latency.update(System.nanoTime() - started);
+
+		if (t == null)
+		{
+			instance.consecutiveFailures.set(0);
+		}
+		else if (!PausableProxy.isRemoteFailure(t))
+		{
+			instance.consecutiveFailures.set(0); // The instance responded, so it is healthy (even if it rejected our call)
+		}
+		else if (instances.size() > 1 && instance.consecutiveFailures.incrementAndGet() >= ejectAfterFailures)
+		{
+			instance.consecutiveFailures.set(0);
+			instance.ejectedUntil = System.nanoTime() + ejectNanos;
+			instance.ejected = true;
+
+			log.warn("Ejecting {} instance {} from load balancing for {} ms after {} consecutive failures",
+			         name,
+			         instance,
+			         TimeUnit.NANOSECONDS.toMillis(ejectNanos),
+			         ejectAfterFailures);
+		}
+	}
+
+
+	/**
+	 * Record that a call to an instance was abandoned (because a hedged call to another instance responded first). This says
+	 * nothing about the health of the instance, but the time already waited still counts towards the latency
+	 *
+	 * @param instance
+	 * @param started
+	 * 		the value returned by {@link #onStart(Instance)}
+	 */
+	void onAbandoned(final Instance instance, final long started)
+	{
+		instance.outstanding.decrementAndGet();
+
+		latency.update(System.nanoTime() - started);
+	}
+}
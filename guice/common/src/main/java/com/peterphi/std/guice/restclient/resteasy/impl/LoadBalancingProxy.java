@@ -0,0 +1,334 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.codahale.metrics.Meter;
+import com.peterphi.std.util.tracing.Tracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.ProcessingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends calls to one of several instances of a service, chosen by a {@link LoadBalancer}.<br />
+ * If hedging is enabled, synchronous GET calls that take longer than the service's recent 95th percentile latency are repeated
+ * against a second instance (on the hedge executor, while the first attempt continues on the calling thread), and whichever
+ * response arrives first is returned. Hedging must only be enabled if the clients' engine can abandon in-flight calls (see
+ * {@link CallCancellation#isSupportedBy(org.jboss.resteasy.client.jaxrs.ClientHttpEngine)}), otherwise the caller would still
+ * wait for a slow first attempt
+ */
+class LoadBalancingProxy implements InvocationHandler
+{
+	private static final Logger log = LoggerFactory.getLogger(LoadBalancingProxy.class);
+
+	private final LoadBalancer balancer;
+
+	/**
+	 * Clients for each instance (indexed by {@link LoadBalancer.Instance#index})
+	 */
+	private final List<Object> clients;
+
+	/**
+	 * The executor hedged calls are run on, or null if calls should not be hedged
+	 */
+	private final Executor hedgeExecutor;
+	private final Meter hedges;
+
+
+	/**
+	 * @param balancer
+	 * 		the load balancer for the service
+	 * @param clients
+	 * 		a client for each of the balancer's instances
+	 * @param hedgeExecutor
+	 * 		the executor to run hedged calls on (calls are not hedged if it rejects them), or null if calls should not be hedged
+	 * @param hedges
+	 * 		marked when a call is hedged
+	 */
+	LoadBalancingProxy(final LoadBalancer balancer, final List<Object> clients, final Executor hedgeExecutor, final Meter hedges)
+	{
+		if (clients.size() != balancer.getInstances().size())
+			throw new IllegalArgumentException("Must provide one client per instance!");
+
+		this.balancer = balancer;
+		this.clients = List.copyOf(clients);
+		this.hedgeExecutor = hedgeExecutor;
+		this.hedges = hedges;
+	}
+
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+	{
+		if (method.getDeclaringClass() == Object.class)
+			return invokeRemote(clients.get(0), method, args);
+
+		final LoadBalancer.Instance instance = balancer.choose(null);
+
+		if (isAsync(method))
+			return invokeAsync(instance, method, args);
+		else if (hedgeExecutor != null && method.isAnnotationPresent(GET.class))
+			return invokeHedged(instance, method, args);
+		else
+			return call(instance, method, args);
+	}
+
+
+	private static boolean isAsync(final Method method)
+	{
+		final Class<?> type = method.getReturnType();
+
+		return type == CompletionStage.class || type == CompletableFuture.class;
+	}
+
+
+	/**
+	 * Make a synchronous call to an instance
+	 */
+	private Object call(final LoadBalancer.Instance instance, final Method method, final Object[] args) throws Throwable
+	{
+		return call(instance, method, args, null);
+	}
+
+
+	/**
+	 * Make a synchronous call to an instance
+	 *
+	 * @param scope
+	 * 		the scope the call may be abandoned through (or null if it cannot be abandoned)
+	 */
+	private Object call(final LoadBalancer.Instance instance,
+	                    final Method method,
+	                    final Object[] args,
+	                    final CallCancellation scope) throws Throwable
+	{
+		final long started = balancer.onStart(instance);
+		try
+		{
+			final Object result = invokeRemote(clients.get(instance.index), method, args);
+
+			balancer.onComplete(instance, started, null);
+
+			return result;
+		}
+		catch (Throwable t)
+		{
+			// An abandoned call says nothing about the health of the instance
+			if (scope != null && scope.isCancelled())
+				balancer.onAbandoned(instance, started);
+			else
+				balancer.onComplete(instance, started, t);
+
+			throw t;
+		}
+	}
+
+
+	private Object invokeAsync(final LoadBalancer.Instance instance, final Method method, final Object[] args) throws Throwable
+	{
+		final long started = balancer.onStart(instance);
+
+		final CompletionStage<?> call;
+		try
+		{
+			call = (CompletionStage<?>) invokeRemote(clients.get(instance.index), method, args);
+		}
+		catch (Throwable t)
+		{
+			balancer.onComplete(instance, started, t);
+
+			throw t;
+		}
+
+		call.whenComplete((value, e) -> balancer.onComplete(instance,
+		                                                    started,
+		                                                    (e != null && e.getCause() != null) ? e.getCause() : e));
+
+		return call;
+	}
+
+
+	/**
+	 * Make a call to an instance on the calling thread; if no response has arrived by the hedge delay then make the same call to
+	 * another instance on the hedge executor. Whichever response arrives first is returned and the other call abandoned (or the
+	 * last failure is thrown, if both fail)
+	 */
+	private Object invokeHedged(final LoadBalancer.Instance instance, final Method method, final Object[] args) throws Throwable
+	{
+		final long delay = balancer.getHedgeDelay();
+
+		if (delay < 0)
+			return call(instance, method, args); // Not enough calls yet to know what a slow call looks like
+
+		final HedgedCall hedged = new HedgedCall(method, args);
+
+		// N.B. wrap on this thread so the hedged call is made as part of the caller's trace
+		final Function<Object, Object> hedge = Tracing.wrap(ignored -> {
+			hedged.hedge(instance);
+			return null;
+		});
+
+		// N.B. only takes a hedge thread if the call is still waiting once the delay has passed
+		CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, task -> {
+			if (!hedged.result.isDone())
+				executeHedge(task);
+		}).execute(() -> hedge.apply(null));
+
+		hedged.attempt(instance);
+
+		try
+		{
+			return hedged.result.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw e.getCause();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			throw new ProcessingException("Interrupted waiting for response to " + method.getName(), e);
+		}
+	}
+
+
+	private void executeHedge(final Runnable task)
+	{
+		try
+		{
+			hedgeExecutor.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Every hedge thread is busy: the call simply waits for its first attempt
+			log.debug("Hedge executor saturated, not hedging call", e);
+		}
+	}
+
+
+	/**
+	 * A call that may be made against two instances, completing with the first response
+	 */
+	private final class HedgedCall
+	{
+		private final Method method;
+		private final Object[] args;
+
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		/**
+		 * The number of attempts that have not yet failed
+		 */
+		private final AtomicInteger pending = new AtomicInteger(1);
+
+		/**
+		 * The scopes of all attempts, so the loser can be abandoned
+		 */
+		private final List<CallCancellation> attempts = new CopyOnWriteArrayList<>();
+
+
+		HedgedCall(final Method method, final Object[] args)
+		{
+			this.method = method;
+			this.args = args;
+		}
+
+
+		/**
+		 * Called once the hedge delay has passed: if the first attempt has still not responded, try another instance
+		 *
+		 * @param first
+		 * 		the instance the first attempt was sent to
+		 */
+		void hedge(final LoadBalancer.Instance first)
+		{
+			if (result.isDone())
+				return;
+
+			final LoadBalancer.Instance instance = balancer.choose(first);
+
+			if (instance == null)
+				return; // No other healthy instance
+
+			hedges.mark();
+			pending.incrementAndGet();
+
+			attempt(instance);
+		}
+
+
+		/**
+		 * Call an instance on the current thread
+		 *
+		 * @param instance
+		 */
+		void attempt(final LoadBalancer.Instance instance)
+		{
+			final CallCancellation scope = CallCancellation.open();
+			try
+			{
+				attempts.add(scope);
+
+				// N.B. checked after registering the scope, so a response arriving now will abandon this attempt
+				if (result.isDone())
+					return;
+
+				final Object value = call(instance, method, args, scope);
+
+				if (result.complete(value))
+				{
+					for (CallCancellation other : attempts)
+						if (other != scope)
+							other.cancel();
+				}
+				else if (value instanceof AutoCloseable closeable)
+				{
+					// The other call won so nobody will read this response: release anything it holds
+					try
+					{
+						closeable.close();
+					}
+					catch (Exception e)
+					{
+						log.debug("Error closing unused hedged response from {}", instance, e);
+					}
+				}
+			}
+			catch (Throwable t)
+			{
+				if (pending.decrementAndGet() == 0)
+					result.completeExceptionally(t);
+			}
+			finally
+			{
+				scope.close();
+			}
+		}
+	}
+
+
+	private static Object invokeRemote(final Object client, final Method method, final Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(client, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+}
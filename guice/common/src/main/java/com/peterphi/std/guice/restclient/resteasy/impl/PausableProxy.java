@@ -2,6 +2,9 @@ package com.peterphi.std.guice.restclient.resteasy.impl;
 
 import com.peterphi.std.guice.apploader.impl.GuiceBuilder;
 import com.peterphi.std.guice.common.breaker.Breaker;
+import com.peterphi.std.guice.common.breaker.CircuitBreaker;
+import com.peterphi.std.guice.restclient.annotations.LongPoll;
+import com.peterphi.std.guice.restclient.exception.RestException;
 import com.peterphi.std.guice.restclient.exception.ServiceBreakerTripPreventsCallException;
 import com.peterphi.std.io.FileHelper;
 import com.peterphi.std.threading.Deadline;
@@ -10,12 +13,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ResponseProcessingException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -59,16 +68,19 @@ class PausableProxy implements InvocationHandler
 	private final AtomicInteger currentlyPausedCount;
 	private final boolean isFastFailServiceClient;
 	private final Breaker breaker;
+	private final CircuitBreaker circuit;
 
 
 	public PausableProxy(final Object resteasyProxyClient,
 	                     final boolean isFastFailServiceClient,
 	                     final Breaker breaker,
+	                     final CircuitBreaker circuit,
 	                     final AtomicInteger currentlyPausedCount)
 	{
 		this.rest = resteasyProxyClient;
 		this.isFastFailServiceClient = isFastFailServiceClient;
 		this.breaker = breaker;
+		this.circuit = circuit;
 		this.currentlyPausedCount = currentlyPausedCount;
 	}
 
@@ -76,59 +88,253 @@ class PausableProxy implements InvocationHandler
 	@Override
 	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
 	{
-		if (isPaused() && method.getDeclaringClass() != Object.class)
+		if (method.getDeclaringClass() == Object.class)
+			return invokeRemote(method, args);
+
+		if (isAsync(method))
+			return invokeAsync(method, args);
+
+		if (isPaused())
 		{
 			pause(isFastFailServiceClient);
 		}
 
+		if (circuit == null)
+			return invokeRemote(method, args);
+
+		// Fail fast rather than tie up this thread (and a connection) waiting on a service that is known to be unhealthy
+		if (!circuit.tryAcquire())
+			throw circuitOpen();
+
+		final long started = System.nanoTime();
+		try
+		{
+			final Object result = invokeRemote(method, args);
+
+			recordOutcome(method, started, null);
+
+			return result;
+		}
+		catch (Throwable t)
+		{
+			recordOutcome(method, started, t);
+
+			throw t;
+		}
+	}
+
+
+	private static boolean isAsync(final Method method)
+	{
+		final Class<?> type = method.getReturnType();
+
+		return type == CompletionStage.class || type == CompletableFuture.class;
+	}
+
+
+	/**
+	 * Make a call to a method returning a CompletionStage/CompletableFuture. Breaker and call failures are reported through
+	 * the returned future, and the outcome is recorded against the circuit breaker when the call completes.<br />
+	 * N.B. if the breaker is tripped and this is not a fast-fail client, the calling thread waits for the breaker to be reset
+	 * (as it would for a synchronous call)
+	 *
+	 * @param method
+	 * @param args
+	 *
+	 * @return
+	 */
+	private CompletableFuture<Object> invokeAsync(final Method method, final Object[] args)
+	{
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		try
+		{
+			if (isPaused())
+				pause(isFastFailServiceClient);
+
+			if (circuit != null && !circuit.tryAcquire())
+				throw circuitOpen();
+		}
+		catch (ServiceBreakerTripPreventsCallException e)
+		{
+			result.completeExceptionally(e);
+
+			return result;
+		}
+
+		final long started = System.nanoTime();
+		final CompletionStage<?> call;
+		try
+		{
+			call = (CompletionStage<?>) invokeRemote(method, args);
+		}
+		catch (Throwable t)
+		{
+			recordOutcome(method, started, t);
+			result.completeExceptionally(t);
+
+			return result;
+		}
+
+		call.whenComplete((value, e) -> {
+			if (e == null)
+			{
+				recordOutcome(method, started, null);
+				result.complete(value);
+			}
+			else
+			{
+				final Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+				final Throwable translated = translate(method, cause);
+
+				recordOutcome(method, started, translated);
+				result.completeExceptionally(translated);
+			}
+		});
+
+		// Abandon the underlying call if the caller cancels
+		result.whenComplete((value, e) -> {
+			if (result.isCancelled())
+				call.toCompletableFuture().cancel(true);
+		});
+
+		return result;
+	}
+
+
+	private ServiceBreakerTripPreventsCallException circuitOpen()
+	{
+		return new ServiceBreakerTripPreventsCallException("Unable to make outgoing service call: circuit breaker " +
+		                                                   circuit.getName() +
+		                                                   " is open");
+	}
+
+
+	/**
+	 * Record the outcome of a call against the circuit breaker (if there is one)
+	 *
+	 * @param method
+	 * 		the method called
+	 * @param started
+	 * 		the value of {@link System#nanoTime()} when the call started
+	 * @param t
+	 * 		the exception the call failed with, or null if it succeeded
+	 */
+	private void recordOutcome(final Method method, final long started, final Throwable t)
+	{
+		if (circuit == null)
+			return;
+
+		// N.B. a long poll is slow by design, so its duration says nothing about the health of the service
+		final long duration = method.isAnnotationPresent(LongPoll.class) ? 0 : System.nanoTime() - started;
+
+		if (t == null)
+			circuit.onSuccess(duration);
+		else if (isRemoteFailure(t))
+			circuit.onFailure(duration);
+		else if (isRemoteResponse(t))
+			circuit.onSuccess(duration); // The service responded, so it is healthy (even if it rejected our call)
+		else
+			circuit.onIgnored();
+	}
+
+
+	/**
+	 * Determine whether an exception thrown by a call indicates that the remote service is unhealthy
+	 *
+	 * @param t
+	 * @return true for I/O errors, timeouts and 5xx responses
+	 */
+	static boolean isRemoteFailure(Throwable t)
+	{
+		if (t instanceof RestException re)
+			return re.getHttpCode() >= 500;
+		else if (t instanceof WebApplicationException wae)
+			return wae.getResponse() == null || wae.getResponse().getStatus() >= 500;
+		else if (t instanceof ResponseProcessingException rpe)
+			return rpe.getResponse() != null && rpe.getResponse().getStatus() >= 500;
+		else
+			return t instanceof ProcessingException;
+	}
+
+
+	/**
+	 * Determine whether an exception thrown by a call represents a response from the remote service
+	 *
+	 * @param t
+	 * @return
+	 */
+	private static boolean isRemoteResponse(Throwable t)
+	{
+		// N.B. invokeRemote wraps 400 Bad Request errors
+		return t instanceof WebApplicationException ||
+		       t instanceof ResponseProcessingException ||
+		       t.getCause() instanceof BadRequestException;
+	}
+
+
+	private Object invokeRemote(final Method method, final Object[] args) throws Throwable
+	{
 		try
 		{
 			return method.invoke(rest, args);
 		}
 		catch (InvocationTargetException e)
 		{
-			final Throwable cause = e.getCause();
+			throw translate(method, e.getCause());
+		}
+	}
 
-			// Make sure we never throw a BadRequestException, because this bubbles all the way up and throws a 400 Bad Request error against our own service if uncaught
-			if (cause instanceof BadRequestException br)
-			{
-				final String methodName = method.getDeclaringClass().getSimpleName() + "::" + method.getName();
 
-				if (log.isWarnEnabled())
+	/**
+	 * Translate an exception thrown by a remote call into the exception to be thrown to the caller
+	 *
+	 * @param method
+	 * @param cause
+	 *
+	 * @return
+	 */
+	private static Throwable translate(final Method method, final Throwable cause)
+	{
+		// Make sure we never throw a BadRequestException, because this bubbles all the way up and throws a 400 Bad Request error against our own service if uncaught
+		if (cause instanceof BadRequestException br)
+		{
+			final String methodName = method.getDeclaringClass().getSimpleName() + "::" + method.getName();
+
+			if (log.isWarnEnabled())
+			{
+				try
 				{
-					try
+					if (br.getResponse() != null && br.getResponse().hasEntity())
 					{
-						if (br.getResponse() != null && br.getResponse().hasEntity())
+						final Object entity = br.getResponse().getEntity();
+
+						final String body = switch (entity)
 						{
-							final Object entity = br.getResponse().getEntity();
-
-							final String body = switch (entity)
-							{
-								case InputStream is ->
-									// TODO should read binary data and use heuristic to determine if text, otherwise base64 encode
-										FileHelper.cat(is);
-								case Reader r -> FileHelper.cat(r);
-								case CharSequence cs -> cs.toString();
-								case byte[] arr -> "byte[]: " + Base64.getEncoder().encodeToString(arr);
-								case null -> "(null body)";
-								default -> "Entity class=" + entity.getClass().getSimpleName() + ": " + entity;
-							};
-
-							log.warn("HTTP Call {} Encountered 400 Bad Request error, response body: {}", methodName, body, br);
-						}
-					}
-					catch (Throwable tt)
-					{
-						// ignore
+							case InputStream is ->
+								// TODO should read binary data and use heuristic to determine if text, otherwise base64 encode
+									FileHelper.cat(is);
+							case Reader r -> FileHelper.cat(r);
+							case CharSequence cs -> cs.toString();
+							case byte[] arr -> "byte[]: " + Base64.getEncoder().encodeToString(arr);
+							case null -> "(null body)";
+							default -> "Entity class=" + entity.getClass().getSimpleName() + ": " + entity;
+						};
+
+						log.warn("HTTP Call {} Encountered 400 Bad Request error, response body: {}", methodName, body, br);
 					}
 				}
-
-				throw new RuntimeException("Remote service call " + methodName + " returned 400 Bad Request!", br);
-			}
-			else
-			{
-				throw cause;
+				catch (Throwable tt)
+				{
+					// ignore
+				}
 			}
+
+			return new RuntimeException("Remote service call " + methodName + " returned 400 Bad Request!", br);
+		}
+		else
+		{
+			return cause;
 		}
 	}
 
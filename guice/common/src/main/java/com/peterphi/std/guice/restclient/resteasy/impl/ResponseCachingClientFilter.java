@@ -0,0 +1,364 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.codahale.metrics.Meter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.peterphi.std.guice.common.cached.CacheManager;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An in-memory cache of the GET responses returned by a remote service.<br />
+ * Responses are considered fresh for the period allowed by their <code>Cache-Control: max-age</code> (or
+ * <code>Expires</code>) header, during which they are served without contacting the service; once stale, responses with an
+ * <code>ETag</code> or <code>Last-Modified</code> header are revalidated with a conditional request, and served from the cache
+ * if the service responds <code>304 Not Modified</code>.<br />
+ * Since the cache is shared by all callers of the service, responses marked <code>private</code> or <code>no-store</code> are
+ * never stored, and responses to requests carrying an <code>Authorization</code> header are only stored if marked
+ * <code>public</code>
+ */
+@Priority(Priorities.USER + 100)
+public class ResponseCachingClientFilter implements ClientRequestFilter, ClientResponseFilter
+{
+	private static final String PROPERTY_KEY = ResponseCachingClientFilter.class.getName() + ".key";
+	private static final String PROPERTY_HIT = ResponseCachingClientFilter.class.getName() + ".hit";
+	private static final String PROPERTY_STALE = ResponseCachingClientFilter.class.getName() + ".stale";
+
+	private final Cache<String, CachedResponse> cache;
+	private final long maxEntrySize;
+
+	private final Meter hits;
+	private final Meter misses;
+	private final Meter revalidations;
+
+
+	/**
+	 * @param name
+	 * 		the name of the service whose responses are being cached
+	 * @param maxEntries
+	 * 		the maximum number of responses to hold
+	 * @param maxEntrySize
+	 * 		the maximum size (in bytes) of a response body that may be held
+	 * @param hits
+	 * 		marked when a call is served from the cache without contacting the service
+	 * @param misses
+	 * 		marked when a call has no usable cached response
+	 * @param revalidations
+	 * 		marked when the service confirms (with a 304 Not Modified) that a stale response may still be used
+	 */
+	public ResponseCachingClientFilter(final String name,
+	                                   final int maxEntries,
+	                                   final long maxEntrySize,
+	                                   final Meter hits,
+	                                   final Meter misses,
+	                                   final Meter revalidations)
+	{
+		this.cache = CacheManager.build("RestResponseCache." + name, CacheBuilder.newBuilder().maximumSize(maxEntries));
+		this.maxEntrySize = maxEntrySize;
+		this.hits = hits;
+		this.misses = misses;
+		this.revalidations = revalidations;
+	}
+
+
+	@Override
+	public void filter(final ClientRequestContext request)
+	{
+		if (!HttpMethod.GET.equals(request.getMethod()) || hasDirective(request.getStringHeaders().get(HttpHeaders.CACHE_CONTROL),
+		                                                                   "no-cache"))
+			return;
+
+		final String key = getKey(request);
+		request.setProperty(PROPERTY_KEY, key);
+
+		final CachedResponse cached = cache.getIfPresent(key);
+
+		if (cached == null || !cached.matches(request))
+		{
+			misses.mark();
+		}
+		else if (cached.isFresh())
+		{
+			hits.mark();
+
+			request.setProperty(PROPERTY_HIT, Boolean.TRUE);
+			request.abortWith(cached.toResponse());
+		}
+		else if (cached.etag != null || cached.lastModified != null)
+		{
+			// Ask the service whether our stale copy is still valid
+			request.setProperty(PROPERTY_STALE, cached);
+
+			if (cached.etag != null)
+				request.getHeaders().putSingle(HttpHeaders.IF_NONE_MATCH, cached.etag);
+			if (cached.lastModified != null)
+				request.getHeaders().putSingle(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+		}
+		else
+		{
+			misses.mark();
+		}
+	}
+
+
+	@Override
+	public void filter(final ClientRequestContext request, final ClientResponseContext response) throws IOException
+	{
+		final String key = (String) request.getProperty(PROPERTY_KEY);
+
+		if (key == null || request.getProperty(PROPERTY_HIT) != null)
+			return; // Not cacheable, or served from the cache
+
+		final CachedResponse stale = (CachedResponse) request.getProperty(PROPERTY_STALE);
+
+		if (stale != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode())
+		{
+			revalidations.mark();
+
+			final CachedResponse refreshed = stale.revalidated(response.getHeaders());
+
+			if (refreshed != null)
+				cache.put(key, refreshed);
+			else
+				cache.invalidate(key);
+
+			// Replace the 304 with the cached response
+			response.setStatus(stale.status);
+			response.getHeaders().clear();
+			response.getHeaders().putAll(stale.headers);
+			response.setEntityStream(new ByteArrayInputStream(stale.body));
+
+			return;
+		}
+		else if (stale != null)
+		{
+			misses.mark(); // The stale response could not be revalidated
+		}
+
+		if (response.getStatus() == Response.Status.OK.getStatusCode())
+			store(key, request, response);
+	}
+
+
+	private void store(final String key, final ClientRequestContext request, final ClientResponseContext response) throws IOException
+	{
+		// Any previous response is superseded, even if this one can't be cached
+		cache.invalidate(key);
+
+		final List<String> cacheControl = response.getHeaders().get(HttpHeaders.CACHE_CONTROL);
+
+		if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private"))
+			return;
+		else if (request.getHeaders().containsKey(HttpHeaders.AUTHORIZATION) && !hasDirective(cacheControl, "public"))
+			return;
+
+		final String vary = response.getHeaderString(HttpHeaders.VARY);
+		if (StringUtils.equals(StringUtils.trim(vary), "*"))
+			return;
+
+		final long expires = getExpires(response.getHeaders());
+		final String etag = response.getHeaderString(HttpHeaders.ETAG);
+		final String lastModified = response.getHeaderString(HttpHeaders.LAST_MODIFIED);
+
+		if (expires <= System.currentTimeMillis() && etag == null && lastModified == null)
+			return; // Can neither serve this response nor revalidate it later
+
+		if (response.getLength() > maxEntrySize || !response.hasEntity())
+			return;
+
+		// Read the body (up to the maximum size we're willing to cache)
+		final InputStream is = response.getEntityStream();
+		final byte[] body = IOUtils.toByteArray(new BoundedInputStream(is, maxEntrySize + 1));
+
+		if (body.length > maxEntrySize)
+		{
+			// Too big to cache: give the caller the bytes we read followed by the rest of the stream
+			response.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(body), is));
+			return;
+		}
+
+		response.setEntityStream(new ByteArrayInputStream(body));
+
+		final Map<String, String> varyValues = new HashMap<>();
+		if (vary != null)
+			for (String header : StringUtils.split(vary, ", "))
+				varyValues.put(header, request.getHeaderString(header));
+
+		cache.put(key,
+		          new CachedResponse(response.getStatus(),
+		                             new MultivaluedHashMap<>(response.getHeaders()),
+		                             body,
+		                             expires,
+		                             etag,
+		                             lastModified,
+		                             varyValues));
+	}
+
+
+	private static String getKey(final ClientRequestContext request)
+	{
+		return request.getUri() + " " + request.getHeaderString(HttpHeaders.ACCEPT);
+	}
+
+
+	/**
+	 * Determine when a response stops being fresh, from its Cache-Control and Expires headers
+	 *
+	 * @param headers
+	 *
+	 * @return the time (in milliseconds since the epoch) the response stops being fresh
+	 */
+	static long getExpires(final MultivaluedMap<String, String> headers)
+	{
+		final List<String> cacheControl = headers.get(HttpHeaders.CACHE_CONTROL);
+
+		if (hasDirective(cacheControl, "no-cache"))
+			return 0;
+
+		final String maxAge = getDirective(cacheControl, "max-age");
+
+		if (maxAge != null)
+		{
+			try
+			{
+				final long age = NumberUtils.toLong(headers.getFirst("Age"), 0);
+
+				return System.currentTimeMillis() + (Long.parseLong(maxAge) - age) * 1000L;
+			}
+			catch (NumberFormatException e)
+			{
+				return 0;
+			}
+		}
+
+		final String expires = headers.getFirst(HttpHeaders.EXPIRES);
+
+		if (expires != null)
+		{
+			try
+			{
+				return ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			}
+			catch (DateTimeParseException e)
+			{
+				return 0; // Invalid dates (e.g. "0") mean already expired
+			}
+		}
+
+		return 0;
+	}
+
+
+	private static boolean hasDirective(final List<String> cacheControl, final String directive)
+	{
+		if (cacheControl != null)
+			for (String header : cacheControl)
+				for (String part : StringUtils.split(header, ','))
+					if (StringUtils.equalsIgnoreCase(StringUtils.trim(part), directive))
+						return true;
+
+		return false;
+	}
+
+
+	private static String getDirective(final List<String> cacheControl, final String directive)
+	{
+		if (cacheControl != null)
+			for (String header : cacheControl)
+				for (String part : StringUtils.split(header, ','))
+				{
+					final String[] keyValue = StringUtils.split(StringUtils.trim(part), "=", 2);
+
+					if (keyValue.length == 2 && StringUtils.equalsIgnoreCase(keyValue[0], directive))
+						return StringUtils.strip(keyValue[1], "\"");
+				}
+
+		return null;
+	}
+
+
+	private record CachedResponse(int status, MultivaluedMap<String, String> headers, byte[] body, long expires, String etag,
+	                              String lastModified, Map<String, String> vary)
+	{
+		boolean isFresh()
+		{
+			return System.currentTimeMillis() < expires;
+		}
+
+
+		/**
+		 * Determine whether this response may be used for a request, based on the headers the response varies by
+		 *
+		 * @param request
+		 *
+		 * @return
+		 */
+		boolean matches(final ClientRequestContext request)
+		{
+			for (Map.Entry<String, String> entry : vary.entrySet())
+				if (!Objects.equals(entry.getValue(), request.getHeaderString(entry.getKey())))
+					return false;
+
+			return true;
+		}
+
+
+		/**
+		 * Produce a copy of this response, with its freshness updated by the headers of a 304 Not Modified response
+		 *
+		 * @param notModified
+		 *
+		 * @return the updated response, or null if the service has asked that it no longer be stored
+		 */
+		CachedResponse revalidated(final MultivaluedMap<String, String> notModified)
+		{
+			final List<String> cacheControl = notModified.get(HttpHeaders.CACHE_CONTROL);
+
+			if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private"))
+				return null;
+
+			final long newExpires = (cacheControl != null || notModified.containsKey(HttpHeaders.EXPIRES)) ?
+			                        getExpires(notModified) :
+			                        expires;
+
+			return new CachedResponse(status, headers, body, newExpires, etag, lastModified, vary);
+		}
+
+
+		Response toResponse()
+		{
+			final Response.ResponseBuilder builder = Response.status(status);
+
+			for (Map.Entry<String, List<String>> header : headers.entrySet())
+				for (String value : header.getValue())
+					builder.header(header.getKey(), value);
+
+			return builder.entity(new ByteArrayInputStream(body)).build();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.peterphi.std.guice.restclient.resteasy.impl;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.peterphi.std.guice.common.jackson.JacksonFactory;
@@ -16,6 +17,9 @@ import org.apache.commons.codec.binary.Base64;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.AsyncClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.internal.CompletionStageRxInvokerProvider;
+import org.jboss.resteasy.core.providerfactory.ResteasyProviderFactoryImpl;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +31,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
 
 /**
@@ -37,6 +43,11 @@ public class ResteasyClientFactoryImpl implements StoppableService
 {
 	private static final Logger log = LoggerFactory.getLogger(ResteasyClientFactoryImpl.class);
 
+	/**
+	 * Executes tasks immediately on the submitting thread
+	 */
+	private static final ExecutorService CALLER_THREAD_EXECUTOR = MoreExecutors.newDirectExecutorService();
+
 	private final HttpClientFactory httpClientFactory;
 	//private final ResteasyProviderFactory resteasyProviderFactory;
 
@@ -174,10 +185,24 @@ public class ResteasyClientFactoryImpl implements StoppableService
 			builder.enableCookieManagement();
 
 		// Build and apply the HttpEngine
+		final ClientHttpEngine engine;
 		if (shared != null)
-			builder.httpEngine(shared); // Use the shared HTTP client
+			engine = shared; // Use the shared HTTP client
 		else
-			builder.httpEngine(httpClientFactory.getClient(h2c, fastFail, storeCookies)); // Get an appropriate HttpClient
+			engine = httpClientFactory.getClient(h2c, fastFail, storeCookies); // Get an appropriate HttpClient
+
+		builder.httpEngine(engine);
+
+		if (engine instanceof AsyncClientHttpEngine)
+		{
+			// Run the request filters of async calls on the calling thread (they rely on thread-locals, e.g. for tracing and
+			// delegated auth); the engine dispatches the call itself without blocking, and decides where to complete it
+			builder.executorService(CALLER_THREAD_EXECUTOR, false);
+
+			// Allow proxy methods to return CompletableFuture as well as CompletionStage
+			if (builder.getProviderFactory() instanceof ResteasyProviderFactoryImpl factory)
+				factory.getClientHelper().addReactiveClass(CompletionStageRxInvokerProvider.class, CompletableFuture.class);
+		}
 
 		var client = builder.build();
 
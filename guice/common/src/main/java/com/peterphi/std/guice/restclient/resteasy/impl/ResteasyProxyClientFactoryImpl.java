@@ -1,5 +1,7 @@
 package com.peterphi.std.guice.restclient.resteasy.impl;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Singleton;
@@ -9,27 +11,43 @@ import com.peterphi.std.guice.apploader.GuiceConstants;
 import com.peterphi.std.guice.apploader.GuiceServiceProperties;
 import com.peterphi.std.guice.common.breaker.Breaker;
 import com.peterphi.std.guice.common.breaker.BreakerService;
+import com.peterphi.std.guice.common.breaker.CircuitBreaker;
+import com.peterphi.std.guice.common.breaker.CircuitBreakerSettings;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
 import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.common.stringparsing.TimeoutConverter;
 import com.peterphi.std.guice.restclient.JAXRSProxyClientFactory;
 import com.peterphi.std.guice.restclient.annotations.FastFailServiceClient;
 import com.peterphi.std.guice.restclient.annotations.NoClientBreaker;
+import com.peterphi.std.threading.Timeout;
 import org.apache.commons.lang.StringUtils;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.UriBuilder;
 import java.lang.reflect.Proxy;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 @Singleton
 public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 {
+	private static final Logger log = LoggerFactory.getLogger(ResteasyProxyClientFactoryImpl.class);
+
 	/**
 	 * A Bearer Token generator that generates Delegated Tokens for an OAuth2 user session when calling other services
 	 */
@@ -47,16 +65,94 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 	@Inject
 	Injector guice;
 
+	@Inject(optional = true)
+	MetricRegistry metrics;
+
 	@Inject(optional = true)
 	@Named("jaxrs.cookie-store")
 	@Doc("Whether default JAX-RS clients should maintain a cookie store (default false); will also default to false if oauth delegation is switched on (or if a bearer generator is configured)")
 	public boolean defaultStoreCookies = false;
 
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker")
+	@Doc("Whether calls to named services should be guarded by a circuit breaker that fails calls fast while the service has a high failure or slow-call rate (default false). May be overridden per service")
+	public boolean defaultCircuitBreaker = false;
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.window-size")
+	@Doc("The number of most recent calls the circuit breaker considers when computing failure and slow-call rates (default 100)")
+	public int circuitBreakerWindowSize = CircuitBreakerSettings.DEFAULTS.windowSize();
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.minimum-calls")
+	@Doc("The minimum number of recent calls required before the circuit breaker may open (default 20)")
+	public int circuitBreakerMinimumCalls = CircuitBreakerSettings.DEFAULTS.minimumCalls();
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.failure-rate")
+	@Doc("The percentage of recent calls that must fail (with an I/O error or 5xx response) for the circuit breaker to open (default 50)")
+	public int circuitBreakerFailureRate = CircuitBreakerSettings.DEFAULTS.failureRate();
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.slow-call-threshold")
+	@Doc("The duration after which calls are considered slow by the circuit breaker (default 10s)")
+	public String circuitBreakerSlowCallThreshold = "10s";
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.slow-call-rate")
+	@Doc("The percentage of recent calls that must be slow for the circuit breaker to open (default 80)")
+	public int circuitBreakerSlowCallRate = CircuitBreakerSettings.DEFAULTS.slowCallRate();
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.open-duration")
+	@Doc("How long the circuit breaker stays open before permitting probe calls (default 30s)")
+	public String circuitBreakerOpenDuration = "30s";
+
+	@Inject(optional = true)
+	@Named("jaxrs.circuit-breaker.half-open-calls")
+	@Doc("The number of probe calls permitted while the circuit breaker is half-open; all must succeed for it to close (default 3)")
+	public int circuitBreakerHalfOpenCalls = CircuitBreakerSettings.DEFAULTS.halfOpenProbeCalls();
+
+	@Inject(optional = true)
+	@Named("jaxrs.load-balancer.eject-after-failures")
+	@Doc("The number of consecutive failed calls (with an I/O error or 5xx response) after which an instance of a service with several endpoints is temporarily excluded from load balancing (default 5)")
+	public int loadBalancerEjectAfterFailures = 5;
+
+	@Inject(optional = true)
+	@Named("jaxrs.load-balancer.eject-duration")
+	@Doc("How long an instance of a service with several endpoints is excluded from load balancing after repeated failures (default 30s)")
+	public String loadBalancerEjectDuration = "30s";
+
+	@Inject(optional = true)
+	@Named("jaxrs.hedge.min-delay")
+	@Doc("The minimum time to wait for a response before a hedged call is sent to another instance of the service (default 50ms)")
+	public String hedgeMinDelay = "50ms";
+
+	@Inject(optional = true)
+	@Named("jaxrs.hedge.max-threads")
+	@Doc("The maximum number of hedged calls in progress at once across all services; slow calls are not hedged while this many are running (default 16)")
+	public int hedgeMaxThreads = 16;
+
 	/**
 	 * Counter that keeps track of the number of currently-paused service calls within this service
 	 */
 	private final AtomicInteger pausedCallsCounter = new AtomicInteger(0);
 
+	/**
+	 * Response caches for named services, shared by all clients of the same service
+	 */
+	private final Map<String, ResponseCachingClientFilter> responseCaches = new ConcurrentHashMap<>();
+
+	/**
+	 * Load balancers for named services with several endpoints, shared by all clients of the same service
+	 */
+	private final Map<String, LoadBalancer> loadBalancers = new ConcurrentHashMap<>();
+
+	/**
+	 * Runs hedged calls; created on first use
+	 */
+	private ExecutorService hedgeExecutor;
+
 	public ResteasyProxyClientFactoryImpl()
 	{
 	}
@@ -75,7 +171,16 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 
 	ResteasyWebTarget createWebTarget(ServiceClientConfig c)
 	{
-		URI endpoint = c.endpoint;
+		// N.B. a WebTarget can only address a single instance of a service
+		if (c.endpoints.size() > 1)
+			return createWebTarget(c, c.endpoints.get(ThreadLocalRandom.current().nextInt(c.endpoints.size())));
+		else
+			return createWebTarget(c, c.endpoint);
+	}
+
+
+	private ResteasyWebTarget createWebTarget(ServiceClientConfig c, URI endpoint)
+	{
 		boolean h2c = c.h2c;
 
 		// Allow the use of the "h2c://" scheme as an alias for http:// with h2c=true
@@ -101,22 +206,28 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 		else
 			credentials = null;
 
-		return clientFactory.getOrCreateClient(credentials, c.fastFail, c.storeCookies, h2c).target(endpoint);
-	}
+		final ResteasyWebTarget target = clientFactory.getOrCreateClient(credentials, c.fastFail, c.storeCookies, h2c).target(endpoint);
 
+		if (c.responseCache != null)
+			target.register(c.responseCache);
 
-	private <T> T getClient(final Class<T> iface, final ResteasyWebTarget target, final ServiceClientConfig config)
-	{
-		final T proxy = target.proxy(iface);
+		return target;
+	}
 
 
+	private <T> T getClient(final Class<T> iface, final T proxy, final ServiceClientConfig config)
+	{
 		final boolean fastFail = config != null ? config.fastFail : iface.isAnnotationPresent(FastFailServiceClient.class);
 		final boolean ignoreBreakers = iface.isAnnotationPresent(NoClientBreaker.class);
 
 		final String name = (config != null && config.name != null) ? config.name : null;
 
 		// Set up a Pausable Proxy that will allow us to pause service calls by tripping a breaker
-		PausableProxy handler = createPausableProxy(proxy, fastFail, name, ignoreBreakers);
+		PausableProxy handler = createPausableProxy(proxy,
+		                                            fastFail,
+		                                            name,
+		                                            ignoreBreakers,
+		                                            (config != null) ? config.circuitBreaker : null);
 
 		return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class[]{iface}, handler);
 	}
@@ -124,25 +235,120 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 	private final Map<String, Breaker> restBreakers = new ConcurrentHashMap<>();
 
 
+	/**
+	 * Create a proxy client for a service; if the service has several endpoints then calls will be load balanced across them
+	 *
+	 * @param iface
+	 * @param config
+	 * @param <T>
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T createProxy(final Class<T> iface, final ServiceClientConfig config)
+	{
+		if (config.endpoints.size() == 1)
+			return createWebTarget(config, config.endpoint).proxy(iface);
+
+		final LoadBalancer balancer = loadBalancers.compute(config.name,
+		                                                    (k, existing) -> (existing != null &&
+		                                                                      existing.getEndpoints().equals(config.endpoints)) ?
+		                                                                     existing :
+		                                                                     createLoadBalancer(config));
+
+		// N.B. a hedged call leaves the losing attempt running, so only hedge if the engine is able to abandon it
+		boolean hedge = config.hedge;
+
+		final List<Object> clients = new ArrayList<>(config.endpoints.size());
+		for (LoadBalancer.Instance instance : balancer.getInstances())
+		{
+			final ResteasyWebTarget target = createWebTarget(config, instance.uri);
+
+			if (hedge && !CallCancellation.isSupportedBy(target.getResteasyClient().httpEngine()))
+			{
+				log.warn("Not hedging calls to service {}: its HTTP client engine cannot abandon in-flight calls", config.name);
+				hedge = false;
+			}
+
+			clients.add(target.proxy(iface));
+		}
+
+		final LoadBalancingProxy handler = new LoadBalancingProxy(balancer,
+		                                                          clients,
+		                                                          hedge ? getHedgeExecutor() : null,
+		                                                          meter(GuiceMetricNames.REST_CLIENT_HEDGED_CALLS, config.name));
+
+		return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class[]{iface}, handler);
+	}
+
+
+	private LoadBalancer createLoadBalancer(final ServiceClientConfig config)
+	{
+		final Timeout ejectDuration = TimeoutConverter.doConvert(loadBalancerEjectDuration);
+		final Timeout minHedgeDelay = TimeoutConverter.doConvert(hedgeMinDelay);
+
+		return new LoadBalancer(config.name,
+		                        config.endpoints,
+		                        loadBalancerEjectAfterFailures,
+		                        ejectDuration.get(TimeUnit.NANOSECONDS),
+		                        minHedgeDelay.get(TimeUnit.NANOSECONDS));
+	}
+
+
+	private synchronized ExecutorService getHedgeExecutor()
+	{
+		if (hedgeExecutor == null)
+		{
+			final AtomicInteger count = new AtomicInteger();
+			final ThreadFactory threads = r -> {
+				final Thread thread = new Thread(r, "jaxrs-hedge-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+
+			// N.B. idle threads exit after a minute, so there is nothing to shut down. Hedging is an optimisation, so when every
+			// thread is busy the hedge is rejected (and the call just waits for its first attempt) rather than queued
+			hedgeExecutor = new ThreadPoolExecutor(0,
+			                                       hedgeMaxThreads,
+			                                       1,
+			                                       TimeUnit.MINUTES,
+			                                       new SynchronousQueue<>(),
+			                                       threads,
+			                                       new ThreadPoolExecutor.AbortPolicy());
+		}
+
+		return hedgeExecutor;
+	}
+
+
 	private <T> PausableProxy createPausableProxy(final T proxy,
 	                                              final boolean fastFail,
 	                                              final String name,
-	                                              final boolean ignoreBreakers)
+	                                              final boolean ignoreBreakers,
+	                                              final CircuitBreakerSettings circuitBreakerSettings)
 	{
 		// N.B. should not link Breaker to the PausableProxy, since it will leak PausableProxy if the caller then discards it
 		final Breaker breaker;
+		final CircuitBreaker circuit;
 		if (!ignoreBreakers)
 		{
 			final String key = (name != null) ? name : "unnamed";
 
 			breaker = restBreakers.computeIfAbsent(key, k -> breakerService.register(null, List.of("restcall", "restcall." + k)));
+
+			// Circuit breakers are only available for named services (unnamed clients may be talking to unrelated endpoints)
+			if (name != null && circuitBreakerSettings != null)
+				circuit = breakerService.getCircuitBreaker("restcall." + name + ".circuit", circuitBreakerSettings);
+			else
+				circuit = null;
 		}
 		else
 		{
 			breaker = null;
+			circuit = null;
 		}
 
-		return new PausableProxy(proxy, fastFail, breaker, pausedCallsCounter);
+		return new PausableProxy(proxy, fastFail, breaker, circuit, pausedCallsCounter);
 	}
 
 
@@ -173,7 +379,7 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 		final boolean fastFail = iface.isAnnotationPresent(FastFailServiceClient.class);
 
 		final ServiceClientConfig config = getServiceClientConfig(fastFail, names);
-		return getClient(iface, createWebTarget(config), config);
+		return getClient(iface, config);
 	}
 
 
@@ -189,15 +395,13 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 	@Override
 	public <T> T getClient(final Class<T> iface, final WebTarget target)
 	{
-		return getClient(iface, (ResteasyWebTarget) target, null);
+		return getClient(iface, ((ResteasyWebTarget) target).proxy(iface), null);
 	}
 
 
 	private <T> T getClient(final Class<T> iface, final ServiceClientConfig config)
 	{
-		final ResteasyWebTarget target = createWebTarget(config);
-
-		return getClient(iface, target, config);
+		return getClient(iface, createProxy(iface, config), config);
 	}
 
 
@@ -206,13 +410,17 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 	{
 		ServiceClientConfig config = new ServiceClientConfig(null,
 		                                                     endpoint,
+		                                                     List.of(endpoint),
 		                                                     username,
 		                                                     password,
 		                                                     false,
 		                                                     false,
 		                                                     defaultStoreCookies,
 		                                                     null,
-		                                                     true);
+		                                                     true,
+		                                                     null,
+		                                                     null,
+		                                                     false);
 		return createWebTarget(config);
 	}
 
@@ -253,12 +461,16 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 
 		ServiceClientConfig config = new ServiceClientConfig(null,
 		                                                     endpoint,
+		                                                     List.of(endpoint),
 		                                                     null,
 		                                                     null,
 		                                                     fastFail,
 		                                                     false,
 		                                                     defaultStoreCookies,
 		                                                     new SupplierBearerGenerator(token),
+		                                                     false,
+		                                                     null,
+		                                                     null,
 		                                                     false);
 
 
@@ -277,13 +489,17 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 
 		ServiceClientConfig config = new ServiceClientConfig(null,
 		                                                     endpoint,
+		                                                     List.of(endpoint),
 		                                                     username,
 		                                                     password,
 		                                                     fastFail,
 		                                                     false,
 		                                                     defaultStoreCookies,
 		                                                     null,
-		                                                     preemptiveAuth);
+		                                                     preemptiveAuth,
+		                                                     null,
+		                                                     null,
+		                                                     false);
 
 		return getClient(iface, config);
 	}
@@ -294,8 +510,10 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 	//
 
 
-	private record ServiceClientConfig(String name, URI endpoint, String username, String password, boolean fastFail, boolean h2c,
-	                                   boolean storeCookies, BearerGenerator bearerGenerator, boolean preemptiveAuth)
+	private record ServiceClientConfig(String name, URI endpoint, List<URI> endpoints, String username, String password,
+	                                   boolean fastFail, boolean h2c, boolean storeCookies, BearerGenerator bearerGenerator,
+	                                   boolean preemptiveAuth, CircuitBreakerSettings circuitBreaker,
+	                                   ResponseCachingClientFilter responseCache, boolean hedge)
 	{
 	}
 
@@ -317,8 +535,9 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 			throw new IllegalArgumentException("Cannot find service in configuration by any of these names: " +
 			                                   Arrays.asList(names));
 
-		final String endpoint = config.get(GuiceServiceProperties.prop(GuiceServiceProperties.ENDPOINT, name), null);
-		final URI uri = URI.create(endpoint);
+		final List<URI> endpoints = parseEndpoints(config.get(GuiceServiceProperties.prop(GuiceServiceProperties.ENDPOINT, name),
+		                                                      null));
+		final URI uri = endpoints.get(0);
 
 		// TODO allow other per-service configuration?
 		final String username = config.get(GuiceServiceProperties.prop(GuiceServiceProperties.USERNAME, name), getUsername(uri));
@@ -389,15 +608,116 @@ public class ResteasyProxyClientFactoryImpl implements JAXRSProxyClientFactory
 		else
 			throw new IllegalArgumentException("Illegal auth-type for service " + name + ": " + authType);
 
+		// N.B. hedged calls are made on another thread, so cannot be used if bearer tokens might depend on the calling thread
+		final boolean hedge = config.getBoolean(GuiceServiceProperties.prop(GuiceServiceProperties.HEDGE, name), false) &&
+		                      (bearerSupplier == null || bearerSupplier instanceof StaticBearerToken);
+
 		return new ServiceClientConfig(name,
 		                               uri,
+		                               endpoints,
 		                               username,
 		                               password,
 		                               fastFail,
 		                               h2c,
 		                               storeCookies,
 		                               bearerSupplier,
-		                               preemptiveAuth);
+		                               preemptiveAuth,
+		                               getCircuitBreakerSettings(name),
+		                               getResponseCache(name),
+		                               hedge);
+	}
+
+
+	/**
+	 * Parse the endpoint(s) of a service
+	 *
+	 * @param endpoint a single endpoint, or a comma-separated list of endpoints
+	 * @return
+	 */
+	private static List<URI> parseEndpoints(final String endpoint)
+	{
+		final List<URI> endpoints = new ArrayList<>();
+
+		for (String str : StringUtils.split(endpoint, ','))
+			if (!StringUtils.isBlank(str))
+				endpoints.add(URI.create(str.trim()));
+
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException("No endpoints in service endpoint config: " + endpoint);
+
+		return endpoints;
+	}
+
+
+	/**
+	 * Determine the circuit breaker settings for a named service
+	 *
+	 * @param name the service name
+	 * @return the settings, or null if calls to this service should not be guarded by a circuit breaker
+	 */
+	private CircuitBreakerSettings getCircuitBreakerSettings(final String name)
+	{
+		if (!config.getBoolean(GuiceServiceProperties.prop(GuiceServiceProperties.CIRCUIT_BREAKER, name), defaultCircuitBreaker))
+			return null;
+
+		final int failureRate = config.getInt(GuiceServiceProperties.prop(GuiceServiceProperties.CIRCUIT_BREAKER_FAILURE_RATE, name),
+		                                      circuitBreakerFailureRate);
+		final int slowCallRate = config.getInt(GuiceServiceProperties.prop(GuiceServiceProperties.CIRCUIT_BREAKER_SLOW_CALL_RATE, name),
+		                                       circuitBreakerSlowCallRate);
+		final Timeout slowCallThreshold = config.getTimeout(GuiceServiceProperties.prop(GuiceServiceProperties.CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD,
+		                                                                                name),
+		                                                    TimeoutConverter.doConvert(circuitBreakerSlowCallThreshold));
+		final Timeout openDuration = config.getTimeout(GuiceServiceProperties.prop(GuiceServiceProperties.CIRCUIT_BREAKER_OPEN_DURATION,
+		                                                                           name),
+		                                               TimeoutConverter.doConvert(circuitBreakerOpenDuration));
+
+		return new CircuitBreakerSettings(circuitBreakerWindowSize,
+		                                  circuitBreakerMinimumCalls,
+		                                  failureRate,
+		                                  slowCallThreshold,
+		                                  slowCallRate,
+		                                  openDuration,
+		                                  circuitBreakerHalfOpenCalls);
+	}
+
+
+	/**
+	 * Retrieve (or create) the response cache for a named service
+	 *
+	 * @param name the service name
+	 * @return the cache, or null if responses from this service should not be cached
+	 */
+	private ResponseCachingClientFilter getResponseCache(final String name)
+	{
+		if (!config.getBoolean(GuiceServiceProperties.prop(GuiceServiceProperties.RESPONSE_CACHE, name), false))
+			return null;
+
+		return responseCaches.computeIfAbsent(name, this::createResponseCache);
+	}
+
+
+	private ResponseCachingClientFilter createResponseCache(final String name)
+	{
+		final int maxEntries = config.getInt(GuiceServiceProperties.prop(GuiceServiceProperties.RESPONSE_CACHE_MAX_ENTRIES, name),
+		                                     1000);
+		final long maxEntrySize = config.getLong(GuiceServiceProperties.prop(GuiceServiceProperties.RESPONSE_CACHE_MAX_ENTRY_SIZE,
+		                                                                     name), 1024 * 1024);
+
+		return new ResponseCachingClientFilter(name,
+		                                       maxEntries,
+		                                       maxEntrySize,
+		                                       meter(GuiceMetricNames.REST_CLIENT_CACHE_HITS, name),
+		                                       meter(GuiceMetricNames.REST_CLIENT_CACHE_MISSES, name),
+		                                       meter(GuiceMetricNames.REST_CLIENT_CACHE_REVALIDATIONS, name));
+	}
+
+
+	private Meter meter(final String metric, final String name)
+	{
+		if (metrics != null)
+			return metrics.meter(MetricRegistry.name(metric, name));
+		else
+			return new Meter(); // Not created by Guice, so there is no registry to report to
 	}
 
 
@@ -16,6 +16,9 @@ package com.peterphi.std.guice.restclient.resteasy.impl.okhttp;
  * limitations under the License.
  */
 
+import com.peterphi.std.guice.restclient.resteasy.impl.CallCancellation;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -28,6 +31,7 @@ import okio.BufferedSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.engines.AsyncClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
 import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
 import org.jboss.resteasy.client.jaxrs.internal.FinalizedClientResponse;
@@ -37,12 +41,32 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.WriterInterceptor;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of {@link ClientHttpEngine} based on OkHttp.
@@ -54,17 +78,35 @@ import java.util.Map;
  *     .httpEngine(new OkHttpClientEngine(okHttpClient))
  *     .build()
  * </code></pre>
+ * <p>
+ * Asynchronous calls (e.g. proxy methods returning <code>CompletionStage</code>) are dispatched with OkHttp's
+ * {@link Call#enqueue(Callback)} rather than tying up the calling thread; their results are extracted on the completion
+ * executor (if one has been set), otherwise on the OkHttp thread that received the response.
+ * <p>
+ * Request entities that are known to be large (or whose size cannot be known up front, such as an <code>InputStream</code>)
+ * are streamed to the server (using chunked transfer encoding) rather than being serialised into memory before the call
+ * starts. Because their headers are sent before the entity is written, <code>WriterInterceptor</code>s cannot change the
+ * headers of a streamed request.
  *
  * @author Thomas Broyer <t.broyer@ltgt.net>
  */
-public class OkHttpClientEngine implements ClientHttpEngine
+public class OkHttpClientEngine implements AsyncClientHttpEngine
 {
 	private static final Logger log = LoggerFactory.getLogger(OkHttpClientEngine.class);
 
+	/**
+	 * The default size (in bytes) above which request entities are streamed
+	 */
+	public static final long DEFAULT_STREAMING_THRESHOLD = 64 * 1024;
+
 	final OkHttpClient client;
 
 	private SSLContext sslContext;
 
+	private Executor completionExecutor;
+
+	private long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+
 
 	public OkHttpClientEngine(OkHttpClient client)
 	{
@@ -85,6 +127,33 @@ public class OkHttpClientEngine implements ClientHttpEngine
 	}
 
 
+	/**
+	 * Set the executor on which asynchronous calls are completed; if null, calls complete on the OkHttp thread that received
+	 * the response.<br />
+	 * Only calls whose response body has already been buffered use this executor: an unbuffered body is read from the network
+	 * as the result is extracted (or later, by the caller, from a returned Response), so those calls complete on the OkHttp
+	 * thread dedicated to that call rather than tying up a completion thread on network I/O
+	 *
+	 * @param completionExecutor
+	 */
+	public void setCompletionExecutor(final Executor completionExecutor)
+	{
+		this.completionExecutor = completionExecutor;
+	}
+
+
+	/**
+	 * Set the size (in bytes) above which request entities are streamed to the server rather than being buffered in memory;
+	 * entities of unknown size are always streamed. If negative, request entities are never streamed
+	 *
+	 * @param streamingThreshold
+	 */
+	public void setStreamingThreshold(final long streamingThreshold)
+	{
+		this.streamingThreshold = streamingThreshold;
+	}
+
+
 	@Override
 	public HostnameVerifier getHostnameVerifier()
 	{
@@ -102,15 +171,24 @@ public class OkHttpClientEngine implements ClientHttpEngine
 			final ClientInvocation request = (ClientInvocation) invocation;
 			Request req = createRequest(request);
 			Response response;
+
+			final Call call = client.newCall(req);
+
+			// Allow the call to be abandoned from another thread (e.g. if a hedged call has already responded)
+			CallCancellation.register(call :: cancel);
 			try
 			{
-				response = client.newCall(req).execute();
+				response = call.execute();
 			}
 			catch (IOException e)
 			{
 				throw new ProcessingException("Unable to invoke request", e);
 			}
-			return createResponse(request, response);
+			finally
+			{
+				CallCancellation.unregister();
+			}
+			return createResponse(request, response, null);
 		}
 		finally
 		{
@@ -122,6 +200,127 @@ public class OkHttpClientEngine implements ClientHttpEngine
 	}
 
 
+	@Override
+	public <T> Future<T> submit(final ClientInvocation request,
+	                            final boolean buffered,
+	                            final InvocationCallback<T> callback,
+	                            final ResultExtractor<T> extractor)
+	{
+		final CompletableFuture<T> future = submit(request, buffered, extractor, null);
+
+		if (callback != null)
+		{
+			future.whenComplete((result, e) -> {
+				if (e == null)
+					callback.completed(result);
+				else if (e instanceof CompletionException && e.getCause() != null)
+					callback.failed(e.getCause());
+				else
+					callback.failed(e);
+			});
+		}
+
+		return future;
+	}
+
+
+	@Override
+	public <T> CompletableFuture<T> submit(final ClientInvocation request,
+	                                       final boolean buffered,
+	                                       final ResultExtractor<T> extractor,
+	                                       final ExecutorService executorService)
+	{
+		final long start = System.currentTimeMillis();
+
+		final Executor executor = (completionExecutor != null) ? completionExecutor : executorService;
+
+		final Call call = client.newCall(createRequest(request));
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		// Abandon the HTTP call if the caller is no longer interested in the result
+		future.whenComplete((result, e) -> {
+			if (future.isCancelled())
+				call.cancel();
+		});
+
+		call.enqueue(new Callback()
+		{
+			@Override
+			public void onFailure(final Call call, final IOException e)
+			{
+				future.completeExceptionally(new ProcessingException("Unable to invoke request", e));
+			}
+
+
+			@Override
+			public void onResponse(final Call call, final Response response)
+			{
+				if (log.isTraceEnabled())
+				{
+					log.trace("OkHttp async Request completed in: {} ms", System.currentTimeMillis() - start);
+				}
+
+				final ClientResponse clientResponse;
+				try
+				{
+					// Read the body here, so that the completion executor never blocks on network I/O
+					clientResponse = createResponse(request, response, buffered ? response.body().bytes() : null);
+				}
+				catch (IOException e)
+				{
+					response.close();
+					future.completeExceptionally(new ProcessingException("IOException while reading HTTP response body!", e));
+					return;
+				}
+
+				if (executor == null || !buffered)
+				{
+					// N.B. an unbuffered body is read by whoever consumes it, so keep that off the completion executor
+					extract(future, extractor, clientResponse);
+				}
+				else
+				{
+					try
+					{
+						executor.execute(() -> extract(future, extractor, clientResponse));
+					}
+					catch (RejectedExecutionException e)
+					{
+						clientResponse.close();
+						future.completeExceptionally(new ProcessingException("Unable to complete request", e));
+					}
+				}
+			}
+		});
+
+		return future;
+	}
+
+
+	private static <T> void extract(final CompletableFuture<T> future,
+	                                final ResultExtractor<T> extractor,
+	                                final ClientResponse response)
+	{
+		try
+		{
+			future.complete(extractor.extractResult(response));
+		}
+		catch (Throwable t)
+		{
+			try
+			{
+				response.close();
+			}
+			catch (Throwable e)
+			{
+				t.addSuppressed(e);
+			}
+
+			future.completeExceptionally(t);
+		}
+	}
+
+
 	private Request createRequest(ClientInvocation request)
 	{
 		Request.Builder builder = new Request.Builder()
@@ -155,6 +354,13 @@ public class OkHttpClientEngine implements ClientHttpEngine
 			return null;
 		}
 
+		final long length = getEntityLength(request);
+
+		if (shouldStream(request.getEntity(), length))
+		{
+			return createStreamingRequestBody(request, length);
+		}
+
 		// NOTE: this will invoke WriterInterceptors which can possibly change the request,
 		// so it must be done first, before reading any header.
 		final Buffer buffer = new Buffer();
@@ -195,11 +401,203 @@ public class OkHttpClientEngine implements ClientHttpEngine
 	}
 
 
-	private ClientResponse createResponse(ClientInvocation request, final Response response)
+	/**
+	 * Determine whether a request entity should be streamed to the server
+	 *
+	 * @param entity
+	 * @param length
+	 * 		the size of the entity in bytes (see {@link #getEntityLength(ClientInvocation)})
+	 *
+	 * @return true if the entity is of unknown size, or is larger than the streaming threshold
+	 */
+	private boolean shouldStream(final Object entity, final long length)
+	{
+		if (streamingThreshold < 0)
+			return false;
+		else if (entity instanceof InputStream || entity instanceof Reader || entity instanceof StreamingOutput)
+			return true; // Size cannot be known without reading the entity
+		else
+			return length > streamingThreshold; // N.B. objects serialised by a MessageBodyWriter (e.g. JAXB, JSON) are buffered
+	}
+
+
+	/**
+	 * Determine the number of bytes a request entity will be written as
+	 *
+	 * @param request
+	 *
+	 * @return the size in bytes, or -1 if it cannot be known without writing the entity
+	 */
+	private static long getEntityLength(final ClientInvocation request)
+	{
+		final Object entity = request.getEntity();
+
+		if (entity instanceof byte[] bytes)
+			return bytes.length;
+		else if (entity instanceof CharSequence str)
+			return getEncodedLength(str, getCharset(request.getHeaders().getMediaType()));
+		else if (entity instanceof File file)
+			return file.length();
+		else if (entity instanceof Path path)
+			return path.toFile().length();
+		else
+			return -1;
+	}
+
+
+	/**
+	 * Determine the charset a text entity will be encoded with (as the RESTEasy String writer does)
+	 *
+	 * @param mediaType
+	 *
+	 * @return
+	 */
+	private static Charset getCharset(final javax.ws.rs.core.MediaType mediaType)
+	{
+		final String charset = (mediaType == null) ? null : mediaType.getParameters().get(javax.ws.rs.core.MediaType.CHARSET_PARAMETER);
+
+		return (charset == null) ? StandardCharsets.UTF_8 : Charset.forName(charset);
+	}
+
+
+	/**
+	 * Determine the number of bytes some text encodes to, without holding the whole encoded text in memory
+	 *
+	 * @param str
+	 * @param charset
+	 *
+	 * @return
+	 */
+	static long getEncodedLength(final CharSequence str, final Charset charset)
+	{
+		// N.B. replace unencodable characters, as String.getBytes does
+		final CharsetEncoder encoder = charset.newEncoder()
+		                                      .onMalformedInput(CodingErrorAction.REPLACE)
+		                                      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		final CharBuffer in = CharBuffer.wrap(str);
+		final ByteBuffer out = ByteBuffer.allocate(8192);
+
+		long length = 0;
+		CoderResult result;
+		do
+		{
+			result = encoder.encode(in, out, true);
+
+			length += out.position();
+			out.clear();
+		}
+		while (result.isOverflow());
+
+		do
+		{
+			result = encoder.flush(out);
+
+			length += out.position();
+			out.clear();
+		}
+		while (result.isOverflow());
+
+		return length;
+	}
+
+
+	/**
+	 * Create a request body that runs the MessageBodyWriter (and any WriterInterceptors) directly into the connection when
+	 * the request is sent
+	 *
+	 * @param request
+	 * @param length
+	 * 		the size of the entity in bytes, or -1 if unknown
+	 *
+	 * @return
+	 */
+	private RequestBody createStreamingRequestBody(final ClientInvocation request, final long length)
+	{
+		javax.ws.rs.core.MediaType mediaType = request.getHeaders().getMediaType();
+		final MediaType contentType = (mediaType == null) ? null : MediaType.parse(mediaType.toString());
+
+		// N.B. WriterInterceptors (e.g. compression) may change the number of bytes actually written
+		final WriterInterceptor[] interceptors = request.getWriterInterceptors();
+		final long contentLength = (interceptors == null || interceptors.length == 0) ? length : -1;
+
+		return new RequestBody()
+		{
+			@Override
+			public long contentLength()
+			{
+				return contentLength; // If unknown (-1), use chunked transfer
+			}
+
+
+			@Override
+			public MediaType contentType()
+			{
+				return contentType;
+			}
+
+
+			@Override
+			public boolean isOneShot()
+			{
+				// The entity may be an InputStream, so must not be written more than once
+				return true;
+			}
+
+
+			@Override
+			public void writeTo(final BufferedSink sink) throws IOException
+			{
+				final OutputStream os = sink.outputStream();
+
+				// Don't let the MessageBodyWriter close the connection's sink
+				request.writeRequestBody(new OutputStream()
+				{
+					@Override
+					public void write(final int b) throws IOException
+					{
+						os.write(b);
+					}
+
+
+					@Override
+					public void write(final byte[] b, final int off, final int len) throws IOException
+					{
+						os.write(b, off, len);
+					}
+
+
+					@Override
+					public void flush() throws IOException
+					{
+						os.flush();
+					}
+
+
+					@Override
+					public void close() throws IOException
+					{
+						os.flush();
+					}
+				});
+			}
+		};
+	}
+
+
+	/**
+	 * @param request
+	 * @param response
+	 * @param body
+	 * 		the response body, if it has already been read (otherwise it will be read when first needed)
+	 *
+	 * @return
+	 */
+	private ClientResponse createResponse(ClientInvocation request, final Response response, final byte[] body)
 	{
 		ClientResponse clientResponse = new FinalizedClientResponse(request.getClientConfiguration(), request.getTracingLogger())
 		{
-			private InputStream stream;
+			private InputStream stream = (body != null) ? new ByteArrayInputStream(body) : null;
 
 
 			@Override
@@ -8,6 +8,7 @@ import com.peterphi.std.guice.common.shutdown.iface.ShutdownManager;
 import com.peterphi.std.guice.common.shutdown.iface.StoppableService;
 import com.peterphi.std.guice.restclient.resteasy.impl.HttpClientFactory;
 import com.peterphi.std.threading.Timeout;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 
@@ -15,7 +16,10 @@ import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OkHttpClientFactory implements HttpClientFactory, StoppableService
 {
@@ -44,8 +48,35 @@ public class OkHttpClientFactory implements HttpClientFactory, StoppableService
 	@Doc("The Socket Timeout for HTTP sockets created for Fast Fail clients (default 15s)")
 	Timeout fastFailSocketTimeout = new Timeout(15, TimeUnit.SECONDS);
 
+	@Inject(optional = true)
+	@Named("jaxrs.async.threads")
+	@Doc("The number of threads used to complete asynchronous (CompletionStage) REST client calls; if 0, calls complete on the OkHttp thread that received the response (default 8)")
+	int asyncThreads = 8;
+
+	@Inject(optional = true)
+	@Named("jaxrs.async.max-requests")
+	@Doc("The maximum number of asynchronous REST client calls that may be in flight at once; further calls are queued (default 256)")
+	int asyncMaxRequests = 256;
+
+	@Inject(optional = true)
+	@Named("jaxrs.async.max-requests-per-host")
+	@Doc("The maximum number of asynchronous REST client calls that may be in flight to a single host at once; further calls are queued (default 64)")
+	int asyncMaxRequestsPerHost = 64;
+
+	@Inject(optional = true)
+	@Named("jaxrs.request.streaming-threshold")
+	@Doc("The size (in bytes) above which request entities are streamed to the server rather than buffered in memory; entities of unknown size (e.g. InputStream) are always streamed. -1 disables streaming (default 65536)")
+	long streamingThreshold = OkHttpClientEngine.DEFAULT_STREAMING_THRESHOLD;
+
 	private final Map<ClientFeatures, OkHttpClientEngine> clients = new HashMap<>();
 
+	/**
+	 * Shared by all clients, so that the async request limits apply across all of them
+	 */
+	private Dispatcher dispatcher;
+
+	private ExecutorService completionExecutor;
+
 
 	@Inject
 	public OkHttpClientFactory(ShutdownManager shutdownManager)
@@ -80,6 +111,8 @@ public class OkHttpClientFactory implements HttpClientFactory, StoppableService
 		if (key.h2c)
 			builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
 
+		builder.dispatcher(getDispatcher());
+
 		if (key.fastFail)
 		{
 			builder.readTimeout(Duration.ofMillis(this.fastFailSocketTimeout.getMilliseconds()));
@@ -91,7 +124,42 @@ public class OkHttpClientFactory implements HttpClientFactory, StoppableService
 			builder.connectTimeout(Duration.ofMillis(this.connectionTimeout.getMilliseconds()));
 		}
 
-		return new OkHttpClientEngine(builder.build());
+		final OkHttpClientEngine engine = new OkHttpClientEngine(builder.build());
+
+		engine.setCompletionExecutor(getCompletionExecutor());
+		engine.setStreamingThreshold(streamingThreshold);
+
+		return engine;
+	}
+
+
+	private Dispatcher getDispatcher()
+	{
+		if (dispatcher == null)
+		{
+			dispatcher = new Dispatcher();
+			dispatcher.setMaxRequests(asyncMaxRequests);
+			dispatcher.setMaxRequestsPerHost(asyncMaxRequestsPerHost);
+		}
+
+		return dispatcher;
+	}
+
+
+	private ExecutorService getCompletionExecutor()
+	{
+		if (completionExecutor == null && asyncThreads > 0)
+		{
+			final AtomicInteger count = new AtomicInteger();
+
+			completionExecutor = Executors.newFixedThreadPool(asyncThreads, r -> {
+				final Thread thread = new Thread(r, "jaxrs-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		return completionExecutor;
 	}
 
 
@@ -104,5 +172,18 @@ public class OkHttpClientFactory implements HttpClientFactory, StoppableService
 		}
 
 		clients.clear();
+
+		if (dispatcher != null)
+		{
+			dispatcher.cancelAll();
+			dispatcher.executorService().shutdown();
+			dispatcher = null;
+		}
+
+		if (completionExecutor != null)
+		{
+			completionExecutor.shutdown();
+			completionExecutor = null;
+		}
 	}
 }
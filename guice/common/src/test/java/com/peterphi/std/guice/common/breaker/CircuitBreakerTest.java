@@ -0,0 +1,154 @@
+package com.peterphi.std.guice.common.breaker;
+
+import com.peterphi.std.threading.Timeout;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest
+{
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+	private final AtomicLong clock = new AtomicLong(0);
+	private final List<Boolean> changes = new ArrayList<>();
+
+	private final CircuitBreaker circuit = new CircuitBreaker("test",
+	                                                          new CircuitBreakerSettings(10,
+	                                                                                     4,
+	                                                                                     50,
+	                                                                                     Timeout.ONE_SECOND,
+	                                                                                     75,
+	                                                                                     Timeout.TEN_SECONDS,
+	                                                                                     2),
+	                                                          (open, note) -> changes.add(open),
+	                                                          clock :: get);
+
+
+	@Test
+	public void testDoesNotOpenBelowMinimumCalls()
+	{
+		for (int i = 0; i < 3; i++)
+			call(true, FAST);
+
+		assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+	}
+
+
+	@Test
+	public void testOpensOnFailureRate()
+	{
+		call(false, FAST);
+		call(true, FAST);
+		call(false, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+
+		call(true, FAST); // 2 of 4 failed
+
+		assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+		assertTrue(circuit.isTripped());
+		assertFalse("open circuit should refuse calls", circuit.tryAcquire());
+		assertEquals(List.of(true), changes);
+	}
+
+
+	@Test
+	public void testOpensOnSlowCallRate()
+	{
+		call(false, SLOW);
+		call(false, SLOW);
+		call(false, FAST);
+		call(false, SLOW); // 3 of 4 slow
+
+		assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+	}
+
+
+	@Test
+	public void testOldOutcomesLeaveWindow()
+	{
+		for (int i = 0; i < 4; i++)
+			call(true, FAST);
+
+		circuit.reset("manual");
+
+		// Window holds 10 calls, so the 4 oldest failures fall out as healthy calls are made
+		for (int i = 0; i < 6; i++)
+			call(false, FAST);
+		for (int i = 0; i < 4; i++)
+			call(true, FAST);
+
+		assertEquals("4 failures in 10 calls is below 50%", CircuitBreaker.State.CLOSED, circuit.getState());
+	}
+
+
+	@Test
+	public void testHalfOpenClosesAfterSuccessfulProbes()
+	{
+		tripAndWaitForCoolDown();
+
+		assertTrue(circuit.tryAcquire());
+		assertTrue(circuit.tryAcquire());
+		assertFalse("only 2 probes permitted", circuit.tryAcquire());
+
+		circuit.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.getState());
+		circuit.onSuccess(FAST);
+
+		assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+		assertEquals(List.of(true, false), changes);
+	}
+
+
+	@Test
+	public void testHalfOpenReopensOnSlowProbe()
+	{
+		tripAndWaitForCoolDown();
+
+		assertTrue(circuit.tryAcquire());
+		circuit.onSuccess(SLOW);
+
+		assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+		assertFalse(circuit.tryAcquire());
+	}
+
+
+	@Test
+	public void testIgnoredProbeReleasesPermit()
+	{
+		tripAndWaitForCoolDown();
+
+		assertTrue(circuit.tryAcquire());
+		assertTrue(circuit.tryAcquire());
+		circuit.onIgnored();
+
+		assertTrue(circuit.tryAcquire());
+	}
+
+
+	private void tripAndWaitForCoolDown()
+	{
+		circuit.trip("test");
+		assertFalse(circuit.tryAcquire());
+
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+	}
+
+
+	private void call(final boolean failed, final long duration)
+	{
+		assertTrue("call should be permitted", circuit.tryAcquire());
+
+		if (failed)
+			circuit.onFailure(duration);
+		else
+			circuit.onSuccess(duration);
+	}
+}
@@ -1,12 +1,21 @@
 package com.peterphi.std.guice.common.cache.module;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Injector;
 import com.peterphi.std.guice.apploader.BasicSetup;
 import com.peterphi.std.guice.apploader.impl.GuiceBuilder;
 import com.peterphi.std.guice.common.cached.annotation.Cache;
+import com.peterphi.std.threading.Deadline;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class CacheMethodInterceptorTest
 {
@@ -45,9 +54,121 @@ public class CacheMethodInterceptorTest
 	}
 
 
+	@Test
+	public void testCacheWithArguments() throws Exception
+	{
+		CacheTest test = getInstance();
+
+		assertEquals("a1", test.getValue("a", 1));
+		assertEquals("a1", test.getValue("a", 1));
+		assertEquals("b1", test.getValue("b", 1));
+		assertEquals("a2", test.getValue("a", 2));
+		assertEquals("null2", test.getValue(null, 2));
+		assertEquals("null2", test.getValue(null, 2));
+
+		assertEquals(4, test.getRealCalls());
+
+		assertEquals(Integer.valueOf(5), test.getSingleArgValue("x"));
+		assertEquals(Integer.valueOf(5), test.getSingleArgValue("x"));
+		assertEquals(Integer.valueOf(6), test.getSingleArgValue("y"));
+	}
+
+
+	@Test
+	public void testConcurrentMissesAreCoalesced() throws Exception
+	{
+		CacheTest test = getInstance();
+
+		final List<Thread> threads = new ArrayList<>();
+		final List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < 8; i++)
+			threads.add(new Thread(() -> results.add(test.getSlowValue())));
+
+		threads.forEach(Thread :: start);
+
+		// Only let the computation finish once every caller is blocked (either computing the value or waiting for it)
+		final Deadline deadline = new Deadline(10, TimeUnit.SECONDS);
+		while (!threads.stream().allMatch(t -> t.getState() == Thread.State.WAITING))
+		{
+			assertTrue("callers did not block on the computation", deadline.isValid());
+			Thread.yield();
+		}
+
+		test.slowValueRelease.countDown();
+
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(Collections.nCopies(8, 1), results);
+		assertEquals("number of real calls to slow method", 1, test.getRealCalls());
+	}
+
+
+	@Test
+	public void testMaxSize() throws Exception
+	{
+		CacheTest test = getInstance();
+
+		for (int i = 0; i < 20; i++)
+			test.getBoundedValue(i);
+
+		assertEquals(20, test.getRealCalls());
+
+		for (int i = 0; i < 20; i++)
+			test.getBoundedValue(i);
+
+		// At most 2 results can have been retained
+		assertTrue("most results should have been evicted", test.getRealCalls() >= 38);
+	}
+
+
+	@Test
+	public void testMaxWeight() throws Exception
+	{
+		CacheTest test = getInstance();
+
+		for (int i = 0; i < 20; i++)
+			assertEquals(5, test.getWeightedValue(i).size());
+
+		assertEquals(20, test.getRealCalls());
+
+		for (int i = 0; i < 20; i++)
+			test.getWeightedValue(i);
+
+		// Each result weighs 5, so at most 2 results can have been retained
+		assertTrue("most results should have been evicted", test.getRealCalls() >= 38);
+	}
+
+
+	@Test
+	public void testNamedCacheKeepsMethodsApart() throws Exception
+	{
+		CacheTest test = getInstance();
+
+		assertEquals("first-x", test.getFirstNamedValue("x"));
+		assertEquals("second-x", test.getSecondNamedValue("x"));
+		assertEquals("first-x", test.getFirstNamedValue("x"));
+
+		assertEquals(2, test.getRealCalls());
+	}
+
+
+	private static CacheTest getInstance()
+	{
+		Injector injector = new GuiceBuilder().withSetup(new BasicSetup())
+		                                      .withNoScannerFactory()
+		                                      .withAutoLoadRoles(false)
+		                                      .build();
+
+		return injector.getInstance(CacheTest.class);
+	}
+
+
 	public static class CacheTest
 	{
-		int realCalls = 0;
+		volatile int realCalls = 0;
+
+		final CountDownLatch slowValueRelease = new CountDownLatch(1);
 
 
 		public CacheTest()
@@ -65,6 +186,80 @@ public class CacheMethodInterceptorTest
 		}
 
 
+		@Cache(timeout = 1000)
+		public String getValue(String a, int b)
+		{
+			realCalls++;
+
+			return a + b;
+		}
+
+
+		@Cache(timeout = 1000)
+		public Integer getSingleArgValue(String a)
+		{
+			realCalls++;
+
+			return realCalls;
+		}
+
+
+		@Cache(timeout = 5000)
+		public Integer getSlowValue()
+		{
+			realCalls++;
+
+			Uninterruptibles.awaitUninterruptibly(slowValueRelease);
+
+			return realCalls;
+		}
+
+
+		@Cache(timeout = 5000, maxSize = 2)
+		public Integer getBoundedValue(int i)
+		{
+			realCalls++;
+
+			return i;
+		}
+
+
+		@Cache(timeout = 5000, maxWeight = 10)
+		public List<Integer> getWeightedValue(int i)
+		{
+			realCalls++;
+
+			return Collections.nCopies(5, i);
+		}
+
+
+		@Cache(timeout = 5000, name = "CacheMethodInterceptorTest-shared")
+		public String getFirstNamedValue(String a)
+		{
+			realCalls++;
+
+			return "first-" + a;
+		}
+
+
+		@Cache(timeout = 5000, name = "CacheMethodInterceptorTest-shared")
+		public String getSecondNamedValue(String a)
+		{
+			realCalls++;
+
+			return "second-" + a;
+		}
+
+
+		@Cache(timeout = 1000, refreshAhead = 500)
+		public Integer getRefreshingValue()
+		{
+			realCalls++;
+
+			return realCalls;
+		}
+
+
 		public int getRealCalls()
 		{
 			return realCalls;
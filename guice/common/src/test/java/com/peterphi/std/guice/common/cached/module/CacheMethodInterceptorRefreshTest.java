@@ -0,0 +1,183 @@
+package com.peterphi.std.guice.common.cached.module;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.matcher.Matchers;
+import com.peterphi.std.guice.common.cached.annotation.Cache;
+import com.peterphi.std.util.tracing.Tracing;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests expiry and refresh-ahead of {@link Cache} methods against a manually advanced clock, with refreshes run on demand
+ */
+public class CacheMethodInterceptorRefreshTest
+{
+	private final FakeTicker ticker = new FakeTicker();
+
+	/**
+	 * Refresh tasks submitted by the interceptor, not yet run
+	 */
+	private final List<Runnable> refreshes = new ArrayList<>();
+
+	private boolean rejectRefreshes = false;
+
+	private final Executor executor = task -> {
+		if (rejectRefreshes)
+			throw new RejectedExecutionException("test");
+
+		refreshes.add(task);
+	};
+
+	private final RefreshTest test = Guice.createInjector(new AbstractModule()
+	{
+		@Override
+		protected void configure()
+		{
+			bindInterceptor(Matchers.any(),
+			                Matchers.annotatedWith(Cache.class),
+			                new CacheMethodInterceptor(new MetricRegistry(), ticker, executor));
+		}
+	}).getInstance(RefreshTest.class);
+
+
+	@After
+	public void tearDown()
+	{
+		Tracing.clear();
+	}
+
+
+	@Test
+	public void testResultExpires()
+	{
+		assertEquals(Integer.valueOf(1), test.getValue());
+
+		ticker.advance(999);
+		assertEquals(Integer.valueOf(1), test.getValue());
+
+		ticker.advance(1);
+		assertEquals(Integer.valueOf(2), test.getValue());
+	}
+
+
+	@Test
+	public void testRefreshAhead()
+	{
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+
+		// Not yet inside the refresh-ahead window
+		ticker.advance(499);
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		assertEquals(0, refreshes.size());
+
+		// A cached value should be returned immediately, and a single asynchronous refresh triggered
+		ticker.advance(1);
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		assertEquals(1, refreshes.size());
+		assertEquals(1, test.realCalls);
+
+		refreshes.remove(0).run();
+
+		assertEquals("refresh should have called the method", 2, test.realCalls);
+		assertEquals(Integer.valueOf(2), test.getRefreshingValue());
+		assertEquals(0, refreshes.size());
+
+		// The refreshed result lives for the full timeout
+		ticker.advance(999);
+		assertEquals(Integer.valueOf(2), test.getRefreshingValue());
+		assertEquals(2, test.realCalls);
+	}
+
+
+	@Test
+	public void testRejectedRefreshRetried()
+	{
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+
+		ticker.advance(500);
+
+		rejectRefreshes = true;
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		assertEquals(1, test.realCalls);
+
+		// A later call should try again once refresh threads are available
+		rejectRefreshes = false;
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		assertEquals(1, refreshes.size());
+	}
+
+
+	@Test
+	public void testRefreshRunsWithinCallerTrace() throws Exception
+	{
+		Tracing.start("caller-trace");
+
+		assertEquals(Integer.valueOf(1), test.getRefreshingValue());
+		ticker.advance(500);
+		test.getRefreshingValue();
+
+		final Thread thread = new Thread(refreshes.remove(0));
+		thread.start();
+		thread.join();
+
+		assertEquals(2, test.realCalls);
+		assertTrue("refresh trace was " + test.traceId, test.traceId.startsWith("caller-trace/"));
+	}
+
+
+	public static class RefreshTest
+	{
+		volatile int realCalls = 0;
+		volatile String traceId;
+
+
+		@Cache(timeout = 1000)
+		public Integer getValue()
+		{
+			return ++realCalls;
+		}
+
+
+		@Cache(timeout = 1000, refreshAhead = 500)
+		public Integer getRefreshingValue()
+		{
+			final Tracing tracing = Tracing.peek();
+			traceId = (tracing != null) ? tracing.id : null;
+
+			return ++realCalls;
+		}
+	}
+
+
+	private static class FakeTicker extends Ticker
+	{
+		private final AtomicLong nanos = new AtomicLong();
+
+
+		public void advance(final long millis)
+		{
+			nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+
+
+		@Override
+		public long read()
+		{
+			return nanos.get();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.peterphi.std.guice.common.daemon;
+
+import com.google.inject.Injector;
+import com.peterphi.std.guice.apploader.BasicSetup;
+import com.peterphi.std.guice.apploader.GuiceProperties;
+import com.peterphi.std.guice.apploader.impl.GuiceBuilder;
+import com.peterphi.std.threading.Daemon;
+import com.peterphi.std.threading.Timeout;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GuiceRecurringDaemonTest
+{
+	@Test
+	public void testPlatformThreadByDefault() throws Exception
+	{
+		final TestDaemon daemon = getInstance(false);
+
+		try
+		{
+			assertTrue("first run", daemon.runs.tryAcquire(10, TimeUnit.SECONDS));
+			assertFalse(daemon.getThread().isVirtual());
+		}
+		finally
+		{
+			daemon.shutdown();
+		}
+	}
+
+
+	@Test
+	public void testVirtualThread() throws Exception
+	{
+		final TestDaemon daemon = getInstance(true);
+
+		assertTrue("first run", daemon.runs.tryAcquire(10, TimeUnit.SECONDS));
+		assertTrue(daemon.getThread().isVirtual());
+
+		// Trigger must wake the daemon from its (1 hour) sleep
+		while (daemon.isUserCodeRunning())
+			Thread.sleep(10);
+
+		daemon.trigger();
+		assertTrue("triggered run", daemon.runs.tryAcquire(10, TimeUnit.SECONDS));
+
+		// Stopping must also wake the daemon
+		daemon.shutdown();
+		assertTrue("daemon should terminate", Daemon.waitForTermination(daemon, 10000));
+	}
+
+
+	private TestDaemon getInstance(final boolean virtualThreads)
+	{
+		final Properties props = new Properties();
+		props.setProperty(GuiceProperties.DAEMON_VIRTUAL_THREADS, Boolean.toString(virtualThreads));
+
+		Injector injector = new GuiceBuilder()
+				                    .withSetup(new BasicSetup())
+				                    .withConfig(props)
+				                    .withNoScannerFactory()
+				                    .withAutoLoadRoles(false)
+				                    .build();
+
+		return injector.getInstance(TestDaemon.class);
+	}
+
+
+	static class TestDaemon extends GuiceRecurringDaemon
+	{
+		final Semaphore runs = new Semaphore(0);
+
+
+		public TestDaemon()
+		{
+			super(Timeout.ONE_MINUTE.multiply(60));
+		}
+
+
+		@Override
+		protected void execute() throws Exception
+		{
+			runs.release();
+		}
+	}
+}
@@ -5,9 +5,14 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.name.Named;
 import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.common.serviceprops.typed.TypedConfigRef;
 import org.junit.Test;
 
+import java.net.URI;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 /**
  *
@@ -38,4 +43,27 @@ public class ConfigRefTest
 		injector.injectMembers(this);
 		assertEquals("changed value", name);
 	}
+
+
+	@Test
+	public void testTypedValueConvertedOncePerChange()
+	{
+		GuiceConfig configuration = new GuiceConfig();
+
+		configuration.set("some-uri", "http://example.com/a");
+
+		final TypedConfigRef<URI> ref = new ConfigRef(configuration, "some-uri").as(URI.class);
+
+		final URI first = ref.get();
+
+		assertEquals(URI.create("http://example.com/a"), first);
+		assertSame("conversion should be cached", first, ref.get());
+		assertSame(first, new ConfigRef(configuration, "some-uri").get(URI.class));
+
+		configuration.set("some-uri", "http://example.com/b");
+
+		assertEquals("cache should be discarded when the config changes", URI.create("http://example.com/b"), ref.get());
+
+		assertNull(new ConfigRef(configuration, "unset").as(URI.class).get());
+	}
 }
@@ -1,8 +1,17 @@
 package com.peterphi.std.guice.common.serviceprops.composite;
 
+import com.peterphi.std.threading.Timeout;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class GuiceConfigTest
 {
@@ -49,4 +58,144 @@ public class GuiceConfigTest
 		assertEquals("getRaw", "a-${var}-b", props.getRaw("name", null));
 		assertEquals("get", "a-123-b", props.get("name", null));
 	}
+
+
+	@Test
+	public void testVariableRefResolvedAfterChange()
+	{
+		props.set("var", "123");
+		props.set("name", "a-${var}-b");
+		assertEquals("get", "a-123-b", props.get("name", null));
+
+		props.set("var", "456");
+		assertEquals("get after change", "a-456-b", props.get("name", null));
+	}
+
+
+	@Test
+	public void testTypedGet()
+	{
+		props.set("int", "123");
+		props.set("long", "1234567890123");
+		props.set("timeout", "5s");
+
+		assertEquals(123, props.getInt("int", 0));
+		assertEquals(1234567890123L, props.getLong("long", 0));
+		assertEquals(new Timeout(5, TimeUnit.SECONDS), props.getTimeout("timeout", null));
+
+		assertEquals("default for missing", 7, props.getInt("missing", 7));
+		assertSame("default for missing", Timeout.ONE_MINUTE, props.getTimeout("missing", Timeout.ONE_MINUTE));
+	}
+
+
+	@Test
+	public void testTypedGetCachedUntilChange()
+	{
+		props.set("timeout", "5s");
+
+		final Timeout first = props.getTimeout("timeout", null);
+
+		assertSame("converted value should be cached", first, props.getTimeout("timeout", null));
+
+		props.set("other", "x"); // Any change replaces the cache
+
+		assertEquals(first, props.getTimeout("timeout", null));
+
+		props.set("timeout", "10s");
+
+		assertEquals(new Timeout(10, TimeUnit.SECONDS), props.getTimeout("timeout", null));
+	}
+
+
+	/**
+	 * A mutable type that can be read from config
+	 */
+	public static class MutableValue
+	{
+		public String value;
+
+
+		public static MutableValue valueOf(final String value)
+		{
+			final MutableValue obj = new MutableValue();
+			obj.value = value;
+			return obj;
+		}
+	}
+
+
+	@Test
+	public void testMutableTypedGetNotCached()
+	{
+		props.set("mutable", "original");
+
+		final MutableValue first = props.get("mutable", MutableValue.class, null);
+		first.value = "modified";
+
+		assertNotSame("mutable values should not be shared", first, props.get("mutable", MutableValue.class, null));
+		assertEquals("original", props.get("mutable", MutableValue.class, null).value);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTypedGetInvalidValue()
+	{
+		props.set("int", "not-a-number");
+
+		props.getInt("int", 0);
+	}
+
+
+	@Test
+	public void testGetList()
+	{
+		props.set("list", "a,b,c");
+
+		assertEquals(Arrays.asList("a", "b", "c"), props.getList("list", null));
+		assertSame("list should be cached", props.getList("list", null), props.getList("list", null));
+
+		props.set("list", "d");
+		assertEquals(Arrays.asList("d"), props.getList("list", null));
+	}
+
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testGetListIsUnmodifiable()
+	{
+		props.set("list", "a,b,c");
+
+		props.getList("list", null).set(0, "x");
+	}
+
+
+	@Test
+	public void testGetBoolean()
+	{
+		props.set("yes", "yes");
+		props.set("false", "FALSE");
+		props.set("null", "null");
+
+		assertEquals(true, props.getBoolean("yes", false));
+		assertEquals(false, props.getBoolean("false", true));
+		assertEquals("literal null should yield default", true, props.getBoolean("null", true));
+		assertEquals("missing should yield default", true, props.getBoolean("missing", true));
+	}
+
+
+	@Test
+	public void testSetAllNotifiesChangedPropertiesOnly()
+	{
+		props.set("unchanged", "1");
+		props.set("overridden", "1");
+		props.setOverride("overridden", "2");
+
+		final List<String> changes = new ArrayList<>();
+		props.registerChangeObserver(changes::add);
+
+		props.setAll(Map.of("unchanged", "1", "overridden", "3", "new", "4"));
+
+		assertEquals(Arrays.asList("new"), changes);
+		assertEquals("4", props.get("new"));
+		assertEquals("2", props.get("overridden"));
+	}
 }
@@ -0,0 +1,176 @@
+package com.peterphi.std.guice.common.serviceprops.net;
+
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.config.rest.iface.ConfigRestService;
+import com.peterphi.std.guice.config.rest.types.ConfigPropertyChanges;
+import com.peterphi.std.guice.config.rest.types.ConfigPropertyData;
+import com.peterphi.std.guice.config.rest.types.ConfigPropertyValue;
+import com.peterphi.std.threading.Timeout;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NetworkConfigReloadDaemonTest
+{
+	@Test
+	public void testWatchAppliesChangesForEachPath()
+	{
+		final FakeConfigService service = new FakeConfigService();
+		final NetworkConfigReloadDaemon daemon = createDaemon(service);
+
+		final NetworkConfig additional = new NetworkConfig(new GuiceConfig(), "/additional");
+		additional.setLastRevision("2");
+		daemon.register(additional);
+
+		service.changes = changes(data("/service", "11", "a", "new-a"), data("/additional", "3", "b", "new-b"));
+
+		daemon.watch();
+
+		assertEquals(List.of("/service", "/additional"), service.watchedPaths);
+		assertEquals(List.of("10", "2"), service.watchedRevisions);
+
+		assertEquals("new-a", daemon.serviceConfig.properties.get("a", null));
+		assertEquals("11", daemon.serviceConfig.getLastRevision());
+		assertEquals("new-b", additional.properties.get("b", null));
+		assertEquals("3", additional.getLastRevision());
+
+		// Should not need to sleep between watches
+		assertEquals(Timeout.ONE_SECOND, daemon.getSleepTime());
+	}
+
+
+	@Test
+	public void testFallsBackToPollingIfWatchUnsupported()
+	{
+		final FakeConfigService service = new FakeConfigService();
+		final NetworkConfigReloadDaemon daemon = createDaemon(service);
+
+		service.watchSupported = false;
+		service.read = data("/service", "11", "a", "polled-a");
+
+		daemon.watch();
+
+		assertEquals("polled-a", daemon.serviceConfig.properties.get("a", null));
+		assertEquals("11", daemon.serviceConfig.getLastRevision());
+
+		// Should now sleep between polls
+		assertEquals(Timeout.FIVE_MINUTES, daemon.getSleepTime());
+	}
+
+
+	@Test
+	public void testDoesNotRetryWatchDuringBackOff() throws Exception
+	{
+		final FakeConfigService service = new FakeConfigService();
+		final NetworkConfigReloadDaemon daemon = createDaemon(service);
+
+		service.watchSupported = false;
+
+		daemon.execute();
+		daemon.execute();
+
+		assertEquals(1, service.watchCalls);
+		assertEquals(Timeout.FIVE_MINUTES, daemon.getSleepTime());
+	}
+
+
+	@Test
+	public void testRetriesWatchAfterBackOff() throws Exception
+	{
+		final FakeConfigService service = new FakeConfigService();
+		final NetworkConfigReloadDaemon daemon = createDaemon(service);
+		daemon.watchRetryInterval = Timeout.ZERO;
+
+		service.watchSupported = false;
+		daemon.execute();
+
+		// The service has now been upgraded to support watching
+		service.watchSupported = true;
+		service.changes = changes(data("/service", "11", "a", "watched-a"));
+		daemon.execute();
+
+		assertEquals(2, service.watchCalls);
+		assertEquals("watched-a", daemon.serviceConfig.properties.get("a", null));
+		assertEquals(Timeout.ONE_SECOND, daemon.getSleepTime());
+	}
+
+
+	private static NetworkConfigReloadDaemon createDaemon(final ConfigRestService service)
+	{
+		final NetworkConfigReloadDaemon daemon = new NetworkConfigReloadDaemon();
+
+		daemon.configService = service;
+		daemon.configInstanceId = "instance";
+		daemon.serviceConfig = new NetworkConfig(new GuiceConfig(), "/service");
+		daemon.serviceConfig.setLastRevision("10");
+
+		return daemon;
+	}
+
+
+	private static ConfigPropertyChanges changes(ConfigPropertyData... data)
+	{
+		final ConfigPropertyChanges changes = new ConfigPropertyChanges();
+
+		changes.changes.addAll(List.of(data));
+
+		return changes;
+	}
+
+
+	private static ConfigPropertyData data(final String path, final String revision, final String name, final String value)
+	{
+		final ConfigPropertyData data = new ConfigPropertyData();
+
+		data.path = path;
+		data.revision = revision;
+		data.properties.add(new ConfigPropertyValue(path, name, value));
+
+		return data;
+	}
+
+
+	private static class FakeConfigService implements ConfigRestService
+	{
+		boolean watchSupported = true;
+		ConfigPropertyChanges changes;
+		ConfigPropertyData read;
+
+		int watchCalls = 0;
+
+		List<String> watchedPaths;
+		List<String> watchedRevisions;
+
+
+		@Override
+		public ConfigPropertyData read(final String path, final String instanceId, final String lastRevision)
+		{
+			if (read != null && read.path.equals(path))
+				return read;
+			else
+				return null;
+		}
+
+
+		@Override
+		public ConfigPropertyChanges watch(final String instanceId,
+		                                   final List<String> paths,
+		                                   final List<String> lastRevisions,
+		                                   final long timeout)
+		{
+			watchCalls++;
+
+			if (!watchSupported)
+				throw new NotFoundException();
+
+			this.watchedPaths = new ArrayList<>(paths);
+			this.watchedRevisions = new ArrayList<>(lastRevisions);
+
+			return changes;
+		}
+	}
+}
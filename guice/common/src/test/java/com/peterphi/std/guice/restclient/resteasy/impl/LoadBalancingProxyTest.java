@@ -0,0 +1,362 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.peterphi.std.guice.common.jackson.JacksonFactory;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.restclient.annotations.NoClientBreaker;
+import com.peterphi.std.guice.restclient.resteasy.impl.okhttp.OkHttpClientFactory;
+import com.peterphi.std.guice.restclient.resteasy.impl.urlconn.URLConnectionHTTPClientFactory;
+import com.peterphi.std.util.jaxb.JAXBSerialiserFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadBalancingProxyTest
+{
+	@NoClientBreaker
+	@Path("/")
+	public interface BalancedService
+	{
+		@GET
+		@Path("/hello")
+		@Produces("text/plain")
+		String hello();
+	}
+
+
+	/**
+	 * An instance of the service
+	 */
+	private static class Instance
+	{
+		final String name;
+		final HttpServer server;
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicBoolean failing = new AtomicBoolean();
+		final AtomicBoolean slow = new AtomicBoolean();
+
+
+		Instance(final String name, final ExecutorService executor) throws IOException
+		{
+			this.name = name;
+			this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			this.server.setExecutor(executor);
+			this.server.createContext("/hello", this :: handle);
+			this.server.start();
+		}
+
+
+		private void handle(final HttpExchange exchange) throws IOException
+		{
+			calls.incrementAndGet();
+
+			if (slow.get())
+			{
+				try
+				{
+					Thread.sleep(3000);
+				}
+				catch (InterruptedException e)
+				{
+					// ignore
+				}
+			}
+
+			final int status = failing.get() ? 500 : 200;
+			final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().add("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(status, bytes.length);
+
+			try (OutputStream os = exchange.getResponseBody())
+			{
+				os.write(bytes);
+			}
+		}
+
+
+		String endpoint()
+		{
+			return "http://127.0.0.1:" + server.getAddress().getPort();
+		}
+	}
+
+
+	private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+	private Instance a;
+	private Instance b;
+
+	private OkHttpClientFactory httpClientFactory;
+	private ResteasyProxyClientFactoryImpl proxyFactory;
+	private GuiceConfig config;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		a = new Instance("a", serverExecutor);
+		b = new Instance("b", serverExecutor);
+
+		httpClientFactory = new OkHttpClientFactory(null);
+
+		final ResteasyClientFactoryImpl clientFactory = new ResteasyClientFactoryImpl(null,
+		                                                                              null,
+		                                                                              null,
+		                                                                              new JAXBSerialiserFactory(true),
+		                                                                              new JacksonFactory(),
+		                                                                              httpClientFactory);
+
+		config = new GuiceConfig();
+		config.set("service.balanced.endpoint", a.endpoint() + ", " + b.endpoint());
+
+		proxyFactory = new ResteasyProxyClientFactoryImpl(clientFactory, config);
+		proxyFactory.metrics = new MetricRegistry();
+		proxyFactory.loadBalancerEjectAfterFailures = 2;
+		proxyFactory.hedgeMinDelay = "10ms";
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		a.server.stop(0);
+		b.server.stop(0);
+		serverExecutor.shutdownNow();
+		httpClientFactory.shutdown();
+	}
+
+
+	@Test
+	public void testCallsSpreadAcrossInstances()
+	{
+		final BalancedService client = proxyFactory.getClient(BalancedService.class, "balanced");
+
+		for (int i = 0; i < 50; i++)
+			client.hello();
+
+		assertEquals(50, a.calls.get() + b.calls.get());
+		assertTrue("instance a should receive calls", a.calls.get() > 0);
+		assertTrue("instance b should receive calls", b.calls.get() > 0);
+	}
+
+
+	@Test
+	public void testFailingInstanceEjected()
+	{
+		final BalancedService client = proxyFactory.getClient(BalancedService.class, "balanced");
+
+		a.failing.set(true);
+
+		for (int i = 0; i < 20; i++)
+		{
+			try
+			{
+				client.hello();
+			}
+			catch (Exception e)
+			{
+				// expected for calls that reach instance a
+			}
+		}
+
+		a.calls.set(0);
+
+		// Instance a is now ejected, so all calls (including those from newly-created clients) should go to instance b
+		for (int i = 0; i < 20; i++)
+			assertEquals("b", proxyFactory.getClient(BalancedService.class, "balanced").hello());
+
+		assertEquals(0, a.calls.get());
+	}
+
+
+	@Test
+	public void testSlowCallsHedged()
+	{
+		config.set("service.balanced.hedge", "true");
+
+		final BalancedService client = proxyFactory.getClient(BalancedService.class, "balanced");
+
+		// Establish the normal latency of the service
+		for (int i = 0; i < 30; i++)
+			client.hello();
+
+		a.slow.set(true);
+
+		// N.B. enough calls that some are all but certain to be sent to the slow instance first
+		for (int i = 0; i < 20; i++)
+		{
+			final long started = System.currentTimeMillis();
+
+			assertEquals("b", client.hello());
+
+			final long duration = System.currentTimeMillis() - started;
+
+			assertTrue("call should not wait for the slow instance, took " + duration + "ms", duration < 3000);
+		}
+
+		assertTrue("some calls should have been hedged",
+		           proxyFactory.metrics.meter(MetricRegistry.name(GuiceMetricNames.REST_CLIENT_HEDGED_CALLS, "balanced"))
+		                               .getCount() > 0);
+	}
+
+
+	@Test
+	public void testSlowCallsNotHedgedIfEngineCannotAbandonCalls()
+	{
+		final ResteasyClientFactoryImpl clientFactory = new ResteasyClientFactoryImpl(null,
+		                                                                              null,
+		                                                                              null,
+		                                                                              new JAXBSerialiserFactory(true),
+		                                                                              new JacksonFactory(),
+		                                                                              new URLConnectionHTTPClientFactory());
+
+		proxyFactory = new ResteasyProxyClientFactoryImpl(clientFactory, config);
+		proxyFactory.metrics = new MetricRegistry();
+		proxyFactory.hedgeMinDelay = "10ms";
+
+		config.set("service.balanced.hedge", "true");
+
+		final BalancedService client = proxyFactory.getClient(BalancedService.class, "balanced");
+
+		// Establish the normal latency of the service
+		for (int i = 0; i < 30; i++)
+			client.hello();
+
+		a.slow.set(true);
+
+		// Keep calling until a call is sent to the slow instance first
+		final int callsBefore = a.calls.get();
+		for (int i = 0; i < 20 && a.calls.get() == callsBefore; i++)
+			client.hello();
+
+		assertEquals("no calls should have been hedged",
+		             0,
+		             proxyFactory.metrics.meter(MetricRegistry.name(GuiceMetricNames.REST_CLIENT_HEDGED_CALLS, "balanced"))
+		                                 .getCount());
+	}
+
+
+	@Test
+	public void testFirstAttemptRunsOnCallingThread() throws Throwable
+	{
+		final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		final AtomicInteger hedgesSubmitted = new AtomicInteger();
+
+		final BalancedService client = balanced(() -> {
+			threads.add(Thread.currentThread());
+			return "a";
+		}, () -> "b", task -> hedgesSubmitted.incrementAndGet());
+
+		for (int i = 0; i < 50; i++)
+			client.hello();
+
+		assertEquals(Set.of(Thread.currentThread()), threads);
+
+		// Calls that respond before the hedge delay never take a hedge thread
+		Thread.sleep(100);
+		assertEquals(0, hedgesSubmitted.get());
+	}
+
+
+	@Test
+	public void testCallNotHedgedWhenExecutorSaturated() throws Throwable
+	{
+		final AtomicBoolean slow = new AtomicBoolean();
+		final AtomicInteger rejected = new AtomicInteger();
+
+		final BalancedService slowWhenAsked = () -> {
+			if (slow.get())
+				sleep(300);
+			return "ok";
+		};
+
+		final BalancedService client = balanced(slowWhenAsked, slowWhenAsked, task -> {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("saturated");
+		});
+
+		for (int i = 0; i < 30; i++)
+			client.hello();
+
+		slow.set(true);
+
+		// The hedge is rejected, so the call simply waits for its first attempt
+		assertEquals("ok", client.hello());
+		assertEquals(1, rejected.get());
+	}
+
+
+	@Test
+	public void testFailedCallsCountTowardsHedgeDelay()
+	{
+		final LoadBalancer balancer = new LoadBalancer("test",
+		                                               List.of(URI.create("http://a"), URI.create("http://b")),
+		                                               1000,
+		                                               TimeUnit.SECONDS.toNanos(30),
+		                                               0);
+
+		final LoadBalancer.Instance instance = balancer.getInstances().get(0);
+
+		for (int i = 0; i < 30; i++)
+			balancer.onComplete(instance, balancer.onStart(instance) - TimeUnit.SECONDS.toNanos(2), new ProcessingException("down"));
+
+		assertTrue("slow failures should set the hedge delay", balancer.getHedgeDelay() >= TimeUnit.SECONDS.toNanos(2));
+	}
+
+
+	private static BalancedService balanced(final BalancedService a, final BalancedService b, final Executor hedgeExecutor)
+	{
+		final LoadBalancer balancer = new LoadBalancer("test",
+		                                               List.of(URI.create("http://a"), URI.create("http://b")),
+		                                               1000,
+		                                               TimeUnit.SECONDS.toNanos(30),
+		                                               TimeUnit.MILLISECONDS.toNanos(10));
+
+		final LoadBalancingProxy handler = new LoadBalancingProxy(balancer, List.of(a, b), hedgeExecutor, new Meter());
+
+		return (BalancedService) Proxy.newProxyInstance(BalancedService.class.getClassLoader(),
+		                                                new Class[]{BalancedService.class},
+		                                                handler);
+	}
+
+
+	private static void sleep(final long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
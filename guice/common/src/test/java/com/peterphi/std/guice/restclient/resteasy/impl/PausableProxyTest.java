@@ -0,0 +1,99 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.peterphi.std.guice.common.breaker.CircuitBreaker;
+import com.peterphi.std.guice.common.breaker.CircuitBreakerSettings;
+import com.peterphi.std.guice.restclient.annotations.LongPoll;
+import com.peterphi.std.threading.Timeout;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class PausableProxyTest
+{
+	public interface PollingService
+	{
+		String get();
+
+		@LongPoll
+		String poll();
+	}
+
+
+	/**
+	 * Takes longer than the slow-call threshold to respond to every call
+	 */
+	private static class SlowService implements PollingService
+	{
+		@Override
+		public String get()
+		{
+			sleep();
+			return "get";
+		}
+
+
+		@Override
+		public String poll()
+		{
+			sleep();
+			return "poll";
+		}
+
+
+		private static void sleep()
+		{
+			try
+			{
+				Thread.sleep(20);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	private final CircuitBreaker circuit = new CircuitBreaker("test",
+	                                                          new CircuitBreakerSettings(10,
+	                                                                                     4,
+	                                                                                     50,
+	                                                                                     new Timeout(5, TimeUnit.MILLISECONDS),
+	                                                                                     50,
+	                                                                                     Timeout.TEN_SECONDS,
+	                                                                                     2),
+	                                                          (open, note) -> {
+	                                                          });
+
+	private final PollingService client = (PollingService) Proxy.newProxyInstance(PollingService.class.getClassLoader(),
+	                                                                              new Class[]{PollingService.class},
+	                                                                              new PausableProxy(new SlowService(),
+	                                                                                                false,
+	                                                                                                null,
+	                                                                                                circuit,
+	                                                                                                new AtomicInteger()));
+
+
+	@Test
+	public void testLongPollsNotCountedAsSlow()
+	{
+		for (int i = 0; i < 10; i++)
+			assertEquals("poll", client.poll());
+
+		assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+	}
+
+
+	@Test
+	public void testSlowCallsOpenCircuit()
+	{
+		for (int i = 0; i < 4; i++)
+			assertEquals("get", client.get());
+
+		assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+	}
+}
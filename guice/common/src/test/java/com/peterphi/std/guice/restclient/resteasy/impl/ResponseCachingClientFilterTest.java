@@ -0,0 +1,182 @@
+package com.peterphi.std.guice.restclient.resteasy.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import com.peterphi.std.guice.common.jackson.JacksonFactory;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.restclient.annotations.NoClientBreaker;
+import com.peterphi.std.guice.restclient.resteasy.impl.okhttp.OkHttpClientFactory;
+import com.peterphi.std.util.jaxb.JAXBSerialiserFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResponseCachingClientFilterTest
+{
+	@NoClientBreaker
+	@Path("/")
+	public interface CachedService
+	{
+		@GET
+		@Path("/fresh")
+		@Produces("text/plain")
+		String fresh();
+
+		@GET
+		@Path("/etag")
+		@Produces("text/plain")
+		String etag();
+
+		@GET
+		@Path("/no-store")
+		@Produces("text/plain")
+		String noStore();
+	}
+
+
+	private HttpServer server;
+	private OkHttpClientFactory httpClientFactory;
+	private ResteasyProxyClientFactoryImpl proxyFactory;
+	private GuiceConfig config;
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fresh", exchange -> respond(exchange, "max-age=60", "fresh-" + requests.incrementAndGet()));
+		server.createContext("/no-store", exchange -> respond(exchange, "no-store", "no-store-" + requests.incrementAndGet()));
+		server.createContext("/etag", exchange -> {
+			requests.incrementAndGet();
+
+			if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+			{
+				notModified.incrementAndGet();
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+			}
+			else
+			{
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				respond(exchange, "no-cache", "etag");
+			}
+		});
+		server.start();
+
+		httpClientFactory = new OkHttpClientFactory(null);
+
+		final ResteasyClientFactoryImpl clientFactory = new ResteasyClientFactoryImpl(null,
+		                                                                              null,
+		                                                                              null,
+		                                                                              new JAXBSerialiserFactory(true),
+		                                                                              new JacksonFactory(),
+		                                                                              httpClientFactory);
+
+		config = new GuiceConfig();
+		config.set("service.cached.endpoint", "http://127.0.0.1:" + server.getAddress().getPort());
+		config.set("service.cached.cache", "true");
+
+		proxyFactory = new ResteasyProxyClientFactoryImpl(clientFactory, config);
+		proxyFactory.metrics = new MetricRegistry();
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		httpClientFactory.shutdown();
+	}
+
+
+	@Test
+	public void testFreshResponseServedFromCache()
+	{
+		final CachedService client = proxyFactory.getClient(CachedService.class, "cached");
+
+		assertEquals("fresh-1", client.fresh());
+		assertEquals("fresh-1", client.fresh());
+
+		// A separately-created client for the same service shares the cache
+		assertEquals("fresh-1", proxyFactory.getClient(CachedService.class, "cached").fresh());
+
+		assertEquals(1, requests.get());
+		assertEquals(2, meterCount(GuiceMetricNames.REST_CLIENT_CACHE_HITS));
+		assertEquals(1, meterCount(GuiceMetricNames.REST_CLIENT_CACHE_MISSES));
+	}
+
+
+	@Test
+	public void testStaleResponseRevalidated()
+	{
+		final CachedService client = proxyFactory.getClient(CachedService.class, "cached");
+
+		assertEquals("etag", client.etag());
+		assertEquals("etag", client.etag());
+		assertEquals("etag", client.etag());
+
+		assertEquals(3, requests.get());
+		assertEquals(2, notModified.get());
+		assertEquals(2, meterCount(GuiceMetricNames.REST_CLIENT_CACHE_REVALIDATIONS));
+	}
+
+
+	@Test
+	public void testNoStoreNotCached()
+	{
+		final CachedService client = proxyFactory.getClient(CachedService.class, "cached");
+
+		assertEquals("no-store-1", client.noStore());
+		assertEquals("no-store-2", client.noStore());
+	}
+
+
+	@Test
+	public void testCacheDisabledByDefault()
+	{
+		config.set("service.cached.cache", "false");
+
+		final CachedService client = proxyFactory.getClient(CachedService.class, "cached");
+
+		assertEquals("fresh-1", client.fresh());
+		assertEquals("fresh-2", client.fresh());
+	}
+
+
+	private long meterCount(final String metric)
+	{
+		return proxyFactory.metrics.meter(MetricRegistry.name(metric, "cached")).getCount();
+	}
+
+
+	private static void respond(final HttpExchange exchange, final String cacheControl, final String body) throws IOException
+	{
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().add("Content-Type", "text/plain");
+		exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+		exchange.sendResponseHeaders(200, bytes.length);
+
+		try (OutputStream os = exchange.getResponseBody())
+		{
+			os.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.peterphi.std.guice.restclient.resteasy.impl.okhttp;
+
+import com.peterphi.std.guice.common.jackson.JacksonFactory;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.restclient.annotations.NoClientBreaker;
+import com.peterphi.std.guice.restclient.resteasy.impl.ResteasyClientFactoryImpl;
+import com.peterphi.std.guice.restclient.resteasy.impl.ResteasyProxyClientFactoryImpl;
+import com.peterphi.std.guice.restclient.resteasy.impl.TracingClientRequestFilter;
+import com.peterphi.std.util.jaxb.JAXBSerialiserFactory;
+import com.peterphi.std.util.tracing.Tracing;
+import com.peterphi.std.util.tracing.TracingConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.ext.ReaderInterceptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OkHttpClientEngineAsyncTest
+{
+	@NoClientBreaker
+	@Path("/")
+	public interface AsyncService
+	{
+		@GET
+		@Path("/hello")
+		@Produces("text/plain")
+		CompletionStage<String> helloStage();
+
+		@GET
+		@Path("/hello")
+		@Produces("text/plain")
+		CompletableFuture<String> helloFuture();
+
+		@GET
+		@Path("/fail")
+		@Produces("text/plain")
+		CompletionStage<String> fail();
+	}
+
+
+	private HttpServer server;
+	private OkHttpClientFactory httpClientFactory;
+	private ResteasyClientFactoryImpl clientFactory;
+	private AsyncService client;
+
+	private final AtomicReference<String> lastCorrelationId = new AtomicReference<>();
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/hello", exchange -> {
+			lastCorrelationId.set(exchange.getRequestHeaders().getFirst(TracingConstants.HTTP_HEADER_CORRELATION_ID));
+			respond(exchange, 200, "hello");
+		});
+		server.createContext("/fail", exchange -> respond(exchange, 500, "failed"));
+		server.start();
+
+		httpClientFactory = new OkHttpClientFactory(null);
+
+		clientFactory = new ResteasyClientFactoryImpl(null,
+		                                              new TracingClientRequestFilter(),
+		                                              null,
+		                                              new JAXBSerialiserFactory(true),
+		                                              new JacksonFactory(),
+		                                              httpClientFactory);
+
+		client = new ResteasyProxyClientFactoryImpl(clientFactory, new GuiceConfig()).createClient(AsyncService.class,
+		                                                                                         URI.create("http://127.0.0.1:" +
+		                                                                                                    server.getAddress()
+		                                                                                                          .getPort()));
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		httpClientFactory.shutdown();
+		Tracing.clear();
+	}
+
+
+	@Test
+	public void testCompletionStage() throws Exception
+	{
+		assertEquals("hello", client.helloStage().toCompletableFuture().get(10, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	public void testBufferedResultExtractedOnCompletionExecutor() throws Exception
+	{
+		final CompletableFuture<String> extractionThread = new CompletableFuture<>();
+
+		final String result = target(extractionThread).request().rx().get(String.class).toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+		assertEquals("hello", result);
+		assertTrue("should extract on the async executor: " + extractionThread.getNow(null),
+		           extractionThread.get(10, TimeUnit.SECONDS).startsWith("jaxrs-async-"));
+	}
+
+
+	@Test
+	public void testUnbufferedResultNotExtractedOnCompletionExecutor() throws Exception
+	{
+		final CompletableFuture<String> extractionThread = new CompletableFuture<>();
+
+		// N.B. Future-based async calls are not buffered, so reading the entity reads from the network
+		final String result = target(extractionThread).request().async().get(String.class).get(10, TimeUnit.SECONDS);
+
+		assertEquals("hello", result);
+		assertFalse("should not read the body on the async executor: " + extractionThread.getNow(null),
+		            extractionThread.get(10, TimeUnit.SECONDS).startsWith("jaxrs-async-"));
+	}
+
+
+	/**
+	 * Build a target for /hello that records the thread on which the response entity is read
+	 *
+	 * @param extractionThread
+	 * 		completed (inside the engine) with the name of the thread that reads the entity
+	 *
+	 * @return
+	 */
+	private WebTarget target(final CompletableFuture<String> extractionThread)
+	{
+		final ReaderInterceptor interceptor = ctx -> {
+			extractionThread.complete(Thread.currentThread().getName());
+
+			return ctx.proceed();
+		};
+
+		return clientFactory.getOrCreateClient(null, false, false, false)
+		                    .target("http://127.0.0.1:" + server.getAddress().getPort() + "/hello")
+		                    .register(interceptor);
+	}
+
+
+	@Test
+	public void testCompletableFuture() throws Exception
+	{
+		assertEquals("hello", client.helloFuture().get(10, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	public void testTracingHeaderSent() throws Exception
+	{
+		Tracing.start("async-test");
+
+		client.helloStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+		assertTrue("should send correlation id: " + lastCorrelationId.get(),
+		           lastCorrelationId.get() != null && lastCorrelationId.get().startsWith("async-test/"));
+	}
+
+
+	@Test
+	public void testErrorResponseFailsFuture() throws Exception
+	{
+		try
+		{
+			client.fail().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+			fail("Expected call to fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue("Expected InternalServerErrorException, got " + e.getCause(),
+			           e.getCause() instanceof InternalServerErrorException);
+		}
+	}
+
+
+	private static void respond(final HttpExchange exchange,
+	                            final int code,
+	                            final String body) throws IOException
+	{
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().add("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(code, bytes.length);
+
+		try (OutputStream os = exchange.getResponseBody())
+		{
+			os.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.peterphi.std.guice.restclient.resteasy.impl.okhttp;
+
+import com.peterphi.std.guice.common.jackson.JacksonFactory;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.restclient.annotations.NoClientBreaker;
+import com.peterphi.std.guice.restclient.resteasy.impl.ResteasyClientFactoryImpl;
+import com.peterphi.std.guice.restclient.resteasy.impl.ResteasyProxyClientFactoryImpl;
+import com.peterphi.std.util.jaxb.JAXBSerialiserFactory;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class OkHttpClientEngineStreamingTest
+{
+	@NoClientBreaker
+	@Path("/")
+	public interface UploadService
+	{
+		@POST
+		@Path("/upload")
+		@Consumes("application/octet-stream")
+		@Produces("text/plain")
+		String upload(InputStream data);
+
+		@POST
+		@Path("/upload")
+		@Consumes("application/octet-stream")
+		@Produces("text/plain")
+		String upload(byte[] data);
+
+		@POST
+		@Path("/upload")
+		@Consumes("text/plain")
+		@Produces("text/plain")
+		String upload(String data);
+	}
+
+
+	private HttpServer server;
+	private OkHttpClientFactory httpClientFactory;
+	private UploadService client;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/upload", exchange -> {
+			final long size;
+			try (InputStream is = exchange.getRequestBody())
+			{
+				size = IOUtils.skip(is, Long.MAX_VALUE);
+			}
+
+			final String chunked = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+			final byte[] response = (size + ";" + (chunked != null ? chunked : "length")).getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().add("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(200, response.length);
+
+			try (OutputStream os = exchange.getResponseBody())
+			{
+				os.write(response);
+			}
+		});
+		server.start();
+
+		httpClientFactory = new OkHttpClientFactory(null);
+		httpClientFactory.streamingThreshold = 1024;
+
+		final ResteasyClientFactoryImpl clientFactory = new ResteasyClientFactoryImpl(null,
+		                                                                              null,
+		                                                                              null,
+		                                                                              new JAXBSerialiserFactory(true),
+		                                                                              new JacksonFactory(),
+		                                                                              httpClientFactory);
+
+		client = new ResteasyProxyClientFactoryImpl(clientFactory, new GuiceConfig()).createClient(UploadService.class,
+		                                                                                         URI.create("http://127.0.0.1:" +
+		                                                                                                    server.getAddress()
+		                                                                                                          .getPort()));
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		httpClientFactory.shutdown();
+	}
+
+
+	@Test
+	public void testInputStreamIsStreamed()
+	{
+		final byte[] data = new byte[4 * 1024 * 1024];
+
+		assertEquals(data.length + ";chunked", client.upload(new ByteArrayInputStream(data)));
+	}
+
+
+	@Test
+	public void testLargeByteArrayIsStreamed()
+	{
+		// N.B. streamed from the entity, but its size is known so it is not sent chunked
+		assertEquals("2048;length", client.upload(new byte[2048]));
+	}
+
+
+	@Test
+	public void testLargeStringIsSentWithEncodedLength()
+	{
+		final String text = "é".repeat(600);
+
+		assertEquals("1200;length", client.upload(text));
+	}
+
+
+	@Test
+	public void testEncodedLength()
+	{
+		assertEquals(1200, OkHttpClientEngine.getEncodedLength("é".repeat(600), StandardCharsets.UTF_8));
+		assertEquals(600, OkHttpClientEngine.getEncodedLength("é".repeat(600), StandardCharsets.ISO_8859_1));
+		assertEquals(4, OkHttpClientEngine.getEncodedLength("\uD83D\uDE00", StandardCharsets.UTF_8));
+		assertEquals(20000, OkHttpClientEngine.getEncodedLength("a".repeat(20000), StandardCharsets.UTF_8));
+	}
+
+
+	@Test
+	public void testSmallByteArrayIsBuffered()
+	{
+		assertEquals("512;length", client.upload(new byte[512]));
+	}
+}
@@ -2,6 +2,10 @@ package com.peterphi.std.guice.database;
 
 
 import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.hibernate.webquery.impl.QEntity;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQConstraint;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQGroup;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQOrder;
 import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
 import com.peterphi.std.util.tracing.Tracing;
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -15,6 +19,8 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class CSVSearchUtils
@@ -41,6 +47,32 @@ public class CSVSearchUtils
 	                               final String header,
 	                               final String variant,
 	                               final String filename)
+	{
+		return process(dao, query, pageSize, header, variant, filename, false);
+	}
+
+
+	/**
+	 * @param dao      dao to request projection against
+	 * @param query    the user's query
+	 * @param pageSize the max number of rows to fetch per transaction
+	 * @param header   the header row, expressed as a comma-separated list
+	 * @param variant  the variant to use (if null or "csv" then will output an Excel-compatible CSV. Other supported value is <code>tsv</code>, which will output tsv with no headers, unix newlines (and replace tab/newline in values with space char)
+	 * @param filename the output filename (optional, if set a Content-Disposition header will be returned with this filename)
+	 * @param seek     if true, pages after the first are retrieved with keyset (seek) pagination: rather than using an ever-increasing
+	 *                 offset (which makes the database scan and discard all prior rows), the order by values of the last row emitted
+	 *                 are used to constrain the next page. The entity primary key is added to the ordering as a tie-breaker. If the
+	 *                 entity has no simple primary key, or the query is ordered by a nullable or non-local field, then offset
+	 *                 pagination is used
+	 * @return
+	 */
+	public static Response process(final HibernateDao<?, ?> dao,
+	                               final WebQuery query,
+	                               final int pageSize,
+	                               final String header,
+	                               final String variant,
+	                               final String filename,
+	                               final boolean seek)
 	{
 		@Positive final int wantedRows = Math.min(MAX_RESULTS, query.getLimit() == 0 ? Integer.MAX_VALUE : query.getLimit());
 
@@ -92,22 +124,32 @@ public class CSVSearchUtils
 		else
 			query.limit(wantedRows);
 
+		final int firstOffset = query.getOffset();
+
+		// If using keyset pagination, make sure the order is total and that we fetch all the ORDER BY columns
+		final int[] seekColumns;
+		if (seek && wantedRows > pageSize)
+			seekColumns = prepareSeek(query, dao.getQEntity());
+		else
+			seekColumns = null;
+
 		// First, check that the query is valid before we start the streaming output
 		// We do this by proactively fetching Page 1
 		final var firstPage = dao.project(query, false);
 		final var onlyHasOnePage = firstPage.getList().size() <= wantedRows;
 
 		final boolean verboseTrace = Tracing.isVerbose();
+		final Tracing originTrace = Tracing.peek();
 		final String traceId = Tracing.newOperationId("Start multi-page CSV Streaming Output processing...");
 
 		// Emit row data
 		final StreamingOutput streamingOutput = os -> {
 			final boolean startedTrace;
 			final String rootTrace;
-			if (Tracing.getTraceId() == null)
+			if (traceId != null && Tracing.getTraceId() == null)
 			{
 				rootTrace = traceId;
-				Tracing.start(rootTrace, verboseTrace);
+				Tracing.start(rootTrace, verboseTrace, originTrace);
 				startedTrace = true;
 			}
 			else
@@ -126,6 +168,7 @@ public class CSVSearchUtils
 					final int cols = StringUtils.split(header, ',').length;
 
 					int rowsSoFar = 0;
+					WebQuery pageQuery = query;
 
 					do
 					{
@@ -134,7 +177,7 @@ public class CSVSearchUtils
 						if (rowsSoFar == 0)
 							results = firstPage.getList(); // N.B. clear this list at the end
 						else
-							results = dao.project(query, false).getList();
+							results = dao.project(pageQuery, false).getList();
 
 						for (Object[] row : results)
 						{
@@ -183,17 +226,32 @@ public class CSVSearchUtils
 						{
 							rowsSoFar += results.size();
 
+							final WQGroup seekConstraint;
+							if (seekColumns != null)
+								seekConstraint = getSeekConstraint(query.orderings, seekColumns, results.get(results.size() - 1));
+							else
+								seekConstraint = null;
+
 							// Free up memory from this page
 							results.clear();
 
-							// Prepare for next page
-							query.offset(query.getOffset() + query.getLimit());
-
 							// Check if the next page is the last page
 							final int rowsLeft = wantedRows - rowsSoFar;
 							if (rowsLeft < query.getLimit())
 								query.limit(rowsLeft);
 
+							// Prepare for next page
+							if (seekConstraint != null)
+							{
+								pageQuery = query.clone().offset(0).add(seekConstraint);
+							}
+							else
+							{
+								// N.B. also used if keyset pagination can't express the next page (e.g. a null ORDER BY value)
+								query.offset(firstOffset + rowsSoFar);
+								pageQuery = query;
+							}
+
 							// Make sure we finish streaming out this page of results
 							writer.flush();
 						}
@@ -238,4 +296,91 @@ public class CSVSearchUtils
 
 		return builder.build();
 	}
+
+
+	/**
+	 * Prepare a query for keyset pagination, adding the primary key to the ordering (if not already present) and making sure every
+	 * ORDER BY field is fetched
+	 *
+	 * @param query  the query (modified by this method if keyset pagination can be used)
+	 * @param entity the entity being queried
+	 * @return the index within each result row of each ORDER BY field (in the order of {@link WebQuery#orderings}), or null if
+	 * keyset pagination cannot be used for this query
+	 */
+	private static int[] prepareSeek(final WebQuery query, final QEntity entity)
+	{
+		final String idProperty = entity.getIdPropertyName();
+
+		if (idProperty == null)
+			return null; // No simple primary key (e.g. an IdClass), so we can't guarantee a total order
+
+		// Where NULLs sort is database-specific, so we only seek on non-null fields of the entity itself
+		for (WQOrder order : query.orderings)
+		{
+			if (!entity.hasProperty(order.field) || entity.getProperty(order.field, true).isNullable())
+				return null;
+		}
+
+		if (query.orderings.stream().noneMatch(o -> StringUtils.equals(idProperty, o.field)))
+			query.orderAsc(idProperty);
+
+		// N.B. trim, so that the ORDER BY fields are found (and not fetched twice) if the fetch list contains spaces, e.g. "a, b"
+		final List<String> fields = new ArrayList<>(Arrays.asList(StringUtils.stripAll(StringUtils.split(query.getFetch(), ','))));
+
+		final int[] columns = new int[query.orderings.size()];
+		for (int i = 0; i < columns.length; i++)
+		{
+			final String field = query.orderings.get(i).field;
+
+			int index = fields.indexOf(field);
+			if (index == -1)
+			{
+				// Add the field to the end of the projection (this won't be emitted in the output)
+				index = fields.size();
+				fields.add(field);
+			}
+
+			columns[i] = index;
+		}
+
+		query.fetch(String.join(",", fields));
+
+		return columns;
+	}
+
+
+	/**
+	 * Build a constraint selecting only the rows that sort after <code>lastRow</code>; for ORDER BY a,b this is equivalent to
+	 * <code>(a,b) &gt; (lastA,lastB)</code>, expressed as <code>a &gt; lastA OR (a = lastA AND b &gt; lastB)</code>
+	 *
+	 * @param orders  the query ordering
+	 * @param columns the index of each ORDER BY field within the row
+	 * @param lastRow the last row emitted
+	 * @return the constraint, or null if one of the ORDER BY values is null (in which case keyset pagination cannot be used)
+	 */
+	public static WQGroup getSeekConstraint(final List<WQOrder> orders, final int[] columns, final Object[] lastRow)
+	{
+		final WQGroup or = WQGroup.newOr();
+
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (lastRow[columns[i]] == null)
+				return null;
+
+			final WQGroup and = WQGroup.newAnd();
+
+			for (int j = 0; j < i; j++)
+				and.add(WQConstraint.eq(orders.get(j).field, lastRow[columns[j]]));
+
+			final WQOrder order = orders.get(i);
+			if (order.isAsc())
+				and.add(WQConstraint.gt(order.field, lastRow[columns[i]]));
+			else
+				and.add(WQConstraint.lt(order.field, lastRow[columns[i]]));
+
+			or.add(and);
+		}
+
+		return or;
+	}
 }
@@ -1,5 +1,6 @@
 package com.peterphi.std.guice.hibernate.dao;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
@@ -33,6 +34,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * The default implementation of a Dao for Hibernate; often it is necessary to extend this to produce richer queries<br />
@@ -50,6 +52,11 @@ import java.util.function.Function;
  */
 public class HibernateDao<T, ID extends Serializable> implements Dao<T, ID>
 {
+	/**
+	 * The maximum number of IDs referenced by a single bulk delete/update statement
+	 */
+	private static final int MAX_BULK_STATEMENT_IDS = 1000;
+
 	@Inject
 	private SessionFactory sessionFactory;
 
@@ -252,6 +259,17 @@ public class HibernateDao<T, ID extends Serializable> implements Dao<T, ID>
 	}
 
 
+	/**
+	 * Get the current session<br />
+	 * Reads only go to the read replica (if one is configured) within a <code>@Transactional(readOnly=true)</code> method, because
+	 * the replica is chosen when the transaction's connection is acquired. This is why every public read method of this class is
+	 * read-only {@link Transactional}. There is no non-transactional read to route: the thread-bound session context rejects any
+	 * use of this session outside a transaction.
+	 *
+	 * @return
+	 *
+	 * @see com.peterphi.std.guice.hibernate.module.ReadReplicaRoutingConnectionProvider
+	 */
 	protected Session getSession()
 	{
 		return sessionFactory.getCurrentSession();
@@ -616,6 +634,215 @@ public class HibernateDao<T, ID extends Serializable> implements Dao<T, ID>
 	}
 
 
+	/**
+	 * Stream the entities matching a query, backed by a forward-only database cursor (rather than materialising the whole
+	 * resultset). Entities already emitted are periodically detached from the session, so large exports and batch jobs can walk
+	 * millions of rows in constant heap.<br />
+	 * <strong>Must be called within a transaction, and the stream must be consumed (and should be closed) within that
+	 * transaction</strong>
+	 *
+	 * @param query
+	 * @return
+	 * @see JPASearchExecutor#stream(QEntity, WebQuery, JPASearchStrategy, int, boolean)
+	 */
+	public Stream<T> stream(final WebQuery query)
+	{
+		return stream(query, JPASearchStrategy.AUTO, 0);
+	}
+
+
+	/**
+	 * Stream the results of a query, backed by a forward-only database cursor. See {@link #stream(WebQuery)}
+	 *
+	 * @param query
+	 * @param strategy  the search strategy
+	 * @param fetchSize the JDBC fetch size (if &lt;= 0 the configured default will be used)
+	 * @param <RT>      the return type (dependent on the strategy)
+	 * @return
+	 */
+	public <RT> Stream<RT> stream(final WebQuery query, JPASearchStrategy strategy, final int fetchSize)
+	{
+		if (performSeparateIdQueryForLargeTables && isLargeTable && (strategy == null || strategy == JPASearchStrategy.AUTO))
+			strategy = JPASearchStrategy.ID_THEN_QUERY_ENTITY;
+
+		return searchExecutor.stream(getQEntity(), query, strategy, fetchSize, defaultPrivileges.permitSchemaPrivateAccess());
+	}
+
+
+	/**
+	 * Stream the IDs matching a query, backed by a forward-only database cursor. See {@link #stream(WebQuery)}
+	 *
+	 * @param query
+	 * @return
+	 */
+	public Stream<ID> streamIds(final WebQuery query)
+	{
+		return stream(query, JPASearchStrategy.ID, 0);
+	}
+
+
+	/**
+	 * Stream the raw Object[] projection, backed by a forward-only database cursor. See {@link #stream(WebQuery)}
+	 *
+	 * @param query
+	 * @param distinct
+	 * @return
+	 */
+	public Stream<Object[]> streamProjection(final WebQuery query, final boolean distinct)
+	{
+		return stream(query,
+		              distinct ? JPASearchStrategy.CUSTOM_PROJECTION : JPASearchStrategy.CUSTOM_PROJECTION_NODISTINCT,
+		              0);
+	}
+
+
+	/**
+	 * Delete all entities matching a query, using set-based bulk deletes rather than loading and deleting each entity (only the
+	 * matching IDs are retrieved). Obeys the limit and offset of the query, so to delete all matches use a limit of 0.<br />
+	 * N.B. as with any JPA bulk operation this bypasses the session, so cascades are not applied and entities already loaded
+	 * into the session will not reflect the change
+	 *
+	 * @param query
+	 *
+	 * @return the number of entities deleted
+	 */
+	@Transactional
+	public int deleteByQuery(final WebQuery query)
+	{
+		return deleteByQuery(query, 0);
+	}
+
+
+	/**
+	 * Delete all entities matching a query (see {@link #deleteByQuery(WebQuery)}), committing a separate transaction for each
+	 * batch of entities. If called within an existing transaction the batches will all join that transaction instead.<br />
+	 * Entities that no longer match the query by the time their batch runs are not deleted.
+	 *
+	 * @param query
+	 * @param batchSize
+	 * 		the maximum number of entities to delete in each transaction, or 0 to delete them all in a single transaction
+	 *
+	 * @return the number of entities deleted
+	 */
+	public int deleteByQuery(final WebQuery query, final int batchSize)
+	{
+		return executeBulk(query, batchSize, ids -> createQueryBuilder().createDelete(ids));
+	}
+
+
+	/**
+	 * Update all entities matching a query, using set-based bulk updates rather than loading and updating each entity (only the
+	 * matching IDs are retrieved). Obeys the limit and offset of the query, so to update all matches use a limit of 0.<br />
+	 * N.B. as with any JPA bulk operation this bypasses the session, so entities already loaded into the session will not
+	 * reflect the change
+	 *
+	 * @param query
+	 * @param assignments
+	 * 		the new value for each property (properties of embedded types may be named using dotted paths). String values are parsed
+	 * 		into the type of the property the same way WebQuery constraint values are
+	 *
+	 * @return the number of entities updated
+	 */
+	@Transactional
+	public int updateByQuery(final WebQuery query, final Map<String, Object> assignments)
+	{
+		return updateByQuery(query, assignments, 0);
+	}
+
+
+	/**
+	 * Update all entities matching a query (see {@link #updateByQuery(WebQuery, Map)}), committing a separate transaction for
+	 * each batch of entities. If called within an existing transaction the batches will all join that transaction instead.<br />
+	 * Entities that no longer match the query by the time their batch runs are not updated.
+	 *
+	 * @param query
+	 * @param assignments
+	 * @param batchSize
+	 * 		the maximum number of entities to update in each transaction, or 0 to update them all in a single transaction
+	 *
+	 * @return the number of entities updated
+	 */
+	public int updateByQuery(final WebQuery query, final Map<String, Object> assignments, final int batchSize)
+	{
+		if (assignments == null || assignments.isEmpty())
+			throw new IllegalArgumentException("Must specify at least one property to update!");
+
+		return executeBulk(query, batchSize, ids -> createQueryBuilder().createUpdate(ids, assignments));
+	}
+
+
+	private int executeBulk(final WebQuery query, final int batchSize, final Function<List<ID>, Query<?>> statement)
+	{
+		if (batchSize < 0)
+			throw new IllegalArgumentException("Batch size must be >= 0: " + batchSize);
+
+		// Resolve the matches up front, since an update may change which entities the query matches
+		final List<ID> ids = getIdsForBulk(query);
+
+		if (ids.isEmpty())
+			return 0;
+
+		int affected = 0;
+		for (List<ID> batch : Lists.partition(ids, (batchSize > 0) ? batchSize : ids.size()))
+			affected += executeBulkBatch(query, batch, statement);
+
+		return affected;
+	}
+
+
+	/**
+	 * Resolve the IDs a bulk statement should apply to within a read-write transaction, so that they are read from the primary
+	 * database (a read replica may not yet reflect recent changes)
+	 *
+	 * @param query
+	 *
+	 * @return
+	 */
+	@Transactional
+	protected List<ID> getIdsForBulk(final WebQuery query)
+	{
+		// Make sure we fail early if the transaction is read-only
+		getWriteSession();
+
+		return new ArrayList<>(getIds(query));
+	}
+
+
+	/**
+	 * Execute a bulk statement against a batch of IDs in a single transaction. Entities may have changed since their IDs were
+	 * resolved (e.g. while earlier batches were committed), so the statement only applies to those that still match the query
+	 *
+	 * @param query
+	 * 		the query the IDs were resolved with
+	 * @param ids
+	 * @param statement
+	 *
+	 * @return the number of rows affected
+	 */
+	@Transactional
+	protected int executeBulkBatch(final WebQuery query, final List<ID> ids, final Function<List<ID>, Query<?>> statement)
+	{
+		// Make sure we fail early if the transaction is read-only
+		getWriteSession();
+
+		int affected = 0;
+
+		// Keep the number of IN parameters of each statement within what all supported databases accept
+		for (List<ID> chunk : Lists.partition(ids, MAX_BULK_STATEMENT_IDS))
+		{
+			final JPAQueryBuilder<T, ID> builder = createQueryBuilder(defaultPrivileges.permitSchemaPrivateAccess());
+			builder.forIDsMatching(query, chunk);
+
+			final List<ID> matching = builder.selectIDs().stream().distinct().toList();
+
+			if (!matching.isEmpty())
+				affected += statement.apply(matching).executeUpdate();
+		}
+
+		return affected;
+	}
+
+
 	/**
 	 * Get a list of IDs matching a WebQuery
 	 *
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.usertype.UserType;
@@ -90,6 +91,8 @@ public abstract class HibernateModule extends AbstractModule
 
 		validateHibernateProperties(guiceConfig, properties);
 
+		configureReadReplica(guiceConfig, properties);
+
 		// Set up the hibernate Configuration
 		Configuration config = new Configuration();
 
@@ -174,6 +177,32 @@ public abstract class HibernateModule extends AbstractModule
 	}
 
 
+	/**
+	 * If a read replica is configured, route connections through {@link ReadReplicaRoutingConnectionProvider}
+	 *
+	 * @param guiceConfig
+	 * 		the global app config
+	 * @param hibernateProperties
+	 * 		the hibernate-specific config
+	 */
+	private void configureReadReplica(final GuiceConfig guiceConfig, final Properties hibernateProperties)
+	{
+		// Replica settings may be in the app config even if hibernate.properties is a separate file
+		for (Map.Entry<Object, Object> entry : guiceConfig.toProperties(k -> k.startsWith("hibernate.read-replica.")).entrySet())
+			hibernateProperties.putIfAbsent(entry.getKey(), entry.getValue());
+
+		if (StringUtils.isBlank(hibernateProperties.getProperty(GuiceProperties.HIBERNATE_READ_REPLICA_URL)))
+			return; // No read replica
+
+		final String providerClass = hibernateProperties.getProperty(AvailableSettings.CONNECTION_PROVIDER);
+
+		if (providerClass != null)
+			hibernateProperties.setProperty(ReadReplicaRoutingConnectionProvider.PRIMARY_PROVIDER_CLASS, providerClass);
+
+		hibernateProperties.setProperty(AvailableSettings.CONNECTION_PROVIDER, ReadReplicaRoutingConnectionProvider.class.getName());
+	}
+
+
 	/**
 	 * Checks whether hbm2ddl is set to a prohibited value, throwing an exception if it is
 	 *
@@ -0,0 +1,354 @@
+package com.peterphi.std.guice.hibernate.module;
+
+import com.peterphi.std.guice.apploader.GuiceProperties;
+import com.peterphi.std.guice.common.stringparsing.TimeoutConverter;
+import com.peterphi.std.threading.Timeout;
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.internal.ConnectionProviderInitiator;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.ServiceRegistryAwareService;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+import org.hibernate.service.spi.Startable;
+import org.hibernate.service.spi.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Hibernate {@link ConnectionProvider} that sends the connections for read-only transactions to a read replica, and all other
+ * connections to the primary database.<br />
+ * Installed automatically by {@link HibernateModule} when {@link GuiceProperties#HIBERNATE_READ_REPLICA_URL} is set. The primary
+ * and replica connection providers are created by Hibernate exactly as they would be without this class (so connection pooling
+ * config applies to both); any <code>hibernate.read-replica.X</code> property overrides <code>hibernate.X</code> for the
+ * replica.<br />
+ * Routing is decided by {@link TransactionMethodInterceptor}, which marks the thread while it creates and runs a read-only
+ * transaction. Because the routing decision is made as the connection is acquired, a read-only method called from within a
+ * read/write transaction continues to use the read/write transaction's connection.<br />
+ * Connections acquired outside a {@link TransactionMethodInterceptor} transaction use the primary. With the thread-bound session
+ * context, a session cannot be used outside a transaction, so this only applies to sessions the application opens itself (e.g.
+ * with {@link org.hibernate.SessionFactory#openSession()}). Those sessions can be routed to the replica by calling
+ * {@link #setReadOnly(boolean)} around their use.<br />
+ * While the replica is unreachable, or lagging by more than {@link GuiceProperties#HIBERNATE_READ_REPLICA_MAX_LAG}, read-only
+ * transactions fall back to the primary (unless {@link GuiceProperties#HIBERNATE_READ_REPLICA_FALLBACK} is false)
+ */
+public class ReadReplicaRoutingConnectionProvider implements ConnectionProvider, Configurable, ServiceRegistryAwareService, Stoppable
+{
+	private static final Logger log = LoggerFactory.getLogger(ReadReplicaRoutingConnectionProvider.class);
+
+	private static final String REPLICA_PREFIX = "hibernate.read-replica.";
+
+	/**
+	 * Holds the connection provider class the user originally configured (if any), since we replace it with this class
+	 */
+	static final String PRIMARY_PROVIDER_CLASS = REPLICA_PREFIX + "primary-provider-class";
+
+	/**
+	 * Properties under {@link #REPLICA_PREFIX} that configure this class, rather than overriding hibernate properties
+	 */
+	private static final Set<String> ROUTING_PROPERTIES = Set.of(GuiceProperties.HIBERNATE_READ_REPLICA_MAX_LAG,
+	                                                             GuiceProperties.HIBERNATE_READ_REPLICA_LAG_QUERY,
+	                                                             GuiceProperties.HIBERNATE_READ_REPLICA_CHECK_INTERVAL,
+	                                                             GuiceProperties.HIBERNATE_READ_REPLICA_FALLBACK,
+	                                                             PRIMARY_PROVIDER_CLASS);
+
+	/**
+	 * Set while the current thread is creating/running a read-only transaction
+	 */
+	private static final ThreadLocal<Boolean> READ_ONLY = new ThreadLocal<>();
+
+	private ServiceRegistryImplementor serviceRegistry;
+
+	private ConnectionProvider primary;
+	private ConnectionProvider replica;
+
+	private long maxLagSeconds;
+	private String lagQuery;
+	private long checkIntervalNanos;
+	private boolean fallback;
+
+	/**
+	 * Connections currently lent out by the replica (so they can be returned to the right provider)
+	 */
+	private final Set<Connection> replicaConnections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	/**
+	 * The time (in {@link System#nanoTime()}) until which the replica should not be used (because it is lagging or failed)
+	 */
+	private volatile long avoidReplicaUntil = System.nanoTime();
+
+	/**
+	 * The time (in {@link System#nanoTime()}) at which the replica's lag should next be checked
+	 */
+	private volatile long nextLagCheck = System.nanoTime();
+
+	private final AtomicBoolean lagCheckInProgress = new AtomicBoolean(false);
+
+
+	/**
+	 * Mark whether connections acquired by the current thread are for a read-only transaction (only needed for sessions that are
+	 * not managed by {@link TransactionMethodInterceptor})
+	 *
+	 * @param readOnly
+	 * 		true if the current thread is starting a read-only transaction
+	 *
+	 * @return the previous value
+	 */
+	public static boolean setReadOnly(final boolean readOnly)
+	{
+		final boolean previous = isReadOnly();
+
+		if (readOnly)
+			READ_ONLY.set(Boolean.TRUE);
+		else
+			READ_ONLY.remove();
+
+		return previous;
+	}
+
+
+	public static boolean isReadOnly()
+	{
+		return READ_ONLY.get() != null;
+	}
+
+
+	@Override
+	public void injectServices(final ServiceRegistryImplementor serviceRegistry)
+	{
+		this.serviceRegistry = serviceRegistry;
+	}
+
+
+	@Override
+	public void configure(final Map configurationValues)
+	{
+		final Map<Object, Object> settings = new HashMap<>(configurationValues);
+
+		this.maxLagSeconds = getTimeout(settings, GuiceProperties.HIBERNATE_READ_REPLICA_MAX_LAG, "30s").get(TimeUnit.SECONDS);
+		this.checkIntervalNanos = getTimeout(settings, GuiceProperties.HIBERNATE_READ_REPLICA_CHECK_INTERVAL, "10s").get(
+				TimeUnit.NANOSECONDS);
+		this.lagQuery = StringUtils.trimToNull((String) settings.get(GuiceProperties.HIBERNATE_READ_REPLICA_LAG_QUERY));
+		this.fallback = !"false".equalsIgnoreCase(String.valueOf(settings.getOrDefault(GuiceProperties.HIBERNATE_READ_REPLICA_FALLBACK,
+		                                                                                                   "true")));
+
+		// Restore the original connection provider (if any) so Hibernate picks the provider it would have used without us
+		settings.remove(AvailableSettings.CONNECTION_PROVIDER);
+		if (settings.get(PRIMARY_PROVIDER_CLASS) != null)
+			settings.put(AvailableSettings.CONNECTION_PROVIDER, settings.get(PRIMARY_PROVIDER_CLASS));
+
+		// Replica settings are the primary settings with any hibernate.read-replica.X overriding hibernate.X
+		final Map<Object, Object> replicaSettings = new HashMap<>(settings);
+		for (Map.Entry<Object, Object> entry : settings.entrySet())
+		{
+			final String key = String.valueOf(entry.getKey());
+
+			if (key.startsWith(REPLICA_PREFIX) && !ROUTING_PROPERTIES.contains(key))
+				replicaSettings.put("hibernate." + key.substring(REPLICA_PREFIX.length()), entry.getValue());
+		}
+
+		this.primary = createProvider(settings);
+		this.replica = createProvider(replicaSettings);
+
+		log.info("Read-only transactions will be routed to read replica {} (max lag {}s, fallback to primary: {})",
+		         replicaSettings.get(AvailableSettings.URL),
+		         maxLagSeconds,
+		         fallback);
+	}
+
+
+	private ConnectionProvider createProvider(final Map<Object, Object> settings)
+	{
+		final ConnectionProvider provider = ConnectionProviderInitiator.INSTANCE.initiateService(settings, serviceRegistry);
+
+		// N.B. we must carry out the lifecycle steps the service registry would normally perform
+		if (provider instanceof ServiceRegistryAwareService)
+			((ServiceRegistryAwareService) provider).injectServices(serviceRegistry);
+		if (provider instanceof Configurable)
+			((Configurable) provider).configure(settings);
+		if (provider instanceof Startable)
+			((Startable) provider).start();
+
+		return provider;
+	}
+
+
+	private static Timeout getTimeout(final Map<Object, Object> settings, final String name, final String defaultValue)
+	{
+		final Object value = settings.get(name);
+
+		return TimeoutConverter.doConvert((value != null) ? value.toString() : defaultValue);
+	}
+
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		if (isReadOnly() && (!fallback || System.nanoTime() - avoidReplicaUntil >= 0))
+		{
+			final Connection connection = getReplicaConnection();
+
+			if (connection != null)
+				return connection;
+		}
+
+		return primary.getConnection();
+	}
+
+
+	/**
+	 * Acquire a connection from the replica, checking its lag if necessary
+	 *
+	 * @return a replica connection, or null if the primary should be used instead
+	 *
+	 * @throws SQLException
+	 * 		if the replica fails and fallback is disabled
+	 */
+	private Connection getReplicaConnection() throws SQLException
+	{
+		final Connection connection;
+		try
+		{
+			connection = replica.getConnection();
+		}
+		catch (SQLException | RuntimeException e)
+		{
+			if (!fallback)
+				throw e;
+
+			log.warn("Unable to connect to read replica, using primary for read-only transactions for a while", e);
+
+			avoidReplicaUntil = System.nanoTime() + checkIntervalNanos;
+			return null;
+		}
+
+		if (fallback && isLagging(connection))
+		{
+			replica.closeConnection(connection);
+
+			return null;
+		}
+		else
+		{
+			replicaConnections.add(connection);
+
+			return connection;
+		}
+	}
+
+
+	/**
+	 * Run the lag query if it's time for it to be checked (if another thread is already checking then the replica is assumed to
+	 * be fine)
+	 *
+	 * @param connection
+	 *
+	 * @return true if the replica is lagging by more than the permitted amount
+	 */
+	private boolean isLagging(final Connection connection)
+	{
+		if (lagQuery == null || System.nanoTime() - nextLagCheck < 0 || !lagCheckInProgress.compareAndSet(false, true))
+			return false;
+
+		try
+		{
+			nextLagCheck = System.nanoTime() + checkIntervalNanos;
+
+			final long lag;
+			try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery(lagQuery))
+			{
+				lag = rs.next() ? rs.getLong(1) : 0;
+			}
+
+			if (lag > maxLagSeconds)
+			{
+				log.warn("Read replica is {}s behind primary (max {}s), using primary for read-only transactions for a while",
+				         lag,
+				         maxLagSeconds);
+
+				avoidReplicaUntil = System.nanoTime() + checkIntervalNanos;
+
+				return true;
+			}
+			else
+			{
+				return false;
+			}
+		}
+		catch (SQLException e)
+		{
+			log.warn("Error running read replica lag query {}, assuming replica is usable", lagQuery, e);
+
+			return false;
+		}
+		finally
+		{
+			lagCheckInProgress.set(false);
+		}
+	}
+
+
+	@Override
+	public void closeConnection(final Connection connection) throws SQLException
+	{
+		if (replicaConnections.remove(connection))
+			replica.closeConnection(connection);
+		else
+			primary.closeConnection(connection);
+	}
+
+
+	@Override
+	public boolean supportsAggressiveRelease()
+	{
+		return primary.supportsAggressiveRelease() && replica.supportsAggressiveRelease();
+	}
+
+
+	@Override
+	public boolean isUnwrappableAs(final Class unwrapType)
+	{
+		return unwrapType.isInstance(this) || primary.isUnwrappableAs(unwrapType);
+	}
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap(final Class<T> unwrapType)
+	{
+		if (unwrapType.isInstance(this))
+			return (T) this;
+		else
+			return primary.unwrap(unwrapType);
+	}
+
+
+	@Override
+	public void stop()
+	{
+		for (ConnectionProvider provider : new ConnectionProvider[]{replica, primary})
+		{
+			try
+			{
+				if (provider instanceof Stoppable)
+					((Stoppable) provider).stop();
+			}
+			catch (Throwable t)
+			{
+				log.warn("Error stopping connection provider {}", provider, t);
+			}
+		}
+	}
+}
@@ -225,6 +225,9 @@ class TransactionMethodInterceptor implements MethodInterceptor
 		// N.B. only changed from this default if we actually change the Connection's transaction isolation
 		int originalIsolationLevel = IGNORE_ISOLATION_LEVEL;
 
+		// Route the connection for a read-only TX to the read replica (if one is configured)
+		final boolean wasReadOnly = ReadReplicaRoutingConnectionProvider.setReadOnly(readOnly);
+
 		try
 		{
 			// no transaction already started, so start one and enforce its semantics
@@ -365,6 +368,8 @@ class TransactionMethodInterceptor implements MethodInterceptor
 				// Close the session
 				session.close();
 			}
+
+			ReadReplicaRoutingConnectionProvider.setReadOnly(wasReadOnly);
 		}
 	}
 
@@ -17,6 +17,7 @@ public class ConstrainedResultSet<T>
 	protected final List<T> list;
 
 	protected Long total;
+	protected boolean totalApproximate = false;
 
 	public ConstrainedResultSet(WebQuery query, List<T> list)
 	{
@@ -37,6 +38,7 @@ public class ConstrainedResultSet<T>
 		final ConstrainedResultSet<X> copy = new ConstrainedResultSet<>(this.query, newList);
 
 		copy.total = this.total;
+		copy.totalApproximate = this.totalApproximate;
 
 		if (this.sql != null && !this.sql.isEmpty())
 			copy.sql = new ArrayList<>(this.sql);
@@ -82,6 +84,23 @@ public class ConstrainedResultSet<T>
 	}
 
 
+	/**
+	 * Returns true if {@link #getTotal()} is an estimate based on database statistics rather than an exact count
+	 *
+	 * @return
+	 */
+	public boolean isTotalApproximate()
+	{
+		return totalApproximate;
+	}
+
+
+	public void setTotalApproximate(final boolean totalApproximate)
+	{
+		this.totalApproximate = totalApproximate;
+	}
+
+
 	public List<String> getSql()
 	{
 		return sql;
@@ -21,7 +21,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Fetch;
 import javax.persistence.criteria.JoinType;
@@ -38,9 +40,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 {
@@ -48,6 +54,12 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	private record OrderExpr( Order order,  WQOrder src){}
 
+	private static final String SELECT_COUNT = "count";
+	private static final String SELECT_IDS = "ids";
+	private static final String SELECT_ENTITY = "entity";
+
+	private static final Pattern JPQL_PARAMETER = Pattern.compile(":(\\w+)");
+
 	private final Session session;
 	private final CriteriaBuilder criteriaBuilder;
 
@@ -66,10 +78,33 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	// If specified, overrides the default fetches
 	private Set<String> fetches;
 
-	private final Map<ParameterExpression, Object> params = new HashMap<>();
+	private final Map<ParameterExpression, Object> params = new LinkedHashMap<>();
+
+	/**
+	 * The type each parameter's value was parsed as (in the order the parameters were created), or null if not parsed from the
+	 * WebQuery
+	 */
+	private final List<Class<?>> paramTypes = new ArrayList<>();
 
 	private boolean permitSchemaPrivate = false;
 
+	private JPAQueryPlanCache planCache;
+
+	/**
+	 * The shape of the WebQuery (null if plans are not being cached)
+	 */
+	private JPAQueryShape shape;
+
+	/**
+	 * The cached plan for the shape (null if none yet)
+	 */
+	private JPAQueryPlanCache.Plan plan;
+
+	/**
+	 * Set if building criteria for the WebQuery has been deferred because it may not be necessary
+	 */
+	private WebQuery deferred;
+
 	public JPAQueryBuilder(final Session session, final QEntity entity, final boolean defaultPermitSchemaPrivate)
 	{
 		this.session = session;
@@ -87,6 +122,23 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	}
 
 
+	/**
+	 * Reuse JPQL compiled for earlier queries of the same shape (only applies to {@link #forWebQuery(WebQuery)} queries, and
+	 * count, ID and entity selects)
+	 *
+	 * @param planCache
+	 *
+	 * @return
+	 */
+	public JPAQueryBuilder<T, ID> withPlanCache(final JPAQueryPlanCache planCache)
+	{
+		if (planCache != null && planCache.isEnabled())
+			this.planCache = planCache;
+
+		return this;
+	}
+
+
 	void addFrom(final String subclasses)
 	{
 		if (StringUtils.isEmpty(subclasses))
@@ -155,6 +207,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	@Override
 	public void addConstraints(final Predicate... predicates)
 	{
+		ensureBuilt();
+
 		for (Predicate predicate : predicates)
 			this.conditions.add(predicate);
 
@@ -166,6 +220,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	@Override
 	public void addConstraints(List<WQConstraintLine> constraints)
 	{
+		ensureBuilt();
+
 		for (Predicate predicate : parseConstraint(constraints))
 		{
 			conditions.add(predicate);
@@ -208,6 +264,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	@Override
 	public JPAJoin getOrCreateJoin(final WQPath path)
 	{
+		ensureBuilt();
+
 		if (path == null)
 			return new JPAJoin(criteriaBuilder, entity, root, false);
 
@@ -258,19 +316,19 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 			case EQ:
 				return criteriaBuilder.equal(property, parse(property, line.value));
 			case NOT_IN:
-				return criteriaBuilder.not(property.in(param(parseValueList(property, line.valuelist))));
+				return criteriaBuilder.not(property.in(param(parseValueList(property, line.valuelist), property.getJavaType())));
 			case IN:
-				return property.in(param(parseValueList(property, line.valuelist)));
+				return property.in(param(parseValueList(property, line.valuelist), property.getJavaType()));
 			case NEQ:
 				return criteriaBuilder.notEqual(property, parse(property, line.value));
 			case CONTAINS:
-				return criteriaBuilder.like(property, "%" + line.value + "%");
+				return criteriaBuilder.like(property, param("%" + line.value + "%", String.class));
 			case NOT_CONTAINS:
-				return criteriaBuilder.notLike(property, "%" + line.value + "%");
+				return criteriaBuilder.notLike(property, param("%" + line.value + "%", String.class));
 			case STARTS_WITH:
-				return criteriaBuilder.like(property, line.value + "%");
+				return criteriaBuilder.like(property, param(line.value + "%", String.class));
 			case NOT_STARTS_WITH:
-				return criteriaBuilder.notLike(property, line.value + "%");
+				return criteriaBuilder.notLike(property, param(line.value + "%", String.class));
 			case RANGE:
 				return criteriaBuilder.between(property, parse(property, line.value), parse(property, line.value2));
 			case GE:
@@ -301,7 +359,7 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	private ParameterExpression parse(final Expression property, final String value)
 	{
-		return param(parseValue(property, value));
+		return param(parseValue(property, value), property.getJavaType());
 	}
 
 
@@ -341,7 +399,7 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 					                         .map(l -> parseValue(property, ((WQConstraint) l).value))
 					                         .toList();
 
-			final Predicate expr = property.in(param(ids));
+			final Predicate expr = property.in(param(ids, property.getJavaType()));
 
 			if (group.operator == WQGroupType.OR)
 				return expr;
@@ -380,19 +438,32 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	}
 
 
-	private <T> ParameterExpression<T> param(final T value)
+	/**
+	 * Create a parameter
+	 *
+	 * @param value
+	 * 		the parameter value
+	 * @param parsedAs
+	 * 		the type the value was parsed from the WebQuery as (or null if it did not come from the WebQuery)
+	 * @param <T>
+	 *
+	 * @return
+	 */
+	private <T> ParameterExpression<T> param(final T value, final Class<?> parsedAs)
 	{
 		final Class<T> clazz = (Class<T>) value.getClass();
 
-		final ParameterExpression<T> param = criteriaBuilder.parameter(clazz);
+		// N.B. parameters are explicitly named so they can be identified in the rendered JPQL
+		final ParameterExpression<T> param = criteriaBuilder.parameter(clazz, "p" + params.size());
 
 		params.put(param, value);
+		paramTypes.add(parsedAs);
 
 		return param;
 	}
 
 
-	private boolean shouldBeInCriteria(final WQGroup group)
+	static boolean shouldBeInCriteria(final WQGroup group)
 	{
 		if ((group.operator == WQGroupType.OR || group.operator == WQGroupType.NONE) && group.constraints.size() > 1)
 		{
@@ -428,8 +499,51 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 
 	public void forWebQuery(final WebQuery query)
+	{
+		this.shape = null;
+		this.plan = null;
+		this.deferred = null;
+
+		if (planCache != null)
+		{
+			this.shape = JPAQueryShape.of(entity, permitSchemaPrivate, query);
+			this.plan = planCache.get(shape.getKey());
+
+			// If this shape has been seen before we may not need to build the criteria at all
+			if (plan != null)
+			{
+				this.deferred = query;
+
+				offset(query.getOffset());
+				limit(query.getLimit());
+
+				return;
+			}
+		}
+
+		build(query);
+	}
+
+
+	/**
+	 * Build the criteria for a query if this was deferred by {@link #forWebQuery(WebQuery)}
+	 */
+	private void ensureBuilt()
+	{
+		if (deferred != null)
+		{
+			final WebQuery query = deferred;
+			deferred = null;
+
+			build(query);
+		}
+	}
+
+
+	private void build(final WebQuery query)
 	{
 		this.params.clear();
+		this.paramTypes.clear();
 		this.generated = criteriaBuilder.createQuery();
 		this.generated.distinct(false);
 
@@ -501,7 +615,11 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	public void forIDs(final WebQuery original, final List<?> ids)
 	{
+		this.shape = null;
+		this.plan = null;
+		this.deferred = null;
 		this.params.clear();
+		this.paramTypes.clear();
 		this.generated = criteriaBuilder.createQuery();
 		this.generated.distinct(false);
 
@@ -530,7 +648,7 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 			final Path id = root.get(root.getModel().getId(idClass));
 
-			generated.where(id.in(param(ids)));
+			generated.where(id.in(param(ids, null)));
 		}
 		else
 		{
@@ -539,6 +657,107 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	}
 
 
+	/**
+	 * Select those of the provided IDs whose entities still match the constraints of a WebQuery (ignoring its offset and limit,
+	 * since the IDs will already have been paged)
+	 *
+	 * @param query
+	 * 		the query the IDs were originally resolved with
+	 * @param ids
+	 * 		the IDs to check
+	 */
+	public void forIDsMatching(final WebQuery query, final List<?> ids)
+	{
+		this.shape = null;
+		this.plan = null;
+		this.deferred = null;
+
+		build(query);
+
+		this.offset = null;
+		this.limit = null;
+
+		addConstraints(getIdPath(root).in(param(ids, null)));
+	}
+
+
+	/**
+	 * Create a bulk delete of the entities with the provided IDs<br />
+	 * N.B. as with any JPA bulk operation this bypasses the session (so cascades are not applied and entities already loaded
+	 * into the session will not reflect the change)
+	 *
+	 * @param ids
+	 * 		the IDs of the entities to delete (generally the result of {@link #selectIDs()})
+	 *
+	 * @return
+	 */
+	public Query<?> createDelete(final List<?> ids)
+	{
+		final CriteriaDelete delete = criteriaBuilder.createCriteriaDelete(entity.getEntityClass());
+		final Root deleteRoot = delete.from(entity.getEntityClass());
+
+		delete.where(getIdPath(deleteRoot).in(ids));
+
+		return session.createQuery(delete);
+	}
+
+
+	/**
+	 * Create a bulk update of the entities with the provided IDs<br />
+	 * N.B. as with any JPA bulk operation this bypasses the session (so entities already loaded into the session will not reflect
+	 * the change)
+	 *
+	 * @param ids
+	 * 		the IDs of the entities to update (generally the result of {@link #selectIDs()})
+	 * @param assignments
+	 * 		the new value for each property (properties of embedded types may be named using dotted paths). String values are parsed
+	 * 		into the type of the property the same way WebQuery constraint values are
+	 *
+	 * @return
+	 */
+	public Query<?> createUpdate(final List<?> ids, final Map<String, Object> assignments)
+	{
+		if (assignments == null || assignments.isEmpty())
+			throw new IllegalArgumentException("Must specify at least one property to update!");
+
+		final CriteriaUpdate update = criteriaBuilder.createCriteriaUpdate(entity.getEntityClass());
+		final Root updateRoot = update.from(entity.getEntityClass());
+
+		for (Map.Entry<String, Object> assignment : assignments.entrySet())
+		{
+			Path path = updateRoot;
+			for (String segment : assignment.getKey().split("\\."))
+				path = path.get(segment);
+
+			final Object value = assignment.getValue();
+
+			if (value instanceof String str && path.getJavaType() != String.class)
+				update.set(path, WQTypeHelper.parse(path.getJavaType(), str));
+			else
+				update.set(path, value);
+		}
+
+		update.where(getIdPath(updateRoot).in(ids));
+
+		return session.createQuery(update);
+	}
+
+
+	private static Path getIdPath(final Root root)
+	{
+		if (root.getModel().hasSingleIdAttribute())
+		{
+			final Class idClass = root.getModel().getIdType().getJavaType();
+
+			return root.get(root.getModel().getId(idClass));
+		}
+		else
+		{
+			throw new NotImplementedException("Cannot handle bulk operation by IDs with IdClass!");
+		}
+	}
+
+
 	public Long selectCount()
 	{
 		Query<Long> query = createSelectCount();
@@ -585,6 +804,13 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	public Query<Long> createSelectCount()
 	{
+		final Query<Long> cached = createCachedQuery(SELECT_COUNT, false);
+
+		if (cached != null)
+			return cached;
+
+		ensureBuilt();
+
 		final Query<Long> query;
 		{
 			final CriteriaQuery<Long> cq = generated;
@@ -600,6 +826,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 			query.setParameter(entry.getKey(), entry.getValue());
 		}
 
+		compile(SELECT_COUNT, query);
+
 		return query;
 	}
 
@@ -614,6 +842,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	public <C> Query<C> createSelectCustom(JPAQueryCustomiser customiser)
 	{
+		ensureBuilt();
+
 		final Query<C> query;
 		{
 			final CriteriaQuery<C> cq = generated;
@@ -640,6 +870,8 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	public Query<Object[]> createSelectCustomProjection(final boolean distinct, String[] fields)
 	{
+		ensureBuilt();
+
 		final Query<Object[]> query;
 		{
 			final CriteriaQuery<Object[]> cq = generated;
@@ -690,6 +922,13 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 
 	public Query<ID> createSelectIDs()
 	{
+		final Query<ID> cached = createCachedQuery(SELECT_IDS, false);
+
+		if (cached != null)
+			return cached;
+
+		ensureBuilt();
+
 		final Query<ID> query;
 		{
 			final CriteriaQuery<ID> cq = generated;
@@ -719,12 +958,21 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 			query.setParameter(entry.getKey(), entry.getValue());
 		}
 
+		compile(SELECT_IDS, query);
+
 		return query;
 	}
 
 
 	public Query<T> createSelectEntity()
 	{
+		final Query<T> cached = createCachedQuery(SELECT_ENTITY, true);
+
+		if (cached != null)
+			return cached;
+
+		ensureBuilt();
+
 		final Query<T> query;
 		{
 			generated.select(root);
@@ -749,13 +997,128 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 			query.setParameter(entry.getKey(), entry.getValue());
 		}
 
+		compile(SELECT_ENTITY, query);
+
+		return query;
+	}
+
+
+	/**
+	 * Create a query from the JPQL previously compiled for this query shape, binding this query's values
+	 *
+	 * @param select
+	 * 		the kind of select
+	 * @param distinctRootEntity
+	 * 		true if entity results should be de-duplicated
+	 * @param <R>
+	 *
+	 * @return the query, or null if this select has not yet been compiled for this query shape
+	 */
+	private <R> Query<R> createCachedQuery(final String select, final boolean distinctRootEntity)
+	{
+		if (plan == null || deferred == null)
+			return null;
+
+		final JPAQueryPlanCache.Compiled compiled = plan.get(select);
+
+		if (compiled == null)
+			return null;
+
+		planCache.hit();
+
+		final Query<R> query = session.createQuery(compiled.jpql());
+
+		if (offset != null)
+			query.getQueryOptions().setFirstRow(offset);
+		if (limit != null)
+			query.getQueryOptions().setMaxRows(limit);
+
+		if (distinctRootEntity)
+			query.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+
+		for (int i = 0; i < compiled.paramTypes().size(); i++)
+		{
+			final Object value = shape.getValue(i, compiled.paramTypes().get(i));
+
+			if (value instanceof Collection<?> list)
+				query.setParameterList("p" + i, list);
+			else
+				query.setParameter("p" + i, value);
+		}
+
 		return query;
 	}
 
 
+	/**
+	 * Record the JPQL that the criteria for this query shape were rendered as, so later queries of the same shape can reuse it
+	 *
+	 * @param select
+	 * 		the kind of select
+	 * @param query
+	 */
+	private void compile(final String select, final Query<?> query)
+	{
+		if (shape == null)
+			return;
+
+		planCache.miss();
+
+		final String jpql = query.getQueryString();
+
+		if (isRebindable(jpql))
+		{
+			if (plan == null)
+				plan = planCache.getOrCreate(shape.getKey(), hasCollectionJoin(), hasCollectionFetch());
+
+			plan.put(select, new JPAQueryPlanCache.Compiled(jpql, new ArrayList<>(paramTypes)));
+		}
+		else if (log.isDebugEnabled())
+		{
+			log.debug("Cannot cache plan for query shape {}, parameters cannot be rebound reliably: {}", shape.getKey(), jpql);
+		}
+	}
+
+
+	/**
+	 * Check that the only parameters in the JPQL are the ones we created, and that {@link JPAQueryShape} supplies exactly the
+	 * values we bound to them (if not, a query of the same shape could not be reliably executed by binding its values)
+	 *
+	 * @param jpql
+	 *
+	 * @return
+	 */
+	private boolean isRebindable(final String jpql)
+	{
+		if (shape.getValueCount() != params.size())
+			return false;
+
+		final Set<String> expectedNames = new HashSet<>();
+		int i = 0;
+		for (Object value : params.values())
+		{
+			final Class<?> type = paramTypes.get(i);
+
+			if (type == null || !Objects.equals(value, shape.getValue(i, type)))
+				return false;
+
+			expectedNames.add("p" + i++);
+		}
+
+		final Set<String> names = new HashSet<>();
+		final Matcher matcher = JPQL_PARAMETER.matcher(jpql);
+		while (matcher.find())
+			names.add(matcher.group(1));
+
+		return names.equals(expectedNames);
+	}
+
+
 	@Override
 	public void applyFetches()
 	{
+		ensureBuilt();
+
 		if (fetches != null)
 			addFetches(fetches);
 	}
@@ -768,6 +1131,9 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	 */
 	public boolean hasCollectionJoin()
 	{
+		if (deferred != null)
+			return plan.hasCollectionJoin();
+
 		for (JPAJoin join : joins.values())
 		{
 			if (join.isCollection())
@@ -783,6 +1149,9 @@ public class JPAQueryBuilder<T, ID> implements JPAQueryBuilderInternal
 	 **/
 	public boolean hasCollectionFetch()
 	{
+		if (deferred != null)
+			return plan.hasCollectionFetch();
+
 		if (fetches != null)
 			for (String fetch : fetches)
 			{
@@ -0,0 +1,159 @@
+package com.peterphi.std.guice.hibernate.webquery.impl.jpa;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.guice.common.lifecycle.GuiceLifecycleListener;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Holds the JPQL that {@link JPAQueryBuilder} compiled for recently-seen {@link JPAQueryShape query shapes}, allowing queries
+ * with the same shape to skip building and rendering criteria and simply bind their parameter values
+ */
+@Singleton
+public class JPAQueryPlanCache implements GuiceLifecycleListener
+{
+	@Inject(optional = true)
+	@Named("hibernate.webquery.plan-cache.size")
+	@Doc("The maximum number of WebQuery shapes whose compiled JPQL is cached; 0 disables the cache (default 1000)")
+	int size = 1000;
+
+	@Inject
+	MetricRegistry metrics;
+
+	private Meter hits;
+	private Meter misses;
+
+	private Cache<String, Plan> plans;
+
+
+	@Override
+	public void postConstruct()
+	{
+		this.hits = metrics.meter(GuiceMetricNames.WEBQUERY_PLAN_CACHE_HITS);
+		this.misses = metrics.meter(GuiceMetricNames.WEBQUERY_PLAN_CACHE_MISSES);
+
+		if (size > 0)
+			this.plans = CacheBuilder.newBuilder().maximumSize(size).build();
+	}
+
+
+	public boolean isEnabled()
+	{
+		return plans != null;
+	}
+
+
+	/**
+	 * Retrieve the plan for a query shape
+	 *
+	 * @param key
+	 *
+	 * @return the plan, or null if no selects have been compiled for this shape yet
+	 */
+	Plan get(final String key)
+	{
+		return plans.getIfPresent(key);
+	}
+
+
+	/**
+	 * Retrieve the plan for a query shape, creating it if necessary
+	 *
+	 * @param key
+	 * @param hasCollectionJoin
+	 * @param hasCollectionFetch
+	 *
+	 * @return
+	 */
+	Plan getOrCreate(final String key, final boolean hasCollectionJoin, final boolean hasCollectionFetch)
+	{
+		try
+		{
+			return plans.get(key, () -> new Plan(hasCollectionJoin, hasCollectionFetch));
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+
+	void hit()
+	{
+		hits.mark();
+	}
+
+
+	void miss()
+	{
+		misses.mark();
+	}
+
+
+	/**
+	 * Everything known about a query shape: facts about its joins (needed to pick a search strategy) and the JPQL compiled for each
+	 * kind of select performed against it
+	 */
+	static final class Plan
+	{
+		private final boolean hasCollectionJoin;
+		private final boolean hasCollectionFetch;
+
+		private final Map<String, Compiled> selects = new ConcurrentHashMap<>();
+
+
+		Plan(final boolean hasCollectionJoin, final boolean hasCollectionFetch)
+		{
+			this.hasCollectionJoin = hasCollectionJoin;
+			this.hasCollectionFetch = hasCollectionFetch;
+		}
+
+
+		boolean hasCollectionJoin()
+		{
+			return hasCollectionJoin;
+		}
+
+
+		boolean hasCollectionFetch()
+		{
+			return hasCollectionFetch;
+		}
+
+
+		Compiled get(final String select)
+		{
+			return selects.get(select);
+		}
+
+
+		void put(final String select, final Compiled compiled)
+		{
+			selects.put(select, compiled);
+		}
+	}
+
+
+	/**
+	 * A compiled select
+	 *
+	 * @param jpql
+	 * 		the JPQL, with parameters named <code>p0</code>, <code>p1</code>, ...
+	 * @param paramTypes
+	 * 		the type each parameter's value is parsed as
+	 */
+	record Compiled(String jpql, List<Class<?>> paramTypes)
+	{
+	}
+}
@@ -0,0 +1,180 @@
+package com.peterphi.std.guice.hibernate.webquery.impl.jpa;
+
+import com.peterphi.std.guice.hibernate.webquery.impl.QEntity;
+import com.peterphi.std.guice.hibernate.webquery.impl.WQTypeHelper;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQConstraint;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQConstraintLine;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQGroup;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQOrder;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The structural shape of a {@link WebQuery} (the entity, fields, functions, grouping, ordering and fetches, but not the values
+ * being compared against) together with the parameter values it supplies.<br />
+ * Two queries with the same shape produce the same JPQL from {@link JPAQueryBuilder}, differing only in parameter values; the
+ * values are listed in the order the builder creates its parameters, so a query compiled for one can be re-bound for the other.
+ */
+final class JPAQueryShape
+{
+	private final String key;
+	private final List<Object> values;
+
+
+	private JPAQueryShape(final String key, final List<Object> values)
+	{
+		this.key = key;
+		this.values = values;
+	}
+
+
+	public static JPAQueryShape of(final QEntity entity, final boolean permitSchemaPrivate, final WebQuery query)
+	{
+		final StringBuilder sb = new StringBuilder(128);
+		final List<Object> values = new ArrayList<>();
+
+		sb.append(entity.getEntityClass().getName());
+		sb.append("|private=").append(permitSchemaPrivate);
+		sb.append("|subclass=").append(query.constraints.subclass);
+		sb.append("|fetch=").append(query.fetch);
+		sb.append("|dbfetch=").append(query.dbfetch);
+		sb.append("|expand=").append(query.expand);
+
+		sb.append("|where=");
+		appendConstraints(sb, values, query.constraints.constraints);
+
+		sb.append("|order=");
+		for (WQOrder order : query.orderings)
+			sb.append(order.field).append(order.isAsc() ? " ASC," : " DESC,");
+
+		return new JPAQueryShape(sb.toString(), values);
+	}
+
+
+	private static void appendConstraints(final StringBuilder sb, final List<Object> values, final List<WQConstraintLine> lines)
+	{
+		for (WQConstraintLine line : lines)
+		{
+			if (line instanceof WQConstraint c)
+				appendConstraint(sb, values, c);
+			else if (line instanceof WQGroup g)
+				appendGroup(sb, values, g);
+			else
+				throw new IllegalArgumentException("Unknown constraint line type: " + line);
+
+			sb.append(';');
+		}
+	}
+
+
+	private static void appendGroup(final StringBuilder sb, final List<Object> values, final WQGroup group)
+	{
+		sb.append(group.operator).append('(');
+
+		if (JPAQueryBuilder.shouldBeInCriteria(group))
+		{
+			// Builder turns this into a single IN parameter
+			final List<String> list = new ArrayList<>(group.constraints.size());
+			for (WQConstraintLine line : group.constraints)
+				list.add(((WQConstraint) line).value);
+
+			sb.append(((WQConstraint) group.constraints.get(0)).field).append(" IN*").append(group.constraints.size());
+			values.add(list);
+		}
+		else
+		{
+			appendConstraints(sb, values, group.constraints);
+		}
+
+		sb.append(')');
+	}
+
+
+	private static void appendConstraint(final StringBuilder sb, final List<Object> values, final WQConstraint line)
+	{
+		sb.append(line.field).append(' ').append(line.function);
+
+		switch (line.function)
+		{
+			case IS_NULL:
+			case NOT_NULL:
+				break;
+			case IN:
+			case NOT_IN:
+				values.add(line.valuelist);
+				break;
+			case CONTAINS:
+			case NOT_CONTAINS:
+				values.add("%" + line.value + "%");
+				break;
+			case STARTS_WITH:
+			case NOT_STARTS_WITH:
+				values.add(line.value + "%");
+				break;
+			case RANGE:
+				values.add(line.value);
+				values.add(line.value2);
+				break;
+			case EQ_REF:
+			case NEQ_REF:
+			case GE_REF:
+			case GT_REF:
+			case LE_REF:
+			case LT_REF:
+				// The value is another field, so is part of the shape
+				sb.append(' ').append(line.value);
+				break;
+			default:
+				values.add(line.value);
+		}
+	}
+
+
+	/**
+	 * The shape of the query
+	 *
+	 * @return
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+
+	public int getValueCount()
+	{
+		return values.size();
+	}
+
+
+	/**
+	 * Parse the value supplied for a parameter
+	 *
+	 * @param index
+	 * 		the parameter index
+	 * @param type
+	 * 		the type the builder parsed this value as
+	 *
+	 * @return the parsed value (or list of values)
+	 */
+	public Object getValue(final int index, final Class<?> type)
+	{
+		final Object raw = values.get(index);
+
+		if (raw instanceof List<?> list)
+		{
+			final List<Object> parsed = new ArrayList<>(list.size());
+
+			for (Object item : list)
+				parsed.add(WQTypeHelper.parse(type, (String) item));
+
+			return parsed;
+		}
+		else
+		{
+			return WQTypeHelper.parse(type, (String) raw);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.peterphi.std.guice.hibernate.webquery.impl.jpa;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Exposes the results of a query as a {@link Stream} backed by a forward-only {@link ScrollableResults}, periodically detaching
+ * the entities loaded by the stream from the session so that arbitrarily large resultsets can be walked without the session
+ * growing.<br />
+ * The stream must be consumed within the transaction it was created in, and should be closed (or fully consumed) to release the
+ * underlying cursor.
+ */
+final class JPAResultStream
+{
+	private JPAResultStream()
+	{
+	}
+
+
+	/**
+	 * Stream the rows returned by a query
+	 *
+	 * @param session   the session the query was created against
+	 * @param query     the query
+	 * @param fetchSize the JDBC fetch size; if <code>entities</code> is true then also the number of entities emitted between
+	 *                  detaching them from the session
+	 * @param entities  true if the rows contain managed entities that should be periodically detached
+	 * @param mapper    converts the raw row into the desired output
+	 * @param <T>
+	 * @return
+	 */
+	static <T> Stream<T> scroll(final Session session,
+	                            final Query<?> query,
+	                            final int fetchSize,
+	                            final boolean entities,
+	                            final Function<Object[], T> mapper)
+	{
+		final ScrollingIterator<T> it = new ScrollingIterator<>(entities ? new Detacher(session) : null, query, fetchSize, mapper);
+
+		return toStream(it).onClose(it :: close);
+	}
+
+
+	/**
+	 * Stream entities by scrolling through their IDs, loading the entities for each batch of <code>fetchSize</code> IDs with a
+	 * separate query (similar to {@link JPASearchStrategy#ID_THEN_QUERY_ENTITY}). Necessary where the entity query would return
+	 * more than one row per entity (e.g. because of collection fetches). The ID query may also repeat an ID (e.g. when ordering by
+	 * a collection); repeats within the current or previous batch of IDs are skipped, but (so that the heap used does not grow with
+	 * the number of IDs) an ID repeated further apart than that will be emitted again, just as it would appear on more than one
+	 * page of {@link JPASearchStrategy#ID_THEN_QUERY_ENTITY} results
+	 *
+	 * @param session   the session the query was created against
+	 * @param idQuery   a query returning entity IDs
+	 * @param fetchSize the JDBC fetch size, as well as the number of entities to load per batch
+	 * @param loader    loads the entities for a batch of IDs, in the desired order
+	 * @param <T>
+	 * @return
+	 */
+	static <T> Stream<T> scrollThenLoad(final Session session,
+	                                    final Query<?> idQuery,
+	                                    final int fetchSize,
+	                                    final Function<List<Object>, List<T>> loader)
+	{
+		final ScrollingIterator<Object> ids = new ScrollingIterator<>(null, idQuery, fetchSize, r -> r[0]);
+		final BatchLoadingIterator<T> it = new BatchLoadingIterator<>(new Detacher(session), ids, fetchSize, loader);
+
+		return toStream(it).onClose(ids :: close);
+	}
+
+
+	private static <T> Stream<T> toStream(final Iterator<T> it)
+	{
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+
+	/**
+	 * Detaches the entities loaded while streaming (both those emitted and any associated entities loaded alongside them), leaving
+	 * any entities the session held before streaming began untouched. Pending changes are flushed first (unless the session is
+	 * read-only) so that modifications made to emitted entities are not lost
+	 */
+	private static class Detacher
+	{
+		private final Session session;
+
+		/**
+		 * The entities in the session before streaming began
+		 */
+		private final Set<Object> retained = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+		public Detacher(final Session session)
+		{
+			this.session = session;
+
+			for (Map.Entry<Object, EntityEntry> entry : persistenceContext().reentrantSafeEntityEntries())
+				retained.add(entry.getKey());
+		}
+
+
+		public void detach()
+		{
+			if (!session.isDefaultReadOnly())
+				session.flush();
+
+			if (retained.isEmpty())
+			{
+				session.clear();
+			}
+			else
+			{
+				for (Map.Entry<Object, EntityEntry> entry : persistenceContext().reentrantSafeEntityEntries())
+					if (!retained.contains(entry.getKey()) && session.contains(entry.getKey()))
+						session.evict(entry.getKey());
+			}
+		}
+
+
+		private PersistenceContext persistenceContext()
+		{
+			return session.unwrap(SessionImplementor.class).getPersistenceContext();
+		}
+	}
+
+
+	private static class ScrollingIterator<T> implements Iterator<T>, AutoCloseable
+	{
+		private final Detacher detacher;
+		private final ScrollableResults results;
+		private final Function<Object[], T> mapper;
+		private final int detachInterval;
+
+		/**
+		 * The number of entities emitted since the session was last detached (unused if we're not emitting entities)
+		 */
+		private int emitted = 0;
+
+		private boolean closed = false;
+		private Boolean hasNext = null;
+
+
+		/**
+		 * @param detacher
+		 * 		detaches the entities emitted, or null if the rows do not contain entities
+		 * @param query
+		 * @param fetchSize
+		 * @param mapper
+		 */
+		public ScrollingIterator(final Detacher detacher,
+		                         final Query<?> query,
+		                         final int fetchSize,
+		                         final Function<Object[], T> mapper)
+		{
+			this.detacher = detacher;
+			this.mapper = mapper;
+			this.detachInterval = fetchSize;
+
+			query.setFetchSize(fetchSize);
+
+			this.results = query.scroll(ScrollMode.FORWARD_ONLY);
+		}
+
+
+		@Override
+		public boolean hasNext()
+		{
+			if (hasNext == null)
+			{
+				if (closed)
+				{
+					hasNext = false;
+				}
+				else
+				{
+					// Detach the entities we've already emitted before fetching the next row
+					if (detacher != null && emitted >= detachInterval)
+					{
+						detacher.detach();
+						emitted = 0;
+					}
+
+					hasNext = results.next();
+
+					// Release the cursor as soon as we hit the end
+					if (!hasNext)
+						close();
+				}
+			}
+
+			return hasNext;
+		}
+
+
+		@Override
+		public T next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			hasNext = null;
+
+			final Object[] row = results.get();
+
+			emitted++;
+
+			return mapper.apply(row);
+		}
+
+
+		@Override
+		public void close()
+		{
+			if (!closed)
+			{
+				closed = true;
+				results.close();
+			}
+		}
+	}
+
+
+	private static class BatchLoadingIterator<T> implements Iterator<T>
+	{
+		private final Detacher detacher;
+		private final Iterator<Object> ids;
+		private final int batchSize;
+		private final Function<List<Object>, List<T>> loader;
+
+		/**
+		 * The IDs of the previous batch (the ID query may repeat an ID, and adjacent repeats may straddle two batches)
+		 */
+		private Set<Object> previousIds = Collections.emptySet();
+
+		private Iterator<T> batch = null;
+
+
+		public BatchLoadingIterator(final Detacher detacher,
+		                            final Iterator<Object> ids,
+		                            final int batchSize,
+		                            final Function<List<Object>, List<T>> loader)
+		{
+			this.detacher = detacher;
+			this.ids = ids;
+			this.batchSize = batchSize;
+			this.loader = loader;
+		}
+
+
+		@Override
+		public boolean hasNext()
+		{
+			while (batch == null || !batch.hasNext())
+			{
+				if (!ids.hasNext())
+					return false;
+
+				if (batch != null)
+					detacher.detach();
+
+				final Set<Object> batchIds = new LinkedHashSet<>(batchSize);
+				while (batchIds.size() < batchSize && ids.hasNext())
+				{
+					final Object id = ids.next();
+
+					if (!previousIds.contains(id))
+						batchIds.add(id);
+				}
+
+				previousIds = batchIds;
+				batch = batchIds.isEmpty() ? null : loader.apply(new ArrayList<>(batchIds)).iterator();
+			}
+
+			return true;
+		}
+
+
+		@Override
+		public T next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			return batch.next();
+		}
+	}
+}
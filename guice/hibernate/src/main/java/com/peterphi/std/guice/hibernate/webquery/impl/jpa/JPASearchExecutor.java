@@ -1,26 +1,51 @@
 package com.peterphi.std.guice.hibernate.webquery.impl.jpa;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.peterphi.std.NotImplementedException;
+import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.guice.common.lifecycle.GuiceLifecycleListener;
+import com.peterphi.std.guice.hibernate.module.ReadReplicaRoutingConnectionProvider;
 import com.peterphi.std.guice.hibernate.module.logging.HibernateObservingInterceptor;
 import com.peterphi.std.guice.hibernate.module.logging.HibernateSQLLogger;
 import com.peterphi.std.guice.hibernate.webquery.ConstrainedResultSet;
 import com.peterphi.std.guice.hibernate.webquery.impl.QEntity;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQConstraintLine;
 import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.threading.Timeout;
 import com.peterphi.std.util.tracing.Tracing;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.hibernate.Filter;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.internal.FilterImpl;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Singleton
-public class JPASearchExecutor
+public class JPASearchExecutor implements GuiceLifecycleListener
 {
 	private static final Logger log = LoggerFactory.getLogger(JPASearchExecutor.class);
 
@@ -36,6 +61,60 @@ public class JPASearchExecutor
 	@Inject
 	SessionFactory sessionFactory;
 
+	@Inject
+	JPAQueryPlanCache planCache;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.stream.fetch-size")
+	@Doc("The default JDBC fetch size when streaming WebQuery results; also the number of entities emitted before they are detached from the session (default 1000)")
+	int defaultStreamFetchSize = 1000;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.count.parallel")
+	@Doc("If true, the total size for a query in a read-only transaction is computed on a separate session at the same time as the results are fetched (default false)")
+	boolean parallelCount = false;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.count.approximate-query")
+	@Doc("Native SQL returning the database's estimate of the rows in table :table (e.g. SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(:table) for PostgreSQL). If set, unconstrained computeSize queries (with no Hibernate filters enabled) report this estimate as the total size when it is at least the approximate-threshold (default none)")
+	String approximateCountQuery = null;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.count.approximate-threshold")
+	@Doc("The estimated number of rows at or above which an approximate total size is returned instead of running a COUNT (default 100000)")
+	long approximateCountThreshold = 100000;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.count.cache-ttl")
+	@Doc("How long the total size for a set of constraints is cached for and reused by subsequent queries; 0 disables caching (default 0)")
+	Timeout countCacheTtl = Timeout.ZERO;
+
+	@Inject(optional = true)
+	@Named("hibernate.webquery.count.cache-size")
+	@Doc("The maximum number of cached total sizes (default 1000)")
+	int countCacheSize = 1000;
+
+	/**
+	 * Recently computed total sizes, keyed by entity and normalised constraints (null if caching is disabled)
+	 */
+	private Cache<String, Count> countCache;
+
+	/**
+	 * Runs parallel COUNT queries; these spend nearly all their time waiting on the database, so a virtual thread is used for each
+	 */
+	private static final Executor COUNT_EXECUTOR = r -> Thread.ofVirtual().name("webquery-count").start(r);
+
+
+	@Override
+	public void postConstruct()
+	{
+		if (countCacheTtl.getMilliseconds() > 0)
+			countCache = CacheBuilder.newBuilder()
+			                         .maximumSize(countCacheSize)
+			                         .expireAfterWrite(countCacheTtl.getMilliseconds(), TimeUnit.MILLISECONDS)
+			                         .build();
+	}
+
 
 	/**
 	 * Execute a search, returning a ConstrainedResultSet populated with the desired data (ID or Entity) with each piece of data
@@ -67,23 +146,44 @@ public class JPASearchExecutor
 		try
 		{
 
+			final Session session = sessionFactory.getCurrentSession();
+
 			// Build a view of the query based on
-			JPAQueryBuilder builder = new JPAQueryBuilder(sessionFactory.getCurrentSession(), entity, permitSchemaPrivate);
+			JPAQueryBuilder builder = new JPAQueryBuilder(session, entity, permitSchemaPrivate).withPlanCache(planCache);
 
 			builder.forWebQuery(query);
 
 			// First, compute the total size if requested
-			final Long total;
-			if (ALWAYS_COMPUTE_SIZE || query.isComputeSize() || strategy == JPASearchStrategy.COUNT_ONLY)
+			Count total = null;
+			boolean totalCached = false;
+			CompletableFuture<Count> parallelTotal = null;
+			if (strategy == JPASearchStrategy.COUNT_ONLY)
 			{
-				JPAQueryBuilder countBuilder = new JPAQueryBuilder(sessionFactory.getCurrentSession(), entity, permitSchemaPrivate);
-				countBuilder.forWebQuery(query);
-
-				total = countBuilder.selectCount();
+				// Callers asking only for a count expect an exact, current total (so never approximate or use the cache)
+				total = count(session, entity, query, permitSchemaPrivate, false, null);
 			}
-			else
+			else if (ALWAYS_COMPUTE_SIZE || query.isComputeSize())
 			{
-				total = null;
+				final String filters = getEnabledFilters(session);
+				final String cacheKey = (countCache != null) ? getCountCacheKey(entity, query, permitSchemaPrivate, filters) : null;
+
+				if (cacheKey != null)
+					total = countCache.getIfPresent(cacheKey);
+
+				if (total != null)
+				{
+					totalCached = true;
+					Tracing.logOngoing(traceOperationId, "WebQuery:exec:count", "cached");
+				}
+				else if (canCountInParallel(session, query, filters))
+				{
+					parallelTotal = countInParallel(entity, query, permitSchemaPrivate, cacheKey);
+				}
+				else
+				{
+					// Table statistics cannot account for the rows hidden by any enabled filters
+					total = count(session, entity, query, permitSchemaPrivate, filters.isEmpty(), cacheKey);
+				}
 			}
 
 
@@ -93,39 +193,14 @@ public class JPASearchExecutor
 				// Special limit value of -1 means do not fetch any result data (used when just wanting to compute totals)
 				list = Collections.emptyList();
 			}
-			else if (!ALWAYS_COMPUTE_SIZE && total != null && total.longValue() == 0)
+			else if (!ALWAYS_COMPUTE_SIZE && total != null && !totalCached && !total.approximate() && total.total() == 0)
 			{
-				// Count ran and indicated there were no results, so no need to re-query
+				// Count ran and indicated there were no results, so no need to re-query (N.B. a cached count may be out of date)
 				list = Collections.emptyList();
 			}
 			else
 			{
-				// If the auto strategy is in play, take into account what's being fetched back as well as whether there are any explicit collection joins or fetches
-				if (strategy == null || strategy == JPASearchStrategy.AUTO)
-				{
-					if (StringUtils.equals(query.getFetch(), "id"))
-					{
-						strategy = JPASearchStrategy.ENTITY_WRAPPED_ID;
-					}
-					else if (query.getFetch() == null || StringUtils.equals(query.getFetch(), "entity"))
-					{
-						// If we're constraining by (or fetching) a collection AND we have a limit/offset, first get PKs for the entities and then fetch the entities
-						// This is necessary for correct pagination because the SQL resultset will have more than one row per entity, and our offset/limit is based on entity
-						if ((query.getLimit() > 0 || query.getOffset() > 0) && (builder.hasCollectionJoin() || builder.hasCollectionFetch()))
-						{
-							strategy = JPASearchStrategy.ID_THEN_QUERY_ENTITY;
-						}
-						else
-						{
-							strategy = JPASearchStrategy.ENTITY;
-						}
-					}
-					else
-					{
-						// Multiple values specified for fetch, so we ask for exactly what the user has requested
-						strategy = JPASearchStrategy.CUSTOM_PROJECTION;
-					}
-				}
+				strategy = resolveStrategy(query, builder, strategy);
 
 				switch (strategy)
 				{
@@ -145,7 +220,7 @@ public class JPASearchExecutor
 						else
 						{
 							// N.B. the returned array will also contain any order by elements if distinct=true
-							final String[] fields = StringUtils.split(query.getFetch(), ',');
+							final String[] fields = StringUtils.stripAll(StringUtils.split(query.getFetch(), ','));
 
 							// Generally, CUSTOM_PROJECTION must be DISTINCT for backwards compatibility
 							// However we can guarantee that the PK will be distinct already, so PK+a single other field doesn't need DISTINCT
@@ -185,7 +260,7 @@ public class JPASearchExecutor
 					}
 					case ENTITY:
 					{
-						// TODO could we use ScrollableResults if there are collection joins? pagination would be tricky
+						// N.B. see stream for a ScrollableResults-based alternative for large resultsets
 
 						list = builder.selectEntity();
 
@@ -199,7 +274,7 @@ public class JPASearchExecutor
 						// Now re-query to retrieve the entities
 						if (!list.isEmpty())
 						{
-							builder = new JPAQueryBuilder(sessionFactory.getCurrentSession(), entity, permitSchemaPrivate);
+							builder = new JPAQueryBuilder(session, entity, permitSchemaPrivate);
 							builder.forIDs(query, list);
 
 							list = builder.selectEntity();
@@ -217,15 +292,21 @@ public class JPASearchExecutor
 					list = (List) list.stream().map(serialiser).collect(Collectors.toList());
 			}
 
+			if (parallelTotal != null)
+				total = awaitCount(parallelTotal);
+
 			ConstrainedResultSet resultset = new ConstrainedResultSet<>(query, list);
 
 			if (statementLog != null && query.isLogSQL())
 				resultset.setSql(statementLog.getAllStatements());
 
 			if (total != null)
-				resultset.setTotal(total);
+			{
+				resultset.setTotal(total.total());
+				resultset.setTotalApproximate(total.approximate());
+			}
 
-			Tracing.logOngoing(traceOperationId, "WebQuery:exec:result", "size=", resultset.getList().size(), ", total=", total);
+			Tracing.logOngoing(traceOperationId, "WebQuery:exec:result", "size=", resultset.getList().size(), ", total=", resultset.getTotal());
 
 			return (ConstrainedResultSet<T>) resultset;
 		}
@@ -237,6 +318,394 @@ public class JPASearchExecutor
 	}
 
 
+	/**
+	 * Execute a search, returning a Stream of the desired data (ID, Entity or projection) backed by a forward-only database
+	 * cursor. Entities already emitted are periodically detached from the session, so arbitrarily large resultsets can be walked
+	 * in constant heap.<br />
+	 * <strong>The stream must be consumed within the current transaction, and should be closed once no longer needed.</strong>
+	 * Since previously-emitted entities are detached, lazy relations on them cannot be navigated once further entities have been
+	 * consumed.<br />
+	 * Unlike {@link #find(QEntity, WebQuery, JPASearchStrategy, Function, boolean)}, the total size is never computed, SQL is not
+	 * logged, and custom projections are always returned as Object[]
+	 *
+	 * @param entity
+	 * @param query               the query to execute (including options like offset/limit)
+	 * @param strategy            the strategy to use (COUNT_ONLY is not supported). Entity queries that would produce more than
+	 *                            one row per entity (e.g. collection joins or fetches) are always executed as {@link
+	 *                            JPASearchStrategy#ID_THEN_QUERY_ENTITY}, loading entities in batches of <code>fetchSize</code>
+	 * @param fetchSize           the JDBC fetch size (and the number of entities emitted between detaching them from the
+	 *                            session). If &lt;= 0 then the configured default will be used
+	 * @param permitSchemaPrivate
+	 * @param <T>
+	 * @return
+	 */
+	public <T> Stream<T> stream(final QEntity entity,
+	                            final WebQuery query,
+	                            JPASearchStrategy strategy,
+	                            int fetchSize,
+	                            final boolean permitSchemaPrivate)
+	{
+		final Session session = sessionFactory.getCurrentSession();
+
+		if (!session.getTransaction().isActive())
+			throw new IllegalStateException("WebQuery results can only be streamed within a transaction!");
+		else if (strategy == JPASearchStrategy.COUNT_ONLY)
+			throw new IllegalArgumentException("Cannot stream results for COUNT_ONLY search strategy!");
+
+		if (fetchSize <= 0)
+			fetchSize = defaultStreamFetchSize;
+
+		Tracing.logOngoing(Tracing.newOperationId("WebQuery:stream", query), "WebQuery:stream:fetchSize", fetchSize);
+
+		// Special limit value of -1 means do not fetch any result data
+		if (query.getLimit() == WebQuery.LIMIT_RETURN_ZERO)
+			return Stream.empty();
+
+		final JPAQueryBuilder builder = new JPAQueryBuilder(session, entity, permitSchemaPrivate).withPlanCache(planCache);
+		builder.forWebQuery(query);
+
+		strategy = resolveStrategy(query, builder, strategy);
+
+		// Scrolling through an entity query is only possible if each entity is a single row
+		if (strategy == JPASearchStrategy.ENTITY && (builder.hasCollectionJoin() || builder.hasCollectionFetch()))
+			strategy = JPASearchStrategy.ID_THEN_QUERY_ENTITY;
+
+		switch (strategy)
+		{
+			case ID:
+				return JPAResultStream.scroll(session, builder.createSelectIDs(), fetchSize, false, r -> (T) r[0]);
+			case ENTITY_WRAPPED_ID:
+				return JPAResultStream.scroll(session,
+				                              builder.createSelectIDs(),
+				                              fetchSize,
+				                              false,
+				                              r -> (T) entity.newInstanceWithId(r[0]));
+			case CUSTOM_PROJECTION:
+			case CUSTOM_PROJECTION_NODISTINCT:
+			{
+				if (StringUtils.equals(query.getFetch(), "id"))
+				{
+					return JPAResultStream.scroll(session, builder.createSelectIDs(), fetchSize, false, r -> (T) r);
+				}
+				else
+				{
+					final String[] fields = StringUtils.stripAll(StringUtils.split(query.getFetch(), ','));
+
+					// Same DISTINCT rules as find: PK+a single other field doesn't need DISTINCT
+					final boolean distinct = (strategy == JPASearchStrategy.CUSTOM_PROJECTION) &&
+					                         !(fields.length <= 2 && "id".equals(fields[0]));
+
+					// N.B. a multiselect row may be returned wrapped in a single-element array
+					return JPAResultStream.scroll(session,
+					                              builder.createSelectCustomProjection(distinct, fields),
+					                              fetchSize,
+					                              false,
+					                              r -> (T) ((r.length == 1 && r[0] instanceof Object[] row) ? row : r));
+				}
+			}
+			case ENTITY:
+				return JPAResultStream.scroll(session, builder.createSelectEntity(), fetchSize, true, r -> (T) r[0]);
+			case ID_THEN_QUERY_ENTITY:
+				return JPAResultStream.scrollThenLoad(session, builder.createSelectIDs(), fetchSize, ids -> {
+					final JPAQueryBuilder batchBuilder = new JPAQueryBuilder(session, entity, permitSchemaPrivate);
+					batchBuilder.forIDs(query, ids);
+
+					return batchBuilder.selectEntity();
+				});
+			default:
+				throw new NotImplementedException("Search Strategy " + strategy + " not yet implemented for streaming");
+		}
+	}
+
+
+	/**
+	 * Decide whether the COUNT for a query can be run on a separate session at the same time as the data query. This is only
+	 * permitted for read-only transactions (since the separate session cannot see uncommitted changes) where the data query is
+	 * actually going to run, where SQL is not being logged, and where no Hibernate filters are enabled (since the separate session
+	 * would not apply them)
+	 *
+	 * @param session
+	 * @param query
+	 * @param filters
+	 * 		the filters enabled on the session
+	 *
+	 * @return
+	 */
+	private boolean canCountInParallel(final Session session, final WebQuery query, final String filters)
+	{
+		return parallelCount &&
+		       filters.isEmpty() &&
+		       query.getLimit() != WebQuery.LIMIT_RETURN_ZERO &&
+		       !query.isLogSQL() &&
+		       session.isDefaultReadOnly();
+	}
+
+
+	/**
+	 * Count the results for a query on a new read-only session in another thread (within the caller's trace)
+	 *
+	 * @param entity
+	 * @param query
+	 * @param permitSchemaPrivate
+	 * @param cacheKey
+	 * 		the count cache key (or null if the result should not be cached)
+	 *
+	 * @return
+	 */
+	private CompletableFuture<Count> countInParallel(final QEntity entity,
+	                                                 final WebQuery query,
+	                                                 final boolean permitSchemaPrivate,
+	                                                 final String cacheKey)
+	{
+		final Function<Void, Count> task = Tracing.wrap(ignored -> {
+			final boolean wasReadOnly = ReadReplicaRoutingConnectionProvider.setReadOnly(true);
+
+			try (Session session = sessionFactory.openSession())
+			{
+				session.setDefaultReadOnly(true);
+				session.setHibernateFlushMode(FlushMode.MANUAL);
+
+				final Transaction tx = session.beginTransaction();
+				try
+				{
+					return count(session, entity, query, permitSchemaPrivate, true, cacheKey);
+				}
+				finally
+				{
+					tx.rollback();
+				}
+			}
+			finally
+			{
+				ReadReplicaRoutingConnectionProvider.setReadOnly(wasReadOnly);
+			}
+		});
+
+		return CompletableFuture.supplyAsync(() -> task.apply(null), COUNT_EXECUTOR);
+	}
+
+
+	private static Count awaitCount(final CompletableFuture<Count> future)
+	{
+		try
+		{
+			return future.join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else
+				throw e;
+		}
+	}
+
+
+	/**
+	 * Count the results for a query, using the approximate row count for the table if possible
+	 *
+	 * @param session
+	 * @param entity
+	 * @param query
+	 * @param permitSchemaPrivate
+	 * @param approximate
+	 * 		if true, the database's estimate of the rows in the table may be used for unconstrained queries (N.B. must be false if any
+	 * 		Hibernate filters are enabled on the session)
+	 * @param cacheKey
+	 * 		the count cache key (or null if the result should not be cached)
+	 *
+	 * @return
+	 */
+	private Count count(final Session session,
+	                    final QEntity entity,
+	                    final WebQuery query,
+	                    final boolean permitSchemaPrivate,
+	                    final boolean approximate,
+	                    final String cacheKey)
+	{
+		Count count = null;
+
+		// Statistics can only be used if the query would count every row in the table
+		if (approximate &&
+		    approximateCountQuery != null &&
+		    query.constraints.constraints.isEmpty() &&
+		    query.constraints.subclass == null)
+		{
+			final Long estimate = estimateRowCount(session, entity);
+
+			if (estimate != null && estimate >= approximateCountThreshold)
+				count = new Count(estimate, true);
+		}
+
+		if (count == null)
+		{
+			JPAQueryBuilder countBuilder = new JPAQueryBuilder(session, entity, permitSchemaPrivate).withPlanCache(planCache);
+			countBuilder.forWebQuery(query);
+
+			count = new Count(countBuilder.selectCount(), false);
+		}
+
+		if (cacheKey != null)
+			countCache.put(cacheKey, count);
+
+		return count;
+	}
+
+
+	/**
+	 * Ask the database for its estimate of the number of rows in the entity's table
+	 *
+	 * @param session
+	 * @param entity
+	 *
+	 * @return the estimate, or null if the table holds rows for other entity types too (so an estimate would be misleading)
+	 */
+	private Long estimateRowCount(final Session session, final QEntity entity)
+	{
+		final EntityPersister persister = sessionFactory.unwrap(SessionFactoryImplementor.class)
+		                                                .getMetamodel()
+		                                                .entityPersister(entity.getEntityClass());
+
+		if (!(persister instanceof AbstractEntityPersister table) ||
+		    persister.getEntityMetamodel().getSuperclass() != null ||
+		    persister.getEntityMetamodel().hasSubclasses())
+			return null;
+
+		final Object estimate = session.createNativeQuery(approximateCountQuery)
+		                               .setParameter("table", table.getTableName())
+		                               .uniqueResult();
+
+		return (estimate != null) ? ((Number) estimate).longValue() : null;
+	}
+
+
+	/**
+	 * Build a key for the count cache that is the same for all queries with the same constraints and permissions (regardless of
+	 * paging, ordering, the data being fetched or the order in which the top-level constraints were specified)
+	 *
+	 * @param entity
+	 * @param query
+	 * @param permitSchemaPrivate
+	 * 		whether the query may use private fields (so that a total computed with access to private fields is never returned to a
+	 * 		caller without it)
+	 * @param filters
+	 * 		the Hibernate filters enabled on the session (which further constrain the results)
+	 *
+	 * @return
+	 */
+	private static String getCountCacheKey(final QEntity entity,
+	                                       final WebQuery query,
+	                                       final boolean permitSchemaPrivate,
+	                                       final String filters)
+	{
+		final List<String> lines = new ArrayList<>(query.constraints.constraints.size());
+
+		for (WQConstraintLine line : query.constraints.constraints)
+		{
+			final StringBuilder sb = new StringBuilder();
+			line.toQueryFragment(sb);
+			lines.add(sb.toString());
+		}
+
+		Collections.sort(lines);
+
+		return entity.getName() +
+		       "|" +
+		       permitSchemaPrivate +
+		       "|" +
+		       filters +
+		       "|" +
+		       query.constraints.subclass +
+		       "|" +
+		       String.join("\n", lines);
+	}
+
+
+	/**
+	 * Describe the Hibernate filters enabled on a session (and their parameters)
+	 *
+	 * @param session
+	 *
+	 * @return the filters, or an empty string if none are enabled
+	 */
+	private static String getEnabledFilters(final Session session)
+	{
+		final Map<String, Filter> filters = session.unwrap(SharedSessionContractImplementor.class)
+		                                           .getLoadQueryInfluencers()
+		                                           .getEnabledFilters();
+
+		if (filters.isEmpty())
+			return "";
+
+		final List<String> described = new ArrayList<>(filters.size());
+		for (Filter filter : filters.values())
+		{
+			if (filter instanceof FilterImpl impl)
+				described.add(filter.getName() + new TreeMap<>(impl.getParameters()));
+			else
+				described.add(filter.getName() + "@" + System.identityHashCode(filter));
+		}
+
+		Collections.sort(described);
+
+		return String.join(",", described);
+	}
+
+
+	/**
+	 * If the auto strategy is in play, pick the concrete strategy to use, taking into account what's being fetched back as well as
+	 * whether there are any explicit collection joins or fetches
+	 *
+	 * @param query
+	 * @param builder  a builder that has been populated for the query
+	 * @param strategy the requested strategy
+	 * @return
+	 */
+	private JPASearchStrategy resolveStrategy(final WebQuery query,
+	                                          final JPAQueryBuilder builder,
+	                                          final JPASearchStrategy strategy)
+	{
+		if (strategy != null && strategy != JPASearchStrategy.AUTO)
+			return strategy;
+
+		if (StringUtils.equals(query.getFetch(), "id"))
+		{
+			return JPASearchStrategy.ENTITY_WRAPPED_ID;
+		}
+		else if (query.getFetch() == null || StringUtils.equals(query.getFetch(), "entity"))
+		{
+			// If we're constraining by (or fetching) a collection AND we have a limit/offset, first get PKs for the entities and then fetch the entities
+			// This is necessary for correct pagination because the SQL resultset will have more than one row per entity, and our offset/limit is based on entity
+			if ((query.getLimit() > 0 || query.getOffset() > 0) && (builder.hasCollectionJoin() || builder.hasCollectionFetch()))
+			{
+				return JPASearchStrategy.ID_THEN_QUERY_ENTITY;
+			}
+			else
+			{
+				return JPASearchStrategy.ENTITY;
+			}
+		}
+		else
+		{
+			// Multiple values specified for fetch, so we ask for exactly what the user has requested
+			return JPASearchStrategy.CUSTOM_PROJECTION;
+		}
+	}
+
+
+	/**
+	 * The result of a COUNT
+	 *
+	 * @param total
+	 * 		the number of results
+	 * @param approximate
+	 * 		true if the total is an estimate from database statistics
+	 */
+	private record Count(long total, boolean approximate)
+	{
+	}
+
+
 	/**
 	 * Tests if a hibernate result list is a list of arrays
 	 *
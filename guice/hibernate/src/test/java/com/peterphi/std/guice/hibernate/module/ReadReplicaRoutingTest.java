@@ -0,0 +1,131 @@
+package com.peterphi.std.guice.hibernate.module;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.peterphi.std.guice.database.annotation.Transactional;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = {"hibernate-tests-in-memory-hsqldb.properties", "hibernate-tests-read-replica.properties"},
+		            classPackages = ReadReplicaRoutingTest.class)
+public class ReadReplicaRoutingTest
+{
+	private static final String PRIMARY = "jdbc:hsqldb:mem:testdb";
+	private static final String REPLICA = "jdbc:hsqldb:mem:replicadb";
+
+	@Inject
+	Provider<Session> sessionProvider;
+
+	@Inject
+	SessionFactory sessionFactory;
+
+
+	@Test
+	public void testReadOnlyTransactionUsesReplica()
+	{
+		assertEquals(REPLICA, readOnlyUrl());
+	}
+
+
+	@Test
+	public void testReadWriteTransactionUsesPrimary()
+	{
+		assertEquals(PRIMARY, readWriteUrl());
+	}
+
+
+	@Test
+	public void testReadOnlyCallWithinReadWriteTransactionUsesPrimary()
+	{
+		assertEquals(PRIMARY, readWriteThenReadOnlyUrl());
+	}
+
+
+	@Test
+	public void testRoutingFlagClearedAfterTransaction()
+	{
+		readOnlyUrl();
+
+		assertFalse(ReadReplicaRoutingConnectionProvider.isReadOnly());
+	}
+
+
+	/**
+	 * The current session can only be used within a transaction, so every read via the current session is routed by its
+	 * transaction
+	 */
+	@Test(expected = HibernateException.class)
+	public void testNonTransactionalReadOfCurrentSessionRejected()
+	{
+		getUrl();
+	}
+
+
+	@Test
+	public void testApplicationManagedSessionUsesPrimary()
+	{
+		try (Session session = sessionFactory.openSession())
+		{
+			assertEquals(PRIMARY, getUrl(session));
+		}
+	}
+
+
+	@Test
+	public void testApplicationManagedSessionMarkedReadOnlyUsesReplica()
+	{
+		final boolean wasReadOnly = ReadReplicaRoutingConnectionProvider.setReadOnly(true);
+		try (Session session = sessionFactory.openSession())
+		{
+			assertEquals(REPLICA, getUrl(session));
+		}
+		finally
+		{
+			ReadReplicaRoutingConnectionProvider.setReadOnly(wasReadOnly);
+		}
+	}
+
+
+	@Transactional(readOnly = true)
+	public String readOnlyUrl()
+	{
+		return getUrl();
+	}
+
+
+	@Transactional
+	public String readWriteUrl()
+	{
+		return getUrl();
+	}
+
+
+	@Transactional
+	public String readWriteThenReadOnlyUrl()
+	{
+		getUrl();
+
+		return readOnlyUrl();
+	}
+
+
+	private String getUrl()
+	{
+		return getUrl(sessionProvider.get());
+	}
+
+
+	private static String getUrl(final Session session)
+	{
+		return session.doReturningWork(conn -> conn.getMetaData().getURL());
+	}
+}
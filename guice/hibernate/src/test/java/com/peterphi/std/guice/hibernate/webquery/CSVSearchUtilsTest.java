@@ -0,0 +1,188 @@
+package com.peterphi.std.guice.hibernate.webquery;
+
+import com.google.inject.Inject;
+import com.peterphi.std.guice.database.CSVSearchUtils;
+import com.peterphi.std.guice.database.annotation.Transactional;
+import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WQGroup;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = "hibernate-tests-in-memory-hsqldb.properties", classPackages = ParentEntity.class)
+public class CSVSearchUtilsTest
+{
+	@Inject
+	HibernateDao<ParentEntity, Long> dao;
+
+	@Inject
+	HibernateDao<ChildEntity, Long> childDao;
+
+
+	@Before
+	@Transactional
+	public void setUp()
+	{
+		for (ChildEntity obj : childDao.getAll())
+			childDao.delete(obj);
+
+		for (ParentEntity obj : dao.getAll())
+			dao.delete(obj);
+
+		for (int i = 0; i < 25; i++)
+		{
+			ParentEntity obj = new ParentEntity();
+			obj.setName((i % 3 == 0) ? null : "name" + (i % 4));
+			obj.setDeprecated(i % 2 == 0);
+
+			dao.save(obj);
+		}
+	}
+
+
+	@Test
+	public void testSeekMatchesOffsetPagination() throws Exception
+	{
+		assertSeekMatchesOffset(new WebQuery().fetch("name").orderDesc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id,name").orderDesc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id").orderDesc("id").offset(3).limit(17));
+	}
+
+
+	@Test
+	public void testSeekWithSpacesInFetchMatchesOffsetPagination() throws Exception
+	{
+		final WebQuery query = new WebQuery().fetch("name, id").orderDesc("id");
+
+		assertSeekMatchesOffset(query);
+
+		// The ORDER BY field is already fetched, so must not be added to the fetch again
+		final WebQuery seek = query.clone();
+		toString(CSVSearchUtils.process(dao, seek, 4, query.getFetch(), "csv", null, true));
+
+		assertEquals("name,id", seek.getFetch());
+	}
+
+
+	/**
+	 * Nullable ORDER BY fields cannot use keyset pagination, so must fall back on offset pagination
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSeekOnNullableFieldMatchesOffsetPagination() throws Exception
+	{
+		assertSeekMatchesOffset(new WebQuery().fetch("id,name").orderAsc("name").orderAsc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id,name").orderDesc("name").orderAsc("id"));
+	}
+
+
+	/**
+	 * A two-column keyset where the first ORDER BY field has many ties, so the primary key decides the order within each page
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTwoColumnSeekWithTiesMatchesOffsetPagination() throws Exception
+	{
+		assertSeekMatchesOffset(new WebQuery().fetch("id,deprecated").orderAsc("deprecated").orderAsc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id,deprecated").orderDesc("deprecated").orderAsc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id,deprecated").orderAsc("deprecated").orderDesc("id"));
+		assertSeekMatchesOffset(new WebQuery().fetch("id").orderDesc("deprecated").orderDesc("id"));
+	}
+
+
+	/**
+	 * The seek constraint built from any row must select exactly the rows that sort after it, for every combination of ASC/DESC
+	 */
+	@Test
+	public void testTwoColumnSeekConstraint()
+	{
+		assertSeekConstraintSelectsFollowingRows(new WebQuery().orderAsc("deprecated").orderAsc("id"));
+		assertSeekConstraintSelectsFollowingRows(new WebQuery().orderDesc("deprecated").orderAsc("id"));
+		assertSeekConstraintSelectsFollowingRows(new WebQuery().orderAsc("deprecated").orderDesc("id"));
+		assertSeekConstraintSelectsFollowingRows(new WebQuery().orderDesc("deprecated").orderDesc("id"));
+	}
+
+
+	@Test
+	public void testSeekConstraintOnNullValueIsNull()
+	{
+		final WebQuery query = new WebQuery().orderAsc("deprecated").orderAsc("id");
+
+		assertNull(CSVSearchUtils.getSeekConstraint(query.orderings, new int[]{1, 0}, new Object[]{1L, null}));
+	}
+
+
+	private void assertSeekConstraintSelectsFollowingRows(final WebQuery query)
+	{
+		query.fetch("id,deprecated").limit(100);
+
+		// Columns of the ORDER BY fields (deprecated, id) within the row
+		final int[] columns = {1, 0};
+
+		final List<Object> all = ids(dao.project(query, false).getList());
+		assertEquals(25, all.size());
+
+		for (Object[] row : dao.project(query, false).getList())
+		{
+			final WQGroup constraint = CSVSearchUtils.getSeekConstraint(query.orderings, columns, row);
+
+			final List<Object> following = ids(dao.project(query.clone().add(constraint), false).getList());
+
+			assertEquals(query + " after " + Arrays.toString(row),
+			             all.subList(all.indexOf(row[0]) + 1, all.size()),
+			             following);
+		}
+	}
+
+
+	private static List<Object> ids(final List<Object[]> rows)
+	{
+		return rows.stream().map(row -> row[0]).collect(Collectors.toList());
+	}
+
+
+	private void assertSeekMatchesOffset(final WebQuery query) throws Exception
+	{
+		final String offset = toString(CSVSearchUtils.process(dao, query.clone(), 4, query.getFetch(), "csv", null, false));
+		final String seek = toString(CSVSearchUtils.process(dao, query.clone(), 4, query.getFetch(), "csv", null, true));
+
+		assertEquals(query.toString(), offset, seek);
+	}
+
+
+	private static String toString(final Response response) throws Exception
+	{
+		final Object entity = response.getEntity();
+
+		if (entity instanceof InputStream is)
+		{
+			return IOUtils.toString(is, StandardCharsets.UTF_8);
+		}
+		else
+		{
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			((StreamingOutput) entity).write(bos);
+
+			return bos.toString(StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.peterphi.std.guice.hibernate.webquery;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.peterphi.std.guice.database.annotation.Transactional;
 import com.peterphi.std.guice.hibernate.dao.HibernateDao;
 import com.peterphi.std.guice.hibernate.dao.QueryPrivilegeData;
@@ -12,6 +13,9 @@ import com.peterphi.std.guice.hibernate.webquery.impl.jpa.JPASearchStrategy;
 import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
 import com.peterphi.std.guice.testing.GuiceUnit;
 import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
@@ -24,6 +28,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -49,6 +54,9 @@ public class DynamicQueryTest
 	@Inject
 	TransactionHelper txutils;
 
+	@Inject
+	Provider<Session> sessionProvider;
+
 
 
 	@Transactional
@@ -794,6 +802,127 @@ public class DynamicQueryTest
 	}
 
 
+	@Test
+	@Transactional
+	public void testStreamMatchesFind() throws Exception
+	{
+		for (int i = 0; i < 7; i++)
+		{
+			ParentEntity obj = new ParentEntity();
+			obj.setName("Name" + (i % 3));
+			obj.setOtherObject(new ChildEntity());
+			obj.getOtherObject().setName("CName" + i);
+			obj.getFriends().add(new HumanEmbeddedEntity("sort" + i, "first" + i, "last" + i, "full" + i));
+			obj.getFriends().add(new HumanEmbeddedEntity("sort2" + i, "first2" + i, "last2" + i, "full2" + i));
+
+			childDao.save(obj.getOtherObject());
+			childDao.save(new ChildEntity());
+			dao.save(obj);
+		}
+
+		final WebQuery query = new WebQuery().orderDesc("name").orderAsc("id");
+
+		final List<Long> expected = getIds(dao.find(query.clone()).getList());
+
+		assertEquals(7, expected.size());
+
+		// Parent entities have a collection fetch, so will be loaded in batches by id
+		try (Stream<ParentEntity> stream = dao.stream(query.clone(), JPASearchStrategy.AUTO, 3))
+		{
+			assertEquals(expected, stream.map(ParentEntity :: getId).toList());
+		}
+
+		try (var stream = dao.streamIds(query.clone()))
+		{
+			assertEquals(expected, stream.toList());
+		}
+
+		try (var stream = dao.streamProjection(query.clone().fetch("id,name"), false))
+		{
+			assertEquals(expected, stream.map(r -> (Long) r[0]).toList());
+		}
+
+		// Child entities have no collection fetches, so will be scrolled directly
+		final WebQuery childQuery = new WebQuery().isNotNull("name").orderAsc("id").offset(2).limit(3);
+		final List<Long> expectedChildren = childDao.find(childQuery.clone()).getList().stream().map(ChildEntity :: getId).toList();
+
+		assertEquals(3, expectedChildren.size());
+
+		try (Stream<ChildEntity> stream = childDao.stream(childQuery.clone(), JPASearchStrategy.AUTO, 2))
+		{
+			assertEquals(expectedChildren, stream.map(ChildEntity :: getId).toList());
+		}
+	}
+
+
+	@Test
+	@Transactional
+	public void testStreamEmitsEachEntityOnceAndDetachesWhatItLoaded() throws Exception
+	{
+		for (int i = 0; i < 7; i++)
+		{
+			ParentEntity obj = new ParentEntity();
+			obj.setName("Name" + i);
+			obj.setOtherObject(new ChildEntity());
+			obj.getOtherObject().setName("CName" + i);
+			obj.getFriends().add(new HumanEmbeddedEntity("a" + i, "first" + i, "last" + i, "full" + i));
+			obj.getFriends().add(new HumanEmbeddedEntity("b" + i, "first2" + i, "last2" + i, "full2" + i));
+
+			childDao.save(obj.getOtherObject());
+			dao.save(obj);
+		}
+
+		final ChildEntity unrelated = new ChildEntity();
+		unrelated.setName("unrelated");
+		childDao.save(unrelated);
+
+		final Session session = sessionProvider.get();
+		session.flush();
+		session.clear();
+
+		// An entity the caller already holds must survive the stream detaching what it loaded
+		final ChildEntity held = childDao.getById(unrelated.getId());
+
+		final PersistenceContext context = session.unwrap(SessionImplementor.class).getPersistenceContext();
+		final List<Integer> managed = new ArrayList<>();
+
+		// Ordering by a collection returns every ID twice in a row, with some repeats straddling two batches
+		try (Stream<ParentEntity> stream = dao.stream(new WebQuery().orderAsc("name").orderAsc("friends.sortName"),
+		                                              JPASearchStrategy.AUTO,
+		                                              3))
+		{
+			final List<String> names = stream.map(p -> {
+				// Load an associated entity as a consumer might
+				final String childName = p.getOtherObject().getName();
+
+				managed.add(context.getNumberOfManagedEntities());
+
+				return p.getName() + "/" + childName;
+			}).toList();
+
+			assertEquals(List.of("Name0/CName0",
+			                     "Name1/CName1",
+			                     "Name2/CName2",
+			                     "Name3/CName3",
+			                     "Name4/CName4",
+			                     "Name5/CName5",
+			                     "Name6/CName6"), names);
+		}
+
+		// At most one batch of parents and their children, plus the held entity
+		assertTrue("associated entities should be detached too, managed counts were " + managed,
+		           managed.stream().allMatch(n -> n <= 7));
+		assertTrue(session.contains(held));
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testStreamOutsideTransactionFails() throws Exception
+	{
+		dao.stream(new WebQuery());
+	}
+
+
 	private List<Long> getIds(ParentEntity... objs)
 	{
 		return getIds(Arrays.asList(objs));
@@ -2,6 +2,9 @@ package com.peterphi.std.guice.hibernate.webquery;
 
 import com.peterphi.std.guice.database.annotation.EagerFetch;
 import com.peterphi.std.guice.database.annotation.WebQueryPrivate;
+import org.hibernate.annotations.Filter;
+import org.hibernate.annotations.FilterDef;
+import org.hibernate.annotations.ParamDef;
 
 import javax.persistence.CollectionTable;
 import javax.persistence.Column;
@@ -20,6 +23,8 @@ import java.util.Set;
 import java.util.UUID;
 
 @Entity
+@FilterDef(name = "nameFilter", parameters = @ParamDef(name = "name", type = "string"))
+@Filter(name = "nameFilter", condition = "obj_name = :name")
 public class ParentEntity
 {
 	@Id
@@ -29,7 +34,7 @@ public class ParentEntity
 	@Column(name = "obj_name")
 	private String name;
 
-	@Column(name = "deprecated")
+	@Column(name = "deprecated", nullable = false)
 	private boolean deprecated = false;
 
 	@WebQueryPrivate
@@ -0,0 +1,53 @@
+package com.peterphi.std.guice.hibernate.webquery;
+
+import com.google.inject.Inject;
+import com.peterphi.std.guice.database.annotation.Transactional;
+import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bulk operations with a read replica configured (N.B. the replica database has no schema, so any read routed to it fails)
+ */
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = {"hibernate-tests-in-memory-hsqldb.properties", "hibernate-tests-read-replica.properties"},
+		            classPackages = ParentEntity.class)
+public class WebQueryBulkOperationReplicaTest
+{
+	@Inject
+	HibernateDao<ParentEntity, Long> dao;
+
+
+	@Test
+	public void testBatchedDeleteResolvesIdsOnPrimary()
+	{
+		save("bulk-replica", 3);
+
+		assertEquals(3, dao.deleteByQuery(new WebQuery().eq("name", "bulk-replica").limit(0), 2));
+		assertEquals(0, countOnPrimary("bulk-replica"));
+	}
+
+
+	@Transactional
+	public long countOnPrimary(final String name)
+	{
+		return dao.count(new WebQuery().eq("name", name));
+	}
+
+
+	private void save(final String name, final int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			final ParentEntity entity = new ParentEntity();
+			entity.setName(name);
+
+			dao.save(entity);
+		}
+	}
+}
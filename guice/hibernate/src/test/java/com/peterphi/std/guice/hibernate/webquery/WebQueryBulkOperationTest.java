@@ -0,0 +1,127 @@
+package com.peterphi.std.guice.hibernate.webquery;
+
+import com.google.inject.Inject;
+import com.peterphi.std.guice.database.annotation.Transactional;
+import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.hibernate.webquery.impl.jpa.JPAQueryBuilder;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = "hibernate-tests-in-memory-hsqldb.properties", classPackages = ParentEntity.class)
+public class WebQueryBulkOperationTest
+{
+	@Inject
+	HibernateDao<ParentEntity, Long> dao;
+
+
+	@Test
+	public void testDeleteByQuery()
+	{
+		save("bulk-delete", 5);
+		save("bulk-delete-keep", 2);
+
+		assertEquals(5, dao.deleteByQuery(new WebQuery().eq("name", "bulk-delete").limit(0)));
+
+		assertEquals(0, dao.count(new WebQuery().eq("name", "bulk-delete")));
+		assertEquals(2, dao.count(new WebQuery().eq("name", "bulk-delete-keep")));
+	}
+
+
+	@Test
+	public void testDeleteByQueryInBatches()
+	{
+		save("bulk-delete-batched", 5);
+
+		assertEquals(5, dao.deleteByQuery(new WebQuery().eq("name", "bulk-delete-batched").limit(0), 2));
+
+		assertEquals(0, dao.count(new WebQuery().eq("name", "bulk-delete-batched")));
+	}
+
+
+	@Test
+	public void testDeleteByQueryObeysLimit()
+	{
+		save("bulk-delete-limited", 5);
+
+		assertEquals(3, dao.deleteByQuery(new WebQuery().eq("name", "bulk-delete-limited").limit(3)));
+
+		assertEquals(2, dao.count(new WebQuery().eq("name", "bulk-delete-limited")));
+	}
+
+
+	@Test
+	public void testDeleteByQueryWithNoMatches()
+	{
+		assertEquals(0, dao.deleteByQuery(new WebQuery().eq("name", "bulk-delete-nothing").limit(0)));
+	}
+
+
+	@Test
+	public void testUpdateByQueryInBatches()
+	{
+		save("bulk-update", 3);
+		save("bulk-update-other", 1);
+
+		// N.B. the String value should be parsed into a boolean
+		assertEquals(3, dao.updateByQuery(new WebQuery().eq("name", "bulk-update").limit(0), Map.of("deprecated", "true"), 2));
+
+		assertEquals(3, dao.count(new WebQuery().eq("name", "bulk-update").eq("deprecated", "true")));
+		assertEquals(0, dao.count(new WebQuery().eq("name", "bulk-update-other").eq("deprecated", "true")));
+	}
+
+
+	@Test
+	public void testBatchOnlyAppliesToEntitiesStillMatching()
+	{
+		save("bulk-recheck", 3);
+
+		final List<Long> ids = new ArrayList<>(dao.getIds(new WebQuery().eq("name", "bulk-recheck")));
+
+		// One entity changes after the IDs were resolved, so no longer matches
+		final ParentEntity changed = dao.getById(ids.get(0));
+		changed.setDeprecated(true);
+		dao.update(changed);
+
+		assertEquals(List.of(ids.get(1), ids.get(2)),
+		             selectIdsMatching(new WebQuery().eq("name", "bulk-recheck").eq("deprecated", "false").limit(1), ids));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUpdateByQueryRequiresAssignments()
+	{
+		dao.updateByQuery(new WebQuery().eq("name", "bulk-update-nothing"), Map.of());
+	}
+
+
+	@Transactional(readOnly = true)
+	public List<Long> selectIdsMatching(final WebQuery query, final List<Long> ids)
+	{
+		final JPAQueryBuilder<ParentEntity, Long> builder = dao.createQueryBuilder();
+		builder.forIDsMatching(query, ids);
+
+		return builder.selectIDs().stream().sorted().toList();
+	}
+
+
+	private void save(final String name, final int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			final ParentEntity entity = new ParentEntity();
+			entity.setName(name);
+
+			dao.save(entity);
+		}
+	}
+}
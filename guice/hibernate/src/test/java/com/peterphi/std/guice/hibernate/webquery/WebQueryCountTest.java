@@ -0,0 +1,166 @@
+package com.peterphi.std.guice.hibernate.webquery;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.peterphi.std.guice.database.annotation.Transactional;
+import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.hibernate.Session;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = {"hibernate-tests-in-memory-hsqldb.properties", "hibernate-tests-webquery-count.properties"},
+		            classPackages = ParentEntity.class)
+public class WebQueryCountTest
+{
+	@Inject
+	HibernateDao<ParentEntity, Long> dao;
+
+	@Inject
+	HibernateDao<ChildEntity, Long> childDao;
+
+	@Inject
+	Provider<Session> sessionProvider;
+
+
+	@Test
+	public void testParallelCountWithPaging()
+	{
+		save("parallel", 3);
+
+		final ConstrainedResultSet<ParentEntity> results = dao.findByUriQuery(new WebQuery().eq("name", "parallel")
+		                                                                                    .limit(1)
+		                                                                                    .computeSize(true));
+
+		assertEquals(1, results.getList().size());
+		assertEquals(Long.valueOf(3), results.getTotal());
+		assertFalse(results.isTotalApproximate());
+	}
+
+
+	@Test
+	public void testCountIsCachedByConstraints()
+	{
+		save("cached", 2);
+
+		assertEquals(Long.valueOf(2),
+		             dao.findByUriQuery(new WebQuery().eq("name", "cached").eq("deprecated", "false").computeSize(true))
+		                .getTotal());
+
+		save("cached", 1);
+
+		// Same constraints in a different order (and with different paging) should reuse the cached total
+		assertEquals(Long.valueOf(2),
+		             dao.findByUriQuery(new WebQuery().eq("deprecated", "false").eq("name", "cached").offset(1).computeSize(true))
+		                .getTotal());
+
+		// Different constraints must not
+		assertEquals(Long.valueOf(3), dao.findByUriQuery(new WebQuery().eq("name", "cached").computeSize(true)).getTotal());
+	}
+
+
+	@Test
+	public void testCachedZeroTotalStillQueriesData()
+	{
+		assertEquals(Long.valueOf(0), dao.findByUriQuery(new WebQuery().eq("name", "zero").computeSize(true)).getTotal());
+
+		save("zero", 2);
+
+		final ConstrainedResultSet<ParentEntity> results = dao.findByUriQuery(new WebQuery().eq("name", "zero").computeSize(true));
+
+		// The cached total may be out of date, so must not be used to skip the data query
+		assertEquals(Long.valueOf(0), results.getTotal());
+		assertEquals(2, results.getList().size());
+	}
+
+
+	@Test
+	public void testCountIsCachedBySessionFilters()
+	{
+		save("filtered-a", 2);
+		save("filtered-b", 1);
+
+		assertEquals(Long.valueOf(3), countFiltered(null));
+		assertEquals(Long.valueOf(2), countFiltered("filtered-a"));
+		assertEquals(Long.valueOf(1), countFiltered("filtered-b"));
+	}
+
+
+	@Test
+	public void testApproximateCountForUnconstrainedQuery()
+	{
+		final ConstrainedResultSet<ChildEntity> results = childDao.findByUriQuery(new WebQuery().limit(1).computeSize(true));
+
+		assertEquals(Long.valueOf(1000), results.getTotal());
+		assertTrue(results.isTotalApproximate());
+	}
+
+
+	@Test
+	public void testApproximateCountNotUsedWithSessionFilter()
+	{
+		save("tenant-a", 2);
+		save("tenant-b", 1);
+
+		final ConstrainedResultSet<ParentEntity> results = findAllFiltered("tenant-a");
+
+		// The table statistics would include the rows hidden by the filter
+		assertEquals(Long.valueOf(2), results.getTotal());
+		assertFalse(results.isTotalApproximate());
+	}
+
+
+	@Test
+	public void testCountOnlyIsExactAndNotCached()
+	{
+		assertEquals(0, childDao.count(new WebQuery()));
+
+		save("count-only", 2);
+		assertEquals(2, dao.count(new WebQuery().eq("name", "count-only")));
+
+		save("count-only", 1);
+		assertEquals(3, dao.count(new WebQuery().eq("name", "count-only")));
+	}
+
+
+	@Transactional(readOnly = true)
+	public ConstrainedResultSet<ParentEntity> findAllFiltered(final String name)
+	{
+		sessionProvider.get().enableFilter("nameFilter").setParameter("name", name);
+
+		return dao.findByUriQuery(new WebQuery().limit(1).computeSize(true));
+	}
+
+
+	/**
+	 * Count the entities whose name starts with "filtered-", optionally with a session filter on name (N.B. read-only, so the
+	 * count would otherwise run in parallel on a session without the filter)
+	 */
+	@Transactional(readOnly = true)
+	public Long countFiltered(final String name)
+	{
+		if (name != null)
+			sessionProvider.get().enableFilter("nameFilter").setParameter("name", name);
+
+		return dao.findByUriQuery(new WebQuery().startsWith("name", "filtered-").limit(1).computeSize(true)).getTotal();
+	}
+
+
+	private void save(final String name, final int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			final ParentEntity entity = new ParentEntity();
+			entity.setName(name);
+
+			dao.save(entity);
+		}
+	}
+}
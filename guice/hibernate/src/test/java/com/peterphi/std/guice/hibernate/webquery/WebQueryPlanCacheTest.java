@@ -0,0 +1,114 @@
+package com.peterphi.std.guice.hibernate.webquery;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+import com.peterphi.std.guice.hibernate.dao.HibernateDao;
+import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
+import com.peterphi.std.guice.testing.GuiceUnit;
+import com.peterphi.std.guice.testing.com.peterphi.std.guice.testing.annotations.GuiceConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(GuiceUnit.class)
+@GuiceConfig(config = "hibernate-tests-in-memory-hsqldb.properties", classPackages = ParentEntity.class)
+public class WebQueryPlanCacheTest
+{
+	@Inject
+	HibernateDao<ChildEntity, Long> dao;
+
+	@Inject
+	MetricRegistry metrics;
+
+
+	@Before
+	public void setUp()
+	{
+		for (ChildEntity obj : dao.getAll())
+			dao.delete(obj);
+
+		save("alice", SomeStateEnum.ONE);
+		save("bob", SomeStateEnum.TWO);
+		save("carol", SomeStateEnum.THREE);
+		save("dave", SomeStateEnum.ONE);
+	}
+
+
+	@Test
+	public void testSameShapeReusesPlanWithNewValues()
+	{
+		assertEquals(List.of("alice", "dave"), names(new WebQuery().eq("state", "ONE").contains("name", "a").orderAsc("name")));
+
+		final long hits = hits();
+
+		// Same shape, different values
+		assertEquals(List.of("bob"), names(new WebQuery().eq("state", "TWO").contains("name", "o").orderAsc("name")));
+		assertEquals(List.of(), names(new WebQuery().eq("state", "THREE").contains("name", "z").orderAsc("name")));
+
+		assertEquals("should have reused compiled plan", hits + 2, hits());
+	}
+
+
+	@Test
+	public void testListAndRangeValuesRebound()
+	{
+		assertEquals(List.of("alice", "bob"), names(new WebQuery().in("name", "alice", "bob").orderAsc("name")));
+		assertEquals(List.of("carol", "dave"), names(new WebQuery().in("name", "carol", "dave", "eve").orderAsc("name")));
+
+		assertEquals(List.of("bob", "carol"), names(new WebQuery().range("name", "b", "cz").orderAsc("name")));
+		assertEquals(List.of("dave"), names(new WebQuery().range("name", "d", "dz").orderAsc("name")));
+
+		final WebQuery group = new WebQuery().or(g -> g.eq("name", "alice").eq("name", "dave"));
+		assertEquals(List.of("alice", "dave"), names(group.orderAsc("name")));
+
+		final long hits = hits();
+
+		final WebQuery group2 = new WebQuery().or(g -> g.eq("name", "bob").eq("name", "carol"));
+		assertEquals(List.of("bob", "carol"), names(group2.orderAsc("name")));
+
+		assertEquals("should have reused compiled plan", hits + 1, hits());
+	}
+
+
+	@Test
+	public void testCountAndIdsReusePlan()
+	{
+		assertEquals(Long.valueOf(2), dao.findIdsByUriQuery(new WebQuery().eq("state", "ONE").computeSize(true)).getTotal());
+
+		final long hits = hits();
+
+		final ConstrainedResultSet<Long> results = dao.findIdsByUriQuery(new WebQuery().eq("state", "TWO").computeSize(true));
+
+		assertEquals(Long.valueOf(1), results.getTotal());
+		assertEquals(1, results.getList().size());
+		assertEquals("count and id select should both have reused compiled plans", hits + 2, hits());
+	}
+
+
+	private List<String> names(final WebQuery query)
+	{
+		return dao.findByUriQuery(query).getList().stream().map(ChildEntity :: getName).collect(Collectors.toList());
+	}
+
+
+	private long hits()
+	{
+		return metrics.meter(GuiceMetricNames.WEBQUERY_PLAN_CACHE_HITS).getCount();
+	}
+
+
+	private void save(final String name, final SomeStateEnum state)
+	{
+		final ChildEntity entity = new ChildEntity();
+		entity.setName(name);
+		entity.setState(state);
+
+		dao.save(entity);
+	}
+}
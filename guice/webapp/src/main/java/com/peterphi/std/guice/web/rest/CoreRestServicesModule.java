@@ -20,6 +20,7 @@ import com.peterphi.std.guice.web.rest.service.restcore.GuiceRestCoreService;
 import com.peterphi.std.guice.web.rest.service.restcore.GuiceRestCoreServiceImpl;
 import com.peterphi.std.guice.web.rest.service.servicedescription.RestConfigList;
 import com.peterphi.std.guice.web.rest.service.servicedescription.RestServiceList;
+import com.peterphi.std.guice.web.rest.service.tracing.GuiceRestTracingService;
 import com.peterphi.std.guice.web.rest.templating.thymeleaf.ThymeleafModule;
 
 import javax.servlet.ServletContext;
@@ -54,6 +55,7 @@ public class CoreRestServicesModule extends AbstractModule
 		RestResourceRegistry.register(GuiceRestBreakerService.class);
 		RestResourceRegistry.register(GuiceRestLoggingService.class);
 		RestResourceRegistry.register(GuiceCacheManagerRestService.class);
+		RestResourceRegistry.register(GuiceRestTracingService.class);
 	}
 
 
@@ -1,28 +1,34 @@
 package com.peterphi.std.guice.web.rest.auth.interceptor;
 
 import com.codahale.metrics.Meter;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.inject.Provider;
 import com.peterphi.std.guice.apploader.GuiceProperties;
 import com.peterphi.std.guice.common.auth.AuthScope;
 import com.peterphi.std.guice.common.auth.annotations.AuthConstraint;
-import com.peterphi.std.guice.common.cached.CacheManager;
 import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfigChangeObserver;
 import com.peterphi.std.guice.web.HttpCallContext;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Intercepts calls to methods annotated with AuthConstraint (or whose superclass is annotated with AuthConstraint) and enforces
  * those constraints
  */
-class AuthConstraintMethodInterceptor implements MethodInterceptor
+class AuthConstraintMethodInterceptor implements MethodInterceptor, GuiceConfigChangeObserver
 {
+	private static final String SCOPE_PROPERTY_PREFIX = "framework.webauth.scope.";
+
 	private static final Logger log = LoggerFactory.getLogger(AuthConstraintMethodInterceptor.class);
 
 	private final Provider<AuthConstraintUserInterrogator> interrogatorProvider;
@@ -33,7 +39,10 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 	private final Meter authenticatedDenied;
 	private final boolean onlyServletRequest;
 
-	private final Cache<String, AuthScope> scopes = CacheManager.build("AuthScopes", CacheBuilder.newBuilder());
+	/**
+	 * The resolved decision for each intercepted method; discarded whenever the scope configuration changes
+	 */
+	private volatile Map<Method, AuthDecision> decisions = new ConcurrentHashMap<>();
 
 	private final String noAnnotationScopeId;
 
@@ -58,6 +67,22 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 		this.onlyServletRequest = config.getBoolean(GuiceProperties.AUTHZ_ONLY_SERVLET_REQUEST, true);
 		this.noAnnotationScopeId = config.get(GuiceProperties.AUTHZ_UNANNOTATED_WEB_METHOD_AUTHSCOPE_ID,
 		                                      AuthConstraint.DEFAULT_ID);
+
+		config.registerChangeObserver(this);
+	}
+
+
+	@Override
+	public void propertyChanged(final String name)
+	{
+		if (name.startsWith(SCOPE_PROPERTY_PREFIX))
+		{
+			if (log.isTraceEnabled())
+				log.trace("Auth scope config changed ({}), discarding resolved auth decisions", name);
+
+			// N.B. replace rather than clear the map, so decisions being resolved from the old config are discarded too
+			decisions = new ConcurrentHashMap<>();
+		}
 	}
 
 
@@ -82,18 +107,15 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 
 		calls.mark();
 
-		final AuthConstraint constraint = readConstraint(invocation);
+		final AuthDecision decision = getDecision(invocation.getMethod());
 		final AuthConstraintUserInterrogator interrogator = interrogatorProvider.get();
 
 		if (interrogator == null)
 			throw new IllegalArgumentException("Provider for AuthConstraintUserInterrogator returned null! Cannot apply AuthConstraint to method " +
 			                                   invocation.getMethod());
 
-		// Acquire the auth scope (for constraint override)
-		final AuthScope scope = getScope(constraint);
-
 		// Test the user
-		if (passes(scope, constraint, interrogator))
+		if (passes(decision, interrogator))
 		{
 			granted.mark();
 
@@ -107,7 +129,7 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 			denied.mark();
 
 			// Throw an exception to refuse access
-			throw interrogator.getUser().getAccessRefuser().refuse(scope, constraint, interrogator.getUser());
+			throw interrogator.getUser().getAccessRefuser().refuse(decision.scope(), decision.constraint(), interrogator.getUser());
 		}
 	}
 
@@ -115,16 +137,16 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 	/**
 	 * Determines whether a given user has the necessary role to pass a constraint
 	 *
-	 * @param constraint
-	 * 		the constraint to use to test the user
+	 * @param decision
+	 * 		the resolved constraint to use to test the user
 	 * @param user
 	 * 		the current user
 	 *
 	 * @return true if the user passes, otherwise false
 	 */
-	private boolean passes(final AuthScope scope, final AuthConstraint constraint, final AuthConstraintUserInterrogator user)
+	private boolean passes(final AuthDecision decision, final AuthConstraintUserInterrogator user)
 	{
-		if (scope.getSkip(constraint))
+		if (decision.skip())
 		{
 			if (log.isTraceEnabled())
 				log.trace("Allowing method invocation (skip=true).");
@@ -133,75 +155,116 @@ class AuthConstraintMethodInterceptor implements MethodInterceptor
 		}
 		else
 		{
-			final List<String> requireAnyRoles = scope.getRoles(constraint);
+			final boolean pass = user.hasAnyRole(decision.roles());
 
-			assert (requireAnyRoles != null);
-
-			boolean pass = false;
-			for (String role : requireAnyRoles)
+			if (log.isTraceEnabled())
 			{
-				if (!pass && user.hasRole(role))
-				{
-					if (log.isTraceEnabled())
-						log.trace("Allow method invocation: user {} has role {}", user, role);
-
-					pass = true;
-				}
+				if (pass)
+					log.trace("Allow method invocation: user {} has one of roles {}", user, decision.roles());
+				else
+					log.trace("Deny method invocation: user {} does not have any of roles {}", user, decision.roles());
 			}
 
-			if (!pass && log.isTraceEnabled())
-				log.trace("Deny method invocation: user {} does not have any of roles {}", user, requireAnyRoles);
-
 			return pass;
 		}
 	}
 
 
-	private AuthScope getScope(final AuthConstraint constraint)
+	private AuthDecision getDecision(final Method method)
 	{
-		if (constraint == null)
-			return getScope(noAnnotationScopeId);
-		else
-			return getScope(constraint.id());
+		final Map<Method, AuthDecision> map = this.decisions;
+
+		AuthDecision decision = map.get(method);
+
+		if (decision == null)
+		{
+			decision = resolve(method);
+
+			map.put(method, decision);
+		}
+
+		return decision;
 	}
 
 
-	private AuthScope getScope(final String id)
+	/**
+	 * Resolve the constraint, scope and effective rules for a method
+	 *
+	 * @param method
+	 *
+	 * @return
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the method is not to be skipped but neither config nor annotation specifies any roles
+	 */
+	private AuthDecision resolve(final Method method)
 	{
-		AuthScope scope = scopes.getIfPresent(id);
+		final AuthConstraint constraint = readConstraint(method);
+
+		// Acquire the auth scope (for constraint override)
+		final AuthScope scope = getScope((constraint == null) ? noAnnotationScopeId : constraint.id());
 
-		if (scope == null)
+		final boolean skip = scope.getSkip(constraint);
+
+		if (skip)
 		{
-			final List<String> roles;
-			final Boolean skip;
-			final Boolean forceSkip;
-
-			/**
-			 * N.B. With the scope as 'default', the effective guice properties read are {@link GuiceProperties#AUTHZ_DEFAULT_ROLE}, {@link GuiceProperties#AUTHZ_DEFAULT_SKIP}, {@link GuiceProperties#AUTHZ_DEFAULT_FORCE_SKIP} -
-			 * these are documented as separate properties for the convenience of users.
-			 */
-			{
-				roles = config.getList("framework.webauth.scope." + id + ".role", null);
-				skip = config.getBoolean("framework.webauth.scope." + id + ".skip", null);
-				forceSkip = config.getBoolean("framework.webauth.scope." + id + ".force-skip", null);
-			}
+			return new AuthDecision(scope, constraint, true, Collections.emptySet());
+		}
+		else
+		{
+			final List<String> roles = scope.getRoles(constraint);
+
+			assert (roles != null);
 
-			scope = new AuthScope(id, roles, skip, forceSkip);
+			return new AuthDecision(scope, constraint, false, Collections.unmodifiableSet(new LinkedHashSet<>(roles)));
+		}
+	}
 
-			scopes.put(id, scope);
+
+	private AuthScope getScope(final String id)
+	{
+		final List<String> roles;
+		final Boolean skip;
+		final Boolean forceSkip;
+
+		/**
+		 * N.B. With the scope as 'default', the effective guice properties read are {@link GuiceProperties#AUTHZ_DEFAULT_ROLE}, {@link GuiceProperties#AUTHZ_DEFAULT_SKIP}, {@link GuiceProperties#AUTHZ_DEFAULT_FORCE_SKIP} -
+		 * these are documented as separate properties for the convenience of users.
+		 */
+		{
+			roles = config.getList(SCOPE_PROPERTY_PREFIX + id + ".role", null);
+			skip = config.getBoolean(SCOPE_PROPERTY_PREFIX + id + ".skip", null);
+			forceSkip = config.getBoolean(SCOPE_PROPERTY_PREFIX + id + ".force-skip", null);
 		}
 
-		return scope;
+		return new AuthScope(id, roles, skip, forceSkip);
 	}
 
 
-	private AuthConstraint readConstraint(final MethodInvocation invocation)
+	private static AuthConstraint readConstraint(final Method method)
 	{
-		if (invocation.getMethod().isAnnotationPresent(AuthConstraint.class))
-			return invocation.getMethod().getAnnotation(AuthConstraint.class);
-		else if (invocation.getMethod().getDeclaringClass().isAnnotationPresent(AuthConstraint.class))
-			return invocation.getMethod().getDeclaringClass().getAnnotation(AuthConstraint.class);
+		if (method.isAnnotationPresent(AuthConstraint.class))
+			return method.getAnnotation(AuthConstraint.class);
+		else if (method.getDeclaringClass().isAnnotationPresent(AuthConstraint.class))
+			return method.getDeclaringClass().getAnnotation(AuthConstraint.class);
 		else
 			return null; // No AuthConstraint specified
 	}
+
+
+	/**
+	 * The outcome of resolving the constraint applying to a method
+	 *
+	 * @param scope
+	 * 		the scope (for constraint override)
+	 * @param constraint
+	 * 		the constraint annotation (or null if the method is not annotated)
+	 * @param skip
+	 * 		true if access is granted without checking roles
+	 * @param roles
+	 * 		the roles, any of which grants access (empty if skipping)
+	 */
+	private record AuthDecision(AuthScope scope, AuthConstraint constraint, boolean skip, Set<String> roles)
+	{
+	}
 }
@@ -2,6 +2,8 @@ package com.peterphi.std.guice.web.rest.auth.interceptor;
 
 import com.peterphi.std.guice.common.auth.iface.CurrentUser;
 
+import java.util.Collection;
+
 /**
  * <p>Extension point to allow for the abstraction of {@link com.peterphi.std.guice.common.auth.annotations.AuthConstraint} role
  * requirement strings from the actual user roles from {@link CurrentUser}.</p>
@@ -20,6 +22,22 @@ public interface AuthConstraintUserInterrogator
 	 */
 	boolean hasRole(final String role);
 
+	/**
+	 * Determines if the current user has any of a set of roles/capabilities. The default implementation calls {@link
+	 * #hasRole(String)} for each role
+	 *
+	 * @param roles some role/capability names
+	 * @return true if the user has at least one of these roles/capabilities, otherwise false
+	 */
+	default boolean hasAnyRole(final Collection<String> roles)
+	{
+		for (String role : roles)
+			if (hasRole(role))
+				return true;
+
+		return false;
+	}
+
 	/**
 	 * Returns the underlying user record for the current user, for retrieving Access Refuser, etc.<br /> The return of this
 	 * method will not be used to bypass the {@link #hasRole(String)} method on the interrogator
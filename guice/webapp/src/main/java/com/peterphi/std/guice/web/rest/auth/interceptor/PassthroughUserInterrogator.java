@@ -4,6 +4,8 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.peterphi.std.guice.common.auth.iface.CurrentUser;
 
+import java.util.Collection;
+
 /**
  * The default interrogator interface, used if {@link java.util.ServiceLoader} finds no custom implementations
  */
@@ -12,6 +14,11 @@ public class PassthroughUserInterrogator implements AuthConstraintUserInterrogat
 	@Inject
 	Provider<CurrentUser> user;
 
+	/**
+	 * True if a subclass maps roles/capabilities in {@link #hasRole(String)}, in which case it must be consulted for every role
+	 */
+	private final boolean hasRoleOverridden = isHasRoleOverridden(getClass());
+
 
 	@Override
 	public boolean hasRole(final String role)
@@ -20,9 +27,32 @@ public class PassthroughUserInterrogator implements AuthConstraintUserInterrogat
 	}
 
 
+	@Override
+	public boolean hasAnyRole(final Collection<String> roles)
+	{
+		if (hasRoleOverridden)
+			return AuthConstraintUserInterrogator.super.hasAnyRole(roles);
+		else
+			return getUser().hasAnyRole(roles); // Roles map directly onto the user's roles, so use its set-based test
+	}
+
+
 	@Override
 	public CurrentUser getUser()
 	{
 		return user.get();
 	}
+
+
+	private static boolean isHasRoleOverridden(final Class<?> clazz)
+	{
+		try
+		{
+			return clazz.getMethod("hasRole", String.class).getDeclaringClass() != PassthroughUserInterrogator.class;
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new IllegalStateException("Cannot find hasRole on " + clazz, e);
+		}
+	}
 }
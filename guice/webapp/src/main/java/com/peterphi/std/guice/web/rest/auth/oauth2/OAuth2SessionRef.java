@@ -17,10 +17,18 @@ import org.joda.time.Period;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 import javax.ws.rs.core.UriBuilder;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Holds the OAuth2 callback information for this session; will start unpopulated (see {@link #isValid()}) and then be populated
@@ -29,9 +37,12 @@ import java.util.concurrent.TimeUnit;
  * While populated the session ref can be used to query for the currently active <code>token</code> assigned by the server, as
  * well as querying side-channel information on the user associated with that token (when the OAuth2 provider is the User
  * Manager)
+ * <p>
+ * The session ref is invalidated (and any background refresh cancelled) when it is removed from the HTTP session, e.g. when the
+ * HTTP session is invalidated or expires
  */
 @SessionScoped
-public class OAuth2SessionRef
+public class OAuth2SessionRef implements HttpSessionBindingListener
 {
 	private static final Logger log = LoggerFactory.getLogger(OAuth2SessionRef.class);
 
@@ -53,6 +64,11 @@ public class OAuth2SessionRef
 	@Doc("The amount of time prior to the server-declared expiry when the OAuth token will be refreshed; this protects against  (default PT5M)")
 	public Period tokenRefreshPriorToExpire = Period.parse("PT5M");
 
+	@Inject(optional = true)
+	@Named("token-refresh.background")
+	@Doc("If true, OAuth tokens of active sessions are refreshed in the background once they reach their refresh time, so requests only have to wait for a refresh if the token has actually expired (default true)")
+	public boolean backgroundRefresh = true;
+
 	@Inject(optional = true)
 	@Doc("The duration for any delegated tokens generated by this service (default 1h)")
 	@Named("token-delegation.validity-period")
@@ -78,10 +94,39 @@ public class OAuth2SessionRef
 	public final String clientId;
 	private final String clientSecret;
 
-	private OAuth2TokenResponse response;
-	private UserManagerUser cachedInfo;
+	@Inject
+	OAuth2TokenRefreshScheduler refreshScheduler;
+
+	/**
+	 * The current token and the user it belongs to; replaced wholesale (never modified) so it can be read without locking
+	 */
+	private volatile TokenSnapshot snapshot;
+
+	/**
+	 * Set when the token is used, so that background refreshes are only performed for sessions which are in use
+	 */
+	private volatile boolean usedSinceLoad;
+
+	private final Object refreshLock = new Object();
+
+	/**
+	 * The refresh currently being performed (shared by all callers needing a refresh), or null if no refresh is underway
+	 */
+	private final AtomicReference<CompletableFuture<TokenSnapshot>> refreshing = new AtomicReference<>();
+
+	/**
+	 * The background refresh scheduled for the current token. Guarded by {@link #refreshLock}
+	 */
+	private ScheduledFuture<?> scheduledRefresh;
+
+	private final Object delegatedTokenLock = new Object();
 
-	private OAuth2DelegatedToken delegatedToken;
+	private volatile OAuth2DelegatedToken delegatedToken;
+
+
+	private record TokenSnapshot(OAuth2TokenResponse response, UserManagerUser userInfo)
+	{
+	}
 
 
 	@Inject
@@ -101,9 +146,9 @@ public class OAuth2SessionRef
 	}
 
 
-	public synchronized boolean hasBeenInitialised()
+	public boolean hasBeenInitialised()
 	{
-		return (response != null);
+		return (snapshot != null);
 	}
 
 
@@ -112,7 +157,7 @@ public class OAuth2SessionRef
 	 *
 	 * @param token
 	 */
-	public synchronized void initialiseFromAPIToken(final String token)
+	public void initialiseFromAPIToken(final String token)
 	{
 		final String responseStr = authService.getToken(UserManagerOAuthService.GRANT_TYPE_TOKEN_EXCHANGE,
 		                                                null,
@@ -129,9 +174,9 @@ public class OAuth2SessionRef
 	}
 
 
-	public synchronized boolean isValid()
+	public boolean isValid()
 	{
-		if (response == null)
+		if (snapshot == null)
 		{
 			log.trace("OAuth2SessionRef - isNotValid (no recheck needed)");
 			return false; // Cannot be valid because there is no response data available at all
@@ -148,10 +193,12 @@ public class OAuth2SessionRef
 			// otherwise ignore
 		}
 
-		if (response == null)
+		final boolean valid = (snapshot != null);
+
+		if (!valid)
 			log.trace("OAuth2SessionRef - isNotValid");
 
-		return response != null;
+		return valid;
 	}
 
 
@@ -275,136 +322,430 @@ public class OAuth2SessionRef
 	}
 
 
-	public synchronized boolean shouldRefresh()
+	public boolean shouldRefresh()
+	{
+		final TokenSnapshot current = snapshot;
+
+		return current != null && shouldRefresh(current.response);
+	}
+
+
+	private static boolean shouldRefresh(final OAuth2TokenResponse response)
+	{
+		return response.refresh != null && System.currentTimeMillis() > response.refresh.getTime();
+	}
+
+
+	private static boolean hasExpired(final OAuth2TokenResponse response)
 	{
-		return response != null && (response.refresh != null && System.currentTimeMillis() > response.refresh.getTime());
+		return response.expires == null || System.currentTimeMillis() >= response.expires.getTime();
 	}
 
 
-	public synchronized String getToken()
+	public String getToken()
 	{
-		if (response == null)
+		TokenSnapshot current = snapshot;
+
+		if (current == null)
 			throw new IllegalArgumentException("Not loaded yet!");
 
+		usedSinceLoad = true;
+
 		// If the token has expired then we must use the refresh token to refresh it
-		if (shouldRefresh())
+		if (shouldRefresh(current.response))
 		{
-			if (response != null &&
-			    response.refresh_token == null &&
-			    UserManagerBearerToken.isUserManagerDelegatedBearer(response.access_token))
+			final OAuth2TokenResponse response = current.response;
+
+			if (response.refresh_token == null && UserManagerBearerToken.isUserManagerDelegatedBearer(response.access_token))
 				throw new IllegalArgumentException("Delegated Bearer Token used to make this service call has expired.");
-			else if (log.isDebugEnabled())
-				log.debug("OAuth token has expired for {} and must be refreshed",
-				          (cachedInfo != null) ?
-				          cachedInfo.email :
-				          "OAuth session refresh=" + (response != null ? response.refresh_token : null));
-
-			// Will throw an exception if the token acquisition fails
-			refreshToken();
+
+			if (backgroundRefresh && response.refresh_token != null && !hasExpired(response))
+			{
+				// The token is still usable, so refresh it in the background rather than making this caller wait
+				refreshInBackground(current);
+			}
+			else
+			{
+				if (log.isDebugEnabled())
+					log.debug("OAuth token has expired for {} and must be refreshed",
+					          (current.userInfo != null) ?
+					          current.userInfo.email :
+					          "OAuth session refresh=" + response.refresh_token);
+
+				// Will throw an exception if the token acquisition fails
+				current = refresh(current, true);
+			}
 		}
 
-		if (this.response != null && this.response.access_token != null)
-			return this.response.access_token;
+		if (current != null && current.response.access_token != null)
+			return current.response.access_token;
 		else
 			throw new IllegalArgumentException("Could not acquire token!");
 	}
 
 
 	/**
-	 * Use the refresh token to get a new token with a longer lifespan
+	 * Use the refresh token to get a new token with a longer lifespan. If a refresh is already underway then this waits for that
+	 * refresh instead of starting another
+	 */
+	public void refreshToken()
+	{
+		final TokenSnapshot current = snapshot;
+
+		if (current == null)
+			throw new IllegalArgumentException("Not loaded yet!");
+
+		refresh(current, true);
+	}
+
+
+	/**
+	 * Refresh the token, unless it has already been replaced since <code>expected</code> was read. Only a single refresh is
+	 * performed at a time; other callers wait for (and share the outcome of) the refresh already underway
+	 *
+	 * @param expected
+	 * 		the snapshot the caller wants refreshed
+	 * @param invalidateOnFailure
+	 * 		if true, a failed refresh will invalidate the session
+	 *
+	 * @return the new snapshot
+	 */
+	private TokenSnapshot refresh(final TokenSnapshot expected, final boolean invalidateOnFailure)
+	{
+		if (snapshot != expected)
+			return snapshot; // Already replaced by another refresh
+
+		final CompletableFuture<TokenSnapshot> created = new CompletableFuture<>();
+		final CompletableFuture<TokenSnapshot> existing = refreshing.compareAndExchange(null, created);
+
+		if (existing != null)
+			return join(existing); // Share the outcome of the refresh already underway
+
+		runRefresh(created, expected, invalidateOnFailure);
+
+		return join(created);
+	}
+
+
+	/**
+	 * Perform a refresh that this caller has claimed by setting {@link #refreshing} to <code>future</code>, completing the future
+	 * with the outcome and then releasing the claim so that a later caller can retry if the refresh failed
+	 *
+	 * @param future
+	 * 		the future set in {@link #refreshing}
+	 * @param expected
+	 * 		the snapshot to refresh
+	 * @param invalidateOnFailure
+	 * 		if true, a failed refresh will invalidate the session
 	 */
-	public synchronized void refreshToken()
+	private void runRefresh(final CompletableFuture<TokenSnapshot> future,
+	                        final TokenSnapshot expected,
+	                        final boolean invalidateOnFailure)
+	{
+		try
+		{
+			if (snapshot != expected)
+				future.complete(snapshot); // Replaced between our check and claiming the refresh
+			else
+				future.complete(doRefresh(expected, invalidateOnFailure));
+		}
+		catch (Throwable t)
+		{
+			future.completeExceptionally(t);
+		}
+		finally
+		{
+			refreshing.compareAndSet(future, null);
+		}
+	}
+
+
+	private static TokenSnapshot join(final CompletableFuture<TokenSnapshot> future)
+	{
+		try
+		{
+			return future.join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException re)
+				throw re;
+			else if (e.getCause() instanceof Error err)
+				throw err;
+			else
+				throw e;
+		}
+	}
+
+
+	private TokenSnapshot doRefresh(final TokenSnapshot expected, final boolean invalidateOnFailure)
 	{
-		final String refreshToken = this.response.refresh_token;
+		final String refreshToken = expected.response.refresh_token;
 
 		if (refreshToken == null)
 			throw new IllegalArgumentException("Refresh Token not present, reauthentication required");
 
-		this.response = null;
-		clearUserInfo();
+		try
+		{
+			final String responseStr = authService.getToken(UserManagerOAuthService.GRANT_TYPE_REFRESH_TOKEN,
+			                                                null,
+			                                                null,
+			                                                clientId,
+			                                                clientSecret,
+			                                                refreshToken,
+			                                                null,
+			                                                null,
+			                                                null,
+			                                                null);
+
+			return load(expected, OAuth2TokenResponse.decode(responseStr));
+		}
+		catch (RuntimeException e)
+		{
+			if (invalidateOnFailure)
+				publish(expected, null);
 
-		final String responseStr = authService.getToken(UserManagerOAuthService.GRANT_TYPE_REFRESH_TOKEN,
-		                                                null,
-		                                                null,
-		                                                clientId,
-		                                                clientSecret,
-		                                                refreshToken,
-		                                                null,
-		                                                null,
-		                                                null,
-		                                                null);
+			throw e;
+		}
+	}
 
-		loadAuthResponse(responseStr);
+
+	/**
+	 * Start refreshing the token in the background (unless a refresh is already underway)
+	 *
+	 * @param expected
+	 */
+	private void refreshInBackground(final TokenSnapshot expected)
+	{
+		if (snapshot != expected)
+			return;
+
+		final CompletableFuture<TokenSnapshot> created = new CompletableFuture<>();
+
+		if (!refreshing.compareAndSet(null, created))
+			return; // A refresh is already underway
+
+		try
+		{
+			refreshScheduler.submit(() -> runBackgroundRefresh(created, expected));
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Scheduler is shutting down; release the claim so the next caller refreshes in the foreground
+			created.completeExceptionally(e);
+			refreshing.compareAndSet(created, null);
+		}
 	}
 
 
-	protected synchronized void loadAuthResponse(final String responseStr)
+	/**
+	 * Create the task the refresh scheduler runs to refresh the token ahead of time. The task only holds a weak reference to the
+	 * session ref, so that a scheduled refresh does not keep an abandoned session alive
+	 *
+	 * @param session
+	 * @param expected
+	 *
+	 * @return
+	 */
+	private static Runnable backgroundRefreshTask(final WeakReference<OAuth2SessionRef> session, final TokenSnapshot expected)
 	{
-		final OAuth2TokenResponse response = OAuth2TokenResponse.decode(responseStr);
+		return () -> {
+			final OAuth2SessionRef ref = session.get();
 
-		load(response);
+			if (ref != null)
+				ref.backgroundRefresh(expected);
+		};
+	}
+
+
+	/**
+	 * Called by the refresh scheduler to refresh the token ahead of time
+	 *
+	 * @param expected
+	 */
+	private void backgroundRefresh(final TokenSnapshot expected)
+	{
+		if (snapshot != expected)
+			return; // Already refreshed (or invalidated)
+		else if (!usedSinceLoad)
+			return; // Session not in use, leave any refresh until it's next used
+
+		final CompletableFuture<TokenSnapshot> created = new CompletableFuture<>();
+
+		if (!refreshing.compareAndSet(null, created))
+			return; // A refresh is already underway
+
+		runBackgroundRefresh(created, expected);
+	}
+
+
+	private void runBackgroundRefresh(final CompletableFuture<TokenSnapshot> future, final TokenSnapshot expected)
+	{
+		runRefresh(future, expected, false);
+
+		try
+		{
+			future.join();
+		}
+		catch (CompletionException e)
+		{
+			// Leave the current token in place; if it expires before a refresh succeeds then the next caller will retry the refresh
+			log.warn("Background OAuth token refresh failed: {}", e.getCause().getMessage(), e.getCause());
+		}
 	}
 
 
-	public synchronized void refreshUserInfo()
+	protected void loadAuthResponse(final String responseStr)
 	{
-		clearUserInfo();
+		final OAuth2TokenResponse response = OAuth2TokenResponse.decode(responseStr);
 
-		this.cachedInfo = authService.get(getToken(), clientId);
+		load(response);
 	}
 
 
-	private synchronized void clearUserInfo()
+	public void refreshUserInfo()
 	{
-		log.trace("OAuth2SessionRef::clearUserInfo");
+		final TokenSnapshot current = snapshot;
 
-		this.cachedInfo = null;
+		if (current == null)
+			throw new IllegalArgumentException("Not loaded yet!");
+
+		final UserManagerUser info = authService.get(getToken(), clientId);
 
-		// Clear the delegated token too
-		this.delegatedToken = null;
+		// N.B. if the token has been replaced in the meantime then the user info will have been refreshed along with it
+		publish(current, new TokenSnapshot(current.response, info));
 	}
 
 
-	public synchronized UserManagerUser getUserInfo()
+	public UserManagerUser getUserInfo()
 	{
 		if (!isValid())
 			throw new IllegalArgumentException("No OAuth2 session information!");
 
-		// Make sure we refresh the token if necessary (also makes sure we invalidate the user info cache if necessary
+		// Make sure we refresh the token if necessary
 		getToken();
 
-		if (this.cachedInfo == null)
-		{
-			refreshUserInfo();
-		}
+		final TokenSnapshot current = snapshot;
+
+		if (current == null)
+			throw new IllegalArgumentException("No OAuth2 session information!");
+		else if (current.userInfo != null)
+			return current.userInfo;
 
-		return this.cachedInfo;
+		refreshUserInfo();
+
+		final TokenSnapshot refreshed = snapshot;
+
+		if (refreshed == null)
+			throw new IllegalArgumentException("No OAuth2 session information!");
+		else
+			return refreshed.userInfo;
 	}
 
 
-	public synchronized void load(final OAuth2TokenResponse response)
+	public void load(final OAuth2TokenResponse response)
 	{
-		clearUserInfo();
+		load(null, response);
+	}
+
 
+	/**
+	 * Load a new token (and proactively obtain the user information for that token)
+	 *
+	 * @param expected
+	 * 		the snapshot being replaced, or null to replace whatever snapshot is current
+	 * @param response
+	 *
+	 * @return
+	 */
+	private TokenSnapshot load(final TokenSnapshot expected, final OAuth2TokenResponse response)
+	{
 		if (StringUtils.isNotBlank(response.error))
-		{
 			throw new IllegalArgumentException("OAuth2 token acquisition failed with error: " + response.error);
-		}
-		else
-		{
-			this.response = response;
 
-			// If the response contains a refresh token but no refresh time, create one based on the expires time
-			if (this.response.expires != null && this.response.refresh == null && response.refresh_token != null)
-				this.response.refresh = new DateTime(this.response.expires).minus(tokenRefreshPriorToExpire).toDate();
+		// If the response contains a refresh token but no refresh time, create one based on the expires time
+		if (response.expires != null && response.refresh == null && response.refresh_token != null)
+			response.refresh = new DateTime(response.expires).minus(tokenRefreshPriorToExpire).toDate();
+
+		// Proactively obtain user information
+		final UserManagerUser info = authService.get(response.access_token, clientId);
+
+		final TokenSnapshot loaded = new TokenSnapshot(response, info);
+
+		publish(expected, loaded);
+
+		return loaded;
+	}
+
 
-             // Proactively obtain user information
-             refreshUserInfo();
+	/**
+	 * Replace the current snapshot (unless it has been replaced since <code>expected</code> was read, which can only happen if
+	 * another token was loaded externally while a refresh was underway)
+	 *
+	 * @param expected
+	 * 		the snapshot being replaced, or null to replace whatever snapshot is current
+	 * @param replacement
+	 * 		the new snapshot, or null to invalidate the session
+	 */
+	private void publish(final TokenSnapshot expected, final TokenSnapshot replacement)
+	{
+		synchronized (refreshLock)
+		{
+			if (expected != null && snapshot != expected)
+				return; // Don't overwrite a token loaded while this refresh was underway
+
+			log.trace("OAuth2SessionRef::publish");
+
+			this.snapshot = replacement;
+			this.usedSinceLoad = false;
+			this.delegatedToken = null;
+
+			if (scheduledRefresh != null)
+			{
+				scheduledRefresh.cancel(false);
+				scheduledRefresh = null;
+			}
+
+			if (backgroundRefresh &&
+			    replacement != null &&
+			    replacement.response.refresh != null &&
+			    replacement.response.refresh_token != null)
+			{
+				scheduledRefresh = refreshScheduler.schedule(backgroundRefreshTask(new WeakReference<>(this), replacement),
+				                                             replacement.response.refresh.getTime());
+			}
 		}
 	}
 
 
-	public synchronized String getOrCreateDelegatedToken()
+	/**
+	 * Discard the token (e.g. on logout), cancelling any scheduled background refresh. The session ref will become invalid until
+	 * a new token is loaded
+	 */
+	public void invalidate()
+	{
+		log.trace("OAuth2SessionRef::invalidate");
+
+		publish(null, null);
+	}
+
+
+	@Override
+	public void valueBound(final HttpSessionBindingEvent event)
+	{
+		// No action necessary
+	}
+
+
+	@Override
+	public void valueUnbound(final HttpSessionBindingEvent event)
+	{
+		// The HTTP session has ended (or this session ref has been removed from it)
+		invalidate();
+	}
+
+
+	public String getOrCreateDelegatedToken()
 	{
 		if (!allowDelegatedTokenGeneration)
 			throw new IllegalArgumentException("Delegated Token generation has been prohibited within this service!");
@@ -416,12 +757,20 @@ public class OAuth2SessionRef
 			// Already have a delegated token, use that directly
 			return getToken();
 		}
-		else if (delegatedToken == null || delegatedToken.getExpires() <= System.currentTimeMillis())
+
+		synchronized (delegatedTokenLock)
 		{
-			delegatedToken = generateNewDelegatedToken();
-		}
+			OAuth2DelegatedToken token = this.delegatedToken;
+
+			if (token == null || token.getExpires() <= System.currentTimeMillis())
+			{
+				token = generateNewDelegatedToken();
 
-		return delegatedToken.getValue();
+				this.delegatedToken = token;
+			}
+
+			return token.getValue();
+		}
 	}
 
 
@@ -440,11 +789,16 @@ public class OAuth2SessionRef
 
 		final long refreshAfter = System.currentTimeMillis() + delegatedTokenRefreshPeriod.getMilliseconds();
 
+		final TokenSnapshot current = snapshot;
+
+		if (current == null)
+			throw new IllegalArgumentException("Failed to generate delegated token: user session no longer valid!");
+
 		// Create a new delegation token
 		return new OAuth2DelegatedToken(authService.createDelegatedAccessToken(clientId,
 		                                                                       clientSecret,
 		                                                                       delegatedTokenValidityPeriod.getMilliseconds(),
-		                                                                       this.response.refresh_token,
+		                                                                       current.response.refresh_token,
 		                                                                       null), refreshAfter);
 	}
 }
@@ -0,0 +1,86 @@
+package com.peterphi.std.guice.web.rest.auth.oauth2;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.guice.common.lifecycle.GuiceLifecycleListener;
+import com.peterphi.std.guice.common.shutdown.iface.ShutdownManager;
+import com.peterphi.std.guice.common.shutdown.iface.StoppableService;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background token refreshes of {@link OAuth2SessionRef} instances, so that requests do not have to wait for a token
+ * to be refreshed
+ */
+@Singleton
+public class OAuth2TokenRefreshScheduler implements StoppableService, GuiceLifecycleListener
+{
+	@Inject(optional = true)
+	@Named("token-refresh.background.threads")
+	@Doc("The number of threads used to refresh OAuth tokens in the background (default 2)")
+	int threads = 2;
+
+	@Inject
+	ShutdownManager shutdownManager;
+
+	private ScheduledThreadPoolExecutor executor;
+
+
+	@Override
+	public void postConstruct()
+	{
+		final AtomicInteger count = new AtomicInteger();
+
+		this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+			final Thread thread = new Thread(r, "oauth2-token-refresh-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Sessions regularly replace their scheduled refresh, so don't hold on to the cancelled ones
+		this.executor.setRemoveOnCancelPolicy(true);
+
+		shutdownManager.register(this);
+	}
+
+
+	/**
+	 * Run an action at the specified time (or immediately if that time has already passed)
+	 *
+	 * @param action
+	 * @param when
+	 * 		the time, in milliseconds since the epoch
+	 *
+	 * @return
+	 */
+	public ScheduledFuture<?> schedule(final Runnable action, final long when)
+	{
+		return executor.schedule(action, Math.max(0, when - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Run an action as soon as possible
+	 *
+	 * @param action
+	 *
+	 * @return
+	 */
+	public Future<?> submit(final Runnable action)
+	{
+		return executor.submit(action);
+	}
+
+
+	@Override
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+}
@@ -16,6 +16,7 @@ import org.joda.time.format.DateTimeFormatter;
 
 import javax.servlet.http.HttpServletRequest;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -124,6 +125,18 @@ public class OAuthUser implements CurrentUser, GuiceLifecycleListener
 	}
 
 
+	@Override
+	public boolean hasAnyRole(final Collection<String> roles)
+	{
+		if (isAnonymous())
+			return false;
+		else if (roles.contains(CurrentUser.ROLE_AUTHENTICATED))
+			return true;
+		else
+			return !Collections.disjoint(roles, getSession().getUserInfo().roles);
+	}
+
+
 	@Override
 	public DateTime getExpires()
 	{
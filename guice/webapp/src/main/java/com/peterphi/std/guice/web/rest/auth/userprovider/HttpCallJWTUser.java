@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -320,6 +321,26 @@ class HttpCallJWTUser implements CurrentUser
 	}
 
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean hasAnyRole(final Collection<String> roles)
+	{
+		final Map<String, Object> data = get();
+
+		if (data == null)
+			return false;
+		else if (roles.contains(CurrentUser.ROLE_AUTHENTICATED))
+			return true;
+
+		final List<String> userRoles = (List<String>) data.get("roles");
+
+		if (userRoles == null)
+			return false; // No roles specified!
+		else
+			return !Collections.disjoint(roles, userRoles);
+	}
+
+
 	@Override
 	public AccessRefuser getAccessRefuser()
 	{
@@ -44,7 +44,6 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.ws.rs.NotFoundException;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A resteasy dispatcher (that can be brought up/down) that brings a Guice-enabled environment to Resteasy
@@ -54,15 +53,14 @@ class GuicedResteasy implements GuiceApplication
 	private static final Logger log = LoggerFactory.getLogger(GuicedResteasy.class);
 
 	private final GuiceRegistry registry;
-	private final AtomicBoolean registered = new AtomicBoolean(false);
 	private final FilterConfig filterConfig;
 	private final ServletConfig servletConfig;
 	private final ServletContext context;
 	private final ListenerBootstrap bootstrap;
 	private final boolean handleNotFoundException;
 
-	// Lazy-created on first call
-	private ServletContainerDispatcher dispatcher;
+	// Lazy-created on first call; only published once fully configured, so request threads can read it without locking
+	private volatile ServletContainerDispatcher dispatcher;
 
 	@Inject
 	private JAXRSExceptionMapper exceptionMapper;
@@ -146,15 +144,34 @@ class GuicedResteasy implements GuiceApplication
 	}
 
 
-	private synchronized ServletContainerDispatcher getDispatcher() throws ServletException
+	/**
+	 * Get the dispatcher, creating it if necessary. Once the dispatcher has been created this does not lock
+	 *
+	 * @return
+	 *
+	 * @throws ServletException
+	 */
+	ServletContainerDispatcher getDispatcher() throws ServletException
 	{
-		if (!registered.get())
+		final ServletContainerDispatcher current = this.dispatcher;
+
+		if (current != null)
+			return current;
+		else
+			return createDispatcher();
+	}
+
+
+	private synchronized ServletContainerDispatcher createDispatcher() throws ServletException
+	{
+		// Another thread may have created the dispatcher while we waited for the lock
+		if (dispatcher == null)
 		{
-			dispatcher = new ServletContainerDispatcher();
+			final ServletContainerDispatcher created = new ServletContainerDispatcher();
 
-			configure(dispatcher);
+			configure(created);
 
-			registered.set(true);
+			dispatcher = created;
 		}
 
 		return dispatcher;
@@ -426,12 +443,13 @@ class GuicedResteasy implements GuiceApplication
 	public void stopping()
 	{
 		log.trace("Guice injector stopping...");
-		registered.set(false);
 
-		if (dispatcher != null)
+		final ServletContainerDispatcher current = this.dispatcher;
+
+		if (current != null)
 		{
-			dispatcher.destroy();
 			dispatcher = null;
+			current.destroy();
 		}
 	}
 
@@ -0,0 +1,30 @@
+package com.peterphi.std.guice.web.rest.service.tracing;
+
+import com.google.inject.ImplementedBy;
+import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.annotation.ServiceName;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+
+@Path("/guice/traces")
+@ServiceName("Traces")
+@Doc("Displays the slowest recently-recorded traces (only populated if tracing.sample-rate is set)")
+@ImplementedBy(GuiceRestTracingServiceImpl.class)
+public interface GuiceRestTracingService
+{
+	@GET
+	@Path("/")
+	@Produces("text/html")
+	String getIndex(@QueryParam("limit") @DefaultValue("50") @Doc("The maximum number of traces to list") int limit);
+
+	@GET
+	@Path("/chrome")
+	@Produces("application/json")
+	@Doc("Retrieve spans in Chrome Trace Event format, for loading into chrome://tracing or Perfetto")
+	String getChromeTrace(@QueryParam("trace") @Doc("The trace id; if omitted, the slowest traces are returned") String traceId,
+	                      @QueryParam("limit") @DefaultValue("50") @Doc("The maximum number of traces to return if no trace id is provided") int limit);
+}
@@ -0,0 +1,55 @@
+package com.peterphi.std.guice.web.rest.service.tracing;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.peterphi.std.guice.common.auth.annotations.AuthConstraint;
+import com.peterphi.std.guice.web.rest.templating.TemplateCall;
+import com.peterphi.std.guice.web.rest.templating.thymeleaf.GuiceCoreTemplater;
+import com.peterphi.std.util.tracing.ChromeTraceExporter;
+import com.peterphi.std.util.tracing.Span;
+import com.peterphi.std.util.tracing.TraceRecorder;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@Singleton
+@AuthConstraint(id = "framework-admin", role = "framework-admin")
+public class GuiceRestTracingServiceImpl implements GuiceRestTracingService
+{
+	/**
+	 * The resource prefix
+	 */
+	private static final String PREFIX = "/com/peterphi/std/guice/web/rest/service/restcore/";
+
+	@Inject
+	GuiceCoreTemplater templater;
+
+
+	@Override
+	public String getIndex(final int limit)
+	{
+		final TemplateCall template = templater.template(PREFIX + "trace_list.html");
+
+		template.set("enabled", TraceRecorder.isEnabled());
+		template.set("sampleRate", TraceRecorder.getSampleRate());
+		template.set("traces", TraceRecorder.getSlowestTraces(limit));
+
+		return template.process();
+	}
+
+
+	@Override
+	public String getChromeTrace(final String traceId, final int limit)
+	{
+		if (StringUtils.isNotEmpty(traceId))
+			return ChromeTraceExporter.toJson(TraceRecorder.getTrace(traceId));
+
+		final List<Span> spans = new ArrayList<>();
+		for (Map.Entry<Span, List<Span>> trace : TraceRecorder.getSlowestTraces(limit).entrySet())
+			spans.addAll(trace.getValue());
+
+		return ChromeTraceExporter.toJson(spans);
+	}
+}
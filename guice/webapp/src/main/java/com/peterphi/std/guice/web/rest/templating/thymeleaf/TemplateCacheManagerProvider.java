@@ -0,0 +1,68 @@
+package com.peterphi.std.guice.web.rest.templating.thymeleaf;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import com.peterphi.std.annotation.Doc;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+import org.thymeleaf.cache.ICache;
+import org.thymeleaf.cache.ICacheManager;
+import org.thymeleaf.cache.StandardCacheManager;
+import org.thymeleaf.cache.TinyLFUCache;
+
+/**
+ * Builds the thymeleaf cache manager, exposing the hit/miss/eviction counts of frequency-aware caches as metrics
+ */
+public class TemplateCacheManagerProvider implements Provider<ICacheManager>
+{
+	@Inject(optional = true)
+	@Named("thymeleaf.cache.frequency-aware")
+	@Doc("If true, the thymeleaf template and expression caches evict their least frequently used entries (W-TinyLFU) rather than their oldest entries (default true)")
+	boolean frequencyAware = true;
+
+	@Inject(optional = true)
+	@Named("thymeleaf.cache.template-max-size")
+	@Doc("The maximum number of parsed templates held in the thymeleaf template cache; 0 disables the cache (default 200)")
+	int templateCacheMaxSize = StandardCacheManager.DEFAULT_TEMPLATE_CACHE_MAX_SIZE;
+
+	@Inject(optional = true)
+	@Named("thymeleaf.cache.expression-max-size")
+	@Doc("The maximum number of parsed expressions held in the thymeleaf expression cache; 0 disables the cache (default 500)")
+	int expressionCacheMaxSize = StandardCacheManager.DEFAULT_EXPRESSION_CACHE_MAX_SIZE;
+
+	@Inject
+	MetricRegistry metrics;
+
+
+	@Override
+	public ICacheManager get()
+	{
+		StandardCacheManager manager = new StandardCacheManager();
+
+		manager.setTemplateCacheFrequencyAware(frequencyAware);
+		manager.setTemplateCacheMaxSize(templateCacheMaxSize);
+		manager.setExpressionCacheFrequencyAware(frequencyAware);
+		manager.setExpressionCacheMaxSize(expressionCacheMaxSize);
+
+		register(manager.getTemplateCache());
+		register(manager.getExpressionCache());
+
+		return manager;
+	}
+
+
+	private void register(final ICache<?, ?> cache)
+	{
+		if (cache instanceof TinyLFUCache<?, ?> tinyLFU)
+		{
+			final String name = tinyLFU.getName();
+
+			metrics.register(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_HITS, name), (Gauge) tinyLFU :: getHitCount);
+			metrics.register(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_MISSES, name), (Gauge) tinyLFU :: getMissCount);
+			metrics.register(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_EVICTIONS, name),
+			                 (Gauge) tinyLFU :: getEvictionCount);
+		}
+	}
+}
@@ -2,15 +2,26 @@ package com.peterphi.std.guice.web.rest.templating.thymeleaf;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.peterphi.std.guice.apploader.GuiceProperties;
 import com.peterphi.std.guice.web.rest.templating.TemplateCall;
+import org.thymeleaf.IThrottledTemplateProcessor;
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.AbstractContext;
 import org.thymeleaf.context.IContext;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a ThymeLeaf Template that can be called. Constructed by {@link ThymeleafTemplater}
@@ -24,14 +35,29 @@ public class ThymeleafCall implements TemplateCall
 	private final Timer calls;
 	private final Meter failures;
 
+	private final boolean streaming;
+	private final int chunkSize;
 
-	ThymeleafCall(TemplateEngine engine, AbstractContext context, String name, final Timer calls, final Meter failures)
+
+	ThymeleafCall(TemplateEngine engine,
+	              AbstractContext context,
+	              String name,
+	              final Timer calls,
+	              final Meter failures,
+	              final boolean streaming,
+	              final int chunkSize)
 	{
+		// N.B. streaming renders chunkSize characters at a time until the template is finished, so would never finish otherwise
+		if (streaming && chunkSize <= 0)
+			throw new IllegalArgumentException("Streaming chunk size must be positive, got " + chunkSize);
+
 		this.engine = engine;
 		this.context = context;
 		this.name = name;
 		this.calls = calls;
 		this.failures = failures;
+		this.streaming = streaming;
+		this.chunkSize = chunkSize;
 	}
 
 
@@ -130,12 +156,16 @@ public class ThymeleafCall implements TemplateCall
 
 
 	/**
-	 * Render the template as the entity for a ResponseBuilder, returning the built Response
+	 * Render the template as the entity for a ResponseBuilder, returning the built Response. If streaming is enabled (see
+	 * {@link GuiceProperties#THYMELEAF_STREAMING}) then this delegates to {@link #processStreaming(ResponseBuilder)}
 	 *
 	 * @return the result of calling responseBuilder.
 	 */
 	public Response process(ResponseBuilder responseBuilder)
 	{
+		if (streaming)
+			return processStreaming(responseBuilder);
+
 		Timer.Context timer = calls.time();
 		try
 		{
@@ -156,4 +186,131 @@ public class ThymeleafCall implements TemplateCall
 			timer.stop();
 		}
 	}
+
+
+	/**
+	 * Render the template as the entity for a ResponseBuilder, streaming it to the client as it renders, flushing every
+	 * {@link GuiceProperties#THYMELEAF_STREAMING_CHUNK_SIZE} characters.<br />
+	 * The first chunk is rendered before this method returns, so a template that fails early (or a template small enough to
+	 * fit in a single chunk) behaves exactly as with {@link #process(ResponseBuilder)}. Once the first chunk has been sent the
+	 * response status can no longer change, so a later failure can only abort the response.<br />
+	 * The streamed output is encoded with the charset of the response's Content-Type (or UTF-8 if it does not specify one, as
+	 * for a String entity).<br />
+	 * N.B. the rest of the template renders after the resource method returns, and so outside of any transaction it started
+	 *
+	 * @return the result of calling responseBuilder.
+	 */
+	public Response processStreaming(ResponseBuilder responseBuilder)
+	{
+		final long started = System.nanoTime();
+		boolean streamed = false;
+		try
+		{
+			final IThrottledTemplateProcessor processor = engine.processThrottled(name, context);
+
+			final StringWriter firstChunk = new StringWriter(chunkSize);
+			processor.process(chunkSize, firstChunk);
+
+			if (processor.isFinished())
+			{
+				responseBuilder.entity(firstChunk.toString());
+
+				return responseBuilder.build();
+			}
+			else
+			{
+				final StreamingTemplateOutput output = new StreamingTemplateOutput(processor,
+				                                                                   firstChunk.toString(),
+				                                                                   System.nanoTime() - started);
+
+				responseBuilder.entity(output);
+				streamed = true;
+
+				final Response response = responseBuilder.build();
+
+				output.charset = getCharset(response.getMediaType());
+
+				return response;
+			}
+		}
+		catch (Throwable e)
+		{
+			failures.mark();
+
+			throw e;
+		}
+		finally
+		{
+			// If streaming, the time taken is recorded once the output has been written
+			if (!streamed)
+				calls.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	private static Charset getCharset(final MediaType type)
+	{
+		final String charset = (type != null) ? type.getParameters().get(MediaType.CHARSET_PARAMETER) : null;
+
+		if (charset != null)
+			return Charset.forName(charset);
+		else
+			return StandardCharsets.UTF_8;
+	}
+
+
+	/**
+	 * Writes the remainder of a template whose first chunk has already been rendered. The render time is only recorded if the
+	 * output is written
+	 */
+	private class StreamingTemplateOutput implements StreamingOutput
+	{
+		private final IThrottledTemplateProcessor processor;
+		private final String firstChunk;
+
+		/**
+		 * The time spent rendering the first chunk
+		 */
+		private final long firstChunkNanos;
+
+		private Charset charset = StandardCharsets.UTF_8;
+
+
+		public StreamingTemplateOutput(final IThrottledTemplateProcessor processor,
+		                               final String firstChunk,
+		                               final long firstChunkNanos)
+		{
+			this.processor = processor;
+			this.firstChunk = firstChunk;
+			this.firstChunkNanos = firstChunkNanos;
+		}
+
+
+		@Override
+		public void write(final OutputStream os) throws IOException
+		{
+			final long started = System.nanoTime();
+			try (Writer writer = new OutputStreamWriter(os, charset))
+			{
+				writer.write(firstChunk);
+				writer.flush();
+
+				while (!processor.isFinished())
+				{
+					processor.process(chunkSize, writer);
+					writer.flush();
+				}
+			}
+			catch (Throwable e)
+			{
+				failures.mark();
+
+				throw e;
+			}
+			finally
+			{
+				calls.update(firstChunkNanos + (System.nanoTime() - started), TimeUnit.NANOSECONDS);
+			}
+		}
+	}
 }
@@ -6,6 +6,7 @@ import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import com.peterphi.std.guice.web.rest.templating.Templater;
 import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.cache.ICacheManager;
 import org.thymeleaf.templateresolver.ITemplateResolver;
 
 /**
@@ -18,15 +19,17 @@ public class ThymeleafModule extends AbstractModule
 	{
 		bind(Templater.class).to(ThymeleafTemplater.class).in(Scopes.SINGLETON);
 		bind(ITemplateResolver.class).toProvider(TemplateResolverProvider.class).in(Singleton.class);
+		bind(ICacheManager.class).toProvider(TemplateCacheManagerProvider.class).in(Singleton.class);
 	}
 
 
 	@Provides
 	@Singleton
-	public TemplateEngine getTemplateEngine(ITemplateResolver resolver)
+	public TemplateEngine getTemplateEngine(ITemplateResolver resolver, ICacheManager cacheManager)
 	{
 		TemplateEngine engine = new TemplateEngine();
 		engine.setTemplateResolver(resolver);
+		engine.setCacheManager(cacheManager);
 
 		return engine;
 	}
@@ -6,6 +6,7 @@ import com.codahale.metrics.Timer;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.peterphi.std.guice.apploader.GuiceProperties;
 import com.peterphi.std.guice.common.auth.iface.CurrentUser;
 import com.peterphi.std.guice.common.cached.CacheManager;
 import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
@@ -110,7 +111,10 @@ public class ThymeleafTemplater implements Templater
 		ctx.setVariable("consts", configuration);
 		ctx.setVariables(data);
 
-		return new ThymeleafCall(engine, ctx, name, calls, failures);
+		final boolean streaming = configuration.getBoolean(GuiceProperties.THYMELEAF_STREAMING, false);
+		final int chunkSize = configuration.getInt(GuiceProperties.THYMELEAF_STREAMING_CHUNK_SIZE, 16384);
+
+		return new ThymeleafCall(engine, ctx, name, calls, failures, streaming, chunkSize);
 	}
 
 
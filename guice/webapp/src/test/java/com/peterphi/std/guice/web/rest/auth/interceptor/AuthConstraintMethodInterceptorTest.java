@@ -0,0 +1,324 @@
+package com.peterphi.std.guice.web.rest.auth.interceptor;
+
+import com.codahale.metrics.Meter;
+import com.peterphi.std.guice.apploader.GuiceProperties;
+import com.peterphi.std.guice.common.auth.annotations.AuthConstraint;
+import com.peterphi.std.guice.common.auth.iface.AccessRefuser;
+import com.peterphi.std.guice.common.auth.iface.CurrentUser;
+import com.peterphi.std.guice.common.serviceprops.composite.GuiceConfig;
+import org.aopalliance.intercept.MethodInvocation;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AuthConstraintMethodInterceptorTest
+{
+	private GuiceConfig config;
+	private Meter denied;
+
+
+	@Before
+	public void setUp()
+	{
+		config = new GuiceConfig();
+		config.set(GuiceProperties.AUTHZ_ONLY_SERVLET_REQUEST, "false");
+
+		denied = new Meter();
+	}
+
+
+	public static class Target
+	{
+		@AuthConstraint(id = "multi", role = {"a", "b"})
+		public String multi()
+		{
+			return "ok";
+		}
+
+
+		@AuthConstraint(id = "edit", role = "edit")
+		public String edit()
+		{
+			return "ok";
+		}
+	}
+
+
+	@Test
+	public void testGrantedIfUserHasAnyOfSeveralRoles() throws Throwable
+	{
+		assertGranted(interceptor(new PassthroughUserInterrogator(), "b"), "multi");
+	}
+
+
+	@Test
+	public void testGrantedIfUserHasAllOfSeveralRoles() throws Throwable
+	{
+		assertGranted(interceptor(new PassthroughUserInterrogator(), "a", "b"), "multi");
+	}
+
+
+	@Test
+	public void testDeniedIfUserHasNoneOfSeveralRoles() throws Throwable
+	{
+		assertDenied(interceptor(new PassthroughUserInterrogator(), "c"), "multi");
+	}
+
+
+	@Test
+	public void testPassthroughUsesSetBasedRoleTest() throws Throwable
+	{
+		final TestUser user = new TestUser(Set.of("b"));
+
+		assertGranted(interceptor(new PassthroughUserInterrogator(), user), "multi");
+
+		assertEquals("roles should be tested as a set, not one at a time", 0, user.hasRoleCalls);
+	}
+
+
+	@Test
+	public void testInterrogatorOverridingHasRoleGrantsCapability() throws Throwable
+	{
+		// User holds the "editor" group, which the interrogator maps to the "edit" capability
+		assertGranted(interceptor(new CapabilityInterrogator(), "editor"), "edit");
+	}
+
+
+	@Test
+	public void testInterrogatorOverridingHasRoleIsNotBypassed() throws Throwable
+	{
+		// User holds the raw "edit" role, but the interrogator only grants "edit" to members of "editor"
+		assertDenied(interceptor(new CapabilityInterrogator(), "edit"), "edit");
+	}
+
+
+	@Test
+	public void testDecisionsDiscardedWhenScopeConfigChanges() throws Throwable
+	{
+		final AuthConstraintMethodInterceptor interceptor = interceptor(new PassthroughUserInterrogator(), "c");
+
+		assertDenied(interceptor, "multi");
+
+		config.set("framework.webauth.scope.multi.role", "c");
+
+		assertGranted(interceptor, "multi");
+
+		config.set("framework.webauth.scope.multi.skip", "true");
+		config.set("framework.webauth.scope.multi.role", "d");
+
+		assertGranted(interceptor, "multi");
+	}
+
+
+	private AuthConstraintMethodInterceptor interceptor(final PassthroughUserInterrogator interrogator, final String... roles)
+	{
+		return interceptor(interrogator, new TestUser(Set.of(roles)));
+	}
+
+
+	private AuthConstraintMethodInterceptor interceptor(final PassthroughUserInterrogator interrogator, final CurrentUser user)
+	{
+		interrogator.user = () -> user;
+
+		return new AuthConstraintMethodInterceptor(() -> interrogator, config, new Meter(), new Meter(), denied, new Meter());
+	}
+
+
+	private static void assertGranted(final AuthConstraintMethodInterceptor interceptor, final String method) throws Throwable
+	{
+		assertEquals("ok", interceptor.invoke(new Invocation(Target.class.getMethod(method))));
+	}
+
+
+	private void assertDenied(final AuthConstraintMethodInterceptor interceptor, final String method) throws Throwable
+	{
+		final long before = denied.getCount();
+
+		try
+		{
+			interceptor.invoke(new Invocation(Target.class.getMethod(method)));
+
+			fail("Expected access to " + method + " to be refused");
+		}
+		catch (SecurityException e)
+		{
+			// expected
+		}
+
+		assertEquals(before + 1, denied.getCount());
+	}
+
+
+	/**
+	 * Maps the "edit" capability onto membership of the "editor" group
+	 */
+	private static class CapabilityInterrogator extends PassthroughUserInterrogator
+	{
+		@Override
+		public boolean hasRole(final String role)
+		{
+			if (role.equals("edit"))
+				return getUser().hasRole("editor");
+			else
+				return super.hasRole(role);
+		}
+	}
+
+
+	private static class Invocation implements MethodInvocation
+	{
+		private final Method method;
+
+
+		public Invocation(final Method method)
+		{
+			this.method = method;
+		}
+
+
+		@Override
+		public Method getMethod()
+		{
+			return method;
+		}
+
+
+		@Override
+		public Object[] getArguments()
+		{
+			return new Object[0];
+		}
+
+
+		@Override
+		public Object proceed() throws Throwable
+		{
+			return method.invoke(new Target());
+		}
+
+
+		@Override
+		public Object getThis()
+		{
+			return null;
+		}
+
+
+		@Override
+		public AccessibleObject getStaticPart()
+		{
+			return method;
+		}
+	}
+
+
+	private static class TestUser implements CurrentUser
+	{
+		private final Set<String> roles;
+
+		int hasRoleCalls = 0;
+
+
+		public TestUser(final Set<String> roles)
+		{
+			this.roles = roles;
+		}
+
+
+		@Override
+		public String getAuthType()
+		{
+			return "test";
+		}
+
+
+		@Override
+		public boolean isAnonymous()
+		{
+			return false;
+		}
+
+
+		@Override
+		public boolean isDelegated()
+		{
+			return false;
+		}
+
+
+		@Override
+		public boolean isService()
+		{
+			return false;
+		}
+
+
+		@Override
+		public String getName()
+		{
+			return "Test User";
+		}
+
+
+		@Override
+		public String getUsername()
+		{
+			return "test";
+		}
+
+
+		@Override
+		public boolean hasRole(final String role)
+		{
+			hasRoleCalls++;
+
+			return roles.contains(role);
+		}
+
+
+		@Override
+		public boolean hasAnyRole(final Collection<String> roles)
+		{
+			// Set-based test, as the real user implementations do
+			return !Collections.disjoint(this.roles, roles);
+		}
+
+
+		@Override
+		public DateTime getExpires()
+		{
+			return null;
+		}
+
+
+		@Override
+		public Collection<String> getRoles()
+		{
+			return roles;
+		}
+
+
+		@Override
+		public Map<String, Object> getClaims()
+		{
+			return Collections.emptyMap();
+		}
+
+
+		@Override
+		public AccessRefuser getAccessRefuser()
+		{
+			return (scope, constraint, user) -> new SecurityException("Access denied to " + scope);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package com.peterphi.std.guice.web.rest.auth.oauth2;
+
+import com.peterphi.usermanager.rest.iface.oauth2server.UserManagerOAuthService;
+import com.peterphi.usermanager.rest.iface.oauth2server.types.OAuth2TokenResponse;
+import com.peterphi.usermanager.rest.type.UserManagerUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OAuth2SessionRefTest
+{
+	private static final int THREADS = 8;
+
+	private final AtomicInteger refreshes = new AtomicInteger();
+
+	/**
+	 * Refresh calls wait for this latch before responding
+	 */
+	private volatile CountDownLatch release = new CountDownLatch(0);
+
+	/**
+	 * If set, refresh calls fail with this exception
+	 */
+	private volatile RuntimeException failure;
+
+	private final ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+	private TestScheduler scheduler;
+	private OAuth2SessionRef session;
+
+
+	@Before
+	public void setUp()
+	{
+		final UserManagerOAuthService service = (UserManagerOAuthService) Proxy.newProxyInstance(getClass().getClassLoader(),
+		                                                                                        new Class[]{UserManagerOAuthService.class},
+		                                                                                        (proxy, method, args) -> call(method));
+
+		scheduler = new TestScheduler();
+
+		session = new OAuth2SessionRef(service, "http://oauth", "client", "secret", URI.create("http://localhost/"));
+		session.refreshScheduler = scheduler;
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		callers.shutdownNow();
+		scheduler.shutdown();
+	}
+
+
+	private Object call(final Method method) throws InterruptedException
+	{
+		return switch (method.getName())
+		{
+			case "getToken" -> refreshResponse();
+			case "get" -> new UserManagerUser();
+			default -> throw new UnsupportedOperationException(method.getName());
+		};
+	}
+
+
+	private String refreshResponse() throws InterruptedException
+	{
+		final int count = refreshes.incrementAndGet();
+
+		release.await();
+
+		if (failure != null)
+			throw failure;
+
+		return new OAuth2TokenResponse("token-" + count, "refresh-" + count, inSeconds(3600)).encode();
+	}
+
+
+	private static Date inSeconds(final int seconds)
+	{
+		return new Date(System.currentTimeMillis() + seconds * 1000L);
+	}
+
+
+	@Test
+	public void testConcurrentGetTokenOnExpiredTokenRefreshesOnce() throws Exception
+	{
+		session.load(new OAuth2TokenResponse("token-0", "refresh-0", inSeconds(-1)));
+
+		release = new CountDownLatch(1);
+
+		final List<Future<String>> results = getTokenConcurrently();
+
+		awaitRefreshes(1);
+		release.countDown();
+
+		for (Future<String> result : results)
+			assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+
+		assertEquals(1, refreshes.get());
+	}
+
+
+	@Test
+	public void testFailedRefreshSharedThenRecovered() throws Exception
+	{
+		session.load(new OAuth2TokenResponse("token-0", "refresh-0", inSeconds(-1)));
+
+		release = new CountDownLatch(1);
+		failure = new IllegalStateException("refresh refused");
+
+		final List<Future<String>> results = getTokenConcurrently();
+
+		awaitRefreshes(1);
+		release.countDown();
+
+		for (Future<String> result : results)
+		{
+			try
+			{
+				result.get(10, TimeUnit.SECONDS);
+				fail("Expected refresh failure to be reported to every caller");
+			}
+			catch (ExecutionException e)
+			{
+				// expected: either the shared refresh failure or (for late arrivals) the invalidated session
+			}
+		}
+
+		assertEquals(1, refreshes.get());
+		assertFalse("failed foreground refresh should invalidate the session", session.isValid());
+
+		// A new token must be refreshable: the failed refresh must not be left in place
+		failure = null;
+		session.load(new OAuth2TokenResponse("token-x", "refresh-x", inSeconds(-1)));
+
+		assertEquals("token-2", session.getToken());
+	}
+
+
+	@Test
+	public void testConcurrentGetTokenSubmitsOneBackgroundRefresh() throws Exception
+	{
+		// Past its refresh time but not yet expired
+		session.load(new OAuth2TokenResponse("token-0", "refresh-0", inSeconds(90)));
+
+		release = new CountDownLatch(1);
+
+		for (Future<String> result : getTokenConcurrently())
+			assertEquals("token-0", result.get(10, TimeUnit.SECONDS));
+
+		assertEquals(1, scheduler.submitted.size());
+
+		release.countDown();
+		scheduler.submitted.get(0).get(10, TimeUnit.SECONDS);
+
+		assertEquals(1, refreshes.get());
+		assertEquals("token-1", session.getToken());
+	}
+
+
+	@Test
+	public void testFailedBackgroundRefreshKeepsTokenAndIsRetried() throws Exception
+	{
+		session.load(new OAuth2TokenResponse("token-0", "refresh-0", inSeconds(90)));
+
+		failure = new IllegalStateException("refresh refused");
+
+		assertEquals("token-0", session.getToken());
+		scheduler.submitted.get(0).get(10, TimeUnit.SECONDS);
+
+		assertTrue("failed background refresh should leave the session valid", session.hasBeenInitialised());
+
+		failure = null;
+
+		assertEquals("token-0", session.getToken());
+		scheduler.submitted.get(1).get(10, TimeUnit.SECONDS);
+
+		assertEquals(2, refreshes.get());
+		assertEquals("token-2", session.getToken());
+	}
+
+
+	@Test
+	public void testBackgroundRefreshStopsWhenSessionEnds() throws Exception
+	{
+		session.load(new OAuth2TokenResponse("token-0", "refresh-0", inSeconds(3600)));
+		assertEquals("token-0", session.getToken());
+
+		assertEquals(1, scheduler.scheduled.size());
+
+		// Simulate the HTTP session being invalidated
+		session.valueUnbound(null);
+
+		assertTrue(scheduler.scheduledFutures.get(0).isCancelled());
+		assertFalse(session.hasBeenInitialised());
+
+		// Even if the task had already been picked up, it must not refresh an invalidated session
+		scheduler.scheduled.get(0).run();
+
+		assertEquals(0, refreshes.get());
+	}
+
+
+	private List<Future<String>> getTokenConcurrently()
+	{
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+
+		final List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++)
+			results.add(callers.submit(() -> {
+				barrier.await();
+
+				return session.getToken();
+			}));
+
+		return results;
+	}
+
+
+	private void awaitRefreshes(final int count) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + 10_000;
+
+		while (refreshes.get() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+
+		assertEquals(count, refreshes.get());
+	}
+
+
+	/**
+	 * Records scheduled tasks without running them, and runs submitted tasks on a separate thread
+	 */
+	private static class TestScheduler extends OAuth2TokenRefreshScheduler
+	{
+		final List<Runnable> scheduled = new CopyOnWriteArrayList<>();
+		final List<ScheduledFuture<?>> scheduledFutures = new CopyOnWriteArrayList<>();
+		final List<Future<?>> submitted = new CopyOnWriteArrayList<>();
+
+		private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		private final ExecutorService executor = Executors.newCachedThreadPool();
+
+
+		@Override
+		public ScheduledFuture<?> schedule(final Runnable action, final long when)
+		{
+			scheduled.add(action);
+
+			// Never due during the test
+			final ScheduledFuture<?> future = timer.schedule(() -> {
+			}, 1, TimeUnit.HOURS);
+
+			scheduledFutures.add(future);
+
+			return future;
+		}
+
+
+		@Override
+		public Future<?> submit(final Runnable action)
+		{
+			final Future<?> future = executor.submit(action);
+
+			submitted.add(future);
+
+			return future;
+		}
+
+
+		@Override
+		public void shutdown()
+		{
+			timer.shutdownNow();
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.peterphi.std.guice.web.rest.resteasy;
+
+import org.jboss.resteasy.plugins.server.servlet.ServletContainerDispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-request overhead of {@link GuicedResteasy#getDispatcher()} with 1 to N concurrent request threads, alongside
+ * a lookup that takes a lock on every call (as dispatcher lookup used to). Not run as part of the test suite; run manually with
+ * <code>main</code>, optionally passing the maximum number of threads (default: the number of processors)
+ */
+public class GuicedResteasyDispatchBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 1_000_000;
+	private static final int ITERATIONS = 5_000_000;
+
+
+	@FunctionalInterface
+	private interface Lookup
+	{
+		ServletContainerDispatcher get() throws Exception;
+	}
+
+
+	public static void main(String[] args) throws Exception
+	{
+		final int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+		final GuicedResteasy resteasy = new GuicedResteasyTest.CountingGuicedResteasy();
+		resteasy.getDispatcher();
+
+		final Lookup current = resteasy :: getDispatcher;
+		final Lookup locking = () -> {
+			synchronized (resteasy)
+			{
+				return resteasy.getDispatcher();
+			}
+		};
+
+		run("current", current, maxThreads, WARMUP_ITERATIONS);
+		run("locking", locking, maxThreads, WARMUP_ITERATIONS);
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			run("current", current, threads, ITERATIONS);
+			run("locking", locking, threads, ITERATIONS);
+		}
+	}
+
+
+	private static void run(final String name, final Lookup lookup, final int threads, final int iterations) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final List<Thread> workers = new ArrayList<>(threads);
+
+		for (int i = 0; i < threads; i++)
+		{
+			final Thread worker = new Thread(() -> {
+				try
+				{
+					start.await();
+
+					for (int j = 0; j < iterations; j++)
+						if (lookup.get() == null)
+							throw new IllegalStateException("No dispatcher!");
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+				finally
+				{
+					done.countDown();
+				}
+			});
+
+			worker.start();
+			workers.add(worker);
+		}
+
+		final long started = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long elapsed = System.nanoTime() - started;
+
+		for (Thread worker : workers)
+			worker.join();
+
+		System.out.printf("%-8s %3d threads: %,d lookups in %,d ms (%,.2f ns/request)%n",
+		                  name,
+		                  threads,
+		                  (long) threads * iterations,
+		                  TimeUnit.NANOSECONDS.toMillis(elapsed),
+		                  (double) elapsed / iterations);
+	}
+}
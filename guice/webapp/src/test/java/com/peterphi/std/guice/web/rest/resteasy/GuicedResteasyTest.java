@@ -0,0 +1,94 @@
+package com.peterphi.std.guice.web.rest.resteasy;
+
+import org.jboss.resteasy.plugins.server.servlet.ServletContainerDispatcher;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class GuicedResteasyTest
+{
+	@Test
+	public void testDispatcherIsCreatedOnce() throws Exception
+	{
+		final CountingGuicedResteasy resteasy = new CountingGuicedResteasy();
+
+		final ServletContainerDispatcher dispatcher = resteasy.getDispatcher();
+
+		assertSame(dispatcher, resteasy.getDispatcher());
+		assertEquals(1, resteasy.configured.get());
+	}
+
+
+	/**
+	 * Once the dispatcher is available, retrieving it must not need the lock used to create it (otherwise every request thread
+	 * serialises on it)
+	 */
+	@Test(timeout = 10_000)
+	public void testDispatcherLookupDoesNotLock() throws Exception
+	{
+		final CountingGuicedResteasy resteasy = new CountingGuicedResteasy();
+
+		final ServletContainerDispatcher dispatcher = resteasy.getDispatcher();
+
+		synchronized (resteasy)
+		{
+			final CompletableFuture<ServletContainerDispatcher> lookup = CompletableFuture.supplyAsync(() -> {
+				try
+				{
+					return resteasy.getDispatcher();
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+
+			assertSame(dispatcher, lookup.get(5, TimeUnit.SECONDS));
+		}
+	}
+
+
+	/**
+	 * A GuicedResteasy which does not attempt to bring up Guice or register any resources
+	 */
+	static class CountingGuicedResteasy extends GuicedResteasy
+	{
+		final AtomicInteger configured = new AtomicInteger();
+
+
+		CountingGuicedResteasy()
+		{
+			super(null, servletConfig(), null, false);
+		}
+
+
+		@Override
+		protected void configure(final ServletContainerDispatcher dispatcher)
+		{
+			configured.incrementAndGet();
+		}
+
+
+		private static ServletConfig servletConfig()
+		{
+			final ServletContext context = (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+			                                                                        new Class[]{ServletContext.class},
+			                                                                        (proxy, method, args) -> null);
+
+			return (ServletConfig) Proxy.newProxyInstance(ServletConfig.class.getClassLoader(),
+			                                              new Class[]{ServletConfig.class},
+			                                              (proxy, method, args) -> method.getName()
+			                                                                             .equals("getServletContext") ?
+			                                                                       context :
+			                                                                       null);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.peterphi.std.guice.web.rest.templating.thymeleaf;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.peterphi.std.guice.common.metrics.GuiceMetricNames;
+import org.junit.Test;
+import org.thymeleaf.cache.ExpressionCacheKey;
+import org.thymeleaf.cache.ICacheManager;
+import org.thymeleaf.cache.StandardCache;
+import org.thymeleaf.cache.TinyLFUCache;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TemplateCacheManagerProviderTest
+{
+	@Test
+	public void testFrequencyAwareCachesRegisterMetrics()
+	{
+		final TemplateCacheManagerProvider provider = new TemplateCacheManagerProvider();
+		provider.metrics = new MetricRegistry();
+		provider.templateCacheMaxSize = 10;
+
+		final ICacheManager manager = provider.get();
+
+		assertTrue(manager.getTemplateCache() instanceof TinyLFUCache);
+		assertTrue(manager.getExpressionCache() instanceof TinyLFUCache);
+
+		assertEquals(10, ((TinyLFUCache<?, ?>) manager.getTemplateCache()).getMaxSize());
+
+		// The gauges must read the counters of the cache the manager hands out
+		final TinyLFUCache<ExpressionCacheKey, Object> expressions = (TinyLFUCache<ExpressionCacheKey, Object>) manager.getExpressionCache();
+
+		expressions.get(new ExpressionCacheKey("test", "missing"));
+		expressions.put(new ExpressionCacheKey("test", "present"), "value");
+		expressions.get(new ExpressionCacheKey("test", "present"));
+
+		final Map<String, Gauge> gauges = provider.metrics.getGauges();
+		final String name = expressions.getName();
+
+		assertEquals(1L, gauges.get(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_HITS, name)).getValue());
+		assertEquals(1L, gauges.get(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_MISSES, name)).getValue());
+		assertEquals(0L, gauges.get(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_EVICTIONS, name)).getValue());
+
+		final String templates = ((TinyLFUCache<?, ?>) manager.getTemplateCache()).getName();
+		assertTrue(gauges.containsKey(MetricRegistry.name(GuiceMetricNames.THYMELEAF_CACHE_HITS, templates)));
+	}
+
+
+	@Test
+	public void testStandardCachesWhenNotFrequencyAware()
+	{
+		final TemplateCacheManagerProvider provider = new TemplateCacheManagerProvider();
+		provider.metrics = new MetricRegistry();
+		provider.frequencyAware = false;
+
+		final ICacheManager manager = provider.get();
+
+		assertTrue(manager.getTemplateCache() instanceof StandardCache);
+		assertTrue(provider.metrics.getGauges().isEmpty());
+	}
+
+
+	@Test
+	public void testDisabledCache()
+	{
+		final TemplateCacheManagerProvider provider = new TemplateCacheManagerProvider();
+		provider.metrics = new MetricRegistry();
+		provider.templateCacheMaxSize = 0;
+
+		assertNull(provider.get().getTemplateCache());
+	}
+}
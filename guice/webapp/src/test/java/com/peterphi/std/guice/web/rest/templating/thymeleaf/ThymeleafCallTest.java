@@ -0,0 +1,143 @@
+package com.peterphi.std.guice.web.rest.templating.thymeleaf;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.templateresolver.StringTemplateResolver;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThymeleafCallTest
+{
+	/**
+	 * A template that renders to far more than one chunk
+	 */
+	private static final String LARGE_TEMPLATE = "<ul><li th:each=\"i : ${items}\" th:text=\"${i}\"></li></ul><p th:text=\"${last.text}\"></p>";
+
+	private final Timer calls = new Timer();
+	private final Meter failures = new Meter();
+
+
+	@Test
+	public void testSmallTemplateNotStreamed()
+	{
+		final Response response = call("<p th:text=\"${last.text}\"></p>", new Last("done")).processStreaming(Response.ok());
+
+		assertEquals("<p>done</p>", response.getEntity());
+		assertEquals(1, calls.getCount());
+		assertEquals(0, failures.getCount());
+	}
+
+
+	@Test
+	public void testLargeTemplateStreamed() throws Exception
+	{
+		final String expected = call(LARGE_TEMPLATE, new Last("done")).process();
+		assertEquals(1, calls.getCount());
+
+		final Response response = call(LARGE_TEMPLATE, new Last("done")).processStreaming(Response.ok());
+
+		assertTrue(response.getEntity() instanceof StreamingOutput);
+
+		// Nothing is recorded until the output is written
+		assertEquals(1, calls.getCount());
+
+		assertEquals(expected, new String(write(response), StandardCharsets.UTF_8));
+		assertEquals(2, calls.getCount());
+		assertEquals(0, failures.getCount());
+	}
+
+
+	@Test
+	public void testStreamedOutputUsesResponseCharset() throws Exception
+	{
+		final Response response = call(LARGE_TEMPLATE, new Last("café")).processStreaming(Response.ok()
+		                                                                                        .type("text/html; charset=ISO-8859-1"));
+
+		final String rendered = new String(write(response), StandardCharsets.ISO_8859_1);
+
+		assertTrue(rendered, rendered.endsWith("<p>café</p>"));
+	}
+
+
+	@Test
+	public void testFailureWhileStreaming()
+	{
+		final Response response = call(LARGE_TEMPLATE, new Last(null)).processStreaming(Response.ok());
+
+		try
+		{
+			write(response);
+			fail("Expected late template failure to abort the output");
+		}
+		catch (Exception e)
+		{
+			// expected
+		}
+
+		assertEquals(1, failures.getCount());
+		assertEquals(1, calls.getCount());
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroChunkSizeRejected()
+	{
+		new ThymeleafCall(new TemplateEngine(), new Context(), "<p></p>", calls, failures, true, 0);
+	}
+
+
+	private ThymeleafCall call(final String template, final Last last)
+	{
+		final TemplateEngine engine = new TemplateEngine();
+		engine.setTemplateResolver(new StringTemplateResolver());
+
+		final Context context = new Context();
+		context.setVariable("items", Collections.nCopies(1000, "item"));
+		context.setVariable("last", last);
+
+		return new ThymeleafCall(engine, context, template, calls, failures, true, 256);
+	}
+
+
+	private static byte[] write(final Response response) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		((StreamingOutput) response.getEntity()).write(bos);
+
+		return bos.toByteArray();
+	}
+
+
+	public static class Last
+	{
+		private final String text;
+
+
+		public Last(final String text)
+		{
+			this.text = text;
+		}
+
+
+		public String getText()
+		{
+			if (text == null)
+				throw new IllegalStateException("No text");
+
+			return text;
+		}
+	}
+}
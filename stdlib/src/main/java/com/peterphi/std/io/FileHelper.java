@@ -214,7 +214,11 @@ public class FileHelper
 			{
 				delete(dest);
 			}
-			FileUtils.copyFile(src, dest);
+
+			StreamCopier.DEFAULT.copy(src, dest, null);
+
+			// Preserve the modification time (as FileUtils.copyFile does)
+			dest.setLastModified(src.lastModified());
 
 			if (log.isTraceEnabled())
 			{
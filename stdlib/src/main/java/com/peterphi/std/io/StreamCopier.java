@@ -0,0 +1,383 @@
+package com.peterphi.std.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies data between streams, channels and files as fast as the underlying source and destination allow.<br />
+ * Where both ends are files (or file channels) the copy is delegated to {@link FileChannel#transferTo(long, long,
+ * WritableByteChannel)}/{@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, allowing the OS to copy without moving
+ * the data through the JVM heap. Otherwise data is copied via a buffer which starts at the initial buffer size and grows
+ * (doubling up to the maximum buffer size) while reads keep filling it, so fast sources are copied with few large reads while
+ * slow sources (e.g. sockets, pipes) are passed on as soon as data arrives. Non-blocking channels that are not ready are parked on
+ * a selector rather than polled.<br />
+ * The {@link ICopyProgressMonitor} is informed of the copy in the same way as {@link StreamUtil#streamCopy(InputStream,
+ * OutputStream, ICopyProgressMonitor)}: <code>start</code>, <code>blocksize</code>, periodic <code>progress</code> calls,
+ * <code>failure</code> if the copy fails and finally <code>complete</code>
+ */
+public class StreamCopier
+{
+	public static final int DEFAULT_INITIAL_BUFFER_SIZE = StreamUtil.CHUNKSIZE;
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The amount of data to transfer per transferTo/transferFrom call (allowing progress to be reported during large copies)
+	 */
+	private static final long TRANSFER_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * A copier with the default buffer sizes
+	 */
+	public static final StreamCopier DEFAULT = new StreamCopier(DEFAULT_INITIAL_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE);
+
+	private final int initialBufferSize;
+	private final int maxBufferSize;
+
+
+	/**
+	 * @param initialBufferSize
+	 * 		the size of buffer to start each copy with
+	 * @param maxBufferSize
+	 * 		the largest size the buffer may grow to (if equal to initialBufferSize then the buffer size is fixed)
+	 */
+	public StreamCopier(final int initialBufferSize, final int maxBufferSize)
+	{
+		if (initialBufferSize <= 0)
+			throw new IllegalArgumentException("Initial buffer size must be positive!");
+		else if (maxBufferSize < initialBufferSize)
+			throw new IllegalArgumentException("Max buffer size must be at least the initial buffer size!");
+
+		this.initialBufferSize = initialBufferSize;
+		this.maxBufferSize = maxBufferSize;
+	}
+
+
+	/**
+	 * Copy the contents of one file to another, replacing the destination if it already exists
+	 *
+	 * @param src
+	 * @param dest
+	 * @param monitor
+	 * 		the monitor (or null if no monitoring is required)
+	 *
+	 * @return the number of bytes copied
+	 *
+	 * @throws IOException
+	 */
+	public long copy(final File src, final File dest, final ICopyProgressMonitor monitor) throws IOException
+	{
+		try (FileInputStream in = new FileInputStream(src); FileOutputStream out = new FileOutputStream(dest))
+		{
+			return copy(in, out, monitor);
+		}
+	}
+
+
+	/**
+	 * Copy the contents of an InputStream to an OutputStream, stopping when the InputStream ends. Neither stream is closed.
+	 *
+	 * @param in
+	 * @param out
+	 * @param monitor
+	 * 		the monitor (or null if no monitoring is required)
+	 *
+	 * @return the number of bytes copied
+	 *
+	 * @throws IOException
+	 */
+	public long copy(final InputStream in, final OutputStream out, final ICopyProgressMonitor monitor) throws IOException
+	{
+		final ICopyProgressMonitor m = (monitor != null) ? monitor : StreamUtil.DUMMY_MONITOR;
+
+		// Take the zero-copy path if both ends are files
+		if (in instanceof FileInputStream fis &&
+		    out instanceof FileOutputStream fos &&
+		    isSeekable(fis.getChannel()) &&
+		    isSeekable(fos.getChannel()))
+			return copy(fis.getChannel(), fos.getChannel(), m);
+
+		return run(m, () -> bufferedCopy(in, out, m));
+	}
+
+
+	private long bufferedCopy(final InputStream in, final OutputStream out, final ICopyProgressMonitor monitor) throws IOException
+	{
+		byte[] buffer = new byte[initialBufferSize];
+
+		long total = 0;
+		int loops = 0;
+		while (true)
+		{
+			final int read = in.read(buffer, 0, buffer.length);
+
+			if (read == -1)
+				break;
+
+			out.write(buffer, 0, read);
+			total += read;
+
+			// The source is keeping up with us, so read in larger chunks
+			if (read == buffer.length && buffer.length < maxBufferSize)
+				buffer = new byte[Math.min(buffer.length * 2, maxBufferSize)];
+
+			if (0 == ++loops % StreamUtil.MONITOR_UPDATE_INTERVAL)
+				monitor.progress(total);
+		}
+
+		return total;
+	}
+
+
+	/**
+	 * Copy the contents of a ReadableByteChannel to a WritableByteChannel, stopping when the source ends. Neither channel is
+	 * closed. If either channel is a {@link FileChannel} the copy is performed with transferTo/transferFrom
+	 *
+	 * @param in
+	 * @param out
+	 * @param monitor
+	 * 		the monitor (or null if no monitoring is required)
+	 *
+	 * @return the number of bytes copied
+	 *
+	 * @throws IOException
+	 */
+	public long copy(final ReadableByteChannel in,
+	                 final WritableByteChannel out,
+	                 final ICopyProgressMonitor monitor) throws IOException
+	{
+		final ICopyProgressMonitor m = (monitor != null) ? monitor : StreamUtil.DUMMY_MONITOR;
+
+		if (in instanceof FileChannel src && isSeekable(src))
+			return run(m, () -> transferTo(src, out, m));
+		else if (out instanceof FileChannel dest && isSeekable(dest) && isBlocking(in))
+			return run(m, () -> transferFrom(in, dest, m));
+
+		return run(m, () -> bufferedCopy(in, out, m, 0));
+	}
+
+
+	private long bufferedCopy(final ReadableByteChannel in,
+	                          final WritableByteChannel out,
+	                          final ICopyProgressMonitor monitor,
+	                          long total) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(initialBufferSize);
+
+		// Opened the first time a non-blocking channel is not ready, and used to park until it is
+		Selector selector = null;
+		try
+		{
+			int loops = 0;
+			while (true)
+			{
+				final int read = in.read(buffer);
+
+				if (read == -1)
+				{
+					break;
+				}
+				else if (read == 0)
+				{
+					selector = awaitReady(selector, in, SelectionKey.OP_READ);
+					continue;
+				}
+
+				final boolean filled = !buffer.hasRemaining();
+
+				buffer.flip();
+				while (buffer.hasRemaining())
+					if (out.write(buffer) == 0)
+						selector = awaitReady(selector, out, SelectionKey.OP_WRITE);
+				buffer.clear();
+
+				total += read;
+
+				// The source is keeping up with us, so read in larger chunks
+				if (filled && buffer.capacity() < maxBufferSize)
+					buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxBufferSize));
+
+				if (0 == ++loops % StreamUtil.MONITOR_UPDATE_INTERVAL)
+					monitor.progress(total);
+			}
+		}
+		finally
+		{
+			// N.B. also deregisters the channels
+			if (selector != null)
+				selector.close();
+		}
+
+		return total;
+	}
+
+
+	/**
+	 * Park until a non-blocking channel is ready for an operation. Does nothing for a blocking channel
+	 *
+	 * @param selector
+	 * 		the selector to use (or null to open one)
+	 * @param channel
+	 * @param ops
+	 * 		the operation to wait for
+	 *
+	 * @return the selector used (which the caller must close)
+	 *
+	 * @throws IOException
+	 */
+	private static Selector awaitReady(Selector selector, final Channel channel, final int ops) throws IOException
+	{
+		if (isBlocking(channel))
+			return selector;
+
+		if (selector == null)
+			selector = Selector.open();
+
+		final SelectableChannel selectable = (SelectableChannel) channel;
+		final SelectionKey key = selectable.keyFor(selector);
+
+		if (key == null)
+			selectable.register(selector, ops);
+		else
+			key.interestOps(ops);
+
+		selector.select(ready -> ready.interestOps(0));
+
+		return selector;
+	}
+
+
+	private static boolean isBlocking(final Channel channel)
+	{
+		return !(channel instanceof SelectableChannel selectable) || selectable.isBlocking();
+	}
+
+
+	private long transferTo(final FileChannel src, final WritableByteChannel out, final ICopyProgressMonitor monitor) throws
+	                                                                                                              IOException
+	{
+		final long start = src.position();
+		final long size = src.size();
+
+		monitor.size(size - start);
+
+		long position = start;
+		while (position < size)
+		{
+			final long transferred = src.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+
+			if (transferred <= 0)
+				break; // Source truncated while we were copying
+
+			position += transferred;
+			monitor.progress(position - start);
+		}
+
+		// transferTo does not move the source position
+		src.position(position);
+
+		// Copy anything appended since we read the size; usually a single read that immediately hits the end of the file
+		return bufferedCopy(src, out, monitor, position - start);
+	}
+
+
+	private long transferFrom(final ReadableByteChannel in, final FileChannel dest, final ICopyProgressMonitor monitor) throws
+	                                                                                                                  IOException
+	{
+		final long start = dest.position();
+
+		long position = start;
+		while (true)
+		{
+			final long transferred = dest.transferFrom(in, position, TRANSFER_CHUNK_SIZE);
+
+			// transferFrom returns 0 at the end of the source (N.B. non-blocking sources take the buffered path instead, since
+			// they may also return 0 when no data is available)
+			if (transferred <= 0)
+			{
+				// Confirm the source has ended by reading a single byte
+				final ByteBuffer probe = ByteBuffer.allocate(1);
+				if (in.read(probe) == -1)
+					break;
+
+				probe.flip();
+				position += dest.write(probe, position);
+			}
+			else
+			{
+				position += transferred;
+			}
+
+			monitor.progress(position - start);
+		}
+
+		// transferFrom does not move the destination position
+		dest.position(position);
+
+		return position - start;
+	}
+
+
+	/**
+	 * Determine if a FileChannel refers to a regular file (rather than e.g. a pipe, as with {@link System#in}), and so can be used
+	 * with transferTo/transferFrom
+	 *
+	 * @param channel
+	 * @return
+	 */
+	private static boolean isSeekable(final FileChannel channel)
+	{
+		try
+		{
+			channel.position();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+
+	private long run(final ICopyProgressMonitor monitor, final CopyOperation operation) throws IOException
+	{
+		try
+		{
+			monitor.start();
+			monitor.blocksize(initialBufferSize);
+
+			final long total = operation.copy();
+
+			monitor.progress(total);
+
+			return total;
+		}
+		catch (IOException | RuntimeException | Error e)
+		{
+			monitor.failure();
+			throw e;
+		}
+		finally
+		{
+			monitor.complete();
+		}
+	}
+
+
+	@FunctionalInterface
+	private interface CopyOperation
+	{
+		long copy() throws IOException;
+	}
+}
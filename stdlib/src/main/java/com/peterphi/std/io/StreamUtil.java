@@ -235,72 +235,29 @@ public class StreamUtil
 	}
 
 
+	/**
+	 * Copy the contents of an InputStream to an OutputStream using {@link StreamCopier#DEFAULT}, stopping when the InputStream
+	 * ends. Neither stream is closed.
+	 *
+	 * @param in
+	 * @param out
+	 * @param monitor
+	 *
+	 * @throws IOError
+	 * 		if an IOException occurs during the copy
+	 */
 	public static void streamCopy(final InputStream in, final OutputStream out, final ICopyProgressMonitor monitor)
 	{
-		if (null == monitor)
-		{
-			streamCopy(in, out, DUMMY_MONITOR);
-			return;
-		}
-
 		try
 		{
-			monitor.start();
-			monitor.blocksize(CHUNKSIZE);
-
-			byte[] eatingArray = new byte[CHUNKSIZE];
-
-			int loops = 0;
-			long totalSize = 0;
-			while (true)
-			{
-				int numbytes = in.read(eatingArray, 0, CHUNKSIZE);
-
-				// Finish immediately if the input stream's closed
-				if (numbytes == -1)
-				{
-					return;
-				}
-				else
-					totalSize += numbytes;
-
-				out.write(eatingArray, 0, numbytes);
-
-				if (numbytes < CHUNKSIZE)
-				{ // If the buffer wasn't full, wait a short amount of time to let it fill up
-					try
-					{
-						Thread.sleep(STREAM_SLEEP_TIME);
-					}
-					catch (InterruptedException e)
-					{
-						// ignore
-					}
-				}
-
-				// Run the monitor every MONITOR_UPDATE_INTERVAL runs through the loop
-				if (0 == ++loops % MONITOR_UPDATE_INTERVAL)
-				{
-					monitor.progress(totalSize);
-				}
-			}
+			StreamCopier.DEFAULT.copy(in, out, monitor);
 		}
 		catch (IOException e)
 		{
 			log.error("[StreamUtil] {streamCopy} IO Exception: {}", e.getMessage(), e);
 
-			monitor.failure();
 			throw new IOError(e);
 		}
-		catch (Error e)
-		{
-			monitor.failure();
-			throw e;
-		}
-		finally
-		{
-			monitor.complete();
-		}
 	}
 
 
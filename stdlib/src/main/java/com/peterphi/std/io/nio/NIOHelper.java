@@ -1,13 +1,32 @@
 package com.peterphi.std.io.nio;
 
+import com.peterphi.std.threading.Deadline;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class NIOHelper
 {
+	/**
+	 * Idle selectors, reused by {@link #read(SocketChannel, Deadline, ByteBuffer)} and {@link #write(SocketChannel, Deadline,
+	 * ByteBuffer)} rather than opening a new selector for every call
+	 */
+	private static final BlockingQueue<NIOSelector> SELECTORS = new ArrayBlockingQueue<>(16);
+
+
 	public static byte[] intsToBytes(int[] n)
 	{
 		byte[] bytes = new byte[n.length * (Integer.SIZE / 8)];
@@ -99,43 +118,212 @@ public class NIOHelper
 	}
 
 
-	// Read a number of bytes from a socket, terminating when complete, after timeout milliseconds or if an error occurs
+	/**
+	 * Read a number of bytes from a socket, terminating when complete, after timeout milliseconds or if an error occurs. Parks
+	 * until the socket is readable rather than polling
+	 *
+	 * @param so
+	 * @param timeout
+	 * 		the timeout in milliseconds (or 0 for no timeout)
+	 * @param bytes
+	 * 		the array to read into; the number of bytes to read is the length of this array
+	 *
+	 * @return a buffer wrapping <code>bytes</code>, or null if the timeout expired before all the bytes were read
+	 *
+	 * @throws IOException
+	 * 		if the socket is closed or an error occurs during the read
+	 */
 	public static ByteBuffer blockingRead(SocketChannel so, long timeout, byte[] bytes) throws IOException
 	{
-		ByteBuffer b = ByteBuffer.wrap(bytes);
+		final Deadline deadline = (timeout > 0) ? new Deadline(timeout, TimeUnit.MILLISECONDS) : Deadline.MAX_VALUE;
+
+		final ByteBuffer b = ByteBuffer.wrap(bytes);
 
 		if (bytes.length == 0)
 			return b;
 
-		final long timeoutTime = (timeout > 0) ? (System.currentTimeMillis() + timeout) : (Long.MAX_VALUE);
+		if (!read(so, deadline, b))
+			return null;
+
+		b.rewind(); // make it easy for the caller to read from the buffer (if they're interested)
+
+		return b;
+	}
+
+
+	/**
+	 * Read from a socket until <code>buffer</code> is full. A non-blocking socket is parked on a selector until it is readable; a
+	 * blocking socket is read using the socket timeout (which is restored afterwards). The blocking mode of the socket is never
+	 * changed
+	 *
+	 * @param so
+	 * @param deadline
+	 * 		the deadline for the read to complete by
+	 * @param buffer
+	 * 		the buffer to fill
+	 *
+	 * @return true if the buffer was filled, false if the deadline expired first
+	 *
+	 * @throws IOException
+	 * 		if the socket is closed or an error occurs during the read
+	 */
+	public static boolean read(SocketChannel so, Deadline deadline, ByteBuffer buffer) throws IOException
+	{
+		if (so.isBlocking())
+			return timedRead(so, deadline, buffer);
+		else
+			return await(so, deadline, selector -> selector.read(so, buffer, deadline));
+	}
+
+
+	/**
+	 * Write all remaining data in <code>buffer</code> to a socket, parking until the socket is writable
+	 *
+	 * @param so
+	 * 		a socket in non-blocking mode
+	 * @param deadline
+	 * 		the deadline for the write to complete by
+	 * @param buffer
+	 * 		the data to write
+	 *
+	 * @return true if all the data was written, false if the deadline expired first
+	 *
+	 * @throws IOException
+	 * 		if the socket is closed or an error occurs during the write
+	 * @throws IllegalArgumentException
+	 * 		if the socket is in blocking mode (a blocking write cannot be bounded by a deadline)
+	 */
+	public static boolean write(SocketChannel so, Deadline deadline, ByteBuffer buffer) throws IOException
+	{
+		if (so.isBlocking())
+			throw new IllegalArgumentException("Socket must be in non-blocking mode for a write with a deadline!");
+
+		return await(so, deadline, selector -> selector.write(so, buffer, deadline));
+	}
 
-		while (b.remaining() != 0 && System.currentTimeMillis() < timeoutTime)
-		{
-			if (!so.isConnected())
-				throw new IOException("Socket closed during read operation!");
 
-			so.read(b);
+	/**
+	 * Read from a blocking socket, bounding each read by the socket timeout
+	 *
+	 * @param so
+	 * @param deadline
+	 * @param buffer
+	 *
+	 * @return
+	 *
+	 * @throws IOException
+	 */
+	private static boolean timedRead(final SocketChannel so, final Deadline deadline, final ByteBuffer buffer) throws IOException
+	{
+		if (!so.isConnected())
+			throw new IOException("Socket not connected!");
+
+		final Socket socket = so.socket();
+		final int previousTimeout = socket.getSoTimeout();
 
-			if (b.remaining() != 0)
+		// N.B. must not be closed (that would close the socket)
+		final InputStream is = socket.getInputStream();
+		final byte[] chunk = buffer.hasArray() ? null : new byte[Math.min(buffer.remaining(), 8192)];
+
+		try
+		{
+			while (buffer.hasRemaining())
 			{
-				// sleep for a short time
+				if (deadline.isExpired())
+					return false;
+
+				socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, deadline.getTimeLeft())));
+
+				final int read;
 				try
 				{
-					Thread.sleep(20);
+					if (chunk == null)
+						read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					else
+						read = is.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
 				}
-				catch (InterruptedException e)
+				catch (SocketTimeoutException e)
 				{
+					return false;
 				}
+
+				if (read == -1)
+					throw new EOFException("End of stream reached with " + buffer.remaining() + " bytes outstanding");
+				else if (chunk == null)
+					buffer.position(buffer.position() + read);
+				else
+					buffer.put(chunk, 0, read);
 			}
+
+			buffer.flip();
+
+			return true;
+		}
+		finally
+		{
+			if (so.isOpen())
+				socket.setSoTimeout(previousTimeout);
 		}
+	}
+
+
+	private static boolean await(final SocketChannel so,
+	                             final Deadline deadline,
+	                             final SelectorOperation operation) throws IOException
+	{
+		if (!so.isConnected())
+			throw new IOException("Socket not connected!");
+
+		NIOSelector selector = SELECTORS.poll();
 
-		if (System.currentTimeMillis() >= timeoutTime)
+		if (selector == null)
+			selector = new NIOSelector();
+
+		boolean reusable = false;
+		try
 		{
-			return null;
+			final CompletableFuture<ByteBuffer> future = operation.start(selector);
+
+			selector.process(deadline);
+
+			// N.B. process only returns with the operation outstanding once the deadline has passed. Decided once, before
+			// deregistering (which fails the outstanding operation), so a timeout is never reported as a deregistration
+			final boolean expired = !future.isDone();
+
+			// N.B. deregistering leaves the caller free to return the channel to blocking mode
+			selector.deregister(so);
+			reusable = true;
+
+			if (expired)
+				return false;
+
+			try
+			{
+				future.join();
+
+				return true;
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof TimeoutException)
+					return false;
+				else if (e.getCause() instanceof IOException io)
+					throw io;
+				else
+					throw e;
+			}
 		}
+		finally
+		{
+			if (!reusable || !SELECTORS.offer(selector))
+				selector.close();
+		}
+	}
 
-		b.rewind(); // make it easy for the caller to read from the buffer (if they're interested)
 
-		return b;
+	@FunctionalInterface
+	private interface SelectorOperation
+	{
+		CompletableFuture<ByteBuffer> start(NIOSelector selector) throws IOException;
 	}
 }
@@ -0,0 +1,356 @@
+package com.peterphi.std.io.nio;
+
+import com.peterphi.std.threading.Deadline;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Performs reads and writes against any number of non-blocking channels using a single {@link Selector}, so that many channels
+ * can be serviced by one thread without polling.<br />
+ * Operations are queued with {@link #read(SelectableChannel, ByteBuffer, Deadline)} and {@link #write(SelectableChannel,
+ * ByteBuffer, Deadline)} and then carried out by calling {@link #process(Deadline)}, which parks in {@link Selector#select(long)}
+ * until a channel is ready (or the soonest operation deadline passes). Each operation completes its future once its buffer has
+ * been filled (or drained), or completes exceptionally with a {@link TimeoutException} if its deadline passes first, or with an
+ * {@link IOException} if the channel fails or reaches end-of-stream.<br />
+ * Each channel may have at most one read and one write outstanding at a time. This class is not thread-safe: operations should
+ * be queued and processed on the same thread.
+ */
+public class NIOSelector implements Closeable
+{
+	private final Selector selector;
+
+	/**
+	 * All operations that have not yet completed
+	 */
+	private final List<Operation> pending = new ArrayList<>();
+
+
+	public NIOSelector() throws IOException
+	{
+		this.selector = Selector.open();
+	}
+
+
+	/**
+	 * Queue a read that completes once <code>buffer</code> has no space remaining
+	 *
+	 * @param channel
+	 * 		a non-blocking channel
+	 * @param buffer
+	 * 		the buffer to read into
+	 * @param deadline
+	 * 		the deadline for the read to complete by
+	 * @param <C>
+	 *
+	 * @return a future that completes with <code>buffer</code> (flipped, ready to be read from)
+	 *
+	 * @throws IOException
+	 */
+	public <C extends SelectableChannel & ReadableByteChannel> CompletableFuture<ByteBuffer> read(final C channel,
+	                                                                                           final ByteBuffer buffer,
+	                                                                                           final Deadline deadline) throws
+	                                                                                                                    IOException
+	{
+		return add(channel, SelectionKey.OP_READ, buffer, deadline);
+	}
+
+
+	/**
+	 * Queue a write that completes once all remaining data in <code>buffer</code> has been written
+	 *
+	 * @param channel
+	 * 		a non-blocking channel
+	 * @param buffer
+	 * 		the data to write
+	 * @param deadline
+	 * 		the deadline for the write to complete by
+	 * @param <C>
+	 *
+	 * @return a future that completes with <code>buffer</code>
+	 *
+	 * @throws IOException
+	 */
+	public <C extends SelectableChannel & WritableByteChannel> CompletableFuture<ByteBuffer> write(final C channel,
+	                                                                                            final ByteBuffer buffer,
+	                                                                                            final Deadline deadline) throws
+	                                                                                                                     IOException
+	{
+		return add(channel, SelectionKey.OP_WRITE, buffer, deadline);
+	}
+
+
+	/**
+	 * Returns the number of operations that have not yet completed
+	 *
+	 * @return
+	 */
+	public int getPendingCount()
+	{
+		return pending.size();
+	}
+
+
+	/**
+	 * Carry out queued operations until none remain or until <code>until</code> expires
+	 *
+	 * @param until
+	 * 		the time to stop processing (operations that have not completed by this time remain queued unless their own deadlines
+	 * 		have passed)
+	 *
+	 * @throws IOException
+	 * 		if the selector fails
+	 */
+	public void process(final Deadline until) throws IOException
+	{
+		while (!pending.isEmpty())
+		{
+			expire();
+
+			if (pending.isEmpty() || until.isExpired())
+				return;
+
+			// Park until a channel is ready or the soonest deadline passes (N.B. select(0) would wait forever)
+			final long wait = Math.max(1, Deadline.soonest(until, soonestDeadline()).getTimeLeft());
+
+			selector.select(this :: service, wait);
+		}
+	}
+
+
+	/**
+	 * Fail any outstanding operations on a channel and deregister it from this selector, leaving the selector available for use
+	 * with other channels. Once this method returns the channel may be returned to blocking mode
+	 *
+	 * @param channel
+	 *
+	 * @throws IOException
+	 * 		if the selector fails
+	 */
+	public void deregister(final SelectableChannel channel) throws IOException
+	{
+		final SelectionKey key = channel.keyFor(selector);
+
+		if (key == null)
+			return;
+
+		for (Operation op : ((Operation[]) key.attachment()).clone())
+			if (op != null)
+				op.fail(new IOException("Channel deregistered before operation completed"));
+
+		key.cancel();
+
+		// Cancelled keys are only removed from the selector by its next selection operation
+		selector.selectNow(k -> {
+		});
+	}
+
+
+	/**
+	 * Fail all outstanding operations and release the selector (deregistering all channels, which may then be returned to
+	 * blocking mode)
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for (Operation op : new ArrayList<>(pending))
+			op.fail(new IOException("NIOSelector closed before operation completed"));
+
+		selector.close();
+	}
+
+
+	private CompletableFuture<ByteBuffer> add(final SelectableChannel channel,
+	                                          final int ops,
+	                                          final ByteBuffer buffer,
+	                                          final Deadline deadline) throws IOException
+	{
+		if (channel.isBlocking())
+			throw new IllegalArgumentException("Channel must be in non-blocking mode!");
+
+		SelectionKey key = channel.keyFor(selector);
+
+		if (key == null)
+		{
+			// Attachment holds the pending read and write for this channel
+			key = channel.register(selector, 0, new Operation[2]);
+		}
+
+		final Operation[] channelOps = (Operation[]) key.attachment();
+		final int slot = (ops == SelectionKey.OP_READ) ? 0 : 1;
+
+		if (channelOps[slot] != null)
+			throw new IllegalStateException("Channel already has a pending " + ((slot == 0) ? "read" : "write"));
+
+		final Operation op = new Operation(key, ops, buffer, deadline);
+
+		if (!buffer.hasRemaining())
+		{
+			// Nothing to do
+			op.complete();
+		}
+		else
+		{
+			channelOps[slot] = op;
+			pending.add(op);
+			key.interestOps(key.interestOps() | ops);
+		}
+
+		return op.future;
+	}
+
+
+	private void service(final SelectionKey key)
+	{
+		final Operation[] ops = (Operation[]) key.attachment();
+
+		try
+		{
+			if (ops[0] != null && key.isReadable())
+				ops[0].read();
+			if (ops[1] != null && key.isWritable())
+				ops[1].write();
+		}
+		catch (CancelledKeyException e)
+		{
+			for (Operation op : ops)
+				if (op != null)
+					op.fail(new IOException("Channel closed during operation", e));
+		}
+	}
+
+
+	/**
+	 * Fail any operations whose deadline has passed
+	 */
+	private void expire()
+	{
+		for (Operation op : new ArrayList<>(pending))
+		{
+			if (op.deadline.isExpired())
+				op.fail(new TimeoutException("Deadline passed with " + op.buffer.remaining() + " bytes outstanding"));
+			else if (!op.key.isValid())
+				op.fail(new IOException("Channel closed during operation"));
+		}
+	}
+
+
+	private Deadline soonestDeadline()
+	{
+		Deadline soonest = Deadline.MAX_VALUE;
+
+		for (Operation op : pending)
+			soonest = Deadline.soonest(soonest, op.deadline);
+
+		return soonest;
+	}
+
+
+	private final class Operation
+	{
+		private final SelectionKey key;
+		private final int ops;
+		private final ByteBuffer buffer;
+		private final Deadline deadline;
+		private final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+
+
+		public Operation(final SelectionKey key, final int ops, final ByteBuffer buffer, final Deadline deadline)
+		{
+			this.key = key;
+			this.ops = ops;
+			this.buffer = buffer;
+			this.deadline = deadline;
+		}
+
+
+		void read()
+		{
+			try
+			{
+				final int read = ((ReadableByteChannel) key.channel()).read(buffer);
+
+				if (read == -1)
+					fail(new EOFException("End of stream reached with " + buffer.remaining() + " bytes outstanding"));
+				else if (!buffer.hasRemaining())
+					complete();
+			}
+			catch (IOException e)
+			{
+				fail(e);
+			}
+		}
+
+
+		void write()
+		{
+			try
+			{
+				((WritableByteChannel) key.channel()).write(buffer);
+
+				if (!buffer.hasRemaining())
+					complete();
+			}
+			catch (IOException e)
+			{
+				fail(e);
+			}
+		}
+
+
+		void complete()
+		{
+			remove();
+
+			if (ops == SelectionKey.OP_READ)
+				buffer.flip();
+
+			future.complete(buffer);
+		}
+
+
+		void fail(final Throwable t)
+		{
+			remove();
+
+			future.completeExceptionally(t);
+		}
+
+
+		private void remove()
+		{
+			pending.remove(this);
+
+			final Operation[] ops = (Operation[]) key.attachment();
+			final int slot = (this.ops == SelectionKey.OP_READ) ? 0 : 1;
+
+			if (ops[slot] == this)
+				ops[slot] = null;
+
+			try
+			{
+				if (key.isValid())
+					key.interestOps(key.interestOps() & ~this.ops);
+			}
+			catch (CancelledKeyException | ClosedSelectorException e)
+			{
+				// ignore, channel or selector closed
+			}
+		}
+	}
+}
@@ -79,8 +79,7 @@ public abstract class Daemon implements Runnable
 		{
 			log.info("[Daemon] {startThread} Starting thread {}", name);
 			this.running = true;
-			thisThread = new Thread(this, name);
-			thisThread.setDaemon(shouldStartAsDaemon()); // Set whether we're a daemon thread (false by default)
+			thisThread = createThread(name);
 			thisThread.start();
 			return thisThread;
 		}
@@ -91,6 +90,24 @@ public abstract class Daemon implements Runnable
 	}
 
 
+	/**
+	 * Create (but do not start) the thread this daemon will run in. By default creates a platform thread, which will be a daemon
+	 * thread if {@link #shouldStartAsDaemon()} returns true. May be overridden (e.g. to run this daemon on a virtual thread)
+	 *
+	 * @param name
+	 * 		the name for the thread
+	 *
+	 * @return an unstarted thread that will call {@link #run()}
+	 */
+	protected Thread createThread(final String name)
+	{
+		final Thread thread = new Thread(this, name);
+		thread.setDaemon(shouldStartAsDaemon()); // Set whether we're a daemon thread (false by default)
+
+		return thread;
+	}
+
+
 	public String getTextState()
 	{
 		return this.textState;
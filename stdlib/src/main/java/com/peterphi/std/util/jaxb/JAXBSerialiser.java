@@ -26,6 +26,9 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
 
 /**
  * A thread-safe, caching JAXB helper type. This wraps a JAXBContext and its Marshallers and Unmarshallers, allowing their
@@ -46,6 +49,14 @@ public class JAXBSerialiser
 	private String noNamespaceSchemaLocation;
 	private boolean fragment = false;
 
+	/**
+	 * The maximum number of idle Marshallers/Unmarshallers retained for reuse
+	 */
+	private int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+	private volatile Pool<Marshaller> marshallers = new Pool<>(poolSize, this::createMarshaller);
+	private volatile Pool<Unmarshaller> unmarshallers = new Pool<>(poolSize, this::createUnmarshaller);
+
 
 	/**
 	 * Construct a JAXBSerialiser with a given JAXB Context Path
@@ -120,6 +131,7 @@ public class JAXBSerialiser
 	public JAXBSerialiser setSchema(Schema schema)
 	{
 		this.schema = schema;
+		resetPools();
 
 		return this;
 	}
@@ -135,6 +147,7 @@ public class JAXBSerialiser
 	public JAXBSerialiser setPrettyOutput(boolean pretty)
 	{
 		this.prettyOutput = pretty;
+		resetPools();
 
 		return this;
 	}
@@ -154,6 +167,7 @@ public class JAXBSerialiser
 	public JAXBSerialiser setEncoding(final String encoding)
 	{
 		this.encoding = encoding;
+		resetPools();
 
 		return this;
 	}
@@ -173,6 +187,7 @@ public class JAXBSerialiser
 	public JAXBSerialiser setSchemaLocation(final String schemaLocation)
 	{
 		this.schemaLocation = schemaLocation;
+		resetPools();
 
 		return this;
 	}
@@ -192,6 +207,7 @@ public class JAXBSerialiser
 	public JAXBSerialiser setNoNamespaceSchemaLocation(final String noNamespaceSchemaLocation)
 	{
 		this.noNamespaceSchemaLocation = noNamespaceSchemaLocation;
+		resetPools();
 
 		return this;
 	}
@@ -213,12 +229,89 @@ public class JAXBSerialiser
 	public JAXBSerialiser setFragment(final boolean fragment)
 	{
 		this.fragment = fragment;
+		resetPools();
+
+		return this;
+	}
+
+
+	/**
+	 * Specify the maximum number of idle Marshallers and Unmarshallers retained for reuse. Creating these is relatively expensive,
+	 * so by default up to twice the number of available processors of each are retained. A size of 0 disables pooling, creating a
+	 * new Marshaller/Unmarshaller for every operation
+	 *
+	 * @param poolSize
+	 *
+	 * @return this for method chaining
+	 */
+	public JAXBSerialiser setPoolSize(final int poolSize)
+	{
+		if (poolSize < 0)
+			throw new IllegalArgumentException("Pool size must not be negative: " + poolSize);
+
+		this.poolSize = poolSize;
+		resetPools();
 
 		return this;
 	}
 
 
-	private Marshaller getMarshaller()
+	/**
+	 * Discard any pooled Marshallers/Unmarshallers (called when the configuration they were created with changes)
+	 */
+	private void resetPools()
+	{
+		this.marshallers = new Pool<>(poolSize, this::createMarshaller);
+		this.unmarshallers = new Pool<>(poolSize, this::createUnmarshaller);
+	}
+
+
+	/**
+	 * Run a marshalling operation with a pooled Marshaller
+	 *
+	 * @param operation
+	 *
+	 * @throws JAXBException
+	 */
+	private void marshal(final MarshalOperation operation) throws JAXBException
+	{
+		final Pool<Marshaller> pool = this.marshallers;
+
+		final Marshaller marshaller = pool.take();
+
+		operation.run(marshaller);
+
+		// N.B. only returned to the pool if the operation completes normally, a failed marshaller may be left in a bad state
+		pool.release(marshaller);
+	}
+
+
+	/**
+	 * Run an unmarshalling operation with a pooled Unmarshaller
+	 *
+	 * @param operation
+	 * @param <T>
+	 *
+	 * @return the result of the operation
+	 *
+	 * @throws JAXBException
+	 */
+	private <T> T unmarshal(final UnmarshalOperation<T> operation) throws JAXBException
+	{
+		final Pool<Unmarshaller> pool = this.unmarshallers;
+
+		final Unmarshaller unmarshaller = pool.take();
+
+		final T result = operation.run(unmarshaller);
+
+		// N.B. only returned to the pool if the operation completes normally, a failed unmarshaller may be left in a bad state
+		pool.release(unmarshaller);
+
+		return result;
+	}
+
+
+	private Marshaller createMarshaller()
 	{
 		try
 		{
@@ -266,7 +359,7 @@ public class JAXBSerialiser
 	}
 
 
-	private Unmarshaller getUnmarshaller()
+	private Unmarshaller createUnmarshaller()
 	{
 		try
 		{
@@ -392,7 +485,7 @@ public class JAXBSerialiser
 		final JAXBElement<?> obj;
 		try
 		{
-			obj = getUnmarshaller().unmarshal(xml, clazz);
+			obj = unmarshal(u -> u.unmarshal(xml, clazz));
 		}
 		catch (JAXBException e)
 		{
@@ -424,11 +517,9 @@ public class JAXBSerialiser
 		if (!file.exists())
 			throw new IllegalArgumentException("File does not exist: " + file);
 
-		final Unmarshaller unmarshaller = getUnmarshaller();
-
 		try
 		{
-			final Object obj = unmarshaller.unmarshal(file);
+			final Object obj = unmarshal(u -> u.unmarshal(file));
 
 			if (obj == null)
 				throw new RuntimeException("Malformed XML from " + file);
@@ -447,11 +538,9 @@ public class JAXBSerialiser
 		if (source == null)
 			throw new IllegalArgumentException("Null argument passed to deserialise!");
 
-		final Unmarshaller unmarshaller = getUnmarshaller();
-
 		try
 		{
-			final Object obj = unmarshaller.unmarshal(source);
+			final Object obj = unmarshal(u -> u.unmarshal(source));
 
 			if (obj == null)
 				throw new RuntimeException("Malformed XML! JAXB returned null");
@@ -470,11 +559,9 @@ public class JAXBSerialiser
 		if (source == null)
 			throw new IllegalArgumentException("Null argument passed to deserialise!");
 
-		final Unmarshaller unmarshaller = getUnmarshaller();
-
 		try
 		{
-			final Object obj = unmarshaller.unmarshal(source);
+			final Object obj = unmarshal(u -> u.unmarshal(source));
 
 			if (obj == null)
 				throw new RuntimeException("Malformed XML! JAXB returned null");
@@ -500,11 +587,9 @@ public class JAXBSerialiser
 		if (reader == null)
 			throw new IllegalArgumentException("Null argument passed to deserialise!");
 
-		final Unmarshaller unmarshaller = getUnmarshaller();
-
 		try
 		{
-			final Object obj = unmarshaller.unmarshal(reader);
+			final Object obj = unmarshal(u -> u.unmarshal(reader));
 
 			if (obj == null)
 				throw new RuntimeException("Malformed XML! JAXB returned null");
@@ -530,11 +615,9 @@ public class JAXBSerialiser
 		if (node == null)
 			throw new IllegalArgumentException("Null argument passed to deserialise!");
 
-		final Unmarshaller unmarshaller = getUnmarshaller();
-
 		try
 		{
-			final Object obj = unmarshaller.unmarshal(node);
+			final Object obj = unmarshal(u -> u.unmarshal(node));
 
 			if (obj == null)
 				throw new RuntimeException("Error deserialising from " + node);
@@ -574,12 +657,10 @@ public class JAXBSerialiser
 
 	public String serialise(final Object obj)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
 			final StringWriter w = new StringWriter(1024);
-			marshaller.marshal(obj, w);
+			marshal(m -> m.marshal(obj, w));
 			return w.toString();
 		}
 		catch (JAXBException e)
@@ -591,11 +672,9 @@ public class JAXBSerialiser
 
 	public void serialise(final Object obj, final Writer writer)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, writer);
+			marshal(m -> m.marshal(obj, writer));
 		}
 		catch (JAXBException e)
 		{
@@ -606,11 +685,9 @@ public class JAXBSerialiser
 
 	public void serialise(final Object obj, final OutputStream os)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, os);
+			marshal(m -> m.marshal(obj, os));
 		}
 		catch (JAXBException e)
 		{
@@ -621,11 +698,9 @@ public class JAXBSerialiser
 
 	public void serialise(final Object obj, final File file)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, file);
+			marshal(m -> m.marshal(obj, file));
 		}
 		catch (JAXBException e)
 		{
@@ -641,11 +716,9 @@ public class JAXBSerialiser
 	 */
 	public void serialiseWithDirectWriter(final Object obj, final XMLStreamWriter writer)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, writer);
+			marshal(m -> m.marshal(obj, writer));
 		}
 		catch (JAXBException e)
 		{
@@ -664,11 +737,9 @@ public class JAXBSerialiser
 	 */
 	public void serialise(final Object obj, final XMLStreamWriter writer)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, new DuplicateNSFilteringXMLStreamWriter(writer));
+			marshal(m -> m.marshal(obj, new DuplicateNSFilteringXMLStreamWriter(writer)));
 		}
 		catch (JAXBException e)
 		{
@@ -690,11 +761,9 @@ public class JAXBSerialiser
 
 	public void serialise(final Object obj, final Node node)
 	{
-		final Marshaller marshaller = getMarshaller();
-
 		try
 		{
-			marshaller.marshal(obj, node);
+			marshal(m -> m.marshal(obj, node));
 		}
 		catch (JAXBException e)
 		{
@@ -807,4 +876,56 @@ public class JAXBSerialiser
 			throw new JAXBRuntimeException(e);
 		}
 	}
+
+
+	@FunctionalInterface
+	private interface MarshalOperation
+	{
+		void run(Marshaller marshaller) throws JAXBException;
+	}
+
+
+	@FunctionalInterface
+	private interface UnmarshalOperation<T>
+	{
+		T run(Unmarshaller unmarshaller) throws JAXBException;
+	}
+
+
+	/**
+	 * A bounded pool of idle Marshallers/Unmarshallers; when empty a new instance is created, and when full a released instance
+	 * is simply discarded
+	 *
+	 * @param <T>
+	 */
+	private static final class Pool<T>
+	{
+		private final BlockingQueue<T> idle;
+		private final Supplier<T> factory;
+
+
+		public Pool(final int size, final Supplier<T> factory)
+		{
+			this.idle = (size > 0) ? new ArrayBlockingQueue<>(size) : null;
+			this.factory = factory;
+		}
+
+
+		public T take()
+		{
+			final T instance = (idle != null) ? idle.poll() : null;
+
+			if (instance != null)
+				return instance;
+			else
+				return factory.get();
+		}
+
+
+		public void release(final T instance)
+		{
+			if (idle != null)
+				idle.offer(instance);
+		}
+	}
 }
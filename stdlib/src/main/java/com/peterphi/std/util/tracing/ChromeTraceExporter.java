@@ -0,0 +1,123 @@
+package com.peterphi.std.util.tracing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes spans in the Chrome Trace Event JSON format, which can be loaded into <code>chrome://tracing</code> or <a
+ * href="https://ui.perfetto.dev">Perfetto</a>.<br />
+ * Each span is written as a complete ("X") event on the thread that recorded it, with its id, parent id and attributes as
+ * event args
+ */
+public final class ChromeTraceExporter
+{
+	private ChromeTraceExporter()
+	{
+	}
+
+
+	public static String toJson(final Collection<Span> spans)
+	{
+		final StringBuilder sb = new StringBuilder(256 * (spans.size() + 1));
+
+		try
+		{
+			write(spans, sb);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e); // Cannot happen with a StringBuilder
+		}
+
+		return sb.toString();
+	}
+
+
+	public static void write(final Collection<Span> spans, final Appendable out) throws IOException
+	{
+		out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+		boolean first = true;
+		for (Span span : spans)
+		{
+			if (!first)
+				out.append(',');
+			else
+				first = false;
+
+			out.append("\n{\"name\":");
+			string(out, span.getName());
+			out.append(",\"cat\":");
+			string(out, span.isTrace() ? "trace" : "span");
+			out.append(",\"ph\":\"X\",\"pid\":1,\"tid\":");
+			out.append(Long.toString(span.getThreadId()));
+			out.append(",\"ts\":");
+			out.append(Long.toString(span.getStartEpochMicros()));
+			out.append(",\"dur\":");
+			out.append(Long.toString(span.getDurationNanos() / 1000));
+			out.append(",\"args\":{\"id\":");
+			string(out, span.getId());
+			out.append(",\"parent\":");
+			string(out, span.getParentId());
+			out.append(",\"trace\":");
+			string(out, span.getTraceId());
+			out.append(",\"thread\":");
+			string(out, span.getThreadName());
+
+			for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet())
+			{
+				out.append(',');
+				string(out, attribute.getKey());
+				out.append(':');
+
+				final Object value = attribute.getValue();
+
+				if (value instanceof Number || value instanceof Boolean)
+					out.append(value.toString());
+				else
+					string(out, (value != null) ? value.toString() : null);
+			}
+
+			out.append("}}");
+		}
+
+		out.append("\n]}");
+	}
+
+
+	private static void string(final Appendable out, final String str) throws IOException
+	{
+		if (str == null)
+		{
+			out.append("null");
+			return;
+		}
+
+		out.append('"');
+
+		for (int i = 0; i < str.length(); i++)
+		{
+			final char c = str.charAt(i);
+
+			switch (c)
+			{
+				case '"' -> out.append("\\\"");
+				case '\\' -> out.append("\\\\");
+				case '\n' -> out.append("\\n");
+				case '\r' -> out.append("\\r");
+				case '\t' -> out.append("\\t");
+				default ->
+				{
+					if (c < 0x20)
+						out.append(String.format("\\u%04x", (int) c));
+					else
+						out.append(c);
+				}
+			}
+		}
+
+		out.append('"');
+	}
+}
@@ -0,0 +1,245 @@
+package com.peterphi.std.util.tracing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed operation within a trace. Spans are created by {@link Tracing#span(String)} and recorded by the {@link TraceRecorder}
+ * when closed; when the trace is not being sampled a no-op span is returned, so callers can always use:
+ * <pre>
+ * try (Span span = Tracing.span("load-user"))
+ * {
+ *     span.attr("user", id);
+ *     ...
+ * }
+ * </pre>
+ * Span ids follow the existing trace/operation ids: a span created within trace <code>T</code> has id <code>T/n</code> (where
+ * <code>n</code> is the next operation number within <code>T</code>) and parent <code>T</code>. A sub-trace started within
+ * <code>T</code> (on the same thread, or on another thread via {@link Tracing#wrap(java.util.function.Function)}) also has parent
+ * <code>T</code>
+ */
+public final class Span implements AutoCloseable
+{
+	/**
+	 * Returned when the current trace is not being sampled; ignores all calls
+	 */
+	static final Span NOOP = new Span(null, null, null, 0, null, 0);
+
+	private final String traceId;
+	private final String ownerId;
+	private final String parentId;
+	private final int op;
+	private final String name;
+	private final String threadName;
+	private final long threadId;
+	private final long startNanos;
+	private volatile long endNanos;
+
+	/**
+	 * Attributes as a flat key, value, key, value, ... list (or null if there are none)
+	 */
+	private Object[] attributes;
+	private int attributeCount;
+
+
+	/**
+	 * @param traceId
+	 * 		the id of the root trace
+	 * @param ownerId
+	 * 		the id of the trace this span is part of; if op is 0 then this is the span's own id
+	 * @param parentId
+	 * 		the id of the parent span (for an operation, the trace it is part of; for a sub-trace, the trace it was started within),
+	 * 		or null if this is the root span of a trace
+	 * @param op
+	 * 		the operation number within the parent trace, or 0 if this span represents the trace itself
+	 * @param name
+	 * 		the name of the operation
+	 * @param startNanos
+	 * 		the value of {@link System#nanoTime()} when the operation started
+	 */
+	Span(final String traceId,
+	     final String ownerId,
+	     final String parentId,
+	     final int op,
+	     final String name,
+	     final long startNanos)
+	{
+		this.traceId = traceId;
+		this.ownerId = ownerId;
+		this.parentId = parentId;
+		this.op = op;
+		this.name = name;
+		this.startNanos = startNanos;
+
+		final Thread thread = Thread.currentThread();
+		this.threadName = thread.getName();
+		this.threadId = thread.threadId();
+	}
+
+
+	/**
+	 * Add an attribute to this span
+	 *
+	 * @param key
+	 * @param value
+	 *
+	 * @return this span, for chaining
+	 */
+	public Span attr(final String key, final Object value)
+	{
+		if (this == NOOP)
+			return this;
+
+		if (attributes == null)
+			attributes = new Object[8];
+		else if (attributeCount + 2 > attributes.length)
+			attributes = Arrays.copyOf(attributes, attributes.length * 2);
+
+		attributes[attributeCount++] = key;
+		attributes[attributeCount++] = value;
+
+		return this;
+	}
+
+
+	/**
+	 * End this span, recording it (if it has not already been ended)
+	 */
+	@Override
+	public void close()
+	{
+		if (this == NOOP || endNanos != 0)
+			return;
+
+		endNanos = System.nanoTime();
+
+		TraceRecorder.record(this);
+	}
+
+
+	public boolean isRecording()
+	{
+		return this != NOOP;
+	}
+
+
+	/**
+	 * @return the id of the root trace this span belongs to
+	 */
+	public String getTraceId()
+	{
+		return traceId;
+	}
+
+
+	public String getId()
+	{
+		// N.B. built on demand so creating a span doesn't need to build a string
+		if (op == 0)
+			return ownerId;
+		else
+			return ownerId + "/" + op;
+	}
+
+
+	/**
+	 * @return the id of the parent span, or null if this is the root span of a trace
+	 */
+	public String getParentId()
+	{
+		return parentId;
+	}
+
+
+	/**
+	 * @return true if this span represents a trace (or sub-trace) started with {@link Tracing#start(String)}
+	 */
+	public boolean isTrace()
+	{
+		return op == 0;
+	}
+
+
+	/**
+	 * @return true if this span is the outermost span of its trace
+	 */
+	public boolean isRoot()
+	{
+		return op == 0 && parentId == null && ownerId != null;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public String getThreadName()
+	{
+		return threadName;
+	}
+
+
+	public long getThreadId()
+	{
+		return threadId;
+	}
+
+
+	public long getStartNanos()
+	{
+		return startNanos;
+	}
+
+
+	/**
+	 * @return the value of {@link System#nanoTime()} when this span ended, or 0 if it has not yet ended
+	 */
+	public long getEndNanos()
+	{
+		return endNanos;
+	}
+
+
+	public long getDurationNanos()
+	{
+		return endNanos - startNanos;
+	}
+
+
+	/**
+	 * @return the time this span started, in microseconds since the epoch
+	 */
+	public long getStartEpochMicros()
+	{
+		return TraceRecorder.toEpochMicros(startNanos);
+	}
+
+
+	public Map<String, Object> getAttributes()
+	{
+		if (attributeCount == 0)
+			return Collections.emptyMap();
+
+		final Map<String, Object> map = new LinkedHashMap<>(attributeCount);
+		for (int i = 0; i < attributeCount; i += 2)
+			map.put((String) attributes[i], attributes[i + 1]);
+
+		return map;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "Span{" +
+		       "id='" + getId() + '\'' +
+		       ", name='" + name + '\'' +
+		       ", durationNanos=" + getDurationNanos() +
+		       ", attributes=" + getAttributes() +
+		       '}';
+	}
+}
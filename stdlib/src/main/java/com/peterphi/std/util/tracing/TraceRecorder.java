@@ -0,0 +1,356 @@
+package com.peterphi.std.util.tracing;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the most recent {@link Span}s of sampled traces in memory.<br />
+ * Whether a trace is sampled is decided once when its root {@link Tracing} is started (verbose traces are always sampled while
+ * the recorder is enabled), and inherited by sub-traces (including those started on other threads by {@link
+ * Tracing#wrap(java.util.function.Function)}); spans of unsampled traces are never created. Each thread records into
+ * its own fixed-size ring buffer, so recording a span takes no locks and older spans are overwritten once the buffer is full.
+ * The number of per-thread buffers is limited: the buffers of dead threads are reclaimed whenever a new buffer is needed, and
+ * threads beyond the limit (e.g. large numbers of virtual threads) share a single buffer instead.<br />
+ * The recorder is disabled (sample rate 0) by default
+ */
+public final class TraceRecorder
+{
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	/**
+	 * Offset to convert {@link System#nanoTime()} values to nanoseconds since the epoch
+	 */
+	private static final long NANO_EPOCH_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+	private static volatile double sampleRate = 0;
+	private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * The maximum number of per-thread buffers
+	 */
+	private static final int MAX_THREAD_BUFFERS = 256;
+
+	/**
+	 * The buffers of threads that have recorded spans
+	 */
+	private static final ConcurrentLinkedQueue<SpanBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The number of buffers in {@link #BUFFERS}
+	 */
+	private static final AtomicInteger BUFFER_COUNT = new AtomicInteger();
+
+	/**
+	 * Spans recorded by threads that have since died, and by threads that could not be given their own buffer. Must be
+	 * synchronized on
+	 */
+	private static final SpanBuffer SHARED = new SpanBuffer(null, DEFAULT_BUFFER_SIZE * 4);
+
+	private static final ThreadLocal<SpanBuffer> THREAD_BUFFER = ThreadLocal.withInitial(TraceRecorder :: register);
+
+
+	/**
+	 * A ring buffer of spans; only the owning thread adds spans, but any thread may read them
+	 */
+	private static final class SpanBuffer
+	{
+		private final WeakReference<Thread> owner;
+		private final AtomicReferenceArray<Span> spans;
+		private final AtomicLong written = new AtomicLong();
+
+
+		SpanBuffer(final Thread owner, final int size)
+		{
+			this.owner = new WeakReference<>(owner);
+			this.spans = new AtomicReferenceArray<>(size);
+		}
+
+
+		void add(final Span span)
+		{
+			final long index = written.get();
+
+			spans.lazySet((int) (index % spans.length()), span);
+			written.lazySet(index + 1);
+		}
+
+
+		void addAllTo(final List<Span> list)
+		{
+			final long end = written.get();
+			final long start = Math.max(0, end - spans.length());
+
+			for (long i = start; i < end; i++)
+			{
+				final Span span = spans.get((int) (i % spans.length()));
+
+				if (span != null)
+					list.add(span);
+			}
+		}
+
+
+		void clear()
+		{
+			for (int i = 0; i < spans.length(); i++)
+				spans.set(i, null);
+		}
+
+
+		boolean isOwnerAlive()
+		{
+			final Thread thread = owner.get();
+
+			return thread != null && thread.isAlive();
+		}
+	}
+
+
+	private TraceRecorder()
+	{
+	}
+
+
+	/**
+	 * Set the proportion of traces that should be sampled
+	 *
+	 * @param rate
+	 * 		between 0 (disabled) and 1 (record all traces)
+	 */
+	public static void setSampleRate(final double rate)
+	{
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + rate);
+
+		sampleRate = rate;
+	}
+
+
+	public static double getSampleRate()
+	{
+		return sampleRate;
+	}
+
+
+	/**
+	 * Set the number of spans each thread keeps; only applies to threads that have not yet recorded a span
+	 *
+	 * @param size
+	 */
+	public static void setBufferSize(final int size)
+	{
+		if (size < 1)
+			throw new IllegalArgumentException("Buffer size must be positive: " + size);
+
+		bufferSize = size;
+	}
+
+
+	public static boolean isEnabled()
+	{
+		return sampleRate > 0;
+	}
+
+
+	/**
+	 * Decide whether a new root trace should be sampled
+	 *
+	 * @param verbose
+	 * 		true if the trace is verbose
+	 *
+	 * @return
+	 */
+	static boolean sample(final boolean verbose)
+	{
+		final double rate = sampleRate;
+
+		if (rate <= 0)
+			return false;
+		else if (verbose || rate >= 1)
+			return true;
+		else
+			return ThreadLocalRandom.current().nextDouble() < rate;
+	}
+
+
+	static void record(final Span span)
+	{
+		final SpanBuffer buffer = THREAD_BUFFER.get();
+
+		if (buffer == SHARED)
+		{
+			synchronized (SHARED)
+			{
+				SHARED.add(span);
+			}
+		}
+		else
+		{
+			buffer.add(span);
+		}
+	}
+
+
+	/**
+	 * Create a buffer for the current thread, reclaiming the buffers of dead threads first
+	 *
+	 * @return a new buffer, or {@link #SHARED} if there are already too many
+	 */
+	private static SpanBuffer register()
+	{
+		reclaim();
+
+		if (BUFFER_COUNT.incrementAndGet() > MAX_THREAD_BUFFERS)
+		{
+			BUFFER_COUNT.decrementAndGet();
+
+			return SHARED;
+		}
+
+		final SpanBuffer buffer = new SpanBuffer(Thread.currentThread(), bufferSize);
+
+		BUFFERS.add(buffer);
+
+		return buffer;
+	}
+
+
+	/**
+	 * Move the spans of dead threads into {@link #SHARED} and discard their buffers
+	 */
+	private static void reclaim()
+	{
+		for (SpanBuffer buffer : BUFFERS)
+		{
+			// N.B. only one caller can remove a given buffer, so its spans are moved once
+			if (!buffer.isOwnerAlive() && BUFFERS.remove(buffer))
+			{
+				BUFFER_COUNT.decrementAndGet();
+
+				final List<Span> orphaned = new ArrayList<>();
+				buffer.addAllTo(orphaned);
+
+				synchronized (SHARED)
+				{
+					orphaned.forEach(SHARED :: add);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @return the number of per-thread buffers currently held
+	 */
+	static int getBufferCount()
+	{
+		return BUFFER_COUNT.get();
+	}
+
+
+	static long toEpochMicros(final long nanoTime)
+	{
+		return (nanoTime + NANO_EPOCH_OFFSET) / 1000;
+	}
+
+
+	/**
+	 * Retrieve all recorded spans, ordered by start time
+	 *
+	 * @return
+	 */
+	public static List<Span> getSpans()
+	{
+		reclaim();
+
+		final List<Span> spans = new ArrayList<>();
+
+		for (SpanBuffer buffer : BUFFERS)
+			buffer.addAllTo(spans);
+
+		synchronized (SHARED)
+		{
+			SHARED.addAllTo(spans);
+		}
+
+		spans.sort(Comparator.comparingLong(Span::getStartNanos));
+
+		return spans;
+	}
+
+
+	/**
+	 * Retrieve the recorded spans of a trace
+	 *
+	 * @param traceId
+	 * 		the id of the root trace
+	 *
+	 * @return the spans, ordered by start time (empty if the trace was not recorded or has been overwritten)
+	 */
+	public static List<Span> getTrace(final String traceId)
+	{
+		final List<Span> spans = getSpans();
+
+		spans.removeIf(span -> !traceId.equals(span.getTraceId()));
+
+		return spans;
+	}
+
+
+	/**
+	 * Retrieve the slowest recently-recorded traces
+	 *
+	 * @param limit
+	 * 		the maximum number of traces to return
+	 *
+	 * @return the root spans of the slowest traces (ordered slowest first), each mapped to all the recorded spans of its trace
+	 */
+	public static Map<Span, List<Span>> getSlowestTraces(final int limit)
+	{
+		final List<Span> spans = getSpans();
+
+		final List<Span> roots = new ArrayList<>();
+		for (Span span : spans)
+			if (span.isRoot())
+				roots.add(span);
+
+		roots.sort(Comparator.comparingLong(Span::getDurationNanos).reversed());
+
+		final Map<Span, List<Span>> traces = new LinkedHashMap<>();
+		for (Span root : roots.subList(0, Math.min(limit, roots.size())))
+		{
+			final List<Span> trace = new ArrayList<>();
+			for (Span span : spans)
+				if (root.getTraceId().equals(span.getTraceId()))
+					trace.add(span);
+
+			traces.put(root, trace);
+		}
+
+		return traces;
+	}
+
+
+	/**
+	 * Discard all recorded spans
+	 */
+	public static void clear()
+	{
+		for (SpanBuffer buffer : BUFFERS)
+			buffer.clear();
+
+		synchronized (SHARED)
+		{
+			SHARED.clear();
+		}
+	}
+}
@@ -28,13 +28,48 @@ public final class Tracing
 	public final boolean localVerboseOnly;
 	private List<MonitorTraceEventListener> monitors;
 
+	/**
+	 * The id of the outermost trace (which may have been started on another thread, see {@link #wrap(Function)})
+	 */
+	private final String rootId;
+
+	/**
+	 * The id of the trace this trace was started within (or null if this is the outermost trace)
+	 */
+	private final String originId;
+
+	/**
+	 * If true, spans for this trace are being recorded by the {@link TraceRecorder}
+	 */
+	private final boolean sampled;
+	private final long startNanos;
+
 
-	private Tracing(final Tracing parent, final String id, final boolean verbose, final boolean localVerboseOnly)
+	/**
+	 * @param parent
+	 * 		the trace this replaces on the current thread (restored when this trace is stopped)
+	 * @param origin
+	 * 		the trace this was started within (usually <code>parent</code>, but may be a trace on another thread), or null if this is
+	 * 		the outermost trace. This trace is part of the same root trace, and shares its sampling decision
+	 * @param id
+	 * @param verbose
+	 * @param localVerboseOnly
+	 */
+	private Tracing(final Tracing parent,
+	                final Tracing origin,
+	                final String id,
+	                final boolean verbose,
+	                final boolean localVerboseOnly)
 	{
 		this.parent = parent;
 		this.id = id;
 		this.verbose = verbose;
 		this.localVerboseOnly = verbose && localVerboseOnly;
+
+		this.rootId = (origin != null) ? origin.rootId : id;
+		this.originId = (origin != null) ? origin.id : null;
+		this.sampled = (origin != null) ? origin.sampled : TraceRecorder.sample(verbose);
+		this.startNanos = sampled ? System.nanoTime() : 0;
 	}
 
 
@@ -74,16 +109,35 @@ public final class Tracing
 
 
 	public static Tracing getOrCreate(final String newTraceId, final boolean verbose, final boolean localVerboseOnly)
+	{
+		return getOrCreate(newTraceId, verbose, localVerboseOnly, null);
+	}
+
+
+	/**
+	 * @param newTraceId
+	 * @param verbose
+	 * @param localVerboseOnly
+	 * @param origin
+	 * 		if there is no trace on this thread, the trace (on another thread) that the new trace is part of
+	 *
+	 * @return
+	 */
+	private static Tracing getOrCreate(final String newTraceId,
+	                                   final boolean verbose,
+	                                   final boolean localVerboseOnly,
+	                                   final Tracing origin)
 	{
 		Tracing obj = peek();
 
 		if (obj == null)
 		{
-			obj = new Tracing(null, newTraceId, verbose || log.isTraceEnabled(), localVerboseOnly);
+			obj = new Tracing(null, origin, newTraceId, verbose || log.isTraceEnabled(), localVerboseOnly);
 		}
 		else
 		{
 			final Tracing subtrace = new Tracing(obj,
+			                                     obj,
 			                                     obj.createNewOperationId() + "/" + newTraceId,
 			                                     verbose || obj.verbose || log.isTraceEnabled(),
 			                                     localVerboseOnly);
@@ -111,6 +165,7 @@ public final class Tracing
 				if (tracing.verbose)
 					log("End trace");
 
+				tracing.record();
 				setTrace(tracing.parent);
 
 				return;
@@ -124,6 +179,10 @@ public final class Tracing
 				{
 					if (StringUtils.equals(cur.id, id))
 					{
+						// Record all the traces we're stopping
+						for (Tracing stopped = tracing; stopped != cur.parent; stopped = stopped.parent)
+							stopped.record();
+
 						if (cur.parent == null)
 						{
 							if (tracing.verbose || cur.verbose)
@@ -148,6 +207,36 @@ public final class Tracing
 	}
 
 
+	/**
+	 * Record this trace as a span (if it is being sampled)
+	 */
+	private void record()
+	{
+		if (sampled)
+			new Span(rootId, id, originId, 0, id, startNanos).close();
+	}
+
+
+	/**
+	 * Start a timed span within the current trace, which is recorded by the {@link TraceRecorder} when closed. If there is no
+	 * current trace, or the trace is not being sampled, a span that ignores all calls is returned (at negligible cost)
+	 *
+	 * @param name
+	 * 		the name of the operation
+	 *
+	 * @return
+	 */
+	public static Span span(final String name)
+	{
+		final Tracing tracing = peek();
+
+		if (tracing == null || !tracing.sampled)
+			return Span.NOOP;
+		else
+			return new Span(tracing.rootId, tracing.id, tracing.id, ++tracing.ops, name, System.nanoTime());
+	}
+
+
 	private static void setTrace(final Tracing trace)
 	{
 		if (trace != null)
@@ -177,7 +266,23 @@ public final class Tracing
 
 	public static void start(final String id, final boolean verbose)
 	{
-		final Tracing tracing = getOrCreate(id, verbose);
+		start(id, verbose, null);
+	}
+
+
+	/**
+	 * Start a trace for work being carried out on behalf of another trace (generally one on another thread). If there is no trace
+	 * on this thread, the new trace is recorded as part of <code>origin</code>'s root trace (and shares its sampling decision)
+	 * rather than as a new root trace
+	 *
+	 * @param id
+	 * @param verbose
+	 * @param origin
+	 * 		the trace the work is being done for (may be null)
+	 */
+	public static void start(final String id, final boolean verbose, final Tracing origin)
+	{
+		final Tracing tracing = getOrCreate(id, verbose, false, origin);
 
 		// N.B. do not overwrite existing tracing, but do log it
 		if (tracing.id.equals(id))
@@ -291,10 +396,13 @@ public final class Tracing
 	 */
 	public static <T, R> Function<T, R> wrap(final String id, final boolean verbose, final Function<T, R> function)
 	{
+		// Work run on another thread remains part of the current trace
+		final Tracing origin = Tracing.peek();
+
 		return (t) -> {
 			try
 			{
-				Tracing.start(id, verbose);
+				Tracing.start(id, verbose, origin);
 
 				return function.apply(t);
 			}
@@ -0,0 +1,202 @@
+package com.peterphi.std.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamCopierTest
+{
+	private static final byte[] DATA = new byte[3 * 1024 * 1024 + 17];
+
+	static
+	{
+		new Random(1).nextBytes(DATA);
+	}
+
+
+	@Test
+	public void testStreamCopy() throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		final long copied = StreamCopier.DEFAULT.copy(new ByteArrayInputStream(DATA), out, null);
+
+		assertEquals(DATA.length, copied);
+		assertArrayEquals(DATA, out.toByteArray());
+	}
+
+
+	@Test
+	public void testShortReadsAreNotPenalised() throws IOException
+	{
+		// A source that only ever returns 100 bytes per read (like a slow socket or pipe)
+		final FilterInputStream trickle = new FilterInputStream(new ByteArrayInputStream(DATA, 0, 100 * 1000))
+		{
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException
+			{
+				return super.read(b, off, Math.min(len, 100));
+			}
+		};
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		final long started = System.currentTimeMillis();
+		StreamUtil.streamCopy(trickle, out);
+		final long duration = System.currentTimeMillis() - started;
+
+		assertEquals(100 * 1000, out.size());
+		assertTrue("1000 short reads should not take " + duration + "ms", duration < 1000);
+	}
+
+
+	@Test
+	public void testFileCopy() throws IOException
+	{
+		final File src = File.createTempFile("src", ".bin");
+		final File dest = File.createTempFile("dest", ".bin");
+		try
+		{
+			Files.write(src.toPath(), DATA);
+
+			FileHelper.copy(src, dest);
+
+			assertArrayEquals(DATA, Files.readAllBytes(dest.toPath()));
+			assertEquals(src.lastModified(), dest.lastModified());
+		}
+		finally
+		{
+			src.delete();
+			dest.delete();
+		}
+	}
+
+
+	@Test
+	public void testTransferFromNonFileChannel() throws IOException
+	{
+		final File dest = File.createTempFile("dest", ".bin");
+		try
+		{
+			try (FileChannel channel = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE))
+			{
+				final long copied = StreamCopier.DEFAULT.copy(Channels.newChannel(new ByteArrayInputStream(DATA)), channel, null);
+
+				assertEquals(DATA.length, copied);
+				assertEquals("destination position should move", DATA.length, channel.position());
+			}
+
+			assertArrayEquals(DATA, Files.readAllBytes(dest.toPath()));
+		}
+		finally
+		{
+			dest.delete();
+		}
+	}
+
+
+	@Test
+	public void testTransferToNonFileChannel() throws IOException
+	{
+		final File src = File.createTempFile("src", ".bin");
+		try
+		{
+			Files.write(src.toPath(), DATA);
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			try (FileChannel channel = FileChannel.open(src.toPath(), StandardOpenOption.READ))
+			{
+				channel.position(17);
+
+				StreamCopier.DEFAULT.copy(channel, Channels.newChannel(out), null);
+			}
+
+			assertEquals(DATA.length - 17, out.size());
+		}
+		finally
+		{
+			src.delete();
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingSourceWaitsForData() throws Exception
+	{
+		final File dest = File.createTempFile("dest", ".bin");
+		final Pipe pipe = Pipe.open();
+		try
+		{
+			pipe.source().configureBlocking(false);
+
+			// Trickle the data in slowly, so the copy repeatedly finds nothing to read
+			final Thread writer = new Thread(() -> {
+				try (Pipe.SinkChannel sink = pipe.sink())
+				{
+					for (int i = 0; i < 10; i++)
+					{
+						Thread.sleep(50);
+						sink.write(ByteBuffer.wrap(DATA, i * 1000, 1000));
+					}
+				}
+				catch (IOException | InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+
+			// Each pass of the copy loop that receives nothing is a wasted poll of the source
+			final AtomicInteger progressCalls = new AtomicInteger();
+			final InvocationHandler counter = (proxy, method, args) -> {
+				if (method.getName().equals("progress"))
+					progressCalls.incrementAndGet();
+
+				return null;
+			};
+			final ICopyProgressMonitor monitor = (ICopyProgressMonitor) Proxy.newProxyInstance(getClass().getClassLoader(),
+			                                                                                   new Class[]{ICopyProgressMonitor.class},
+			                                                                                   counter);
+
+			writer.start();
+
+			try (FileChannel channel = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE))
+			{
+				assertEquals(10 * 1000, StreamCopier.DEFAULT.copy(pipe.source(), channel, monitor));
+			}
+
+			writer.join();
+
+			assertArrayEquals(Arrays.copyOf(DATA, 10 * 1000), Files.readAllBytes(dest.toPath()));
+			assertTrue("copy should park rather than spin while waiting for data, made " + progressCalls + " progress calls",
+			           progressCalls.get() < 20);
+			assertFalse("source should be deregistered from the selector", pipe.source().isRegistered());
+		}
+		finally
+		{
+			pipe.source().close();
+			dest.delete();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.peterphi.std.io.nio;
+
+import com.peterphi.std.threading.Deadline;
+import com.peterphi.std.threading.Timeout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NIOSelectorTest
+{
+	private ServerSocketChannel server;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+	}
+
+
+	@After
+	public void tearDown() throws IOException
+	{
+		server.close();
+	}
+
+
+	@Test
+	public void testBlockingReadOfPartialWrites() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			final Thread writer = new Thread(() -> {
+				try
+				{
+					for (int i = 0; i < 50; i++)
+						remote.write(ByteBuffer.wrap(new byte[]{(byte) i}));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+			writer.start();
+
+			final ByteBuffer result = NIOHelper.blockingRead(client, 10000, 50);
+			writer.join();
+
+			for (int i = 0; i < 50; i++)
+				assertEquals(i, result.get());
+
+			assertTrue("socket should be returned to blocking mode", client.isBlocking());
+		}
+	}
+
+
+	@Test
+	public void testBlockingSocketKeepsBlockingModeAndTimeout() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			client.socket().setSoTimeout(1234);
+
+			remote.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(3);
+			assertTrue(NIOHelper.read(client, new Deadline(Timeout.TEN_SECONDS), buffer));
+
+			assertEquals(3, buffer.remaining());
+			assertEquals(3, buffer.get(2));
+			assertTrue("socket must stay in blocking mode", client.isBlocking());
+			assertFalse("socket must never be registered with a selector", client.isRegistered());
+			assertEquals("socket timeout must be restored", 1234, client.socket().getSoTimeout());
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingReadOfPartialWrites() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			client.configureBlocking(false);
+
+			for (int round = 0; round < 3; round++)
+			{
+				final byte offset = (byte) (round * 10);
+				final Thread writer = new Thread(() -> {
+					try
+					{
+						for (int i = 0; i < 10; i++)
+							remote.write(ByteBuffer.wrap(new byte[]{(byte) (offset + i)}));
+					}
+					catch (IOException e)
+					{
+						throw new RuntimeException(e);
+					}
+				});
+				writer.start();
+
+				final ByteBuffer result = NIOHelper.blockingRead(client, 10000, 10);
+				writer.join();
+
+				for (int i = 0; i < 10; i++)
+					assertEquals(offset + i, result.get());
+
+				assertFalse("socket must stay in non-blocking mode", client.isBlocking());
+				assertFalse("socket must be deregistered once the read completes", client.isRegistered());
+			}
+
+			// The caller is free to change the blocking mode afterwards
+			client.configureBlocking(true);
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingReadTimesOut() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			client.configureBlocking(false);
+
+			assertNull(NIOHelper.blockingRead(client, 100, 10));
+			assertFalse(client.isRegistered());
+		}
+	}
+
+
+	@Test
+	public void testDeadlinePassingDuringReadReportedAsTimeout() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			client.configureBlocking(false);
+
+			// N.B. many short reads, so some deadlines pass just as the selector gives up waiting
+			for (int i = 0; i < 2000; i++)
+				assertFalse(NIOHelper.read(client, new Deadline(1, TimeUnit.MILLISECONDS), ByteBuffer.allocate(10)));
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingWrite() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			client.configureBlocking(false);
+
+			assertTrue(NIOHelper.write(client, new Deadline(Timeout.TEN_SECONDS), ByteBuffer.wrap(new byte[]{4, 5, 6})));
+			assertFalse(client.isRegistered());
+
+			assertArrayEquals(new byte[]{4, 5, 6}, NIOHelper.blockingRead(remote, 10000, 3).array());
+		}
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriteRejectsBlockingSocket() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			NIOHelper.write(client, new Deadline(Timeout.TEN_SECONDS), ByteBuffer.wrap(new byte[]{1}));
+		}
+	}
+
+
+	@Test
+	public void testBlockingReadTimesOut() throws Exception
+	{
+		try (SocketChannel client = connect(); SocketChannel remote = server.accept())
+		{
+			remote.write(ByteBuffer.wrap(new byte[5]));
+
+			final long started = System.currentTimeMillis();
+			assertNull(NIOHelper.blockingRead(client, 200, 10));
+			final long duration = System.currentTimeMillis() - started;
+
+			assertTrue("should wait for timeout, took " + duration, duration >= 200);
+			assertTrue("should not wait much longer than timeout, took " + duration, duration < 2000);
+		}
+	}
+
+
+	@Test
+	public void testEndOfStream() throws Exception
+	{
+		try (SocketChannel client = connect())
+		{
+			server.accept().close();
+
+			try
+			{
+				NIOHelper.read(client, new Deadline(Timeout.TEN_SECONDS), ByteBuffer.allocate(10));
+				fail("Expected EOFException");
+			}
+			catch (EOFException e)
+			{
+				// expected
+			}
+		}
+	}
+
+
+	@Test
+	public void testManyChannelsOneThread() throws Exception
+	{
+		try (SocketChannel a = connect();
+		     SocketChannel remoteA = server.accept();
+		     SocketChannel b = connect();
+		     SocketChannel remoteB = server.accept();
+		     NIOSelector selector = new NIOSelector())
+		{
+			a.configureBlocking(false);
+			b.configureBlocking(false);
+			remoteA.configureBlocking(false);
+
+			final Deadline deadline = new Deadline(10, TimeUnit.SECONDS);
+
+			final CompletableFuture<ByteBuffer> readA = selector.read(a, ByteBuffer.allocate(3), deadline);
+			final CompletableFuture<ByteBuffer> readB = selector.read(b, ByteBuffer.allocate(3), new Deadline(100, TimeUnit.MILLISECONDS));
+			final CompletableFuture<ByteBuffer> writeA = selector.write(remoteA, ByteBuffer.wrap(new byte[]{1, 2, 3}), deadline);
+
+			remoteB.write(ByteBuffer.wrap(new byte[]{9})); // Not enough for B's read to complete
+
+			selector.process(deadline);
+
+			assertEquals(0, selector.getPendingCount());
+			assertTrue(writeA.isDone());
+			assertArrayEquals(new byte[]{1, 2, 3}, readA.join().array());
+
+			try
+			{
+				readB.join();
+				fail("Expected timeout");
+			}
+			catch (CompletionException e)
+			{
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+		}
+	}
+
+
+	private SocketChannel connect() throws IOException
+	{
+		return SocketChannel.open(server.getLocalAddress());
+	}
+}
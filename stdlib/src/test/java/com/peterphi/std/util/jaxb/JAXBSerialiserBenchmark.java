@@ -0,0 +1,51 @@
+package com.peterphi.std.util.jaxb;
+
+import com.peterphi.std.util.jaxb.pkg1.SomeXml;
+import com.peterphi.std.util.jaxb.pkg2.SomeOtherXml;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link JAXBSerialiser} with and without Marshaller/Unmarshaller pooling. Not run as part of the
+ * test suite; run manually with <code>main</code>
+ */
+public class JAXBSerialiserBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 20_000;
+	private static final int ITERATIONS = 100_000;
+
+
+	public static void main(String[] args)
+	{
+		final SomeXml obj = new SomeXml();
+		obj.name = "benchmark";
+		obj.other1 = new SomeOtherXml();
+		obj.other2 = new SomeOtherXml();
+
+		final JAXBSerialiser pooled = JAXBSerialiser.getInstance(SomeXml.class);
+		final JAXBSerialiser unpooled = JAXBSerialiser.getInstance(SomeXml.class).setPoolSize(0);
+
+		run("unpooled", unpooled, obj, WARMUP_ITERATIONS);
+		run("pooled", pooled, obj, WARMUP_ITERATIONS);
+
+		run("unpooled", unpooled, obj, ITERATIONS);
+		run("pooled", pooled, obj, ITERATIONS);
+	}
+
+
+	private static void run(final String name, final JAXBSerialiser serialiser, final SomeXml obj, final int iterations)
+	{
+		final long started = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			serialiser.deserialise(serialiser.serialise(obj));
+
+		final long elapsed = System.nanoTime() - started;
+
+		System.out.printf("%-10s %,d round trips in %,d ms (%,d ns/op)%n",
+		                  name,
+		                  iterations,
+		                  TimeUnit.NANOSECONDS.toMillis(elapsed),
+		                  elapsed / iterations);
+	}
+}
@@ -0,0 +1,95 @@
+package com.peterphi.std.util.jaxb;
+
+import com.peterphi.std.util.jaxb.pkg1.SomeXml;
+import com.peterphi.std.util.jaxb.pkg2.SomeOtherXml;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JAXBSerialiserPoolTest
+{
+	@Test
+	public void testRoundTripReusesPooledInstances()
+	{
+		final JAXBSerialiser serialiser = JAXBSerialiser.getInstance(SomeXml.class);
+
+		for (int i = 0; i < 10; i++)
+		{
+			final SomeXml obj = create("item" + i);
+
+			final SomeXml result = (SomeXml) serialiser.deserialise(serialiser.serialise(obj));
+
+			assertEquals("item" + i, result.name);
+		}
+	}
+
+
+	@Test
+	public void testConfigChangeAppliesAfterInstancesPooled()
+	{
+		final JAXBSerialiser serialiser = JAXBSerialiser.getInstance(SomeXml.class);
+
+		assertFalse(serialiser.serialise(create("a")).contains("\n "));
+
+		serialiser.setPrettyOutput(true);
+		assertTrue(serialiser.serialise(create("a")).contains("\n "));
+
+		serialiser.setPrettyOutput(false);
+		assertFalse(serialiser.serialise(create("a")).contains("\n "));
+	}
+
+
+	@Test
+	public void testPoolingDisabled()
+	{
+		final JAXBSerialiser serialiser = JAXBSerialiser.getInstance(SomeXml.class).setPoolSize(0);
+
+		assertEquals("x", ((SomeXml) serialiser.deserialise(serialiser.serialise(create("x")))).name);
+	}
+
+
+	@Test
+	public void testConcurrentUse() throws Exception
+	{
+		final JAXBSerialiser serialiser = JAXBSerialiser.getInstance(SomeXml.class).setPoolSize(2);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			final List<Future<String>> results = new ArrayList<>();
+
+			for (int i = 0; i < 200; i++)
+			{
+				final String name = "item" + i;
+
+				results.add(executor.submit(() -> ((SomeXml) serialiser.deserialise(serialiser.serialise(create(name)))).name));
+			}
+
+			for (int i = 0; i < results.size(); i++)
+				assertEquals("item" + i, results.get(i).get());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+
+	private static SomeXml create(final String name)
+	{
+		final SomeXml obj = new SomeXml();
+		obj.name = name;
+		obj.other1 = new SomeOtherXml();
+		obj.other2 = new SomeOtherXml();
+
+		return obj;
+	}
+}
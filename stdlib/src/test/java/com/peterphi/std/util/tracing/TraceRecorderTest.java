@@ -0,0 +1,276 @@
+package com.peterphi.std.util.tracing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceRecorderTest
+{
+	@After
+	public void tearDown()
+	{
+		TraceRecorder.setSampleRate(0);
+		TraceRecorder.clear();
+		Tracing.clear();
+	}
+
+
+	@Test
+	public void testNothingRecordedWhenDisabled()
+	{
+		Tracing.start("disabled");
+
+		try (Span span = Tracing.span("op"))
+		{
+			assertFalse(span.isRecording());
+		}
+
+		Tracing.stop("disabled");
+
+		assertTrue(TraceRecorder.getTrace("disabled").isEmpty());
+	}
+
+
+	@Test
+	public void testSpanOutsideTraceNotRecorded()
+	{
+		TraceRecorder.setSampleRate(1);
+
+		assertFalse(Tracing.span("op").isRecording());
+	}
+
+
+	@Test
+	public void testSpansLinkedToTrace()
+	{
+		TraceRecorder.setSampleRate(1);
+
+		Tracing.start("root");
+
+		try (Span span = Tracing.span("load"))
+		{
+			span.attr("rows", 3);
+		}
+
+		Tracing.start("sub");
+		Tracing.span("inner").close();
+		Tracing.stop(Tracing.getTraceId());
+
+		Tracing.stop("root");
+
+		final List<Span> spans = TraceRecorder.getTrace("root");
+
+		assertEquals(4, spans.size());
+
+		final Span root = spans.get(0);
+		assertTrue(root.isRoot());
+		assertEquals("root", root.getId());
+		assertNull(root.getParentId());
+
+		final Span load = spans.get(1);
+		assertEquals("load", load.getName());
+		assertEquals("root/1", load.getId());
+		assertEquals("root", load.getParentId());
+		assertEquals(Map.of("rows", 3), load.getAttributes());
+
+		final Span sub = spans.get(2);
+		assertTrue(sub.isTrace());
+		assertFalse(sub.isRoot());
+		assertEquals("root/2/sub", sub.getId());
+		assertEquals("root", sub.getParentId());
+
+		final Span inner = spans.get(3);
+		assertEquals("root/2/sub", inner.getParentId());
+
+		assertTrue(root.getDurationNanos() >= load.getDurationNanos());
+	}
+
+
+	@Test
+	public void testWrappedWorkOnAnotherThreadPartOfTrace() throws Exception
+	{
+		TraceRecorder.setSampleRate(1);
+
+		Tracing.start("origin");
+
+		final Function<Void, Void> work = Tracing.wrap(ignored -> {
+			Tracing.span("remote").close();
+			return null;
+		});
+
+		// Sampling was decided when the root trace started, so must not be decided again for work done on its behalf
+		TraceRecorder.setSampleRate(Double.MIN_VALUE);
+
+		final Thread thread = new Thread(() -> work.apply(null));
+		thread.start();
+		thread.join();
+
+		Tracing.stop("origin");
+
+		final List<Span> spans = TraceRecorder.getTrace("origin");
+
+		assertEquals(3, spans.size());
+
+		final Span wrapped = spans.get(1);
+		assertTrue(wrapped.isTrace());
+		assertFalse(wrapped.isRoot());
+		assertEquals("origin/1", wrapped.getId());
+		assertEquals("origin", wrapped.getParentId());
+
+		final Span remote = spans.get(2);
+		assertEquals("origin/1/1", remote.getId());
+		assertEquals("origin/1", remote.getParentId());
+
+		// The work is not reported as a trace in its own right
+		assertEquals(List.of(spans.get(0)), List.copyOf(TraceRecorder.getSlowestTraces(10).keySet()));
+	}
+
+
+	@Test
+	public void testWrappedWorkOfUnsampledTraceNotRecorded() throws Exception
+	{
+		Tracing.start("unsampled");
+
+		final Function<Void, Void> work = Tracing.wrap(ignored -> {
+			Tracing.span("remote").close();
+			return null;
+		});
+
+		TraceRecorder.setSampleRate(1);
+
+		final Thread thread = new Thread(() -> work.apply(null));
+		thread.start();
+		thread.join();
+
+		Tracing.stop("unsampled");
+
+		assertTrue(TraceRecorder.getSpans().isEmpty());
+	}
+
+
+	@Test
+	public void testSlowestTraces() throws Exception
+	{
+		TraceRecorder.setSampleRate(1);
+
+		Tracing.start("fast");
+		Tracing.stop("fast");
+
+		Tracing.start("slow");
+		Thread.sleep(20);
+		Tracing.stop("slow");
+
+		final Map<Span, List<Span>> slowest = TraceRecorder.getSlowestTraces(1);
+
+		assertEquals(1, slowest.size());
+		assertEquals("slow", slowest.keySet().iterator().next().getTraceId());
+	}
+
+
+	@Test
+	public void testChromeTraceJson()
+	{
+		TraceRecorder.setSampleRate(1);
+
+		Tracing.start("json");
+		Tracing.span("quote\"d").attr("flag", true).close();
+		Tracing.stop("json");
+
+		final String json = ChromeTraceExporter.toJson(TraceRecorder.getTrace("json"));
+
+		assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+		assertTrue(json, json.contains("\"name\":\"quote\\\"d\""));
+		assertTrue(json, json.contains("\"ph\":\"X\""));
+		assertTrue(json, json.contains("\"parent\":\"json\""));
+		assertTrue(json, json.contains("\"flag\":true"));
+	}
+
+
+	@Test
+	public void testBuffersOfDeadThreadsReclaimed() throws Exception
+	{
+		TraceRecorder.setSampleRate(1);
+
+		// Many short-lived threads, one after another
+		for (int i = 0; i < 500; i++)
+		{
+			final Thread thread = new Thread(trace("short-" + i));
+			thread.start();
+			thread.join();
+		}
+
+		assertTrue("buffers of dead threads should be reclaimed, have " + TraceRecorder.getBufferCount(),
+		           TraceRecorder.getBufferCount() < 10);
+
+		// Their spans are kept
+		assertEquals(1, TraceRecorder.getTrace("short-499").size());
+	}
+
+
+	@Test
+	public void testThreadsBeyondLimitShareBuffer() throws Exception
+	{
+		TraceRecorder.setSampleRate(1);
+
+		final CountDownLatch recorded = new CountDownLatch(400);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 400; i++)
+		{
+			final Runnable trace = trace("live-" + i);
+
+			threads.add(Thread.ofVirtual().start(() -> {
+				trace.run();
+				recorded.countDown();
+
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					// ignore
+				}
+			}));
+		}
+
+		try
+		{
+			assertTrue(recorded.await(10, TimeUnit.SECONDS));
+
+			assertTrue("should not exceed the buffer limit, have " + TraceRecorder.getBufferCount(),
+			           TraceRecorder.getBufferCount() <= 256);
+
+			assertEquals(1, TraceRecorder.getTrace("live-0").size());
+			assertEquals(1, TraceRecorder.getTrace("live-399").size());
+		}
+		finally
+		{
+			release.countDown();
+
+			for (Thread thread : threads)
+				thread.join();
+		}
+	}
+
+
+	private static Runnable trace(final String id)
+	{
+		return () -> {
+			Tracing.start(id);
+			Tracing.stop(id);
+		};
+	}
+}
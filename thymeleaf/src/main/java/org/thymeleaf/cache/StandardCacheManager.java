@@ -45,6 +45,9 @@ import org.thymeleaf.engine.TemplateModel;
  *             all ({@code getXCache()} will return {@code null}).</li>
  *       </ul>
  *   </li>
+ *   <li>Whether the cache should be <i>frequency aware</i>: if so (and the cache is bounded), a
+ *       {@link TinyLFUCache} is used, which evicts the least frequently used entries rather than
+ *       the oldest ones.</li>
  *   <li>Whether the cache should use <i>soft references</i> or not
  *       ({@code java.lang.ref.SoftReference}). Using Soft References
  *       allows the cache to be <i>memory-sensitive</i>, allowing the garbage collector
@@ -96,6 +99,12 @@ public class StandardCacheManager extends AbstractCacheManager {
      */
     public static final boolean DEFAULT_TEMPLATE_CACHE_USE_SOFT_REFERENCES = true;
     
+    /**
+     * Default template cache "frequency aware" flag: {@value}. If true, a {@link TinyLFUCache} is used instead
+     * of a {@link StandardCache}
+     */
+    public static final boolean DEFAULT_TEMPLATE_CACHE_FREQUENCY_AWARE = false;
+
     /**
      * Default template cache logger name: null (default behaviour = org.thymeleaf.TemplateEngine.cache.TEMPLATE_CACHE)
      */
@@ -132,6 +141,12 @@ public class StandardCacheManager extends AbstractCacheManager {
      */
     public static final boolean DEFAULT_EXPRESSION_CACHE_USE_SOFT_REFERENCES = true;
     
+    /**
+     * Default expression cache "frequency aware" flag: {@value}. If true, a {@link TinyLFUCache} is used instead
+     * of a {@link StandardCache}
+     */
+    public static final boolean DEFAULT_EXPRESSION_CACHE_FREQUENCY_AWARE = false;
+
     /**
      * Default expression cache logger name: null (default behaviour = org.thymeleaf.TemplateEngine.cache.EXPRESSION_CACHE)
      */
@@ -150,6 +165,7 @@ public class StandardCacheManager extends AbstractCacheManager {
     private int templateCacheMaxSize = DEFAULT_TEMPLATE_CACHE_MAX_SIZE;
     private boolean templateCacheEnableCounters = DEFAULT_TEMPLATE_CACHE_ENABLE_COUNTERS;
     private boolean templateCacheUseSoftReferences = DEFAULT_TEMPLATE_CACHE_USE_SOFT_REFERENCES;
+    private boolean templateCacheFrequencyAware = DEFAULT_TEMPLATE_CACHE_FREQUENCY_AWARE;
     private String templateCacheLoggerName = DEFAULT_TEMPLATE_CACHE_LOGGER_NAME;
     private ICacheEntryValidityChecker<TemplateCacheKey,TemplateModel> templateCacheValidityChecker = DEFAULT_TEMPLATE_CACHE_VALIDITY_CHECKER;
 
@@ -158,6 +174,7 @@ public class StandardCacheManager extends AbstractCacheManager {
     private int expressionCacheMaxSize = DEFAULT_EXPRESSION_CACHE_MAX_SIZE;
     private boolean expressionCacheEnableCounters = DEFAULT_EXPRESSION_CACHE_ENABLE_COUNTERS;
     private boolean expressionCacheUseSoftReferences = DEFAULT_EXPRESSION_CACHE_USE_SOFT_REFERENCES;
+    private boolean expressionCacheFrequencyAware = DEFAULT_EXPRESSION_CACHE_FREQUENCY_AWARE;
     private String expressionCacheLoggerName = DEFAULT_EXPRESSION_CACHE_LOGGER_NAME;
     private ICacheEntryValidityChecker<ExpressionCacheKey,Object> expressionCacheValidityChecker = DEFAULT_EXPRESSION_CACHE_VALIDITY_CHECKER;
     
@@ -175,6 +192,12 @@ public class StandardCacheManager extends AbstractCacheManager {
         if (maxSize == 0) {
             return null;
         }
+        if (getTemplateCacheFrequencyAware() && maxSize > 0) {
+            return new TinyLFUCache<TemplateCacheKey, TemplateModel>(
+                    getTemplateCacheName(), getTemplateCacheUseSoftReferences(),
+                    getTemplateCacheInitialSize(), maxSize,
+                    getTemplateCacheValidityChecker(), getTemplateCacheLogger());
+        }
         return new StandardCache<TemplateCacheKey, TemplateModel>(
                 getTemplateCacheName(), getTemplateCacheUseSoftReferences(), 
                 getTemplateCacheInitialSize(), maxSize,
@@ -188,6 +211,12 @@ public class StandardCacheManager extends AbstractCacheManager {
         if (maxSize == 0) {
             return null;
         }
+        if (getExpressionCacheFrequencyAware() && maxSize > 0) {
+            return new TinyLFUCache<ExpressionCacheKey, Object>(
+                    getExpressionCacheName(), getExpressionCacheUseSoftReferences(),
+                    getExpressionCacheInitialSize(), maxSize,
+                    getExpressionCacheValidityChecker(), getExpressionCacheLogger());
+        }
         return new StandardCache<ExpressionCacheKey, Object>(
                 getExpressionCacheName(), getExpressionCacheUseSoftReferences(), 
                 getExpressionCacheInitialSize(), maxSize,
@@ -217,6 +246,10 @@ public class StandardCacheManager extends AbstractCacheManager {
         return this.templateCacheMaxSize;
     }
     
+    public boolean getTemplateCacheFrequencyAware() {
+        return this.templateCacheFrequencyAware;
+    }
+
     public String getTemplateCacheLoggerName() {
         return this.templateCacheLoggerName;
     }
@@ -256,6 +289,10 @@ public class StandardCacheManager extends AbstractCacheManager {
         return this.expressionCacheMaxSize;
     }
     
+    public boolean getExpressionCacheFrequencyAware() {
+        return this.expressionCacheFrequencyAware;
+    }
+
     public String getExpressionCacheLoggerName() {
         return this.expressionCacheLoggerName;
     }
@@ -292,6 +329,10 @@ public class StandardCacheManager extends AbstractCacheManager {
         this.templateCacheUseSoftReferences = templateCacheUseSoftReferences;
     }
 
+    public void setTemplateCacheFrequencyAware(final boolean templateCacheFrequencyAware) {
+        this.templateCacheFrequencyAware = templateCacheFrequencyAware;
+    }
+
     public void setTemplateCacheLoggerName(final String templateCacheLoggerName) {
         this.templateCacheLoggerName = templateCacheLoggerName;
     }
@@ -321,6 +362,10 @@ public class StandardCacheManager extends AbstractCacheManager {
         this.expressionCacheUseSoftReferences = expressionCacheUseSoftReferences;
     }
 
+    public void setExpressionCacheFrequencyAware(final boolean expressionCacheFrequencyAware) {
+        this.expressionCacheFrequencyAware = expressionCacheFrequencyAware;
+    }
+
     public void setExpressionCacheLoggerName(final String expressionCacheLoggerName) {
         this.expressionCacheLoggerName = expressionCacheLoggerName;
     }
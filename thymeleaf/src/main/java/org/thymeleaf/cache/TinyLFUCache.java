@@ -0,0 +1,699 @@
+package org.thymeleaf.cache;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.util.Validate;
+
+
+/**
+ * <p>
+ *   Bounded {@link ICache} implementation using a W-TinyLFU eviction policy: new entries enter a small LRU
+ *   <em>window</em>, and when they leave it they are only admitted to the main (segmented LRU) space if they
+ *   have been used more often than the entry they would displace. Use frequencies are estimated by a compact
+ *   count-min sketch which is periodically aged, so frequently-used templates and expressions survive bursts
+ *   of one-off entries that would flush them out of a FIFO or LRU cache.
+ * </p>
+ * <p>
+ *   Reads and writes go straight to a {@link ConcurrentHashMap}; the bookkeeping needed by the eviction policy
+ *   is recorded in buffers and replayed by whichever thread next manages to acquire the (non-blocking) eviction
+ *   lock, so no lock is ever waited on. Reads are recorded in lossy striped buffers: under heavy contention some
+ *   accesses may go unrecorded, which only affects the accuracy of the policy.
+ * </p>
+ * <p>
+ *   Hit, miss and eviction counts are always maintained.
+ * </p>
+ *
+ * @param <K> the type of the cache keys
+ * @param <V> the type of the cache values
+ */
+public final class TinyLFUCache<K, V> implements ICache<K,V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * Percentage of the capacity given to the window
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * Percentage of the main space given to the protected segment
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+
+    private final String name;
+    private final boolean useSoftReferences;
+    private final int maxSize;
+    private final int maxWindow;
+    private final int maxProtected;
+    private final ICacheEntryValidityChecker<? super K, ? super V> entryValidityChecker;
+    private final boolean traceExecution;
+    private final Logger logger;
+
+    private final ConcurrentHashMap<K,Node<K,V>> data;
+
+    private final ReadBuffer<Node<K,V>> readBuffer;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // The following are only accessed while holding the eviction lock
+    private final FrequencySketch sketch;
+    private final AccessOrderDeque<K,V> window = new AccessOrderDeque<K,V>();
+    private final AccessOrderDeque<K,V> probation = new AccessOrderDeque<K,V>();
+    private final AccessOrderDeque<K,V> protectedSegment = new AccessOrderDeque<K,V>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+
+
+    public TinyLFUCache(final String name, final boolean useSoftReferences,
+            final int initialCapacity, final int maxSize, final ICacheEntryValidityChecker<? super K, ? super V> entryValidityChecker,
+            final Logger logger) {
+
+        super();
+
+        Validate.notEmpty(name, "Name cannot be null or empty");
+        Validate.isTrue(initialCapacity > 0, "Initial capacity must be > 0");
+        Validate.isTrue(maxSize > 0, "Cache max size must be > 0");
+
+        this.name = name;
+        this.useSoftReferences = useSoftReferences;
+        this.maxSize = maxSize;
+        this.maxWindow = Math.max(1, (maxSize * WINDOW_PERCENT) / 100);
+        this.maxProtected = ((maxSize - this.maxWindow) * PROTECTED_PERCENT) / 100;
+        this.entryValidityChecker = entryValidityChecker;
+        this.logger = logger;
+        this.traceExecution = (logger != null && logger.isTraceEnabled());
+
+        this.data = new ConcurrentHashMap<K,Node<K,V>>(Math.min(initialCapacity, maxSize));
+        this.readBuffer = new ReadBuffer<Node<K,V>>();
+        this.sketch = new FrequencySketch(maxSize);
+
+        if (this.logger != null) {
+            this.logger.trace("[THYMELEAF][CACHE_INITIALIZE] Initializing W-TinyLFU cache {}. Max size: {}. Soft references {}.",
+                    new Object[] {this.name, Integer.valueOf(this.maxSize), (this.useSoftReferences? "are used" : "not used")});
+        }
+
+    }
+
+
+
+
+    public void put(final K key, final V value) {
+
+        final Node<K,V> node = new Node<K,V>(key, new StandardCache.CacheEntry<V>(value, this.useSoftReferences));
+        final Node<K,V> previous = this.data.put(key, node);
+
+        if (previous != null) {
+            previous.retired = true;
+        }
+
+        this.writeBuffer.add(new Runnable() {
+            public void run() {
+                if (previous != null) {
+                    unlink(previous);
+                }
+                if (!node.retired) {
+                    onAdd(node);
+                }
+            }
+        });
+
+        drainWrites();
+
+        if (this.traceExecution) {
+            this.logger.trace(
+                    "[THYMELEAF][{}][{}][CACHE_ADD] Adding cache entry in cache \"{}\" for key \"{}\".",
+                    new Object[] {TemplateEngine.threadIndex(), this.name, this.name, key});
+        }
+
+    }
+
+
+
+    public V get(final K key) {
+        return get(key, this.entryValidityChecker);
+    }
+
+
+
+    public V get(final K key, final ICacheEntryValidityChecker<? super K, ? super V> validityChecker) {
+
+        final Node<K,V> node = this.data.get(key);
+
+        if (node == null) {
+            this.missCount.increment();
+            return null;
+        }
+
+        final V value =
+                node.entry.getValueIfStillValid(this.name, key, validityChecker, this.traceExecution, this.logger);
+
+        if (value == null) {
+            // Entry was invalidated (or its soft reference was cleared)
+            remove(key, node);
+            this.missCount.increment();
+            return null;
+        }
+
+        this.hitCount.increment();
+
+        if (!this.readBuffer.offer(node)) {
+            // Buffer is full: help replay it (if nobody else is already doing so)
+            tryMaintenance();
+        }
+
+        return value;
+
+    }
+
+
+
+    /**
+     * <p>
+     *   Returns all the keys contained in this cache. Note this method might return keys for entries
+     *   that are already invalid, so the result of calling {@link #get(Object)} for these keys might
+     *   be {@code null}.
+     * </p>
+     *
+     * @return the complete set of cache keys. Might include keys for already-invalid (non-cleaned) entries.
+     */
+    public Set<K> keySet() {
+        return ((Map<K,Node<K,V>>)this.data).keySet();
+    }
+
+
+
+    public void clear() {
+
+        for (final Map.Entry<K,Node<K,V>> entry : this.data.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+
+        if (this.traceExecution) {
+            this.logger.trace(
+                    "[THYMELEAF][{}][*][{}][CACHE_REMOVE][0] Removing ALL cache entries in cache \"{}\".",
+                    new Object[] {TemplateEngine.threadIndex(), this.name, this.name});
+        }
+
+    }
+
+
+
+    public void clearKey(final K key) {
+
+        final Node<K,V> node = this.data.get(key);
+
+        if (node != null) {
+            remove(key, node);
+
+            if (this.traceExecution) {
+                this.logger.trace(
+                        "[THYMELEAF][{}][*][{}][CACHE_REMOVE] Removing cache entry in cache \"{}\" for key \"{}\".",
+                        new Object[] {TemplateEngine.threadIndex(), this.name, this.name, key});
+            }
+        }
+
+    }
+
+
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    public int getSize() {
+        return this.data.size();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+
+
+
+    private void remove(final K key, final Node<K,V> node) {
+
+        if (this.data.remove(key, node)) {
+            node.retired = true;
+
+            this.writeBuffer.add(new Runnable() {
+                public void run() {
+                    unlink(node);
+                }
+            });
+
+            drainWrites();
+        }
+
+    }
+
+
+
+    /*
+     * Replay pending writes. Called after each write is buffered, so that pending writes are never stranded if the
+     * thread holding the eviction lock checked the buffer just before this write was added to it.
+     */
+    private void drainWrites() {
+        while (!this.writeBuffer.isEmpty() && this.evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+
+    private void tryMaintenance() {
+        if (this.evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+
+    /*
+     * Must hold the eviction lock
+     */
+    private void maintenance() {
+
+        this.readBuffer.drainTo(this::onAccess);
+
+        Runnable task;
+        while ((task = this.writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        evict();
+
+    }
+
+
+    /*
+     * Must hold the eviction lock
+     */
+    private void onAdd(final Node<K,V> node) {
+
+        this.sketch.increment(node.key);
+
+        this.window.addLast(node, WINDOW);
+
+        // Entries leaving the window become candidates for admission to the main space
+        while (this.window.size > this.maxWindow) {
+            final Node<K,V> candidate = this.window.first;
+            this.window.remove(candidate);
+            this.probation.addLast(candidate, PROBATION);
+        }
+
+    }
+
+
+    /*
+     * Must hold the eviction lock
+     */
+    private void onAccess(final Node<K,V> node) {
+
+        if (node.retired || node.queue < 0) {
+            return;
+        }
+
+        this.sketch.increment(node.key);
+
+        switch (node.queue) {
+            case WINDOW:
+                this.window.moveToLast(node);
+                break;
+            case PROBATION:
+                // Promote, demoting the least recently used protected entry if the segment is full
+                this.probation.remove(node);
+                this.protectedSegment.addLast(node, PROTECTED);
+
+                while (this.protectedSegment.size > this.maxProtected && this.protectedSegment.first != null) {
+                    final Node<K,V> demoted = this.protectedSegment.first;
+                    this.protectedSegment.remove(demoted);
+                    this.probation.addLast(demoted, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                this.protectedSegment.moveToLast(node);
+                break;
+        }
+
+    }
+
+
+    /*
+     * Must hold the eviction lock
+     */
+    private void evict() {
+
+        while (this.window.size + this.probation.size + this.protectedSegment.size > this.maxSize) {
+
+            // The most recent arrival in probation competes against the least recently used entry there
+            final Node<K,V> candidate = this.probation.last;
+            final Node<K,V> victim = this.probation.first;
+
+            final Node<K,V> evict;
+            if (candidate == null) {
+                evict = (this.protectedSegment.first != null ? this.protectedSegment.first : this.window.first);
+            } else if (candidate == victim) {
+                evict = candidate;
+            } else {
+                evict = (admit(candidate.key, victim.key) ? victim : candidate);
+            }
+
+            unlink(evict);
+
+            if (this.data.remove(evict.key, evict)) {
+                evict.retired = true;
+                this.evictionCount.increment();
+
+                if (this.traceExecution) {
+                    this.logger.trace(
+                            "[THYMELEAF][{}][{}][CACHE_EVICT] Evicting cache entry in cache \"{}\" for key \"{}\".",
+                            new Object[] {TemplateEngine.threadIndex(), this.name, this.name, evict.key});
+                }
+            }
+
+        }
+
+    }
+
+
+    /*
+     * Decide whether the candidate should displace the victim. Ties go to the victim, except that a warm candidate
+     * is occasionally admitted anyway so an adversarial key set cannot pin the victim in place forever.
+     */
+    private boolean admit(final K candidate, final K victim) {
+
+        final int candidateFreq = this.sketch.frequency(candidate);
+        final int victimFreq = this.sketch.frequency(victim);
+
+        if (candidateFreq > victimFreq) {
+            return true;
+        } else if (candidateFreq <= 5) {
+            return false;
+        } else {
+            return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+        }
+
+    }
+
+
+    /*
+     * Must hold the eviction lock
+     */
+    private void unlink(final Node<K,V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                this.window.remove(node);
+                break;
+            case PROBATION:
+                this.probation.remove(node);
+                break;
+            case PROTECTED:
+                this.protectedSegment.remove(node);
+                break;
+        }
+    }
+
+
+
+
+    static final class Node<K, V> {
+
+        final K key;
+        final StandardCache.CacheEntry<V> entry;
+
+        volatile boolean retired = false;
+
+        // The following are only accessed while holding the eviction lock
+        int queue = -1;
+        Node<K,V> prev;
+        Node<K,V> next;
+
+        Node(final K key, final StandardCache.CacheEntry<V> entry) {
+            super();
+            this.key = key;
+            this.entry = entry;
+        }
+
+    }
+
+
+
+
+    /*
+     * Intrusive doubly-linked list of nodes, least recently used first. Not thread-safe.
+     */
+    static final class AccessOrderDeque<K, V> {
+
+        Node<K,V> first;
+        Node<K,V> last;
+        int size = 0;
+
+
+        void addLast(final Node<K,V> node, final int queue) {
+            node.queue = queue;
+            node.prev = this.last;
+            node.next = null;
+            if (this.last == null) {
+                this.first = node;
+            } else {
+                this.last.next = node;
+            }
+            this.last = node;
+            this.size++;
+        }
+
+
+        void remove(final Node<K,V> node) {
+            if (node.prev == null) {
+                this.first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                this.last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = -1;
+            this.size--;
+        }
+
+
+        void moveToLast(final Node<K,V> node) {
+            if (node != this.last) {
+                final int queue = node.queue;
+                remove(node);
+                addLast(node, queue);
+            }
+        }
+
+    }
+
+
+
+
+    /*
+     * Lossy striped ring buffers recording reads. Each thread is assigned a stripe by its id; producers claim a slot
+     * with a CAS and drop the read if the stripe is full or contended. Drained only while holding the eviction lock.
+     */
+    static final class ReadBuffer<E> {
+
+        private static final int STRIPE_SIZE = 64;
+        private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+        private final Stripe<E>[] stripes;
+        private final int stripeMask;
+
+
+        @SuppressWarnings("unchecked")
+        ReadBuffer() {
+            super();
+            int count = 1;
+            while (count < Runtime.getRuntime().availableProcessors()) {
+                count <<= 1;
+            }
+            this.stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                this.stripes[i] = new Stripe<E>();
+            }
+            this.stripeMask = count - 1;
+        }
+
+
+        /**
+         * @return false if the buffer is full and should be drained
+         */
+        boolean offer(final E element) {
+            final Stripe<E> stripe = this.stripes[(int) Thread.currentThread().threadId() & this.stripeMask];
+
+            final long tail = stripe.writeCounter.get();
+            if (tail - stripe.readCounter >= STRIPE_SIZE) {
+                return false;
+            }
+            if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+                stripe.buffer.lazySet((int) (tail & STRIPE_MASK), element);
+            }
+            return true;
+        }
+
+
+        void drainTo(final Consumer<E> consumer) {
+            for (final Stripe<E> stripe : this.stripes) {
+                final long tail = stripe.writeCounter.get();
+                long head = stripe.readCounter;
+                while (head < tail) {
+                    final int index = (int) (head & STRIPE_MASK);
+                    final E element = stripe.buffer.get(index);
+                    if (element == null) {
+                        // Slot claimed but not yet published
+                        break;
+                    }
+                    stripe.buffer.lazySet(index, null);
+                    consumer.accept(element);
+                    head++;
+                }
+                stripe.readCounter = head;
+            }
+        }
+
+
+        static final class Stripe<E> {
+            final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<E>(STRIPE_SIZE);
+            final AtomicLong writeCounter = new AtomicLong(0);
+            volatile long readCounter = 0;
+        }
+
+    }
+
+
+
+
+    /*
+     * Count-min sketch of 4-bit counters (16 per long), using 4 hash functions. Once the number of increments
+     * reaches 10x the cache size all counters are halved, so that the sketch reflects recent popularity.
+     * Not thread-safe.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS =
+                new long[] {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions = 0;
+
+
+        FrequencySketch(final int maxSize) {
+            super();
+            int length = 16;
+            while (length < maxSize) {
+                length <<= 1;
+            }
+            this.table = new long[length];
+            this.tableMask = length - 1;
+            this.sampleSize = 10 * Math.max(maxSize, 16);
+        }
+
+
+        int frequency(final Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+
+        void increment(final Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++this.additions == this.sampleSize) {
+                reset();
+            }
+        }
+
+
+        private boolean incrementAt(final int index, final int counter) {
+            final int offset = counter << 2;
+            final long mask = 0xfL << offset;
+            if ((this.table[index] & mask) != mask) {
+                this.table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+            }
+            this.additions = this.additions / 2;
+        }
+
+
+        private int indexOf(final int hash, final int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += (h >>> 32);
+            return ((int) h) & this.tableMask;
+        }
+
+
+        private static int spread(final int x) {
+            int h = ((x >>> 16) ^ x) * 0x45d9f3b;
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+
+    }
+
+
+}
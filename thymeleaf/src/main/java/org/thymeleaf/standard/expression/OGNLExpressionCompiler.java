@@ -0,0 +1,105 @@
+package org.thymeleaf.standard.expression;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import ognl.Node;
+import ognl.Ognl;
+import ognl.OgnlContext;
+import ognl.enhance.EnhancedClassLoader;
+import ognl.enhance.ExpressionCompiler;
+
+/**
+ * <p>
+ *   OGNL expression compiler used by {@link OGNLVariableExpressionEvaluator}, identical to OGNL's own
+ *   {@link ExpressionCompiler} except in how the generated accessor classes are defined.
+ * </p>
+ * <p>
+ *   OGNL has javassist define its generated classes, which (on Java 11+) relies on reflective access to
+ *   {@code ClassLoader.defineClass} and so fails unless {@code java.lang} is opened to it. Instead, this compiler
+ *   defines the generated bytecode through an {@link EnhancedClassLoader} (a child of the thread context class
+ *   loader, so it can link against application classes), which needs no special access.
+ * </p>
+ */
+final class OGNLExpressionCompiler extends ExpressionCompiler {
+
+    private final Map<ClassLoader, EnhancedClassLoader> definers = new WeakHashMap<ClassLoader, EnhancedClassLoader>();
+
+
+    OGNLExpressionCompiler() {
+        super();
+    }
+
+
+    /**
+     * <p>
+     *   Parse and compile an expression.
+     * </p>
+     *
+     * @param context the context to use during compilation
+     * @param root the root object, the class of which the compiled expression is specialised to
+     * @param expression the expression
+     * @return the parsed expression, with its compiled accessor set
+     * @throws Exception if the expression cannot be parsed or compiled
+     */
+    Node compile(final OgnlContext context, final Object root, final String expression) throws Exception {
+        final Node node = (Node) Ognl.parseExpression(expression);
+        compileExpression(context, node, root);
+        return node;
+    }
+
+
+    @Override
+    protected synchronized ClassPool getClassPool(final OgnlContext context, final EnhancedClassLoader loader) {
+
+        if (this._pool == null) {
+            final ClassPool pool = new DefiningClassPool();
+            pool.appendSystemPath();
+            pool.insertClassPath(new LoaderClassPath(loader.getParent()));
+            pool.insertClassPath(new LoaderClassPath(getParentLoader()));
+
+            this._pool = pool;
+        }
+
+        return this._pool;
+
+    }
+
+
+    private static ClassLoader getParentLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return (contextClassLoader != null ? contextClassLoader : OGNLExpressionCompiler.class.getClassLoader());
+    }
+
+
+    private synchronized EnhancedClassLoader getDefiner() {
+        return this.definers.computeIfAbsent(getParentLoader(), EnhancedClassLoader::new);
+    }
+
+
+
+
+    private final class DefiningClassPool extends ClassPool {
+
+        DefiningClassPool() {
+            super(null);
+        }
+
+
+        @Override
+        public Class toClass(final CtClass ct) throws CannotCompileException {
+            try {
+                return getDefiner().defineClass(ct.getName(), ct.toBytecode());
+            } catch (final IOException e) {
+                throw new CannotCompileException(e);
+            }
+        }
+
+    }
+
+}
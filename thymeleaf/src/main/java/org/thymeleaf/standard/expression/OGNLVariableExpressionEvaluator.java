@@ -19,9 +19,14 @@
  */
 package org.thymeleaf.standard.expression;
 
+import ognl.ASTChain;
+import ognl.ASTConst;
+import ognl.ASTProperty;
+import ognl.ASTVarRef;
 import ognl.AbstractMemberAccess;
 import ognl.ClassResolver;
 import ognl.MemberAccess;
+import ognl.Node;
 import ognl.OgnlContext;
 import ognl.OgnlException;
 import ognl.OgnlRuntime;
@@ -40,8 +45,11 @@ import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -75,6 +83,17 @@ public final class OGNLVariableExpressionEvaluator
     // TODO should we replace with OGNLPublicMemberAccess for back-compat with earlier vendored stdlib Thymeleaf?
     private static MemberAccess MEMBER_ACCESS = new ThymeleafACLMemberAccess();
     private static ThymeleafACLClassResolver CLASS_RESOLVER = new ThymeleafACLClassResolver();
+    private static final OGNLExpressionCompiler COMPILER = new OGNLExpressionCompiler();
+
+    /**
+     * Whether frequently-evaluated expressions may be compiled to bytecode
+     */
+    public static boolean ALLOW_COMPILE = true;
+
+    /**
+     * The number of successful interpreted evaluations after which an expression is compiled
+     */
+    public static int COMPILE_THRESHOLD = 500;
 
     private final boolean applyOGNLShortcuts;
 
@@ -176,7 +195,9 @@ public final class OGNLVariableExpressionEvaluator
             // Execute the expression!
             final Object result;
             try {
-                result = executeExpression(configuration, parsedExpression.expression, contextVariablesMap, evaluationRoot);
+                result = executeExpression(
+                        configuration, parsedExpression, contextVariablesMap, evaluationRoot,
+                        !expContext.getRestrictVariableAccess());
             } catch (final OGNLShortcutExpression.OGNLShortcutExpressionNotApplicableException notApplicable) {
                 // We tried to apply shortcuts, but it is not possible for this expression even if it parsed OK,
                 // so we need to empty the cache and try again disabling shortcuts. Once processed for the first time,
@@ -307,7 +328,7 @@ public final class OGNLVariableExpressionEvaluator
 
 
 
-    private static ComputedOGNLExpression parseExpression(
+    static ComputedOGNLExpression parseExpression(
             final String expression, final boolean applyOGNLShortcuts)
             throws OgnlException {
 
@@ -316,44 +337,182 @@ public final class OGNLVariableExpressionEvaluator
         if (applyOGNLShortcuts) {
             final String[] parsedExpression = OGNLShortcutExpression.parse(expression);
             if (parsedExpression != null) {
-                return new ComputedOGNLExpression(new OGNLShortcutExpression(parsedExpression), mightNeedExpressionObjects);
+                return new ComputedOGNLExpression(
+                        expression, new OGNLShortcutExpression(parsedExpression), mightNeedExpressionObjects, false);
             }
         }
 
-        return new ComputedOGNLExpression(ognl.Ognl.parseExpression(expression), mightNeedExpressionObjects);
+        final Object parsed = ognl.Ognl.parseExpression(expression);
+
+        // Only pure property/index chains are compiled. Compiled code does not consult the member access ACL (so
+        // expressions instantiating objects or accessing static members are excluded), and the compiled form is
+        // verified by evaluating it once more, which must not repeat method calls or their side effects
+        final boolean compilable =
+                !StandardExpressionUtils.containsOGNLInstantiationOrStaticOrParam(expression) &&
+                isPropertyChain((Node) parsed);
+
+        return new ComputedOGNLExpression(expression, parsed, mightNeedExpressionObjects, compilable);
         
     }
 
 
 
-    private static Object executeExpression(
-            final IEngineConfiguration configuration, final Object parsedExpression,
-            final Map<String,Object> context, final Object root)
+    /*
+     * Whether an expression only navigates properties, indexes and variables, e.g. "a.b[0]", "#vars.map['key'].c"
+     */
+    static boolean isPropertyChain(final Node node) {
+
+        if (!(node instanceof ASTChain || node instanceof ASTProperty || node instanceof ASTConst ||
+                node instanceof ASTVarRef)) {
+            return false;
+        }
+
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!isPropertyChain(node.jjtGetChild(i))) {
+                return false;
+            }
+        }
+
+        return true;
+
+    }
+
+
+
+    static Object executeExpression(
+            final IEngineConfiguration configuration, final ComputedOGNLExpression parsedExpression,
+            final Map<String,Object> context, final Object root, final boolean mayUseCompiled)
             throws Exception {
 
-        if (parsedExpression instanceof OGNLShortcutExpression) {
-            return ((OGNLShortcutExpression) parsedExpression).evaluate(configuration, context, root);
+        if (parsedExpression.expression instanceof OGNLShortcutExpression) {
+            return ((OGNLShortcutExpression) parsedExpression.expression).evaluate(configuration, context, root);
+        }
+
+        // Compiled expressions bypass the property accessors' variable access restrictions, so are only used when
+        // no such restrictions apply
+        if (mayUseCompiled) {
+            final Node compiled = parsedExpression.getCompiled(root);
+            if (compiled != null) {
+                try {
+                    return ognl.Ognl.getValue(compiled, createOgnlContext(context), root);
+                } catch (final Exception | LinkageError e) {
+                    // Compiled code is specialised to the types seen when it was compiled: if these have changed,
+                    // or anything else goes wrong, permanently revert to the interpreted expression (which will
+                    // produce the correct result, or the correct exception)
+                    parsedExpression.abandonCompilation(e);
+                }
+            }
+        }
+
+        final Object result = ognl.Ognl.getValue(parsedExpression.expression, createOgnlContext(context), root);
+
+        if (mayUseCompiled && parsedExpression.shouldCompile(root)) {
+            parsedExpression.compile(context, root, result);
         }
 
+        return result;
+
+    }
+
+
+    private static OgnlContext createOgnlContext(final Map<String,Object> context) {
         // We create the OgnlContext here instead of just sending the Map as context because that prevents OGNL from
         // creating the OgnlContext empty and then setting the context Map variables one by one
-        final OgnlContext ognlContext = new OgnlContext(MEMBER_ACCESS, CLASS_RESOLVER, null, context);
-        return ognl.Ognl.getValue(parsedExpression, ognlContext, root);
-
+        return new OgnlContext(MEMBER_ACCESS, CLASS_RESOLVER, null, context);
     }
 
 
 
 
-    private static final class ComputedOGNLExpression {
+    /*
+     * A parsed expression. Once an (eligible) expression has been successfully interpreted COMPILE_THRESHOLD times
+     * it is compiled to bytecode for the class of root object it is being evaluated against. Only property/index
+     * chains are eligible, so the compiled form can be checked by evaluating it once against the same root: it is
+     * only kept if it produces the same result as the interpreted form. If compilation fails (e.g. the expression
+     * uses a construct the OGNL compiler does not support) the expression simply continues to be interpreted.
+     */
+    static final class ComputedOGNLExpression {
 
+        final String source;
         final Object expression;
         final boolean mightNeedExpressionObjects;
 
-        ComputedOGNLExpression(final Object expression, final boolean mightNeedExpressionObjects) {
+        private final boolean compilable;
+        private final AtomicInteger interpretedCount = new AtomicInteger(0);
+        private volatile boolean compileAbandoned = false;
+        private volatile Node compiled = null;
+        private volatile Class<?> compiledRootClass = null;
+
+        ComputedOGNLExpression(
+                final String source, final Object expression, final boolean mightNeedExpressionObjects,
+                final boolean compilable) {
             super();
+            this.source = source;
             this.expression = expression;
             this.mightNeedExpressionObjects = mightNeedExpressionObjects;
+            this.compilable = compilable;
+        }
+
+
+        Node getCompiled(final Object root) {
+            final Node node = this.compiled;
+            if (node != null && root != null && root.getClass() == this.compiledRootClass) {
+                return node;
+            }
+            return null;
+        }
+
+
+        boolean shouldCompile(final Object root) {
+            return ALLOW_COMPILE && this.compilable && !this.compileAbandoned && this.compiled == null && root != null &&
+                    this.interpretedCount.incrementAndGet() >= COMPILE_THRESHOLD;
+        }
+
+
+        synchronized void compile(final Map<String,Object> context, final Object root, final Object expected) {
+
+            if (this.compiled != null || this.compileAbandoned) {
+                return;
+            }
+
+            try {
+
+                // The compiler records state in the context, which might be an immutable map
+                final Map<String,Object> compileContext =
+                        (context instanceof OGNLExpressionObjectsWrapper ? context : new HashMap<String,Object>(context));
+
+                final Node node = COMPILER.compile(createOgnlContext(compileContext), root, this.source);
+
+                // Only trust the compiled form if it agrees with the interpreted one
+                final Object actual = ognl.Ognl.getValue(node, createOgnlContext(context), root);
+                if (!Objects.equals(expected, actual) ||
+                        (expected != null && expected.getClass() != actual.getClass())) {
+                    abandonCompilation(null);
+                    return;
+                }
+
+                this.compiledRootClass = root.getClass();
+                this.compiled = node;
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[THYMELEAF][{}] OGNL expression: compiled expression \"{}\"", TemplateEngine.threadIndex(), this.source);
+                }
+
+            } catch (final Exception | LinkageError e) {
+                abandonCompilation(e);
+            }
+
+        }
+
+
+        void abandonCompilation(final Throwable cause) {
+            this.compileAbandoned = true;
+            this.compiled = null;
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("[THYMELEAF][{}] OGNL expression: will not use compiled form of expression \"{}\"",
+                        new Object[] {TemplateEngine.threadIndex(), this.source, cause});
+            }
         }
 
 
@@ -0,0 +1,50 @@
+package org.thymeleaf.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StandardCacheManagerTest {
+
+
+    @Test
+    public void testStandardCachesByDefault() {
+        final StandardCacheManager manager = new StandardCacheManager();
+
+        assertTrue(manager.getTemplateCache() instanceof StandardCache);
+        assertTrue(manager.getExpressionCache() instanceof StandardCache);
+    }
+
+
+    @Test
+    public void testFrequencyAwareCaches() {
+        final StandardCacheManager manager = new StandardCacheManager();
+        manager.setTemplateCacheFrequencyAware(true);
+        manager.setExpressionCacheFrequencyAware(true);
+
+        assertTrue(manager.getTemplateCache() instanceof TinyLFUCache);
+        assertTrue(manager.getExpressionCache() instanceof TinyLFUCache);
+    }
+
+
+    @Test
+    public void testUnboundedCacheIsNeverFrequencyAware() {
+        final StandardCacheManager manager = new StandardCacheManager();
+        manager.setTemplateCacheFrequencyAware(true);
+        manager.setTemplateCacheMaxSize(-1);
+
+        assertTrue(manager.getTemplateCache() instanceof StandardCache);
+    }
+
+
+    @Test
+    public void testDisabledCache() {
+        final StandardCacheManager manager = new StandardCacheManager();
+        manager.setTemplateCacheFrequencyAware(true);
+        manager.setTemplateCacheMaxSize(0);
+
+        assertNull(manager.getTemplateCache());
+    }
+
+}
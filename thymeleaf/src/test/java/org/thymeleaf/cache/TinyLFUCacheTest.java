@@ -0,0 +1,203 @@
+package org.thymeleaf.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLFUCacheTest {
+
+
+    private static TinyLFUCache<String,String> cache(final int maxSize) {
+        return new TinyLFUCache<String,String>("test", false, 16, maxSize, null, null);
+    }
+
+
+    @Test
+    public void testGetAndPut() {
+        final TinyLFUCache<String,String> cache = cache(10);
+
+        assertNull(cache.get("a"));
+
+        cache.put("a", "1");
+        cache.put("a", "2");
+
+        assertEquals("2", cache.get("a"));
+        assertEquals(1, cache.getSize());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testEvictsAtCapacity() {
+        final TinyLFUCache<String,String> cache = cache(100);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key-" + i, "value-" + i);
+
+            assertTrue("size " + cache.getSize() + " after " + i, cache.getSize() <= 100);
+        }
+
+        assertEquals(100, cache.getSize());
+        assertEquals(900, cache.getEvictionCount());
+    }
+
+
+    @Test
+    public void testFrequentEntriesSurviveScan() {
+        final TinyLFUCache<String,String> cache = cache(100);
+
+        // Establish a working set that is used repeatedly
+        for (int i = 0; i < 50; i++) {
+            cache.put("hot-" + i, "value");
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("hot-" + i);
+            }
+            // Writes replay the recorded reads
+            cache.put("filler-" + round, "value");
+        }
+
+        // A burst of one-off entries, far larger than the cache (a FIFO or LRU cache would lose every hot entry)
+        for (int i = 0; i < 10000; i++) {
+            cache.put("cold-" + i, "value");
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot-" + i) != null) {
+                survivors++;
+            }
+        }
+
+        assertTrue("only " + survivors + " of 50 hot entries survived", survivors >= 45);
+        assertEquals(100, cache.getSize());
+    }
+
+
+    @Test
+    public void testInvalidEntryRemovedOnGet() {
+        final TinyLFUCache<String,String> cache =
+                new TinyLFUCache<String,String>("test", false, 16, 10, (key, value, created) -> !value.equals("stale"), null);
+
+        cache.put("a", "stale");
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testClear() {
+        final TinyLFUCache<String,String> cache = cache(10);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("key-" + i, "value");
+        }
+
+        cache.clearKey("key-0");
+        assertNull(cache.get("key-0"));
+        assertEquals(9, cache.getSize());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+
+        // The eviction policy must have forgotten the cleared entries too
+        for (int i = 0; i < 10; i++) {
+            cache.put("new-" + i, "value");
+        }
+        assertEquals(10, cache.getSize());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+
+    @Test
+    public void testSketchCountsSaturate() {
+        final TinyLFUCache.FrequencySketch sketch = new TinyLFUCache.FrequencySketch(1024);
+
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("key");
+        }
+
+        assertEquals(15, sketch.frequency("key"));
+        assertEquals(0, sketch.frequency("other"));
+    }
+
+
+    @Test
+    public void testSketchAges() {
+        // Sample size is 10x the maximum size (here 160 increments)
+        final TinyLFUCache.FrequencySketch sketch = new TinyLFUCache.FrequencySketch(16);
+
+        for (int i = 0; i < 12; i++) {
+            sketch.increment("old");
+        }
+
+        assertEquals(12, sketch.frequency("old"));
+
+        for (int i = 0; i < 200; i++) {
+            sketch.increment("new-" + i);
+        }
+
+        // All counters are halved once the sample size is reached, so past popularity decays
+        final int aged = sketch.frequency("old");
+        assertTrue("frequency was " + aged + " after ageing", aged >= 6 && aged < 12);
+    }
+
+
+    @Test
+    public void testConcurrentGetAndPut() throws Exception {
+        final TinyLFUCache<String,String> cache = cache(100);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        final ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < 20000; i++) {
+                            final String key = "key-" + random.nextInt(500);
+                            if (random.nextInt(4) == 0) {
+                                cache.put(key, "value-" + key);
+                            } else {
+                                final String value = cache.get(key);
+                                if (value != null && !value.equals("value-" + key)) {
+                                    throw new AssertionError("Got " + value + " for " + key);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // A write from a single thread replays anything left pending, restoring the size bound
+        cache.put("last", "value-last");
+
+        assertTrue("size was " + cache.getSize(), cache.getSize() <= 100);
+        assertEquals("value-last", cache.get("last"));
+    }
+
+}
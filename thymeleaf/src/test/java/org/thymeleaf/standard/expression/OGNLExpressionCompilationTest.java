@@ -0,0 +1,286 @@
+package org.thymeleaf.standard.expression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that compiled OGNL expressions produce the same results as interpreted ones
+ */
+public class OGNLExpressionCompilationTest {
+
+    private int threshold;
+
+
+    @Before
+    public void setUp() {
+        this.threshold = OGNLVariableExpressionEvaluator.COMPILE_THRESHOLD;
+        OGNLVariableExpressionEvaluator.COMPILE_THRESHOLD = 2;
+    }
+
+
+    @After
+    public void tearDown() {
+        OGNLVariableExpressionEvaluator.COMPILE_THRESHOLD = this.threshold;
+    }
+
+
+    @Test
+    public void testPropertyChain() throws Exception {
+        assertCompiledMatchesInterpreted("person.address.city", new Model());
+    }
+
+
+    @Test
+    public void testIndexedAccess() throws Exception {
+        assertCompiledMatchesInterpreted("people[1].name", new Model());
+    }
+
+
+    @Test
+    public void testMapAccess() throws Exception {
+        assertCompiledMatchesInterpreted("map['colour']", new Model());
+        assertCompiledMatchesInterpreted("map.colour", new Model());
+    }
+
+
+    @Test
+    public void testVariableAccess() throws Exception {
+        final Map<String,Object> vars = new HashMap<String,Object>();
+        vars.put("other", new Person("Other", new Address("Paris")));
+
+        assertEquals("Paris", evaluate("#other.address.city", vars, new Model(), false));
+        assertEquals("Paris", compileAndEvaluate("#other.address.city", vars, new Model()));
+    }
+
+
+    @Test
+    public void testNullIntermediateAfterCompilation() throws Exception {
+
+        final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed = compile("person.address.city", new Model());
+
+        // Same root class, but now with a null in the middle of the chain: the compiled form must behave exactly as
+        // the interpreted form does
+        final Model withNull = new Model();
+        withNull.person = new Person("Nobody", null);
+
+        final Outcome interpreted = outcome(parse("person.address.city"), withNull, false);
+        final Outcome compiled = outcome(parsed, withNull, true);
+
+        assertEquals(interpreted, compiled);
+    }
+
+
+    @Test
+    public void testNullValueAtEndOfChain() throws Exception {
+        final Model model = new Model();
+        model.person = new Person("Nobody", new Address(null));
+
+        assertCompiledMatchesInterpreted("person.address.city", model);
+    }
+
+
+    @Test
+    public void testMethodCallsNeverCompiled() throws Exception {
+
+        final Model model = new Model();
+        final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed = parse("person.greet()");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Hello, Alice", execute(parsed, model, true));
+        }
+
+        assertNull(parsed.getCompiled(model));
+
+        // Each evaluation must call the method exactly once (never again to verify a compiled form)
+        assertEquals(10, model.person.greetings);
+    }
+
+
+    @Test
+    public void testOnlyPropertyChainsAreCompilable() throws Exception {
+        assertTrue(isPropertyChain("a.b.c"));
+        assertTrue(isPropertyChain("a[0].b['key']"));
+        assertTrue(isPropertyChain("#var.b"));
+
+        assertFalse(isPropertyChain("a.b()"));
+        assertFalse(isPropertyChain("a.b(c.d)"));
+        assertFalse(isPropertyChain("a.b = 1"));
+        assertFalse(isPropertyChain("a.{b}"));
+    }
+
+
+    private static boolean isPropertyChain(final String expression) throws Exception {
+        return OGNLVariableExpressionEvaluator.isPropertyChain((ognl.Node) ognl.Ognl.parseExpression(expression));
+    }
+
+
+    private static void assertCompiledMatchesInterpreted(final String expression, final Object root) throws Exception {
+        final Map<String,Object> vars = Collections.emptyMap();
+
+        assertEquals(expression, evaluate(expression, vars, root, false), compileAndEvaluate(expression, vars, root));
+    }
+
+
+    private static OGNLVariableExpressionEvaluator.ComputedOGNLExpression parse(final String expression) throws Exception {
+        return OGNLVariableExpressionEvaluator.parseExpression(expression, false);
+    }
+
+
+    private static Object execute(
+            final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed, final Object root, final boolean mayUseCompiled)
+            throws Exception {
+        return OGNLVariableExpressionEvaluator.executeExpression(
+                null, parsed, Collections.<String,Object>emptyMap(), root, mayUseCompiled);
+    }
+
+
+    private static Object evaluate(
+            final String expression, final Map<String,Object> vars, final Object root, final boolean mayUseCompiled)
+            throws Exception {
+        return OGNLVariableExpressionEvaluator.executeExpression(null, parse(expression), vars, root, mayUseCompiled);
+    }
+
+
+    private static OGNLVariableExpressionEvaluator.ComputedOGNLExpression compile(final String expression, final Object root)
+            throws Exception {
+        return compile(expression, Collections.<String,Object>emptyMap(), root);
+    }
+
+
+    private static OGNLVariableExpressionEvaluator.ComputedOGNLExpression compile(
+            final String expression, final Map<String,Object> vars, final Object root) throws Exception {
+
+        final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed = parse(expression);
+
+        for (int i = 0; i < OGNLVariableExpressionEvaluator.COMPILE_THRESHOLD && parsed.getCompiled(root) == null; i++) {
+            OGNLVariableExpressionEvaluator.executeExpression(null, parsed, vars, root, true);
+        }
+
+        assertNotNull("Expected " + expression + " to be compiled", parsed.getCompiled(root));
+
+        return parsed;
+
+    }
+
+
+    private static Object compileAndEvaluate(final String expression, final Map<String,Object> vars, final Object root)
+            throws Exception {
+
+        final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed = compile(expression, vars, root);
+
+        final Object result = OGNLVariableExpressionEvaluator.executeExpression(null, parsed, vars, root, true);
+
+        assertNotNull("Compiled form should still be in use", parsed.getCompiled(root));
+
+        return result;
+
+    }
+
+
+    private static Outcome outcome(
+            final OGNLVariableExpressionEvaluator.ComputedOGNLExpression parsed, final Object root, final boolean mayUseCompiled) {
+        try {
+            return new Outcome(execute(parsed, root, mayUseCompiled), null);
+        } catch (final Exception e) {
+            return new Outcome(null, e.getClass());
+        }
+    }
+
+
+    private record Outcome(Object value, Class<?> exception) {
+    }
+
+
+
+
+    public static class Model {
+
+        Person person = new Person("Alice", new Address("London"));
+        final List<Person> people = Arrays.asList(person, new Person("Bob", new Address("Leeds")));
+        final Map<String,Object> map = new LinkedHashMap<String,Object>();
+
+
+        public Model() {
+            this.map.put("colour", "green");
+        }
+
+
+        public Person getPerson() {
+            return this.person;
+        }
+
+
+        public List<Person> getPeople() {
+            return this.people;
+        }
+
+
+        public Map<String,Object> getMap() {
+            return this.map;
+        }
+
+    }
+
+
+    public static class Person {
+
+        private final String name;
+        private final Address address;
+        int greetings = 0;
+
+
+        public Person(final String name, final Address address) {
+            this.name = name;
+            this.address = address;
+        }
+
+
+        public String getName() {
+            return this.name;
+        }
+
+
+        public Address getAddress() {
+            return this.address;
+        }
+
+
+        public String greet() {
+            this.greetings++;
+            return "Hello, " + this.name;
+        }
+
+    }
+
+
+    public static class Address {
+
+        private final String city;
+
+
+        public Address(final String city) {
+            this.city = city;
+        }
+
+
+        public String getCity() {
+            return this.city;
+        }
+
+    }
+
+}
@@ -1,19 +1,16 @@
 package com.peterphi.usermanager.daemon;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.peterphi.std.annotation.Doc;
 import com.peterphi.std.guice.common.daemon.GuiceRecurringDaemon;
 import com.peterphi.std.guice.common.eagersingleton.annotations.EagerSingleton;
-import com.peterphi.std.guice.database.annotation.Transactional;
 import com.peterphi.std.guice.restclient.jaxb.webquery.WebQuery;
 import com.peterphi.std.threading.Timeout;
 import com.peterphi.usermanager.db.dao.hibernate.OAuthDelegatedTokenDaoImpl;
 import com.peterphi.usermanager.db.dao.hibernate.OAuthSessionDaoImpl;
-import com.peterphi.usermanager.db.entity.OAuthDelegatedTokenEntity;
-import com.peterphi.usermanager.db.entity.OAuthSessionEntity;
 import org.joda.time.DateTime;
 
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @EagerSingleton
@@ -26,6 +23,11 @@ public class DeleteExpiredSessionDaemon extends GuiceRecurringDaemon
 	@Inject
 	OAuthDelegatedTokenDaoImpl delegatedTokenDao;
 
+	@Inject(optional = true)
+	@Named("user-manager.expired-session-delete-batch-size")
+	@Doc("The maximum number of expired sessions/tokens deleted in each transaction (default 1000)")
+	int deleteBatchSize = 1000;
+
 
 	public DeleteExpiredSessionDaemon()
 	{
@@ -36,45 +38,29 @@ public class DeleteExpiredSessionDaemon extends GuiceRecurringDaemon
 	@Override
 	protected void execute() throws Exception
 	{
-		// Firstly, delete expired sessions
-		final int sessions = deleteExpiredSessions();
-
-		// Now delete expired delegated tokens
+		// Firstly, delete expired delegated tokens (which reference sessions)
 		final int tokens = deleteExpiredDelegatedTokens();
 
+		// Now delete expired sessions
+		final int sessions = deleteExpiredSessions();
+
 		setTextState("Deleted " + tokens + " tokens and " + sessions + " sessions");
 	}
 
 
-	@Transactional
 	public int deleteExpiredDelegatedTokens()
 	{
-		List<OAuthDelegatedTokenEntity> list = delegatedTokenDao.find(findExpiredDelegatedTokens()).getList();
+		setTextState("Deleting expired delegated tokens");
 
-		setTextState("Deleting " + list.size() + " expired delegated tokens");
-
-		for (OAuthDelegatedTokenEntity entity : list)
-		{
-			delegatedTokenDao.delete(entity);
-		}
-
-		return list.size();
+		return delegatedTokenDao.deleteByQuery(findExpiredDelegatedTokens(), deleteBatchSize);
 	}
 
 
-	@Transactional
 	public int deleteExpiredSessions()
 	{
-		List<OAuthSessionEntity> list = sessionDao.find(findExpiredSessions()).getList();
-
-		setTextState("Deleting " + list.size() + " expired sessions");
-
-		for (OAuthSessionEntity entity : list)
-		{
-			sessionDao.delete(entity);
-		}
+		setTextState("Deleting expired sessions");
 
-		return list.size();
+		return sessionDao.deleteByQuery(findExpiredSessions(), deleteBatchSize);
 	}
 
 